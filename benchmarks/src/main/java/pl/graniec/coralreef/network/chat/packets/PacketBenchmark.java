@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding cost of the hot packets, both through
+ * {@link java.io.Externalizable} and through the {@link PacketCodec}.
+ * <p>
+ * Run with <code>-prof gc</code> to see the allocation per operation.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+	
+	/** Number of recipients of a broadcast */
+	@Param({"100", "10000"})
+	int recipients;
+	
+	MessagePacket message;
+	UserRegisterRequest registerRequest;
+	
+	byte[] messageExternal;
+	byte[] registerRequestExternal;
+	byte[] messageEncoded;
+	
+	Object[] queues;
+	
+	@Setup
+	public void setUp() throws IOException {
+		message = new MessagePacket(MessageType.Group, "jack", "developers", "Hello everyone, the build is green again!");
+		registerRequest = new UserRegisterRequest("jack", "");
+		
+		messageExternal = writeExternal(message);
+		registerRequestExternal = writeExternal(registerRequest);
+		messageEncoded = PacketCodec.encode(message);
+		
+		queues = new Object[recipients];
+	}
+	
+	private static byte[] writeExternal(ChatPacket packet) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		
+		packet.writeExternal(out);
+		out.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	private static ChatPacket readExternal(ChatPacket packet, byte[] data) throws IOException, ClassNotFoundException {
+		final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		
+		packet.readExternal(in);
+		return packet;
+	}
+	
+	@Benchmark
+	public byte[] messageWriteExternal() throws IOException {
+		return writeExternal(message);
+	}
+	
+	@Benchmark
+	public ChatPacket messageReadExternal() throws IOException, ClassNotFoundException {
+		return readExternal(new MessagePacket(), messageExternal);
+	}
+	
+	@Benchmark
+	public byte[] messageEncode() {
+		return PacketCodec.encode(message);
+	}
+	
+	@Benchmark
+	public ChatPacket messageDecode() throws IOException {
+		return PacketCodec.decode(messageEncoded, 0, messageEncoded.length);
+	}
+	
+	@Benchmark
+	public byte[] registerRequestWriteExternal() throws IOException {
+		return writeExternal(registerRequest);
+	}
+	
+	@Benchmark
+	public ChatPacket registerRequestReadExternal() throws IOException, ClassNotFoundException {
+		return readExternal(new UserRegisterRequest(), registerRequestExternal);
+	}
+	
+	/**
+	 * Broadcast that encodes the message for every recipient.
+	 */
+	@Benchmark
+	public void broadcastEncodePerRecipient(Blackhole blackhole) {
+		for (int i = 0; i < recipients; ++i) {
+			queues[i] = PacketCodec.encode(message);
+		}
+		
+		blackhole.consume(queues);
+	}
+	
+	/**
+	 * Broadcast that shares one {@link PacketFrame} between all recipients.
+	 */
+	@Benchmark
+	public void broadcastEncodeOnce(Blackhole blackhole) {
+		final PacketFrame frame = PacketFrame.encode(message);
+		
+		for (int i = 0; i < recipients; ++i) {
+			queues[i] = frame;
+		}
+		
+		blackhole.consume(queues);
+	}
+}
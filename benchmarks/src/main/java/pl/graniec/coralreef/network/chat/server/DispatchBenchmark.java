@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.graniec.coralreef.network.chat.packets.GroupLeaveRequest;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+
+/**
+ * Cost of {@link User#handlePacket(Object)} dispatch for packets that
+ * end quickly, so the dispatch itself dominates.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	
+	ChatServer server;
+	User user;
+	
+	MessagePacket privateMessage;
+	GroupLeaveRequest leaveRequest;
+	PacketFrame privateMessageFrame;
+	
+	@Setup
+	public void setUp() {
+		server = new ChatServer(null);
+		user = new User(server, "jack");
+		
+		// nobody to deliver to
+		privateMessage = new MessagePacket(MessageType.Private, "jack", "nobody", "hi");
+		privateMessageFrame = PacketFrame.encode(privateMessage);
+		
+		// rejected, the user isn't a member
+		leaveRequest = new GroupLeaveRequest("nowhere");
+	}
+	
+	@Setup(Level.Iteration)
+	public void clearQueue() {
+		user.getOutboundQueue().clear();
+	}
+	
+	@Benchmark
+	public void privateMessage() {
+		user.handlePacket(privateMessage);
+	}
+	
+	@Benchmark
+	public void privateMessageFrame() {
+		user.handlePacket(privateMessageFrame);
+	}
+	
+	@Benchmark
+	public void groupLeaveRequest() {
+		user.handlePacket(leaveRequest);
+	}
+	
+	@Benchmark
+	public void foreignPacket() {
+		user.handlePacket(this);
+	}
+}
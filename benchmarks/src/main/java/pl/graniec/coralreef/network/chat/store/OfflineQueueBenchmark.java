@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketCodec;
+
+/**
+ * Cost of storing private messages for offline users in the
+ * {@link OfflineQueue} and of reading all of them at once when a user
+ * with thousands of pending messages registers.
+ * <p>
+ * Reading is measured on a new queue for every invocation and without
+ * marking the messages delivered, so compaction, which that may start,
+ * stays out of the measurement.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfflineQueueBenchmark {
+	
+	/** Receivers that the messages are spread over */
+	private static final int RECEIVERS = 1024;
+	/** Messages of a receiver in the offer benchmark after which they are taken */
+	private static final int OFFER_BACKLOG = 64;
+	
+	private static final byte[] MESSAGE = PacketCodec.encode(new MessagePacket(MessageType.Private, "sender", "receiver",
+			"a private message of a typical length, about a hundred bytes of text"));
+	
+	/**
+	 * Queue in a temporary file.
+	 */
+	static abstract class QueueState {
+		
+		File file;
+		OfflineQueue queue;
+		
+		void open() throws IOException {
+			close();
+			
+			file = File.createTempFile("offline-bench", ".dat");
+			file.delete();
+			
+			queue = new OfflineQueue(file);
+			queue.setMaxPending(Integer.MAX_VALUE);
+		}
+		
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			if (queue != null) {
+				queue.close();
+				queue = null;
+				file.delete();
+			}
+		}
+		
+		void offer(String receiver) throws IOException {
+			if (!queue.offer(receiver, MESSAGE)) {
+				throw new IllegalStateException("message to " + receiver + " refused");
+			}
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class PendingState extends QueueState {
+		
+		@Param({"1000", "10000"})
+		int pending;
+		
+		/**
+		 * Queues <code>pending</code> messages for "receiver" in a new
+		 * queue, every one followed by a message for somebody else, as
+		 * if they came over time.
+		 */
+		@Setup(Level.Invocation)
+		public void fill() throws IOException {
+			open();
+			
+			for (int i = 0; i < pending; ++i) {
+				offer("receiver");
+				offer("other" + (i % RECEIVERS));
+			}
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class OfferState extends QueueState {
+		
+		int next;
+		
+		@Setup(Level.Iteration)
+		public void setUp() throws IOException {
+			open();
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[][] readAll(PendingState state) throws IOException {
+		return state.queue.peek("receiver");
+	}
+	
+	/**
+	 * Offers messages to receivers in turn. A receiver's messages are
+	 * taken when it has {@link #OFFER_BACKLOG} of them, so the queue
+	 * stays small and the cost of taking and compacting is spread over
+	 * the offers, as on a server whose users come back.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void offer(OfferState state) throws IOException {
+		final String receiver = "other" + (state.next++ & (RECEIVERS - 1));
+		
+		if (state.queue.getPendingCount(receiver) >= OFFER_BACKLOG) {
+			state.queue.take(receiver);
+		}
+		
+		state.offer(receiver);
+	}
+}
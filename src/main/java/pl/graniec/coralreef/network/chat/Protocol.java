@@ -29,12 +29,22 @@
 package pl.graniec.coralreef.network.chat;
 
 /**
+ * Chat protocol constants.
+ * <p>
+ * The server sends its {@link #VERSION} in a plain serialized
+ * {@link pl.graniec.coralreef.network.chat.packets.ProtocolPacket} right
+ * after the client connects. Since version 3 all other packets are
+ * exchanged as {@link pl.graniec.coralreef.network.chat.packets.PacketFrame}s
+ * encoded with the {@link pl.graniec.coralreef.network.chat.packets.PacketCodec},
+ * so clients that don't speak this version fail the handshake
+ * before receiving anything they cannot read.
+ * 
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
 public final class Protocol {
 	
-	public static final int VERSION = 1;
+	public static final int VERSION = 3;
 	
 	private Protocol() {
 	}
@@ -29,7 +29,18 @@
 package pl.graniec.coralreef.network.chat.client;
 
 
+import java.io.IOException;
 import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import pl.graniec.coralreef.network.PacketListener;
@@ -40,32 +51,185 @@ import pl.graniec.coralreef.network.chat.exceptions.IllegalUserNameException;
 import pl.graniec.coralreef.network.chat.exceptions.ProtocolVersionMismatchException;
 import pl.graniec.coralreef.network.chat.exceptions.UserNameAlreadyInUseException;
 import pl.graniec.coralreef.network.chat.exceptions.WrongPasswordExcepion;
+import pl.graniec.coralreef.network.chat.packets.AbstractRequest;
+import pl.graniec.coralreef.network.chat.packets.AbstractResponse;
+import pl.graniec.coralreef.network.chat.packets.BatchPacket;
+import pl.graniec.coralreef.network.chat.packets.CompactMessagePacket;
+import pl.graniec.coralreef.network.chat.packets.GroupHistoryRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupHistoryResponse;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinResponse;
+import pl.graniec.coralreef.network.chat.packets.GroupLeaveRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupRejectReason;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.OfflineMessagesPacket;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.PingPacket;
+import pl.graniec.coralreef.network.chat.packets.PongPacket;
 import pl.graniec.coralreef.network.chat.packets.ProtocolPacket;
 import pl.graniec.coralreef.network.chat.packets.RegisterRejectReason;
+import pl.graniec.coralreef.network.chat.packets.SymbolPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortReason;
+import pl.graniec.coralreef.network.chat.packets.TransferAckPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferChunkPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferStartPacket;
 import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
-import pl.graniec.coralreef.network.chat.packets.UserRegisterResponse;
 import pl.graniec.coralreef.network.client.Client;
 import pl.graniec.coralreef.network.exceptions.NetworkException;
 
 /**
+ * The chat client.
+ * <p>
+ * Requests sent to the server are tagged with a request ID and kept
+ * in a table of pending requests until the matching response arrives,
+ * so any number of requests can be in flight at once. Packets that
+ * aren't responses nor messages are passed to the packet listeners.
+ * 
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
 public class ChatClient {
 	
-	private static class ObjectContainer {
-		Object object;
+	/**
+	 * Request waiting for its response.
+	 */
+	private static abstract class PendingRequest {
+		
+		final ChatFuture future;
+		
+		PendingRequest(ChatFuture future) {
+			this.future = future;
+		}
+		
+		abstract void responseReceived(AbstractResponse response);
+	}
+	
+	/**
+	 * Pending group request. Completes with the group name.
+	 */
+	private static class PendingGroupRequest extends PendingRequest {
+		
+		final String groupName;
+		
+		PendingGroupRequest(String groupName) {
+			super(new ChatFuture());
+			this.groupName = groupName;
+		}
+		
+		void responseReceived(AbstractResponse response) {
+			if (response.isSucceed()) {
+				succeeded(response);
+				return;
+			}
+			
+			switch (response.getFailReason()) {
+				case GroupRejectReason.NotRegistered:
+					future.fail(new ChatException("user is not registered"));
+					break;
+				case GroupRejectReason.IllegalGroupName:
+					future.fail(new ChatException("group name '" + groupName + "' is illegal on this server"));
+					break;
+				case GroupRejectReason.AlreadyMember:
+					future.fail(new ChatException("already a member of group '" + groupName + "'"));
+					break;
+				case GroupRejectReason.NotMember:
+					future.fail(new ChatException("not a member of group '" + groupName + "'"));
+					break;
+				default:
+					future.fail(new ChatException("group request rejected: " + response.getFailReason()));
+			}
+		}
+		
+		void succeeded(AbstractResponse response) {
+			future.complete(groupName);
+		}
+	}
+	
+	/**
+	 * Pending history request. Completes with an array of messages.
+	 */
+	private static class PendingHistoryRequest extends PendingGroupRequest {
+		
+		PendingHistoryRequest(String groupName) {
+			super(groupName);
+		}
+		
+		void succeeded(AbstractResponse response) {
+			try {
+				future.complete(((GroupHistoryResponse) response).getMessages());
+			} catch (IOException e) {
+				future.fail(new ChatException(e));
+			} catch (ClassCastException e) {
+				future.fail(new ChatException("unexpected response for history request"));
+			}
+		}
+	}
+	
+	/**
+	 * Transfer that this client receives.
+	 */
+	private static class IncomingTransfer {
+		
+		final TransferStartPacket start;
+		final OutputStream out;
+		/** Number of the next expected chunk */
+		int nextSequence;
+		
+		IncomingTransfer(TransferStartPacket start, OutputStream out) {
+			this.start = start;
+			this.out = out;
+		}
 	}
 	
 	private static final Logger logger = Logger.getLogger(ChatClient.class.getName());
 	
-	/** Time to wait for response from server */
-	private static final int ANSWER_TIMEOUT = 30000;
+	/** Default time to wait for response from server */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+	
+	/** Fails requests that the server doesn't answer in time. Shared by all clients. */
+	private static final Timer timeouts = new Timer(true);
 	
 	/** Network client implementation */
 	private final Client client;
 	/** Name of the chat user */
 	private String name;
+	/** Message listeners */
+	private final List messageListeners = new ArrayList();
+	/** Listeners of packets that this client doesn't handle itself */
+	private final List packetListeners = new ArrayList();
+	
+	/** Requests waiting for response: Integer => PendingRequest */
+	private final Map pendingRequests = new HashMap();
+	/** ID of the next request */
+	private int nextRequestId = 1;
+	/** Time to wait for response from server */
+	private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	
+	/** Transfers sent by this client: Integer => TransferOutputStream */
+	private final Map outgoingTransfers = new HashMap();
+	/** ID of the next transfer */
+	private int nextTransferId = 1;
+	/** Transfers received by this client: sender name and transfer ID => IncomingTransfer */
+	private final Map incomingTransfers = new HashMap();
+	/** Listener of received transfers, <code>null</code> if none */
+	private volatile TransferListener transferListener;
+	
+	/** Should the server send compact messages? */
+	private boolean compactMessages;
+	/** Names of symbols that the server defined, indexed by slot */
+	private final String[] symbolNames = new String[SymbolPacket.CACHE_SIZE];
+	/** Symbol ids of joined groups: group name => Integer */
+	private final Map groupIds = new HashMap();
+	
+	/** Time of the last packet from the server */
+	private volatile long lastActivity = System.currentTimeMillis();
+	
+	/** Handshake in progress, <code>null</code> if none */
+	private ChatFuture handshake;
+	/** Password used by the handshake in progress */
+	private String handshakePassword;
 	
 	public ChatClient(Client client, String name) {
 		
@@ -75,123 +239,740 @@ public class ChatClient {
 		
 		this.client = client;
 		this.name = name;
+		
+		client.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				handlePacket(data);
+			}
+		});
 	}
 	
-	public void connect(String host, int port) throws NetworkException, ChatException {
-		connect(host, port, "");
+	public void addMessageListener(MessageListener listener) {
+		synchronized (messageListeners) {
+			messageListeners.add(listener);
+		}
 	}
 	
-	public void connect(String host, int port, String password) throws NetworkException, ChatException {
-		if (password == null) {
-			password = "";
+	public void removeMessageListener(MessageListener listener) {
+		synchronized (messageListeners) {
+			messageListeners.remove(listener);
+		}
+	}
+	
+	/**
+	 * Adds a listener of packets that are neither messages nor
+	 * responses to requests sent by this client.
+	 */
+	public void addPacketListener(PacketListener listener) {
+		synchronized (packetListeners) {
+			packetListeners.add(listener);
 		}
+	}
+	
+	public void removePacketListener(PacketListener listener) {
+		synchronized (packetListeners) {
+			packetListeners.remove(listener);
+		}
+	}
+	
+	private void handlePacket(Object data) {
 		
-		final ObjectContainer objContainer = new ObjectContainer();
-
-		final PacketListener listener = new PacketListener() {
-			public void packetReceived(Object data) {
-				
-				if (!(data instanceof ProtocolPacket)) {
-					logger.warning("Got trash from server: " + data.getClass().getName());
-					return;
-				}
-				
-				objContainer.object = data;
-				
-				synchronized (this) {
-					notify();
-				}
+		lastActivity = System.currentTimeMillis();
+		
+		if (data instanceof PacketFrame) {
+			try {
+				data = ((PacketFrame) data).getPacket();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "cannot decode packet frame", e);
+				return;
 			}
-		};
+		}
+		
+		if (data instanceof MessagePacket) {
+			fireMessageReceived((MessagePacket) data);
+		} else if (data instanceof CompactMessagePacket) {
+			handleCompactMessage((CompactMessagePacket) data);
+		} else if (data instanceof SymbolPacket) {
+			handleSymbol((SymbolPacket) data);
+		} else if (data instanceof AbstractResponse) {
+			handleResponse((AbstractResponse) data);
+		} else if (data instanceof ProtocolPacket) {
+			handleProtocolPacket((ProtocolPacket) data);
+		} else if (data instanceof PingPacket) {
+			handlePingPacket((PingPacket) data);
+		} else if (data instanceof OfflineMessagesPacket) {
+			handleOfflineMessages((OfflineMessagesPacket) data);
+		} else if (data instanceof BatchPacket) {
+			handleBatch((BatchPacket) data);
+		} else if (data instanceof TransferChunkPacket) {
+			handleTransferChunk((TransferChunkPacket) data);
+		} else if (data instanceof TransferAckPacket) {
+			handleTransferAck((TransferAckPacket) data);
+		} else if (data instanceof TransferStartPacket) {
+			handleTransferStart((TransferStartPacket) data);
+		} else if (data instanceof TransferAbortPacket) {
+			handleTransferAbort((TransferAbortPacket) data);
+		} else {
+			firePacketReceived(data);
+		}
+	}
+	
+	private static String transferKey(String senderName, int transferId) {
+		return senderName + '/' + transferId;
+	}
+	
+	private void handleTransferStart(TransferStartPacket start) {
+		final TransferListener listener = transferListener;
+		
+		if (listener == null) {
+			return;
+		}
+		
+		final OutputStream out = listener.transferStarted(start);
+		
+		if (out == null) {
+			return;
+		}
 		
-		client.addPacketListener(listener);
+		final IncomingTransfer transfer = new IncomingTransfer(start, out);
+		final IncomingTransfer previous;
+		
+		synchronized (incomingTransfers) {
+			previous = (IncomingTransfer) incomingTransfers.put(transferKey(start.getSenderName(), start.getTransferId()), transfer);
+		}
+		
+		if (previous != null) {
+			finishIncoming(previous, TransferAbortReason.ProtocolViolation);
+		}
+	}
+	
+	private void handleTransferChunk(TransferChunkPacket chunk) {
+		final String key = transferKey(chunk.getSenderName(), chunk.getTransferId());
+		final IncomingTransfer transfer;
+		
+		synchronized (incomingTransfers) {
+			transfer = (IncomingTransfer) incomingTransfers.get(key);
+		}
+		
+		if (transfer == null) {
+			// skipped by the listener
+			return;
+		}
+		
+		if (chunk.getSequence() != transfer.nextSequence++) {
+			removeIncoming(key);
+			finishIncoming(transfer, TransferAbortReason.ProtocolViolation);
+			return;
+		}
 		
 		try {
+			transfer.out.write(chunk.getData());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "cannot write transfer", e);
+			removeIncoming(key);
+			finishIncoming(transfer, TransferAbortReason.Cancelled);
+			return;
+		}
 		
-			client.connect(host, port);
+		if (chunk.isLast()) {
+			removeIncoming(key);
+			finishIncoming(transfer, (byte) 0);
+		}
+	}
+	
+	private void handleTransferAck(TransferAckPacket ack) {
+		final TransferOutputStream transfer;
+		
+		synchronized (outgoingTransfers) {
+			transfer = (TransferOutputStream) outgoingTransfers.get(new Integer(ack.getTransferId()));
+		}
+		
+		if (transfer != null && transfer.acknowledged(ack.getSequence())) {
+			transferFinished(transfer);
+		}
+	}
+	
+	private void handleTransferAbort(TransferAbortPacket abort) {
+		if (abort.isOutgoing()) {
+			final TransferOutputStream transfer;
 			
-			// wait for protocol packet
-			synchronized (this) {
-				wait(ANSWER_TIMEOUT);
+			synchronized (outgoingTransfers) {
+				transfer = (TransferOutputStream) outgoingTransfers.remove(new Integer(abort.getTransferId()));
 			}
 			
-			throw new ChatServerTimeoutException("chat server didn't respond in time");
-					
-					
-		} catch (InterruptedException e) {
-			// got packet
-		} finally {
-			client.removePacketListener(listener);
+			if (transfer != null) {
+				transfer.aborted(abort.getReason());
+			}
+		} else {
+			final IncomingTransfer transfer = removeIncoming(transferKey(abort.getSenderName(), abort.getTransferId()));
+			
+			if (transfer != null) {
+				finishIncoming(transfer, abort.getReason());
+			}
+		}
+	}
+	
+	private IncomingTransfer removeIncoming(String key) {
+		synchronized (incomingTransfers) {
+			return (IncomingTransfer) incomingTransfers.remove(key);
+		}
+	}
+	
+	/**
+	 * Closes the stream of the <code>transfer</code> and tells the
+	 * listener about it.
+	 * 
+	 * @param abortReason Why the transfer was aborted, <code>0</code>
+	 * if it completed.
+	 */
+	private void finishIncoming(IncomingTransfer transfer, byte abortReason) {
+		try {
+			transfer.out.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "cannot close transfer", e);
+			
+			if (abortReason == 0) {
+				abortReason = TransferAbortReason.Cancelled;
+			}
 		}
-
-		final ProtocolPacket protocolPacket = (ProtocolPacket) objContainer.object;
 		
-		if (protocolPacket.getVersion() != Protocol.VERSION) {
-			throw new ProtocolVersionMismatchException(
-					"server protocol version (" + protocolPacket.getVersion() +
-					") differs from client's one (" + Protocol.VERSION + ")"
-			);
+		final TransferListener listener = transferListener;
+		
+		if (listener == null) {
+			return;
+		}
+		
+		if (abortReason == 0) {
+			listener.transferCompleted(transfer.start);
+		} else {
+			listener.transferAborted(transfer.start, abortReason);
+		}
+	}
+	
+	/**
+	 * Forgets the outgoing <code>transfer</code>.
+	 */
+	void transferFinished(TransferOutputStream transfer) {
+		synchronized (outgoingTransfers) {
+			outgoingTransfers.remove(new Integer(transfer.getTransferId()));
+		}
+	}
+	
+	private void handleSymbol(SymbolPacket symbol) {
+		synchronized (symbolNames) {
+			symbolNames[SymbolPacket.slot(symbol.getId())] = symbol.getName();
 		}
+	}
+	
+	private void handleCompactMessage(CompactMessagePacket compact) {
+		final String senderName;
+		final String receiverName;
 		
-		registerUser(name, password);
+		synchronized (symbolNames) {
+			senderName = symbolNames[SymbolPacket.slot(compact.getSenderId())];
+			receiverName = compact.getReceiverId() != 0 ? symbolNames[SymbolPacket.slot(compact.getReceiverId())] : "";
+		}
 		
+		if (senderName == null || receiverName == null) {
+			logger.warning("got compact message with undefined symbol");
+			return;
+		}
+		
+		fireMessageReceived(new MessagePacket(compact.getMessageType(), senderName, receiverName, compact.getMessage()));
 	}
 	
-	private void registerUser(String name, String password) throws NetworkException, ChatException {
+	private void handleBatch(BatchPacket batch) {
+		final PacketFrame[] frames = batch.getFrames();
 		
-		final ObjectContainer objContainer = new ObjectContainer();
+		for (int i = 0; i < frames.length; ++i) {
+			handlePacket(frames[i]);
+		}
+	}
+	
+	private void handleOfflineMessages(OfflineMessagesPacket packet) {
+		final MessagePacket[] messages;
 		
-		final PacketListener listener = new PacketListener() {
-			public void packetReceived(Object data) {
-				if (!(data instanceof UserRegisterResponse)) {
-					logger.warning("got trash from server: " + data.getClass().getName());
-					return;
+		try {
+			messages = packet.getMessages();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "cannot decode offline messages", e);
+			return;
+		}
+		
+		for (int i = 0; i < messages.length; ++i) {
+			fireMessageReceived(messages[i]);
+		}
+	}
+	
+	private void handlePingPacket(PingPacket ping) {
+		try {
+			client.send(PacketFrame.encode(new PongPacket(ping.getTimestamp())));
+		} catch (NotSerializableException e) {
+			logger.log(Level.SEVERE, "cannot send pong", e);
+		} catch (NetworkException e) {
+			logger.log(Level.FINE, "cannot send pong", e);
+		}
+	}
+	
+	/**
+	 * The server pings quiet clients, so a connected client hears from
+	 * it at least every half of the server's idle timeout. A longer
+	 * silence means that the server is gone.
+	 * 
+	 * @return Time of the last packet from the server in milliseconds.
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+	
+	private void fireMessageReceived(MessagePacket message) {
+		final MessageListener[] listeners;
+		
+		synchronized (messageListeners) {
+			listeners = (MessageListener[]) messageListeners.toArray(new MessageListener[messageListeners.size()]);
+		}
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			listeners[i].messageReceived(message);
+		}
+	}
+	
+	private void firePacketReceived(Object data) {
+		final PacketListener[] listeners;
+		
+		synchronized (packetListeners) {
+			listeners = (PacketListener[]) packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		}
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			listeners[i].packetReceived(data);
+		}
+	}
+	
+	private void handleResponse(AbstractResponse response) {
+		final PendingRequest pending;
+		
+		synchronized (pendingRequests) {
+			pending = (PendingRequest) pendingRequests.remove(new Integer(response.getRequestId()));
+		}
+		
+		if (pending == null) {
+			// not ours, maybe somebody else is interested
+			firePacketReceived(response);
+			return;
+		}
+		
+		pending.responseReceived(response);
+	}
+	
+	/**
+	 * Sends the <code>request</code> tagged with a new request ID
+	 * and registers it as pending.
+	 * 
+	 * @return The future of <code>pending</code> request.
+	 */
+	private ChatFuture request(AbstractRequest request, PendingRequest pending) throws NetworkException {
+		final Integer requestId;
+		
+		synchronized (pendingRequests) {
+			if (nextRequestId == 0) {
+				// 0 is reserved for responses that don't answer any request
+				++nextRequestId;
+			}
+			
+			requestId = new Integer(nextRequestId++);
+			pendingRequests.put(requestId, pending);
+		}
+		
+		request.setRequestId(requestId.intValue());
+		
+		// failed, timed out or cancelled requests aren't waited for
+		pending.future.addFailureHook(new Runnable() {
+			public void run() {
+				forgetRequest(requestId);
+			}
+		});
+		
+		try {
+			client.send(PacketFrame.encode(request));
+		} catch (NotSerializableException e) {
+			forgetRequest(requestId);
+			logger.log(Level.SEVERE, "cannot send request", e);
+			pending.future.fail(new ChatException(e));
+		} catch (NetworkException e) {
+			forgetRequest(requestId);
+			throw e;
+		}
+		
+		return pending.future;
+	}
+	
+	private void forgetRequest(Integer requestId) {
+		synchronized (pendingRequests) {
+			pendingRequests.remove(requestId);
+		}
+	}
+	
+	/**
+	 * Fails the <code>future</code> with {@link ChatServerTimeoutException}
+	 * if it isn't done within the request timeout.
+	 * 
+	 * @return The <code>future</code>.
+	 */
+	private ChatFuture expire(final ChatFuture future) {
+		final TimerTask task = new TimerTask() {
+			public void run() {
+				try {
+					future.fail(new ChatServerTimeoutException("chat server didn't respond in time"));
+				} catch (RuntimeException e) {
+					// keep the shared timer alive
+					logger.log(Level.SEVERE, "chat callback failed", e);
 				}
-				
-				objContainer.object = data;
 			}
 		};
 		
-		client.addPacketListener(listener);
+		timeouts.schedule(task, requestTimeout);
 		
-		// send the registration packet and wait for response
-		try {
-			client.send(new UserRegisterRequest(name, password));
-			
-			synchronized (this) {
-				wait(ANSWER_TIMEOUT);
+		future.addCallback(new ChatCallback() {
+			public void completed(Object result) {
+				task.cancel();
 			}
 			
-			// timeout
-			throw new ChatServerTimeoutException("chat server didn't respond in time");
-			
-		} catch (NotSerializableException e) {
-			e.printStackTrace();
-			System.exit(1);
+			public void failed(ChatException e) {
+				task.cancel();
+			}
+		});
+		
+		return future;
+	}
+	
+	/**
+	 * @return Time in milliseconds to wait for response from server.
+	 */
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+	
+	/**
+	 * Sets the time to wait for response from server. Requests that
+	 * aren't answered in time fail with {@link ChatServerTimeoutException}
+	 * and are forgotten. Applies to requests made from now on.
+	 * 
+	 * @param requestTimeout Time in milliseconds.
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		if (requestTimeout <= 0) {
+			throw new IllegalArgumentException("requestTimeout must be positive");
+		}
+		
+		this.requestTimeout = requestTimeout;
+	}
+	
+	/**
+	 * @return Number of requests waiting for response.
+	 */
+	public int getPendingRequestCount() {
+		synchronized (pendingRequests) {
+			return pendingRequests.size();
+		}
+	}
+	
+	public void connect(String host, int port) throws NetworkException, ChatException {
+		connect(host, port, "");
+	}
+	
+	/**
+	 * Connects to the chat server and registers the user. Blocks
+	 * until the server accepts the user.
+	 * 
+	 * @see #connectAsync(String, int, String)
+	 */
+	public void connect(String host, int port, String password) throws NetworkException, ChatException {
+		final ChatFuture future = connectAsync(host, port, password);
+		
+		try {
+			future.get(requestTimeout);
+		} catch (ChatServerTimeoutException e) {
+			// the timer may be late
+			future.fail(e);
+			throw e;
 		} catch (InterruptedException e) {
-			// got packet
-		} finally {
-			client.removePacketListener(listener);
+			future.cancel();
+			Thread.currentThread().interrupt();
+			throw new ChatException("interrupted while waiting for chat server", e);
+		}
+	}
+	
+	/**
+	 * Connects to the chat server and starts the handshake without
+	 * waiting for the server.
+	 * <p>
+	 * The returned future completes with this client when the server
+	 * sends a matching protocol version and accepts the user. Otherwise
+	 * it fails with {@link ProtocolVersionMismatchException},
+	 * {@link IllegalUserNameException}, {@link UserNameAlreadyInUseException}
+	 * or {@link WrongPasswordExcepion}, or with {@link ChatServerTimeoutException}
+	 * if the server doesn't finish the handshake within the request
+	 * timeout. No thread waits for the server in the meantime.
+	 * 
+	 * @throws NetworkException When the connection cannot be opened.
+	 * @throws IllegalStateException When another handshake is in progress.
+	 */
+	public ChatFuture connectAsync(String host, int port, String password) throws NetworkException {
+		if (password == null) {
+			password = "";
 		}
 		
-		final UserRegisterResponse response = (UserRegisterResponse) objContainer.object;
+		final ChatFuture future = new ChatFuture();
+		
+		synchronized (this) {
+			if (handshake != null) {
+				throw new IllegalStateException("handshake is already in progress");
+			}
+			
+			handshake = future;
+			handshakePassword = password;
+		}
+		
+		future.addFailureHook(new Runnable() {
+			public void run() {
+				finishHandshake(future);
+			}
+		});
+		
+		try {
+			client.connect(host, port);
+		} catch (NetworkException e) {
+			future.fail(new ChatException(e));
+			throw e;
+		}
+		
+		return expire(future);
+	}
+	
+	private synchronized void finishHandshake(ChatFuture future) {
+		if (handshake == future) {
+			handshake = null;
+			handshakePassword = null;
+		}
+	}
+	
+	private void failHandshake(ChatFuture future, ChatException e) {
+		finishHandshake(future);
+		future.fail(e);
+	}
+	
+	private void handleProtocolPacket(ProtocolPacket protocolPacket) {
+		final ChatFuture future;
+		final String password;
+		
+		synchronized (this) {
+			future = handshake;
+			password = handshakePassword;
+		}
+		
+		if (future == null) {
+			logger.warning("got unexpected protocol packet");
+			return;
+		}
+		
+		if (protocolPacket.getVersion() != Protocol.VERSION) {
+			failHandshake(future, new ProtocolVersionMismatchException(
+					"server protocol version (" + protocolPacket.getVersion() +
+					") differs from client's one (" + Protocol.VERSION + ")"
+			));
+			return;
+		}
+		
+		final PendingRequest pending = new PendingRequest(future) {
+			void responseReceived(AbstractResponse response) {
+				handleUserRegisterResponse(future, response);
+			}
+		};
+		
+		try {
+			request(new UserRegisterRequest(name, password, isCompactMessages()), pending);
+		} catch (NetworkException e) {
+			failHandshake(future, new ChatException(e));
+		}
+	}
+	
+	private void handleUserRegisterResponse(ChatFuture future, AbstractResponse response) {
 		
 		if (response.isSucceed()) {
+			finishHandshake(future);
+			future.complete(this);
 			return;
 		}
 		
 		switch (response.getFailReason()) {
 			case RegisterRejectReason.IllegalUserName:
-				throw new IllegalUserNameException("user name '" + name + "' is illegal on this server");
+				failHandshake(future, new IllegalUserNameException("user name '" + name + "' is illegal on this server"));
+				break;
 			case RegisterRejectReason.UserNameAlreadyInUse:
-				throw new UserNameAlreadyInUseException("user name '" + name + "' is already in use");
+				failHandshake(future, new UserNameAlreadyInUseException("user name '" + name + "' is already in use"));
+				break;
 			case RegisterRejectReason.WrongPassword:
-				throw new WrongPasswordExcepion("wrong password");
+				failHandshake(future, new WrongPasswordExcepion("wrong password"));
+				break;
+			default:
+				failHandshake(future, new ChatException("registration rejected: " + response.getFailReason()));
+		}
+		
+	}
+	
+	/**
+	 * Joins the group of given name. The group is created if it
+	 * doesn't exist yet.
+	 * 
+	 * @return Future that completes with the group name.
+	 */
+	public ChatFuture joinGroup(final String groupName) throws NetworkException {
+		final PendingRequest pending = new PendingGroupRequest(groupName) {
+			void succeeded(AbstractResponse response) {
+				final int groupId = ((GroupJoinResponse) response).getGroupId();
 				
+				if (groupId != 0) {
+					synchronized (groupIds) {
+						groupIds.put(groupName, new Integer(groupId));
+					}
+				}
+				
+				super.succeeded(response);
+			}
+		};
+		
+		return expire(request(new GroupJoinRequest(groupName), pending));
+	}
+	
+	/**
+	 * Leaves the group of given name.
+	 * 
+	 * @return Future that completes with the group name.
+	 */
+	public ChatFuture leaveGroup(String groupName) throws NetworkException {
+		synchronized (groupIds) {
+			groupIds.remove(groupName);
+		}
+		
+		return expire(request(new GroupLeaveRequest(groupName), new PendingGroupRequest(groupName)));
+	}
+	
+	/**
+	 * Asks for up to <code>count</code> recent messages of a group that
+	 * this user is a member of. The server keeps only a limited number
+	 * of them.
+	 * 
+	 * @return Future that completes with an array of
+	 * {@link MessagePacket}s, oldest first.
+	 */
+	public ChatFuture requestHistory(String groupName, int count) throws NetworkException {
+		return expire(request(new GroupHistoryRequest(groupName, count), new PendingHistoryRequest(groupName)));
+	}
+	
+	/**
+	 * Sends a message of given <code>messageType</code> to the
+	 * <code>receiverName</code>, which is user name for private
+	 * messages and group name for group messages.
+	 * <p>
+	 * Messages to joined groups are sent with the group's id
+	 * instead of names.
+	 * 
+	 * @see pl.graniec.coralreef.network.chat.packets.MessageType
+	 */
+	public void sendMessage(byte messageType, String receiverName, String message) throws NetworkException {
+		Integer groupId = null;
+		
+		if (messageType == MessageType.Group) {
+			synchronized (groupIds) {
+				groupId = (Integer) groupIds.get(receiverName);
+			}
 		}
 		
+		try {
+			if (groupId != null) {
+				client.send(PacketFrame.encode(new CompactMessagePacket(messageType, 0, groupId.intValue(), message)));
+			} else {
+				client.send(PacketFrame.encode(new MessagePacket(messageType, name, receiverName, message)));
+			}
+		} catch (NotSerializableException e) {
+			logger.log(Level.SEVERE, "cannot send message", e);
+		}
 	}
 
+	/**
+	 * Starts sending a large message or a file to the <code>receiverName</code>.
+	 * The content is whatever gets written to the returned stream, and
+	 * it's sent in chunks. Writing blocks when the receivers don't keep
+	 * up. Closing the stream ends the transfer.
+	 * 
+	 * @param name File name or an empty string for a text message.
+	 * @param length Length of the content or <code>-1</code> if not known.
+	 * @see #setTransferListener(TransferListener)
+	 */
+	public TransferOutputStream openTransfer(byte messageType, String receiverName, String name, long length) throws NetworkException {
+		final TransferOutputStream transfer;
+		
+		synchronized (outgoingTransfers) {
+			transfer = new TransferOutputStream(this, client, nextTransferId++, requestTimeout);
+			outgoingTransfers.put(new Integer(transfer.getTransferId()), transfer);
+		}
+		
+		try {
+			client.send(PacketFrame.encode(new TransferStartPacket(transfer.getTransferId(), messageType, this.name, receiverName, name, length)));
+		} catch (NotSerializableException e) {
+			logger.log(Level.SEVERE, "cannot start transfer", e);
+		} catch (NetworkException e) {
+			transferFinished(transfer);
+			throw e;
+		}
+		
+		return transfer;
+	}
+	
+	/**
+	 * Sends a text message of any length as a transfer, so it isn't
+	 * limited to what fits into a {@link MessagePacket}. The receivers
+	 * get it through their {@link TransferListener}s, encoded in UTF-8.
+	 * Blocks until the last chunk has been sent.
+	 * 
+	 * @throws IOException When the transfer was aborted.
+	 */
+	public void sendLongMessage(byte messageType, String receiverName, String message) throws NetworkException, IOException {
+		final TransferOutputStream transfer = openTransfer(messageType, receiverName, "", -1);
+		final Writer writer = new OutputStreamWriter(transfer, "UTF-8");
+		
+		try {
+			writer.write(message);
+			writer.close();
+		} catch (IOException e) {
+			transfer.cancel();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sets the listener of transfers sent to this client. Transfers
+	 * are skipped when there is no listener.
+	 */
+	public void setTransferListener(TransferListener transferListener) {
+		this.transferListener = transferListener;
+	}
+	
+	/**
+	 * Makes the server send messages with ids of user and group
+	 * names instead of the names. The client resolves them before
+	 * passing the messages to listeners, so it's invisible to them.
+	 * Takes effect on the next connect.
+	 */
+	public synchronized void setCompactMessages(boolean compactMessages) {
+		this.compactMessages = compactMessages;
+	}
+	
+	public synchronized boolean isCompactMessages() {
+		return compactMessages;
+	}
+	
 	/**
 	 * @return the name
 	 */
@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pl.graniec.coralreef.network.chat.exceptions.ChatException;
+import pl.graniec.coralreef.network.chat.exceptions.ChatServerTimeoutException;
+
+/**
+ * Result of asynchronous {@link ChatClient} operation.
+ * <p>
+ * You can either register a {@link ChatCallback} that is invoked when
+ * the operation is done, or block the current thread on
+ * {@link #get(long)}.
+ * <p>
+ * Operations that the server doesn't answer in the client's request
+ * timeout fail with {@link ChatServerTimeoutException}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ChatFuture {
+	
+	/** Is the operation done? */
+	private boolean done;
+	/** Result of succeed operation */
+	private Object result;
+	/** Reason of failed operation */
+	private ChatException failure;
+	/** Callbacks waiting for the operation */
+	private List callbacks = new ArrayList();
+	/** Cleanups of the client run when the operation fails, <code>null</code> if none */
+	private List failureHooks;
+	
+	/**
+	 * Completes the operation with the <code>result</code>.
+	 * 
+	 * @return <code>false</code> if the operation is already done.
+	 */
+	boolean complete(Object result) {
+		final ChatCallback[] toCall;
+		
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			
+			this.done = true;
+			this.result = result;
+			
+			toCall = takeCallbacks();
+			notifyAll();
+		}
+		
+		for (int i = 0; i < toCall.length; ++i) {
+			toCall[i].completed(result);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Fails the operation with the <code>failure</code>.
+	 * 
+	 * @return <code>false</code> if the operation is already done.
+	 */
+	boolean fail(ChatException failure) {
+		final ChatCallback[] toCall;
+		
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			
+			this.done = true;
+			this.failure = failure;
+			
+			// before anybody sees the failure
+			if (failureHooks != null) {
+				for (int i = 0; i < failureHooks.size(); ++i) {
+					((Runnable) failureHooks.get(i)).run();
+				}
+				
+				failureHooks = null;
+			}
+			
+			toCall = takeCallbacks();
+			notifyAll();
+		}
+		
+		for (int i = 0; i < toCall.length; ++i) {
+			toCall[i].failed(failure);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gives up the operation. It fails with {@link ChatException} and
+	 * the client forgets it, so a late response of the server is
+	 * passed to packet listeners.
+	 * 
+	 * @return <code>false</code> if the operation is already done.
+	 */
+	public boolean cancel() {
+		return fail(new ChatException("cancelled"));
+	}
+	
+	/**
+	 * Adds the <code>hook</code> to be run when the operation fails,
+	 * before waiting threads and callbacks learn about it. It runs with
+	 * this future locked, so it must be short and not take locks that
+	 * are held while waiting for futures.
+	 */
+	void addFailureHook(Runnable hook) {
+		synchronized (this) {
+			if (!done) {
+				if (failureHooks == null) {
+					failureHooks = new ArrayList();
+				}
+				
+				failureHooks.add(hook);
+				return;
+			}
+			
+			if (failure == null) {
+				return;
+			}
+		}
+		
+		hook.run();
+	}
+	
+	private ChatCallback[] takeCallbacks() {
+		final ChatCallback[] taken = (ChatCallback[]) callbacks.toArray(new ChatCallback[callbacks.size()]);
+		callbacks = null;
+		
+		return taken;
+	}
+	
+	/**
+	 * Adds the <code>callback</code> to be invoked when the operation
+	 * is done. If it is done already then the callback is invoked
+	 * immediately on the current thread.
+	 */
+	public void addCallback(ChatCallback callback) {
+		synchronized (this) {
+			if (!done) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		
+		if (failure != null) {
+			callback.failed(failure);
+		} else {
+			callback.completed(result);
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the operation is done.
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * Waits up to <code>timeout</code> milliseconds for the operation
+	 * to be done.
+	 * 
+	 * @return Result of the operation.
+	 * @throws ChatServerTimeoutException When the operation isn't done in time.
+	 * @throws ChatException When the operation has failed.
+	 * @throws InterruptedException When the current thread was interrupted.
+	 */
+	public synchronized Object get(long timeout) throws ChatException, InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		
+		while (!done) {
+			final long left = deadline - System.currentTimeMillis();
+			
+			if (left <= 0) {
+				throw new ChatServerTimeoutException("chat server didn't respond in time");
+			}
+			
+			wait(left);
+		}
+		
+		if (failure != null) {
+			throw failure;
+		}
+		
+		return result;
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.client;
+
+import java.io.OutputStream;
+
+import pl.graniec.coralreef.network.chat.packets.TransferStartPacket;
+
+/**
+ * Listener of large messages and files that arrive to the
+ * {@link ChatClient} in chunks.
+ * 
+ * @see ChatClient#setTransferListener(TransferListener)
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public interface TransferListener {
+	
+	/**
+	 * Called when a transfer starts.
+	 * 
+	 * @return Stream that the content is written to as it arrives,
+	 * or <code>null</code> to skip this transfer.
+	 */
+	OutputStream transferStarted(TransferStartPacket transfer);
+	
+	/**
+	 * Called after the whole content was written and the stream
+	 * was closed.
+	 */
+	void transferCompleted(TransferStartPacket transfer);
+	
+	/**
+	 * Called when the transfer won't complete. The stream has been
+	 * closed. The reason is one of
+	 * {@link pl.graniec.coralreef.network.chat.packets.TransferAbortReason}.
+	 */
+	void transferAborted(TransferStartPacket transfer, byte reason);
+	
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import pl.graniec.coralreef.network.chat.packets.ChatPacket;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortReason;
+import pl.graniec.coralreef.network.chat.packets.TransferChunkPacket;
+import pl.graniec.coralreef.network.client.Client;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+
+/**
+ * Stream that sends what is written to it as a transfer, in chunks
+ * of {@link TransferChunkPacket#DEFAULT_SIZE} bytes. Writing blocks
+ * while {@link TransferChunkPacket#WINDOW} chunks wait for their
+ * acknowledgement, so the sender never gets ahead of the slowest
+ * receiver. Closing the stream sends the last chunk.
+ * <p>
+ * Streams are opened with {@link ChatClient#openTransfer(byte, String, String, long)}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TransferOutputStream extends OutputStream {
+	
+	private final ChatClient owner;
+	private final Client client;
+	private final int transferId;
+	/** Maximum time to wait for an acknowledgement */
+	private final long timeout;
+	
+	/** Content of the next chunk */
+	private final byte[] buffer = new byte[TransferChunkPacket.DEFAULT_SIZE];
+	/** Number of bytes in the buffer */
+	private int count;
+	/** Number of the next chunk */
+	private int nextSequence;
+	/** Number of the last acknowledged chunk */
+	private int acknowledged = -1;
+	/** Why the transfer was aborted, <code>0</code> if it wasn't */
+	private byte abortReason;
+	/** Has the last chunk been sent? */
+	private boolean closed;
+	
+	TransferOutputStream(ChatClient owner, Client client, int transferId, long timeout) {
+		this.owner = owner;
+		this.client = client;
+		this.transferId = transferId;
+		this.timeout = timeout;
+	}
+	
+	int getTransferId() {
+		return transferId;
+	}
+	
+	/*
+	 * @see java.io.OutputStream#write(int)
+	 */
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			sendChunk(false);
+		}
+		
+		buffer[count++] = (byte) b;
+	}
+	
+	/*
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length) {
+				sendChunk(false);
+			}
+			
+			final int n = Math.min(len, buffer.length - count);
+			
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Sends the last chunk. Doesn't wait for its acknowledgement.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		
+		sendChunk(true);
+	}
+	
+	/**
+	 * Stops the transfer and tells the receivers about it.
+	 */
+	public void cancel() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			
+			closed = true;
+			abortReason = TransferAbortReason.Cancelled;
+		}
+		
+		owner.transferFinished(this);
+		send(new TransferAbortPacket(transferId, "", false, TransferAbortReason.Cancelled));
+	}
+	
+	private void sendChunk(boolean last) throws IOException {
+		final int sequence;
+		
+		synchronized (this) {
+			final long deadline = System.currentTimeMillis() + timeout;
+			
+			while (abortReason == 0 && nextSequence - acknowledged > TransferChunkPacket.WINDOW) {
+				final long wait = deadline - System.currentTimeMillis();
+				
+				if (wait <= 0) {
+					throw new IOException("transfer " + transferId + " timed out");
+				}
+				
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			
+			if (abortReason != 0) {
+				throw new IOException("transfer " + transferId + " aborted: " + abortReason);
+			}
+			
+			if (closed) {
+				throw new IOException("transfer " + transferId + " is closed");
+			}
+			
+			sequence = nextSequence++;
+			closed = last;
+		}
+		
+		final byte[] data;
+		
+		if (count == buffer.length) {
+			// encoding copies it
+			data = buffer;
+		} else {
+			data = new byte[count];
+			System.arraycopy(buffer, 0, data, 0, count);
+		}
+		
+		send(new TransferChunkPacket(transferId, "", sequence, last, data));
+		count = 0;
+	}
+	
+	private void send(ChatPacket packet) throws IOException {
+		try {
+			client.send(PacketFrame.encode(packet));
+		} catch (NetworkException e) {
+			throw new IOException("cannot send transfer " + transferId + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Called when the server acknowledged the chunk.
+	 * 
+	 * @return <code>true</code> if it was the last one.
+	 */
+	synchronized boolean acknowledged(int sequence) {
+		if (sequence > acknowledged) {
+			acknowledged = sequence;
+			notifyAll();
+		}
+		
+		return closed && acknowledged == nextSequence - 1;
+	}
+	
+	/**
+	 * Called when the server aborted the transfer.
+	 */
+	synchronized void aborted(byte reason) {
+		if (abortReason == 0) {
+			abortReason = reason;
+		}
+		
+		closed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that many threads can increment at once.
+ * <p>
+ * The count is spread over a few cells, each on its own cache line,
+ * and a thread always adds to the same cell. Threads incrementing
+ * the counter at the same time rarely touch the same memory, so
+ * counting costs about as much as a plain increment. Reading the
+ * counter sums up all cells and is slower, but it's done only by
+ * whoever looks at the metrics.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Counter {
+	
+	/** Number of cells, a power of two */
+	private static final int CELLS = 16;
+	/** Distance between cells in longs, so each is on its own cache line */
+	private static final int SPACING = 8;
+	
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * SPACING);
+	
+	/**
+	 * Adds one to this counter.
+	 */
+	public void increment() {
+		cells.incrementAndGet(cell());
+	}
+	
+	/**
+	 * Adds <code>delta</code> to this counter.
+	 */
+	public void add(long delta) {
+		cells.addAndGet(cell(), delta);
+	}
+	
+	/**
+	 * @return Current value of this counter. Increments made while
+	 * reading may or may not be included.
+	 */
+	public long get() {
+		long sum = 0;
+		
+		for (int i = 0; i < CELLS; ++i) {
+			sum += cells.get(i * SPACING);
+		}
+		
+		return sum;
+	}
+	
+	private static int cell() {
+		return ((int) Thread.currentThread().getId() & (CELLS - 1)) * SPACING;
+	}
+}
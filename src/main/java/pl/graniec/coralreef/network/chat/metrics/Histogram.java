@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative <code>long</code> values, such as latencies
+ * in nanoseconds.
+ * <p>
+ * Values are counted in buckets laid out like in HdrHistogram: every
+ * power of two is split into {@link #SUB_BUCKETS} equal buckets, so
+ * a value is known with a relative error below 1/{@link #SUB_BUCKETS}
+ * whatever its magnitude. Finding the bucket takes a few shifts and
+ * recording is a single atomic increment, so the histogram can be
+ * updated by many threads without locking.
+ * <p>
+ * Percentiles are computed when asked for, by walking the buckets.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Histogram {
+	
+	/** Bits of a value kept exactly */
+	private static final int SUB_BUCKET_BITS = 5;
+	/** Buckets per power of two */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Number of all buckets, enough for any long value */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+	
+	/** Number of values in each bucket */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	/** Sum of all values */
+	private final Counter sum = new Counter();
+	/** Largest value */
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records the <code>value</code>. Negative values are recorded
+	 * as zero.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		
+		counts.incrementAndGet(bucket(value));
+		sum.add(value);
+		
+		long current;
+		
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of recorded values.
+	 */
+	public long getCount() {
+		long count = 0;
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			count += counts.get(i);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return Largest recorded value or <code>0</code> if there
+	 * are none.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * @return Mean of recorded values or <code>0</code> if there
+	 * are none.
+	 */
+	public double getMean() {
+		final long count = getCount();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+	
+	/**
+	 * Provides the value that <code>percentile</code> percent of recorded
+	 * values are lower than or equal to, as the upper bound of its bucket.
+	 * 
+	 * @param percentile Percentile between <code>0</code> and <code>100</code>.
+	 * @return The value or <code>0</code> if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		
+		final long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		
+		if (count == 0) {
+			return 0;
+		}
+		
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += snapshot[i];
+			
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		
+		return max.get();
+	}
+	
+	/**
+	 * @return Copy of this histogram. Values recorded while copying
+	 * may or may not be included.
+	 */
+	public Histogram copy() {
+		final Histogram copy = new Histogram();
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			copy.counts.set(i, counts.get(i));
+		}
+		
+		copy.sum.add(sum.get());
+		copy.max.set(max.get());
+		
+		return copy;
+	}
+	
+	/**
+	 * Provides the values recorded since the <code>earlier</code> copy
+	 * of this histogram was made. The largest of them is only known
+	 * with the precision of its bucket.
+	 * 
+	 * @see #copy()
+	 */
+	public Histogram since(Histogram earlier) {
+		final Histogram result = new Histogram();
+		int last = -1;
+		
+		for (int i = 0; i < BUCKETS; ++i) {
+			final long count = counts.get(i) - earlier.counts.get(i);
+			
+			if (count > 0) {
+				result.counts.set(i, count);
+				last = i;
+			}
+		}
+		
+		result.sum.add(sum.get() - earlier.sum.get());
+		
+		if (last >= 0) {
+			result.max.set(Math.min(highestValue(last), max.get()));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return Index of the bucket that counts the <code>value</code>.
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+	
+	/**
+	 * @return The smallest value counted by the <code>bucket</code>.
+	 */
+	static long lowestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		
+		final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+	}
+	
+	/**
+	 * @return The largest value counted by the <code>bucket</code>.
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		
+		final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		return lowestValue(bucket) + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.metrics;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes metrics to a {@link Logger}, one line per report. Rates
+ * and latencies are computed over the time since the previous report.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LoggingReporter implements MetricsReporter {
+	
+	private final Logger logger;
+	private final Level level;
+	
+	/** Time of the previous report */
+	private long lastTime = System.currentTimeMillis();
+	private long lastPacketsReceived;
+	private long lastMessagesReceived;
+	private long lastPacketsSent;
+	private long lastPacketsDropped;
+	private long lastMessagesRejected;
+	private Histogram lastLatency = new Histogram();
+	
+	/**
+	 * Creates a reporter that logs at {@link Level#INFO} to the logger
+	 * of this class.
+	 */
+	public LoggingReporter() {
+		this(Logger.getLogger(LoggingReporter.class.getName()), Level.INFO);
+	}
+	
+	public LoggingReporter(Logger logger, Level level) {
+		this.logger = logger;
+		this.level = level;
+	}
+	
+	public synchronized void report(ServerMetrics metrics) {
+		if (!logger.isLoggable(level)) {
+			return;
+		}
+		
+		final long now = System.currentTimeMillis();
+		final double seconds = Math.max(1, now - lastTime) / 1000.0;
+		
+		final long packetsReceived = metrics.getPacketsReceived();
+		final long messagesReceived = metrics.getMessagesReceived();
+		final long packetsSent = metrics.getPacketsSent();
+		final long packetsDropped = metrics.getPacketsDropped();
+		final long messagesRejected = metrics.getMessagesRejected();
+		final Histogram latency = metrics.getDeliveryLatency().copy();
+		final Histogram interval = latency.since(lastLatency);
+		
+		logger.log(level, "users=" + metrics.getConnectedUsers()
+				+ " registered=" + metrics.getRegisteredUsers()
+				+ " groups=" + metrics.getGroups()
+				+ " in/s=" + rate(packetsReceived - lastPacketsReceived, seconds)
+				+ " messages/s=" + rate(messagesReceived - lastMessagesReceived, seconds)
+				+ " out/s=" + rate(packetsSent - lastPacketsSent, seconds)
+				+ " dropped=" + (packetsDropped - lastPacketsDropped)
+				+ " rejected=" + (messagesRejected - lastMessagesRejected)
+				+ " queued=" + metrics.getOutboundQueued()
+				+ " latency[us] p50=" + micros(interval.getValueAtPercentile(50))
+				+ " p99=" + micros(interval.getValueAtPercentile(99))
+				+ " p99.9=" + micros(interval.getValueAtPercentile(99.9))
+				+ " max=" + micros(interval.getMax()));
+		
+		lastTime = now;
+		lastPacketsReceived = packetsReceived;
+		lastMessagesReceived = messagesReceived;
+		lastPacketsSent = packetsSent;
+		lastPacketsDropped = packetsDropped;
+		lastMessagesRejected = messagesRejected;
+		lastLatency = latency;
+	}
+	
+	private static long rate(long count, double seconds) {
+		return Math.round(count / seconds);
+	}
+	
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+}
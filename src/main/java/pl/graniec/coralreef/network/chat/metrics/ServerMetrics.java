@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.server.ChatServer;
+import pl.graniec.coralreef.network.chat.server.User;
+import pl.graniec.coralreef.network.chat.store.OfflineQueue;
+
+/**
+ * Metrics of a {@link ChatServer}.
+ * <p>
+ * Events are counted with {@link Counter}s and the time from making
+ * a packet frame to handing it to the client is recorded in a
+ * {@link Histogram}. Frames are made right after the message that
+ * caused them was received, so this is the receive to deliver time.
+ * None of it takes locks, so metrics are always on. Gauges, like
+ * the number of users or queue depths, are computed only when read.
+ * <p>
+ * The metrics can be exposed through JMX with {@link #register(String)}
+ * and passed to {@link MetricsReporter}s at regular intervals.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	
+	/** Domain of the JMX names */
+	public static final String DOMAIN = "pl.graniec.coralreef.network.chat";
+	
+	private static final long NANOS_PER_MICRO = 1000;
+	
+	private static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+	
+	private final ChatServer server;
+	
+	private final Counter connections = new Counter();
+	private final Counter disconnections = new Counter();
+	private final Counter idleDisconnections = new Counter();
+	private final Counter packetsReceived = new Counter();
+	private final Counter messagesReceived = new Counter();
+	private final Counter messagesRejected = new Counter();
+	private final Counter packetsSent = new Counter();
+	private final Counter bytesSent = new Counter();
+	private final Counter packetsDropped = new Counter();
+	/** Receive to deliver time in nanoseconds */
+	private final Histogram deliveryLatency = new Histogram();
+	
+	/** Name in the platform MBean server, <code>null</code> if not registered */
+	private ObjectName objectName;
+	/** Thread of reporters, <code>null</code> if none */
+	private Timer reporterTimer;
+	
+	public ServerMetrics(ChatServer server) {
+		this.server = server;
+	}
+	
+	public void userConnected() {
+		connections.increment();
+	}
+	
+	public void userDisconnected() {
+		disconnections.increment();
+	}
+	
+	public void userTimedOut() {
+		idleDisconnections.increment();
+	}
+	
+	public void packetReceived() {
+		packetsReceived.increment();
+	}
+	
+	public void messageReceived() {
+		messagesReceived.increment();
+	}
+	
+	public void messageRejected() {
+		messagesRejected.increment();
+	}
+	
+	public void packetDropped() {
+		packetsDropped.increment();
+	}
+	
+	/**
+	 * Counts the <code>packet</code> that has just been handed to
+	 * the client and records its delivery latency.
+	 */
+	public void packetSent(Object packet) {
+		packetsSent.increment();
+		
+		if (packet instanceof PacketFrame) {
+			final PacketFrame frame = (PacketFrame) packet;
+			final long creationTime = frame.getCreationTime();
+			
+			bytesSent.add(frame.getData().length);
+			
+			if (creationTime != 0) {
+				deliveryLatency.record(System.nanoTime() - creationTime);
+			}
+		}
+	}
+	
+	/**
+	 * @return Receive to deliver time of packets in nanoseconds.
+	 */
+	public Histogram getDeliveryLatency() {
+		return deliveryLatency;
+	}
+	
+	public int getConnectedUsers() {
+		return server.getConnectedCount();
+	}
+	
+	public int getRegisteredUsers() {
+		return server.getRegisteredCount();
+	}
+	
+	public int getGroups() {
+		return server.getGroupCount();
+	}
+	
+	public int getOfflineMessages() {
+		final OfflineQueue queue = server.getOfflineQueue();
+		return queue != null ? queue.size() : 0;
+	}
+	
+	public long getOutboundQueued() {
+		final User[] users = server.getUsers();
+		long queued = 0;
+		
+		for (int i = 0; i < users.length; ++i) {
+			queued += users[i].getQueueDepth();
+		}
+		
+		return queued;
+	}
+	
+	public int getMaxOutboundQueueDepth() {
+		final User[] users = server.getUsers();
+		int max = 0;
+		
+		for (int i = 0; i < users.length; ++i) {
+			max = Math.max(max, users[i].getQueueDepth());
+		}
+		
+		return max;
+	}
+	
+	public int getQueueDepth(String name) {
+		final User user = server.getUser(name);
+		return user != null ? user.getQueueDepth() : -1;
+	}
+	
+	public long getConnections() {
+		return connections.get();
+	}
+	
+	public long getDisconnections() {
+		return disconnections.get();
+	}
+	
+	public long getIdleDisconnections() {
+		return idleDisconnections.get();
+	}
+	
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+	
+	public long getMessagesReceived() {
+		return messagesReceived.get();
+	}
+	
+	public long getMessagesRejected() {
+		return messagesRejected.get();
+	}
+	
+	public long getPacketsSent() {
+		return packetsSent.get();
+	}
+	
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+	
+	public double getDeliveryLatencyMean() {
+		return deliveryLatency.getMean() / NANOS_PER_MICRO;
+	}
+	
+	public long getDeliveryLatency50th() {
+		return deliveryLatency.getValueAtPercentile(50) / NANOS_PER_MICRO;
+	}
+	
+	public long getDeliveryLatency99th() {
+		return deliveryLatency.getValueAtPercentile(99) / NANOS_PER_MICRO;
+	}
+	
+	public long getDeliveryLatency999th() {
+		return deliveryLatency.getValueAtPercentile(99.9) / NANOS_PER_MICRO;
+	}
+	
+	public long getDeliveryLatencyMax() {
+		return deliveryLatency.getMax() / NANOS_PER_MICRO;
+	}
+	
+	/**
+	 * Registers these metrics in the platform MBean server as
+	 * <code>pl.graniec.coralreef.network.chat:type=ChatServer,name=<i>name</i></code>.
+	 * 
+	 * @return The name the metrics were registered with.
+	 * @throws JMException When registering fails, e.g. the name is taken.
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		if (objectName != null) {
+			throw new IllegalStateException("metrics are already registered");
+		}
+		
+		final ObjectName objectName = new ObjectName(DOMAIN + ":type=ChatServer,name=" + ObjectName.quote(name));
+		
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.objectName = objectName;
+		
+		return objectName;
+	}
+	
+	/**
+	 * Removes these metrics from the platform MBean server, if they
+	 * were registered.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName == null) {
+			return;
+		}
+		
+		final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		
+		try {
+			mbeanServer.unregisterMBean(objectName);
+		} finally {
+			objectName = null;
+		}
+	}
+	
+	/**
+	 * Starts passing these metrics to the <code>reporter</code> every
+	 * <code>period</code> milliseconds. All reporters share one thread.
+	 */
+	public synchronized void startReporter(final MetricsReporter reporter, long period) {
+		if (reporter == null) {
+			throw new IllegalArgumentException("reporter cannot be null");
+		}
+		
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be positive");
+		}
+		
+		if (reporterTimer == null) {
+			reporterTimer = new Timer("chat-metrics-reporter", true);
+		}
+		
+		reporterTimer.scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				try {
+					reporter.report(ServerMetrics.this);
+				} catch (RuntimeException e) {
+					// a broken reporter must not stop the others
+					logger.log(Level.WARNING, "metrics reporter failed", e);
+				}
+			}
+		}, period, period);
+	}
+	
+	/**
+	 * Stops all reporters.
+	 */
+	public synchronized void stopReporters() {
+		if (reporterTimer != null) {
+			reporterTimer.cancel();
+			reporterTimer = null;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.metrics;
+
+/**
+ * Management interface of {@link ServerMetrics}, exposed through JMX.
+ * Latencies are given in microseconds.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public interface ServerMetricsMBean {
+	
+	/** @return Number of connected users, registered or not. */
+	int getConnectedUsers();
+	
+	/** @return Number of registered users. */
+	int getRegisteredUsers();
+	
+	/** @return Number of groups. */
+	int getGroups();
+	
+	/** @return Number of private messages waiting for offline users. */
+	int getOfflineMessages();
+	
+	/** @return Number of packets waiting in outbound queues of registered users. */
+	long getOutboundQueued();
+	
+	/** @return Length of the longest outbound queue of a registered user. */
+	int getMaxOutboundQueueDepth();
+	
+	/**
+	 * @return Number of packets waiting in the outbound queue of the user
+	 * of given <code>name</code>, <code>-1</code> if there is no such user.
+	 */
+	int getQueueDepth(String name);
+	
+	/** @return Number of accepted connections. */
+	long getConnections();
+	
+	/** @return Number of closed connections. */
+	long getDisconnections();
+	
+	/** @return Number of users disconnected for being idle. */
+	long getIdleDisconnections();
+	
+	/** @return Number of packets received from users. */
+	long getPacketsReceived();
+	
+	/** @return Number of messages received from users. */
+	long getMessagesReceived();
+	
+	/** @return Number of messages rejected by rate limits. */
+	long getMessagesRejected();
+	
+	/** @return Number of packets sent to users. */
+	long getPacketsSent();
+	
+	/** @return Number of bytes of packet frames sent to users. */
+	long getBytesSent();
+	
+	/** @return Number of packets dropped because of full outbound queues. */
+	long getPacketsDropped();
+	
+	/** @return Mean delivery latency. */
+	double getDeliveryLatencyMean();
+	
+	/** @return Median of delivery latency. */
+	long getDeliveryLatency50th();
+	
+	/** @return 99th percentile of delivery latency. */
+	long getDeliveryLatency99th();
+	
+	/** @return 99.9th percentile of delivery latency. */
+	long getDeliveryLatency999th();
+	
+	/** @return The highest delivery latency. */
+	long getDeliveryLatencyMax();
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Abstract request class.
+ * <p>
+ * Every request carries an ID chosen by the client. The server copies
+ * it into the {@link AbstractResponse} so the client can match responses
+ * to requests even when many of them are in flight.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public abstract class AbstractRequest implements ChatPacket {
+
+	/** Request ID */
+	private int requestId;
+	
+	public AbstractRequest() {
+	}
+	
+	/**
+	 * @return the request ID
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+	
+	/**
+	 * @param requestId the request ID to set
+	 */
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+	
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		requestId = in.readInt();
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(requestId);
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeVarInt(requestId);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		requestId = in.readVarInt();
+	}
+
+}
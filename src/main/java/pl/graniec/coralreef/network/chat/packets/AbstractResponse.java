@@ -38,14 +38,19 @@ import java.io.ObjectOutput;
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
-public class AbstractResponse implements ChatPacket {
+public abstract class AbstractResponse implements ChatPacket {
 
+	/** ID of request that this response answers */
+	private int requestId;
 	/** Response state. */
 	private boolean succeed;
 	/** If failed this is set to specified reason */
 	private byte failReason; 
 	
 	
+	public AbstractResponse() {
+	}
+	
 	/**
 	 * Creates a new response. The <code>succeed</code> tells what is the
 	 * status of operation. When failed then the <code>failReason</code>
@@ -55,10 +60,31 @@ public class AbstractResponse implements ChatPacket {
 	 * @param failReason If failed this will hold the reason.
 	 */
 	public AbstractResponse(boolean succeed, byte failReason) {
+		this(0, succeed, failReason);
+	}
+	
+	/**
+	 * Creates a new response to the request of given <code>requestId</code>.
+	 * 
+	 * @param requestId ID of the request that this response answers.
+	 * @param succeed Status of operation. <code>true</code> means success.
+	 * @param failReason If failed this will hold the reason.
+	 * 
+	 * @see AbstractRequest#getRequestId()
+	 */
+	public AbstractResponse(int requestId, boolean succeed, byte failReason) {
+		this.requestId = requestId;
 		this.succeed = succeed;
 		this.failReason = failReason;
 	}
 	
+	/**
+	 * @return ID of the request that this response answers.
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+	
 	/**
 	 * Provides the fail reason of requested operation. You should
 	 * look at the documentation where to find fail definitions for
@@ -89,6 +115,7 @@ public class AbstractResponse implements ChatPacket {
 	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
 	 */
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		requestId = in.readInt();
 		succeed = in.readBoolean();
 		failReason = in.readByte();
 	}
@@ -97,8 +124,27 @@ public class AbstractResponse implements ChatPacket {
 	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
 	 */
 	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(requestId);
+		out.writeBoolean(succeed);
+		out.writeByte(failReason);
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeVarInt(requestId);
 		out.writeBoolean(succeed);
 		out.writeByte(failReason);
 	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		requestId = in.readVarInt();
+		succeed = in.readBoolean();
+		failReason = in.readByte();
+	}
 
 }
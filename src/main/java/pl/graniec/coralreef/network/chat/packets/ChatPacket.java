@@ -29,15 +29,37 @@
 package pl.graniec.coralreef.network.chat.packets;
 
 import java.io.Externalizable;
+import java.io.IOException;
 
 /**
- * The marker interface for all chat packets. It also forces the chat
+ * The interface for all chat packets. It also forces the chat
  * packets to implement {@link Externalizable} interface for better
  * bandwitch usage.
+ * <p>
+ * Packets exchanged after the handshake are encoded with the even
+ * more compact {@link PacketCodec}, so every packet has its type ID
+ * and knows how to write itself to {@link PacketWriter} and read
+ * itself from {@link PacketReader}.
  * 
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
 public interface ChatPacket extends Externalizable {
+	
+	/**
+	 * @return Type ID of this packet.
+	 * @see PacketType
+	 */
+	byte getPacketType();
+	
+	/**
+	 * Writes fields of this packet.
+	 */
+	void encode(PacketWriter out);
+	
+	/**
+	 * Reads fields of this packet written by {@link #encode(PacketWriter)}.
+	 */
+	void decode(PacketReader in) throws IOException;
 
 }
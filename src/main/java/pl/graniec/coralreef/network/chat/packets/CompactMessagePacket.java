@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * {@link MessagePacket} with symbol ids in place of the sender and
+ * receiver names.
+ * <p>
+ * The server sends these to clients that asked for compact messages
+ * when registering; the ids are defined by {@link SymbolPacket}s. A
+ * client may send these to groups it's a member of, using the group id
+ * from {@link GroupJoinResponse#getGroupId()}. The sender id of messages
+ * from clients is ignored.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class CompactMessagePacket implements ChatPacket {
+
+	private byte messageType;
+	
+	private int senderId;
+	
+	private int receiverId;
+	
+	private String message;
+	
+	public CompactMessagePacket() {
+	}
+	
+	public CompactMessagePacket(byte messageType, int senderId, int receiverId, String message) {
+		this.messageType = messageType;
+		this.senderId = senderId;
+		this.receiverId = receiverId;
+		this.message = message;
+	}
+	
+	public byte getMessageType() {
+		return messageType;
+	}
+	
+	public int getSenderId() {
+		return senderId;
+	}
+	
+	public int getReceiverId() {
+		return receiverId;
+	}
+	
+	public String getMessage() {
+		return message;
+	}
+
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		messageType = in.readByte();
+		senderId = in.readInt();
+		receiverId = in.readInt();
+		message = in.readUTF();
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(messageType);
+		out.writeInt(senderId);
+		out.writeInt(receiverId);
+		out.writeUTF(message);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.CompactMessage;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeByte(messageType);
+		out.writeVarInt(senderId);
+		out.writeVarInt(receiverId);
+		out.writeString(message);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		messageType = in.readByte();
+		senderId = in.readVarInt();
+		receiverId = in.readVarInt();
+		message = in.readString();
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * This packet is sent from client to server when a member of a group
+ * wants recent messages of this group.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class GroupHistoryRequest extends AbstractRequest {
+
+	/** Name of the group */
+	private String groupName;
+	/** Maximum number of messages wanted */
+	private int count;
+	
+	public GroupHistoryRequest() {
+	}
+	
+	public GroupHistoryRequest(String groupName, int count) {
+		this.groupName = groupName;
+		this.count = count;
+	}
+	
+	/**
+	 * @return the name of the group.
+	 */
+	public String getGroupName() {
+		return groupName;
+	}
+	
+	/**
+	 * @return Maximum number of messages wanted.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		super.readExternal(in);
+		groupName = in.readUTF();
+		count = in.readInt();
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		super.writeExternal(out);
+		out.writeUTF(groupName);
+		out.writeInt(count);
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.GroupHistoryRequest;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		super.encode(out);
+		out.writeString(groupName);
+		out.writeVarInt(count);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		super.decode(in);
+		groupName = in.readString();
+		count = in.readVarInt();
+	}
+
+}
@@ -74,6 +74,9 @@ public class MessagePacket implements ChatPacket {
 	
 	private String message;
 	
+	public MessagePacket() {
+	}
+	
 	/**
 	 * Creates new <code>message</code> of selected <code>messageType</code>
 	 * addressed from <code>senderName</code> to <code>receiverName</code>.
@@ -139,4 +142,31 @@ public class MessagePacket implements ChatPacket {
 		out.writeUTF(message);
 	}
 
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.Message;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeByte(messageType);
+		out.writeString(senderName);
+		out.writeString(receiverName);
+		out.writeString(message);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		messageType = in.readByte();
+		senderName = in.readString();
+		receiverName = in.readString();
+		message = in.readString();
+	}
+
 }
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+
+/**
+ * Compact binary codec of chat packets.
+ * <p>
+ * Encoded packet starts with one byte of its {@link PacketType} followed
+ * by the fields written by {@link ChatPacket#encode(PacketWriter)}. Unlike
+ * the Java serialization there are no class descriptors nor stream headers,
+ * so a chat message costs only a few bytes above its text.
+ * <p>
+ * Every packet type has to be registered with its class. Packets of the
+ * chat library are registered already.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class PacketCodec {
+	
+	/** Packet classes indexed by packet type. Replaced on change. */
+	private static volatile Class[] classes = new Class[256];
+	
+	static {
+		register(PacketType.Protocol, ProtocolPacket.class);
+		register(PacketType.UserRegisterRequest, UserRegisterRequest.class);
+		register(PacketType.UserRegisterResponse, UserRegisterResponse.class);
+		register(PacketType.Message, MessagePacket.class);
+		register(PacketType.GroupJoinRequest, GroupJoinRequest.class);
+		register(PacketType.GroupJoinResponse, GroupJoinResponse.class);
+		register(PacketType.GroupLeaveRequest, GroupLeaveRequest.class);
+		register(PacketType.GroupLeaveResponse, GroupLeaveResponse.class);
+		register(PacketType.Ping, PingPacket.class);
+		register(PacketType.Pong, PongPacket.class);
+		register(PacketType.GroupHistoryRequest, GroupHistoryRequest.class);
+		register(PacketType.GroupHistoryResponse, GroupHistoryResponse.class);
+		register(PacketType.OfflineMessages, OfflineMessagesPacket.class);
+		register(PacketType.MessageRejected, MessageRejectedPacket.class);
+		register(PacketType.Batch, BatchPacket.class);
+		register(PacketType.TransferStart, TransferStartPacket.class);
+		register(PacketType.TransferChunk, TransferChunkPacket.class);
+		register(PacketType.TransferAck, TransferAckPacket.class);
+		register(PacketType.TransferAbort, TransferAbortPacket.class);
+		register(PacketType.Symbol, SymbolPacket.class);
+		register(PacketType.CompactMessage, CompactMessagePacket.class);
+		register(PacketType.RelayHello, RelayHelloPacket.class);
+		register(PacketType.RelayMessage, RelayMessagePacket.class);
+		register(PacketType.RelayPresence, RelayPresencePacket.class);
+	}
+	
+	private PacketCodec() {
+	}
+	
+	/**
+	 * Registers the <code>packetClass</code> as the class of packets of
+	 * given <code>packetType</code>. The class must implement
+	 * {@link ChatPacket} and have a public no-argument constructor.
+	 * 
+	 * @throws IllegalArgumentException When the type is already registered
+	 * with other class.
+	 */
+	public static void register(byte packetType, Class packetClass) {
+		if (!ChatPacket.class.isAssignableFrom(packetClass)) {
+			throw new IllegalArgumentException(packetClass.getName() + " is not a chat packet");
+		}
+		
+		synchronized (PacketCodec.class) {
+			final Class registered = classes[packetType & 0xFF];
+			
+			if (registered != null && registered != packetClass) {
+				throw new IllegalArgumentException(
+						"packet type " + packetType + " is already registered for " + registered.getName()
+				);
+			}
+			
+			final Class[] changed = (Class[]) classes.clone();
+			changed[packetType & 0xFF] = packetClass;
+			
+			classes = changed;
+		}
+	}
+	
+	/**
+	 * Encodes the <code>packet</code>.
+	 */
+	public static byte[] encode(ChatPacket packet) {
+		final PacketWriter out = new PacketWriter();
+		encode(packet, out);
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encodes the <code>packet</code> into the <code>out</code> writer.
+	 */
+	public static void encode(ChatPacket packet, PacketWriter out) {
+		out.writeByte(packet.getPacketType());
+		packet.encode(out);
+	}
+	
+	/**
+	 * Decodes the packet.
+	 * 
+	 * @throws IOException When the data is malformed or the packet type
+	 * is unknown.
+	 */
+	public static ChatPacket decode(byte[] data, int offset, int length) throws IOException {
+		final PacketReader in = new PacketReader(data, offset, length);
+		final int packetType = in.readByte() & 0xFF;
+		final Class packetClass = classes[packetType];
+		
+		if (packetClass == null) {
+			throw new IOException("unknown packet type: " + packetType);
+		}
+		
+		final ChatPacket packet;
+		
+		try {
+			packet = (ChatPacket) packetClass.newInstance();
+		} catch (InstantiationException e) {
+			throw new IOException("cannot instantiate packet class: " + packetClass.getName());
+		} catch (IllegalAccessException e) {
+			throw new IOException("cannot instantiate packet class: " + packetClass.getName());
+		}
+		
+		packet.decode(in);
+		
+		return packet;
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Already encoded chat packet.
+ * <p>
+ * The frame keeps an immutable byte array of the packet encoded once
+ * with the {@link PacketCodec}. Sending the same frame to many
+ * recipients only copies these bytes to the network and never encodes
+ * the packet again.
+ * <p>
+ * All chat packets but the first {@link ProtocolPacket} travel in
+ * frames. The receiving side gets the original packet back with
+ * {@link #getPacket()}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketFrame implements Externalizable {
+
+	/** Largest frame that can be read, in bytes */
+	public static final int MAX_SIZE = 16 * 1024 * 1024;
+	
+	/** Encoded packet */
+	private byte[] data;
+	/** Decoded packet */
+	private transient ChatPacket packet;
+	/** Value of {@link System#nanoTime()} when the frame was made */
+	private transient long creationTime;
+	
+	public PacketFrame() {
+	}
+	
+	PacketFrame(byte[] data, ChatPacket packet) {
+		this.data = data;
+		this.packet = packet;
+		this.creationTime = System.nanoTime();
+	}
+	
+	/**
+	 * Encodes the <code>packet</code> into a new frame.
+	 */
+	public static PacketFrame encode(ChatPacket packet) {
+		return new PacketFrame(PacketCodec.encode(packet), packet);
+	}
+	
+	/**
+	 * Wraps already encoded packet. The <code>data</code> isn't
+	 * copied and <b>must not be modified</b> afterwards.
+	 */
+	public static PacketFrame wrap(byte[] data) {
+		if (data == null || data.length == 0) {
+			throw new IllegalArgumentException("data cannot be null/empty");
+		}
+		
+		return new PacketFrame(data, null);
+	}
+	
+	/**
+	 * @return Value of {@link System#nanoTime()} when this frame was
+	 * made, or <code>0</code> for frames read from a stream.
+	 */
+	public long getCreationTime() {
+		return creationTime;
+	}
+	
+	/**
+	 * Provides the packet that is kept in this frame. The packet
+	 * is decoded once and then cached.
+	 * 
+	 * @throws IOException When the packet cannot be decoded.
+	 */
+	public synchronized ChatPacket getPacket() throws IOException {
+		if (packet == null) {
+			packet = PacketCodec.decode(data, 0, data.length);
+		}
+		
+		return packet;
+	}
+	
+	/**
+	 * @return Type ID of the packet kept in this frame.
+	 */
+	public byte getPacketType() {
+		return data[0];
+	}
+	
+	/**
+	 * @return The encoded packet. Shared, <b>must not be modified</b>.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+	
+	/**
+	 * @return Size of the encoded packet in bytes.
+	 */
+	public int size() {
+		return data.length;
+	}
+
+	/**
+	 * Writes <code>frames</code> as they are, without encoding
+	 * their packets again.
+	 */
+	static void writeFrames(PacketWriter out, PacketFrame[] frames) {
+		out.writeVarInt(frames.length);
+		
+		for (int i = 0; i < frames.length; ++i) {
+			out.writeBytes(frames[i].data, 0, frames[i].data.length);
+		}
+	}
+	
+	/**
+	 * Reads frames written by {@link #writeFrames(PacketWriter, PacketFrame[])}.
+	 */
+	static PacketFrame[] readFrames(PacketReader in) throws IOException {
+		final int count = in.readVarInt();
+		
+		if (count < 0 || count > in.remaining()) {
+			throw new IOException("malformed frame count: " + count);
+		}
+		
+		final PacketFrame[] frames = new PacketFrame[count];
+		
+		for (int i = 0; i < count; ++i) {
+			final byte[] data = in.readBytes();
+			
+			if (data.length == 0) {
+				throw new IOException("empty frame");
+			}
+			
+			frames[i] = new PacketFrame(data, null);
+		}
+		
+		return frames;
+	}
+	
+	static void writeFrames(ObjectOutput out, PacketFrame[] frames) throws IOException {
+		out.writeInt(frames.length);
+		
+		for (int i = 0; i < frames.length; ++i) {
+			frames[i].writeExternal(out);
+		}
+	}
+	
+	static PacketFrame[] readFrames(ObjectInput in) throws IOException, ClassNotFoundException {
+		final int count = in.readInt();
+		
+		// every frame takes at least two bytes
+		if (count < 0 || count > MAX_SIZE / 2) {
+			throw new IOException("malformed frame count: " + count);
+		}
+		
+		// grown as frames come, a bogus count ends with EOF
+		final List frames = new ArrayList(Math.min(count, 64));
+		
+		for (int i = 0; i < count; ++i) {
+			final PacketFrame frame = new PacketFrame();
+			frame.readExternal(in);
+			frames.add(frame);
+		}
+		
+		return (PacketFrame[]) frames.toArray(new PacketFrame[count]);
+	}
+	
+	/**
+	 * Decodes <code>frames</code> that have to keep messages.
+	 * 
+	 * @throws IOException When a frame cannot be decoded or doesn't
+	 * keep a message.
+	 */
+	static MessagePacket[] getMessages(PacketFrame[] frames) throws IOException {
+		final MessagePacket[] messages = new MessagePacket[frames.length];
+		
+		for (int i = 0; i < frames.length; ++i) {
+			final ChatPacket packet = frames[i].getPacket();
+			
+			if (!(packet instanceof MessagePacket)) {
+				throw new IOException("not a message: " + packet.getPacketType());
+			}
+			
+			messages[i] = (MessagePacket) packet;
+		}
+		
+		return messages;
+	}
+
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int length = 0;
+		
+		for (int shift = 0; ; shift += 7) {
+			if (shift >= 35) {
+				throw new IOException("malformed frame length");
+			}
+			
+			final byte b = in.readByte();
+			length |= (b & 0x7F) << shift;
+			
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		
+		if (length <= 0 || length > MAX_SIZE) {
+			throw new IOException("malformed frame length: " + length);
+		}
+		
+		data = new byte[length];
+		in.readFully(data);
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		int length = data.length;
+		
+		while ((length & ~0x7F) != 0) {
+			out.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		
+		out.writeByte(length);
+		out.write(data);
+	}
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads packet fields written by {@link PacketWriter}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketReader {
+	
+	/** Bytes to read */
+	private final byte[] buffer;
+	/** Position of the next byte */
+	private int position;
+	/** Position after the last byte */
+	private final int limit;
+	
+	public PacketReader(byte[] buffer) {
+		this(buffer, 0, buffer.length);
+	}
+	
+	public PacketReader(byte[] buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+	
+	private void require(int count) throws EOFException {
+		if (count < 0 || limit - position < count) {
+			throw new EOFException("packet is truncated");
+		}
+	}
+	
+	public byte readByte() throws IOException {
+		require(1);
+		return buffer[position++];
+	}
+	
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+	
+	public int readVarInt() throws IOException {
+		int value = 0;
+		
+		for (int shift = 0; shift < 35; shift += 7) {
+			final byte b = readByte();
+			value |= (b & 0x7F) << shift;
+			
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		
+		throw new IOException("malformed variable length integer");
+	}
+	
+	public long readVarLong() throws IOException {
+		long value = 0;
+		
+		for (int shift = 0; shift < 70; shift += 7) {
+			final byte b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		
+		throw new IOException("malformed variable length integer");
+	}
+	
+	/**
+	 * Reads bytes written by {@link PacketWriter#writeBytes(byte[], int, int)}.
+	 */
+	public byte[] readBytes() throws IOException {
+		final int length = readVarInt();
+		require(length);
+		
+		final byte[] result = new byte[length];
+		System.arraycopy(buffer, position, result, 0, length);
+		position += length;
+		
+		return result;
+	}
+	
+	public String readString() throws IOException {
+		final int length = readVarInt();
+		require(length);
+		
+		final String result = new String(buffer, position, length, "UTF-8");
+		position += length;
+		
+		return result;
+	}
+	
+	/**
+	 * @return Number of bytes left to read.
+	 */
+	public int remaining() {
+		return limit - position;
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+/**
+ * Type IDs of chat packets used by the {@link PacketCodec}.
+ * <p>
+ * IDs up to {@link #LastReserved} are reserved for the chat library.
+ * Applications can register their own packets with higher IDs.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class PacketType {
+	
+	public static final byte Protocol             = 1;
+	public static final byte UserRegisterRequest  = 2;
+	public static final byte UserRegisterResponse = 3;
+	public static final byte Message              = 4;
+	public static final byte GroupJoinRequest     = 5;
+	public static final byte GroupJoinResponse    = 6;
+	public static final byte GroupLeaveRequest    = 7;
+	public static final byte GroupLeaveResponse   = 8;
+	public static final byte Ping                 = 9;
+	public static final byte Pong                 = 10;
+	public static final byte GroupHistoryRequest  = 11;
+	public static final byte GroupHistoryResponse = 12;
+	public static final byte OfflineMessages      = 13;
+	public static final byte MessageRejected      = 14;
+	public static final byte Batch                = 15;
+	public static final byte TransferStart        = 16;
+	public static final byte TransferChunk        = 17;
+	public static final byte TransferAck          = 18;
+	public static final byte TransferAbort        = 19;
+	public static final byte Symbol               = 20;
+	public static final byte CompactMessage       = 21;
+	public static final byte RelayHello           = 22;
+	public static final byte RelayMessage         = 23;
+	public static final byte RelayPresence        = 24;
+	
+	public static final byte LastReserved         = 63;
+	
+	private PacketType() {
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+/**
+ * Writes packet fields into a growing byte array using the compact
+ * encoding of {@link PacketCodec}.
+ * <p>
+ * Integers are written as variable length quantities (7 bits per byte,
+ * lowest bits first) and strings as their UTF-8 length followed by
+ * the UTF-8 bytes.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketWriter {
+	
+	/** Written bytes */
+	private byte[] buffer;
+	/** Number of written bytes */
+	private int size;
+	
+	public PacketWriter() {
+		this(64);
+	}
+	
+	public PacketWriter(int initialCapacity) {
+		buffer = new byte[initialCapacity];
+	}
+	
+	private void ensureCapacity(int additional) {
+		final int needed = size + additional;
+		
+		if (needed > buffer.length) {
+			final byte[] grown = new byte[Math.max(needed, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, size);
+			buffer = grown;
+		}
+	}
+	
+	public void writeByte(int value) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) value;
+	}
+	
+	public void writeBoolean(boolean value) {
+		writeByte(value ? 1 : 0);
+	}
+	
+	/**
+	 * Writes the <code>value</code> as variable length quantity. Small
+	 * non-negative values take less bytes. Negative values always take
+	 * five bytes.
+	 */
+	public void writeVarInt(int value) {
+		ensureCapacity(5);
+		
+		while ((value & ~0x7F) != 0) {
+			buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		buffer[size++] = (byte) value;
+	}
+	
+	/**
+	 * Writes the <code>value</code> as variable length quantity. Small
+	 * non-negative values take less bytes.
+	 */
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		
+		while ((value & ~0x7FL) != 0) {
+			buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		buffer[size++] = (byte) value;
+	}
+	
+	/**
+	 * Writes the <code>bytes</code> preceded by their count.
+	 */
+	public void writeBytes(byte[] bytes, int offset, int length) {
+		writeVarInt(length);
+		ensureCapacity(length);
+		
+		System.arraycopy(bytes, offset, buffer, size, length);
+		size += length;
+	}
+	
+	/**
+	 * Writes the <code>value</code> as UTF-8 preceded by its length in bytes.
+	 * There is no limit of the string length.
+	 */
+	public void writeString(String value) {
+		final int length = value.length();
+		int encodedLength = 0;
+		
+		for (int i = 0; i < length; ++i) {
+			final char c = value.charAt(i);
+			
+			if (c < 0x80) {
+				encodedLength += 1;
+			} else if (c < 0x800) {
+				encodedLength += 2;
+			} else if (isSurrogatePair(value, i)) {
+				encodedLength += 4;
+				++i;
+			} else {
+				encodedLength += 3;
+			}
+		}
+		
+		writeVarInt(encodedLength);
+		ensureCapacity(encodedLength);
+		
+		for (int i = 0; i < length; ++i) {
+			final char c = value.charAt(i);
+			
+			if (c < 0x80) {
+				buffer[size++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[size++] = (byte) (0xC0 | (c >> 6));
+				buffer[size++] = (byte) (0x80 | (c & 0x3F));
+			} else if (isSurrogatePair(value, i)) {
+				final int codePoint = 0x10000 + (((c & 0x3FF) << 10) | (value.charAt(++i) & 0x3FF));
+				
+				buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				buffer[size++] = (byte) (0xE0 | (c >> 12));
+				buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[size++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+	
+	private static boolean isSurrogatePair(String value, int index) {
+		final char c = value.charAt(index);
+		
+		return c >= 0xD800 && c <= 0xDBFF
+				&& index + 1 < value.length()
+				&& value.charAt(index + 1) >= 0xDC00 && value.charAt(index + 1) <= 0xDFFF;
+	}
+	
+	/**
+	 * @return Number of written bytes.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Forgets all written bytes so the writer can be reused.
+	 */
+	public void reset() {
+		size = 0;
+	}
+	
+	/**
+	 * @return Copy of written bytes.
+	 */
+	public byte[] toByteArray() {
+		final byte[] result = new byte[size];
+		System.arraycopy(buffer, 0, result, 0, size);
+		
+		return result;
+	}
+}
@@ -44,6 +44,9 @@ public class ProtocolPacket implements ChatPacket {
 	/** Protocol version */
 	private int version;
 	
+	public ProtocolPacket() {
+	}
+	
 	public ProtocolPacket(int version) {
 		super();
 		this.version = version;
@@ -70,4 +73,25 @@ public class ProtocolPacket implements ChatPacket {
 		out.writeInt(version);
 	}
 
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.Protocol;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeVarInt(version);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		version = in.readVarInt();
+	}
+
 }
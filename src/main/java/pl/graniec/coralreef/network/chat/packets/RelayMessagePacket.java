@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Carries a {@link MessagePacket} between two nodes of a cluster. The
+ * message is kept encoded, so it's sent on to users as it is.
+ * <p>
+ * A group message goes from the sender's node to the node that owns
+ * the group, which sends it back <i>sequenced</i> to every node with
+ * members of the group.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RelayMessagePacket implements ChatPacket {
+
+	/** Has the group owner put it in order? */
+	private boolean sequenced;
+	/** The encoded message */
+	private PacketFrame message;
+	
+	public RelayMessagePacket() {
+	}
+	
+	public RelayMessagePacket(boolean sequenced, PacketFrame message) {
+		this.sequenced = sequenced;
+		this.message = message;
+	}
+	
+	/**
+	 * @return <code>true</code> if the message comes from the
+	 * owner of its group.
+	 */
+	public boolean isSequenced() {
+		return sequenced;
+	}
+	
+	/**
+	 * @return Frame of the {@link MessagePacket}.
+	 */
+	public PacketFrame getMessage() {
+		return message;
+	}
+
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		sequenced = in.readBoolean();
+		message = PacketFrame.readFrames(in)[0];
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeBoolean(sequenced);
+		PacketFrame.writeFrames(out, new PacketFrame[] { message });
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.RelayMessage;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeBoolean(sequenced);
+		PacketFrame.writeFrames(out, new PacketFrame[] { message });
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		sequenced = in.readBoolean();
+		
+		final PacketFrame[] frames = PacketFrame.readFrames(in);
+		
+		if (frames.length != 1) {
+			throw new IOException("relay carries one message, got " + frames.length);
+		}
+		
+		message = frames[0];
+	}
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Ends a transfer before its last chunk. The sender sends it to cancel
+ * its transfer. The server sends it to the receivers when the transfer
+ * was cancelled, or to the sender when the transfer cannot go on.
+ * The reason is one of {@link TransferAbortReason}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TransferAbortPacket implements ChatPacket {
+
+	/** Transfer id picked by the sender */
+	private int transferId;
+	/** Sender, set by the server */
+	private String senderName = "";
+	/** Is it a transfer of the client that gets this packet? */
+	private boolean outgoing;
+	/** Why the transfer was aborted */
+	private byte reason;
+	
+	public TransferAbortPacket() {
+	}
+	
+	public TransferAbortPacket(int transferId, String senderName, boolean outgoing, byte reason) {
+		this.transferId = transferId;
+		this.senderName = senderName;
+		this.outgoing = outgoing;
+		this.reason = reason;
+	}
+	
+	public int getTransferId() {
+		return transferId;
+	}
+	
+	public String getSenderName() {
+		return senderName;
+	}
+	
+	/**
+	 * @return <code>true</code> if the aborted transfer is sent by
+	 * the client that gets this packet, <code>false</code> if it
+	 * is received by it.
+	 */
+	public boolean isOutgoing() {
+		return outgoing;
+	}
+	
+	/**
+	 * @return Reason from {@link TransferAbortReason}.
+	 */
+	public byte getReason() {
+		return reason;
+	}
+
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		transferId = in.readInt();
+		senderName = in.readUTF();
+		outgoing = in.readBoolean();
+		reason = in.readByte();
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(transferId);
+		out.writeUTF(senderName);
+		out.writeBoolean(outgoing);
+		out.writeByte(reason);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.TransferAbort;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeVarInt(transferId);
+		out.writeString(senderName);
+		out.writeBoolean(outgoing);
+		out.writeByte(reason);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		transferId = in.readVarInt();
+		senderName = in.readString();
+		outgoing = in.readBoolean();
+		reason = in.readByte();
+	}
+
+}
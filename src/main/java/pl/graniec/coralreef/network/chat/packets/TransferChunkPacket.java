@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Piece of the content of a transfer started with
+ * {@link TransferStartPacket}. Chunks are numbered from zero and
+ * the last one is marked, it may be empty.
+ * <p>
+ * The sender may have at most {@link #WINDOW} chunks that weren't
+ * acknowledged with {@link TransferAckPacket}s yet, so a transfer
+ * goes only as fast as its slowest receiver.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TransferChunkPacket implements ChatPacket {
+	
+	/** Size of chunks sent by the client */
+	public static final int DEFAULT_SIZE = 16 * 1024;
+	/** Size of the largest chunk accepted by the server */
+	public static final int MAX_SIZE = 64 * 1024;
+	/** Number of chunks that may wait for acknowledgement */
+	public static final int WINDOW = 8;
+	
+	private static final byte[] NO_DATA = new byte[0];
+
+	/** Transfer id picked by the sender */
+	private int transferId;
+	/** Sender, set by the server */
+	private String senderName = "";
+	/** Number of this chunk */
+	private int sequence;
+	/** Is it the last chunk? */
+	private boolean last;
+	/** Content */
+	private byte[] data = NO_DATA;
+	
+	public TransferChunkPacket() {
+	}
+	
+	public TransferChunkPacket(int transferId, String senderName, int sequence, boolean last, byte[] data) {
+		this.transferId = transferId;
+		this.senderName = senderName;
+		this.sequence = sequence;
+		this.last = last;
+		this.data = data;
+	}
+	
+	public int getTransferId() {
+		return transferId;
+	}
+	
+	public String getSenderName() {
+		return senderName;
+	}
+	
+	public int getSequence() {
+		return sequence;
+	}
+	
+	public boolean isLast() {
+		return last;
+	}
+	
+	/**
+	 * @return Content of this chunk. <b>Must not be modified</b>.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		transferId = in.readInt();
+		senderName = in.readUTF();
+		sequence = in.readInt();
+		last = in.readBoolean();
+		data = new byte[in.readInt()];
+		in.readFully(data);
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(transferId);
+		out.writeUTF(senderName);
+		out.writeInt(sequence);
+		out.writeBoolean(last);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.TransferChunk;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeVarInt(transferId);
+		out.writeString(senderName);
+		out.writeVarInt(sequence);
+		out.writeBoolean(last);
+		out.writeBytes(data, 0, data.length);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		transferId = in.readVarInt();
+		senderName = in.readString();
+		sequence = in.readVarInt();
+		last = in.readBoolean();
+		data = in.readBytes();
+	}
+
+}
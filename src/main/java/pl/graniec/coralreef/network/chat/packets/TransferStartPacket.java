@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Starts a transfer of a large message or a file. The content follows
+ * in {@link TransferChunkPacket}s of the same transfer id, so it is
+ * never held in memory as a whole.
+ * <p>
+ * The client picks transfer ids of its own transfers. The server
+ * passes this packet on to the receivers with the sender name set,
+ * so a transfer is identified by its sender name and id together.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TransferStartPacket implements ChatPacket {
+
+	/** Transfer id picked by the sender */
+	private int transferId;
+	/** One of {@link MessageType} */
+	private byte messageType;
+	/** Sender, set by the server */
+	private String senderName = "";
+	/** User or group receiving the transfer */
+	private String receiverName;
+	/** File name, empty for a text message */
+	private String name;
+	/** Length of the content in bytes, <code>-1</code> if not known */
+	private long length;
+	
+	public TransferStartPacket() {
+	}
+	
+	public TransferStartPacket(int transferId, byte messageType, String senderName, String receiverName, String name, long length) {
+		this.transferId = transferId;
+		this.messageType = messageType;
+		this.senderName = senderName;
+		this.receiverName = receiverName;
+		this.name = name;
+		this.length = length;
+	}
+	
+	public int getTransferId() {
+		return transferId;
+	}
+	
+	public byte getMessageType() {
+		return messageType;
+	}
+	
+	public String getSenderName() {
+		return senderName;
+	}
+	
+	public String getReceiverName() {
+		return receiverName;
+	}
+	
+	/**
+	 * @return File name or an empty string for a text message.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return Length of the content in bytes, <code>-1</code> if
+	 * not known in advance.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/*
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		transferId = in.readInt();
+		messageType = in.readByte();
+		senderName = in.readUTF();
+		receiverName = in.readUTF();
+		name = in.readUTF();
+		length = in.readLong();
+	}
+
+	/*
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(transferId);
+		out.writeByte(messageType);
+		out.writeUTF(senderName);
+		out.writeUTF(receiverName);
+		out.writeUTF(name);
+		out.writeLong(length);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.TransferStart;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		out.writeVarInt(transferId);
+		out.writeByte(messageType);
+		out.writeString(senderName);
+		out.writeString(receiverName);
+		out.writeString(name);
+		out.writeVarLong(length + 1);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		transferId = in.readVarInt();
+		messageType = in.readByte();
+		senderName = in.readString();
+		receiverName = in.readString();
+		name = in.readString();
+		length = in.readVarLong() - 1;
+	}
+
+}
@@ -39,18 +39,33 @@ import java.io.ObjectOutput;
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
-public class UserRegisterRequest implements ChatPacket {
+public class UserRegisterRequest extends AbstractRequest {
 
 	/** Name (nickname) of user that want to register */
 	private String name;
 	/** Password to join. Empty means no password */
 	private String password;
+	/** Does the client want compact messages? */
+	private boolean compact;
+	
+	public UserRegisterRequest() {
+	}
 	
 	public UserRegisterRequest(String name, String password) {
 		this.name = name;
 		this.password = password;
 	}
 	
+	/**
+	 * @param compact Should the server send {@link CompactMessagePacket}s
+	 * to this client?
+	 */
+	public UserRegisterRequest(String name, String password, boolean compact) {
+		this.name = name;
+		this.password = password;
+		this.compact = compact;
+	}
+	
 	/**
 	 * @return the name of user that wants to register.
 	 */
@@ -64,21 +79,62 @@ public class UserRegisterRequest implements ChatPacket {
 	public String getPassword() {
 		return password;
 	}
+	
+	/**
+	 * @return <code>true</code> if the client wants to get
+	 * {@link CompactMessagePacket}s.
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
 
 	/*
 	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
 	 */
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		super.readExternal(in);
 		name = in.readUTF();
 		password = in.readUTF();
+		compact = in.readBoolean();
 	}
 
 	/*
 	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
 	 */
 	public void writeExternal(ObjectOutput out) throws IOException {
+		super.writeExternal(out);
 		out.writeUTF(name);
 		out.writeUTF(password);
+		out.writeBoolean(compact);
+	}
+
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.UserRegisterRequest;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#encode(pl.graniec.coralreef.network.chat.packets.PacketWriter)
+	 */
+	public void encode(PacketWriter out) {
+		super.encode(out);
+		out.writeString(name);
+		out.writeString(password);
+		out.writeBoolean(compact);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#decode(pl.graniec.coralreef.network.chat.packets.PacketReader)
+	 */
+	public void decode(PacketReader in) throws IOException {
+		super.decode(in);
+		name = in.readString();
+		password = in.readString();
+		
+		// older clients don't send it
+		compact = in.remaining() > 0 && in.readBoolean();
 	}
 
 }
@@ -37,9 +37,22 @@ package pl.graniec.coralreef.network.chat.packets;
  */
 public class UserRegisterResponse extends AbstractResponse {
 
+	public UserRegisterResponse() {
+	}
+	
 	public UserRegisterResponse(boolean succeed, byte failReason) {
 		super(succeed, failReason);
 	}
 	
+	public UserRegisterResponse(int requestId, boolean succeed, byte failReason) {
+		super(requestId, succeed, failReason);
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.packets.ChatPacket#getPacketType()
+	 */
+	public byte getPacketType() {
+		return PacketType.UserRegisterResponse;
+	}
 
 }
@@ -0,0 +1,502 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.NotSerializableException;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.chat.metrics.ServerMetrics;
+import pl.graniec.coralreef.network.chat.packets.BatchPacket;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+
+/**
+ * Delivers packets to users through their {@link OutboundQueue}s.
+ * <p>
+ * Enqueueing is cheap and never touches the network, so the thread
+ * that received a message only pays for putting it into each
+ * recipient's queue. The queues are drained by a fixed pool of writer
+ * threads. A writer sends at most {@link #DRAIN_LIMIT} packets from one
+ * queue before moving to the next one, so a single slow client can hold
+ * back only one writer and only its own traffic.
+ * <p>
+ * When a recipient's queue is full the packet is dropped for this
+ * recipient.
+ * <p>
+ * With {@link #setBatching(int, long) batching} on, packet frames waiting
+ * for the same client are sent together in a {@link BatchPacket}, so
+ * the client is sent to once per batch instead of once per packet. A
+ * queue holding fewer packets than fit in a batch is left to fill up
+ * until its oldest packet has waited for the linger time, or until a
+ * full batch is queued, whichever comes first.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Broadcaster {
+	
+	private static final Logger logger = Logger.getLogger(Broadcaster.class.getName());
+	
+	/** Maximum number of packets sent from one queue in a row */
+	private static final int DRAIN_LIMIT = 64;
+	
+	/** Number of writer threads */
+	private final int writerCount;
+	/** Guards the run queue, lingering queues and the state */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when there may be work for a writer */
+	private final Condition work = lock.newCondition();
+	/** Queues waiting for a writer */
+	private final LinkedList runQueue = new LinkedList();
+	/** Queues waiting for more packets, by deadline */
+	private final LinkedList lingering = new LinkedList();
+	/** Metrics to count packets in, <code>null</code> if none */
+	private final ServerMetrics metrics;
+	/** Writer threads */
+	private Thread[] writers;
+	/** Broadcaster state */
+	private boolean running;
+	/** Maximum number of packets in a batch, 1 if batching is off */
+	private volatile int batchSize = 1;
+	/** Time that packets wait for a batch to fill, in nanoseconds */
+	private volatile long linger;
+	
+	/**
+	 * Queue that waits for more packets.
+	 */
+	private static class Lingering {
+		final OutboundQueue queue;
+		/** Value of {@link System#nanoTime()} when the queue must be sent */
+		final long deadline;
+		
+		Lingering(OutboundQueue queue, long deadline) {
+			this.queue = queue;
+			this.deadline = deadline;
+		}
+	}
+	
+	/**
+	 * Creates a new broadcaster with <code>writerCount</code>
+	 * writer threads.
+	 */
+	public Broadcaster(int writerCount) {
+		this(writerCount, null);
+	}
+	
+	/**
+	 * Creates a new broadcaster with <code>writerCount</code>
+	 * writer threads that counts sent and dropped packets
+	 * in <code>metrics</code>.
+	 */
+	public Broadcaster(int writerCount, ServerMetrics metrics) {
+		if (writerCount <= 0) {
+			throw new IllegalArgumentException("writerCount must be positive");
+		}
+		
+		this.writerCount = writerCount;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Starts the writer threads.
+	 */
+	public void start() {
+		lock.lock();
+		
+		try {
+			if (running) {
+				throw new IllegalStateException("broadcaster is already running");
+			}
+			
+			running = true;
+			writers = new Thread[writerCount];
+			
+			for (int i = 0; i < writerCount; ++i) {
+				writers[i] = new Thread(new Runnable() {
+					public void run() {
+						runWriter();
+					}
+				}, "chat-writer-" + i);
+				
+				writers[i].setDaemon(true);
+				writers[i].start();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops the writer threads. Packets that are still queued stay
+	 * in their queues.
+	 */
+	public void stop() {
+		lock.lock();
+		
+		try {
+			if (!running) {
+				throw new IllegalStateException("broadcaster is not running");
+			}
+			
+			running = false;
+			work.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Turns batching on or off. Batching applies to all clients, every
+	 * client that passed the {@link pl.graniec.coralreef.network.chat.Protocol#VERSION}
+	 * handshake unpacks the {@link BatchPacket}.
+	 * 
+	 * @param maxBatchSize Maximum number of packets in a batch,
+	 * <code>1</code> turns batching off.
+	 * @param maxLinger Maximum time in microseconds that a packet waits
+	 * for its batch to fill, <code>0</code> to batch only packets
+	 * that are already queued.
+	 */
+	public void setBatching(int maxBatchSize, long maxLinger) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		}
+		
+		if (maxLinger < 0) {
+			throw new IllegalArgumentException("maxLinger cannot be negative");
+		}
+		
+		this.linger = maxBatchSize > 1 ? maxLinger * 1000 : 0;
+		this.batchSize = maxBatchSize;
+	}
+	
+	/**
+	 * @return Maximum number of packets in a batch, <code>1</code> if
+	 * batching is off.
+	 */
+	public int getMaxBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * @return Maximum time in microseconds that a packet waits for
+	 * its batch to fill.
+	 */
+	public long getMaxLinger() {
+		return linger / 1000;
+	}
+	
+	/**
+	 * Queues the <code>packet</code> to be sent to the <code>user</code>.
+	 * 
+	 * @return <code>false</code> if the packet was dropped because the user's
+	 * queue is full.
+	 */
+	public boolean send(User user, Object packet) {
+		return send(user.getOutboundQueue(), packet);
+	}
+	
+	/**
+	 * Queues the same <code>packet</code> instance to be sent to
+	 * all <code>recipients</code>. Pass a {@link PacketFrame} to have
+	 * the packet encoded only once for all of them.
+	 * 
+	 * @return Number of recipients that the packet was queued for.
+	 */
+	public int broadcast(User[] recipients, Object packet) {
+		int queued = 0;
+		
+		for (int i = 0; i < recipients.length; ++i) {
+			if (send(recipients[i].getOutboundQueue(), packet)) {
+				++queued;
+			}
+		}
+		
+		return queued;
+	}
+	
+	private boolean send(OutboundQueue queue, Object packet) {
+		if (!queue.offer(packet)) {
+			if (metrics != null) {
+				metrics.packetDropped();
+			}
+			
+			return false;
+		}
+		
+		if (queue.schedule()) {
+			lock.lock();
+			
+			try {
+				runQueue.addLast(queue);
+				work.signal();
+			} finally {
+				lock.unlock();
+			}
+		} else if (queue.lingering != null && queue.size() >= batchSize) {
+			flush(queue);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Sends the lingering <code>queue</code> before its deadline, as its
+	 * batch is full.
+	 */
+	private void flush(OutboundQueue queue) {
+		lock.lock();
+		
+		try {
+			if (queue.lingering == null) {
+				// a writer took it already
+				return;
+			}
+			
+			// its entry in the lingering list is skipped when it comes up
+			queue.lingering = null;
+			runQueue.addLast(queue);
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void runWriter() {
+		Object[] packets = new Object[DRAIN_LIMIT];
+		
+		while (true) {
+			final OutboundQueue queue = nextQueue();
+			
+			if (queue == null) {
+				return;
+			}
+			
+			final int batchSize = this.batchSize;
+			
+			if (batchSize > 1 && linger(queue, batchSize)) {
+				continue;
+			}
+			
+			if (packets.length < batchSize) {
+				packets = new Object[batchSize];
+			}
+			
+			drain(queue, packets, batchSize);
+			
+			if (queue.reschedule()) {
+				lock.lock();
+				
+				try {
+					runQueue.addLast(queue);
+					work.signal();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Waits for a queue to drain.
+	 * 
+	 * @return The queue or <code>null</code> if the broadcaster
+	 * has been stopped.
+	 */
+	private OutboundQueue nextQueue() {
+		lock.lock();
+		
+		try {
+			while (true) {
+				if (!running) {
+					return null;
+				}
+				
+				long delay = 0;
+				
+				// queues whose linger is over go first
+				while (!lingering.isEmpty()) {
+					final Lingering first = (Lingering) lingering.getFirst();
+					
+					delay = first.deadline - System.nanoTime();
+					
+					if (delay > 0) {
+						break;
+					}
+					
+					lingering.removeFirst();
+					
+					if (first.queue.lingering == first) {
+						first.queue.lingering = null;
+						runQueue.addLast(first.queue);
+					}
+				}
+				
+				if (!runQueue.isEmpty()) {
+					return (OutboundQueue) runQueue.removeFirst();
+				}
+				
+				if (lingering.isEmpty()) {
+					work.await();
+				} else {
+					work.awaitNanos(delay);
+				}
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Leaves the <code>queue</code> to wait for more packets if it
+	 * doesn't have a full batch yet and its oldest packet can wait.
+	 * 
+	 * @return <code>true</code> if the queue is lingering.
+	 */
+	private boolean linger(OutboundQueue queue, int batchSize) {
+		final long linger = this.linger;
+		
+		if (linger == 0 || queue.size() >= batchSize) {
+			return false;
+		}
+		
+		final Object first = queue.peek();
+		
+		if (!(first instanceof PacketFrame) || ((PacketFrame) first).getCreationTime() == 0) {
+			return false;
+		}
+		
+		final long deadline = ((PacketFrame) first).getCreationTime() + linger;
+		
+		if (deadline - System.nanoTime() <= 0) {
+			return false;
+		}
+		
+		lock.lock();
+		
+		try {
+			// deadlines come almost in order, so search from the end
+			final ListIterator i = lingering.listIterator(lingering.size());
+			
+			while (i.hasPrevious()) {
+				if (((Lingering) i.previous()).deadline - deadline <= 0) {
+					i.next();
+					break;
+				}
+			}
+			
+			final Lingering entry = new Lingering(queue, deadline);
+			
+			i.add(entry);
+			queue.lingering = entry;
+			
+			// filled up before a sender could see the queue lingering
+			if (queue.size() >= batchSize) {
+				queue.lingering = null;
+				return false;
+			}
+			
+			// a writer may sleep without a deadline
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+		
+		return true;
+	}
+	
+	private void drain(OutboundQueue queue, Object[] packets, int batchSize) {
+		final int count = queue.poll(packets, Math.max(DRAIN_LIMIT, batchSize));
+		int start = 0;
+		
+		try {
+			while (start < count) {
+				int end = start + 1;
+				
+				if (packets[start] instanceof PacketFrame) {
+					while (end < count && end - start < batchSize && packets[end] instanceof PacketFrame) {
+						++end;
+					}
+				}
+				
+				final Object packet;
+				
+				if (end - start > 1) {
+					final PacketFrame[] frames = new PacketFrame[end - start];
+					System.arraycopy(packets, start, frames, 0, frames.length);
+					packet = PacketFrame.encode(new BatchPacket(frames));
+				} else if (packets[start] instanceof TrackedPacket) {
+					packet = ((TrackedPacket) packets[start]).packet;
+				} else {
+					packet = packets[start];
+				}
+				
+				boolean sent = false;
+				
+				try {
+					queue.getClient().send(packet);
+					sent = true;
+				} catch (NotSerializableException e) {
+					logger.log(Level.SEVERE, "cannot send packet", e);
+				} catch (NetworkException e) {
+					// disconnected, nobody will read the rest
+					queue.clear();
+					return;
+				}
+				
+				if (sent && metrics != null) {
+					for (int i = start; i < end; ++i) {
+						metrics.packetSent(packets[i] instanceof TrackedPacket ? ((TrackedPacket) packets[i]).packet : packets[i]);
+					}
+				}
+				
+				if (packets[start] instanceof TrackedPacket) {
+					((TrackedPacket) packets[start]).released(sent);
+				}
+				
+				start = end;
+			}
+		} finally {
+			for (int i = 0; i < count; ++i) {
+				// taken from the queue but not sent
+				if (i >= start && packets[i] instanceof TrackedPacket) {
+					((TrackedPacket) packets[i]).released(false);
+				}
+				
+				packets[i] = null;
+			}
+		}
+	}
+}
@@ -28,11 +28,34 @@
  */
 package pl.graniec.coralreef.network.chat.server;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.chat.Protocol;
+import pl.graniec.coralreef.network.chat.metrics.ServerMetrics;
+import pl.graniec.coralreef.network.chat.packets.ChatPacket;
+import pl.graniec.coralreef.network.chat.packets.CompactMessagePacket;
+import pl.graniec.coralreef.network.chat.packets.GroupHistoryRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupLeaveRequest;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.OfflineMessagesPacket;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.PacketType;
+import pl.graniec.coralreef.network.chat.packets.PingPacket;
+import pl.graniec.coralreef.network.chat.packets.ProtocolPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferChunkPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferStartPacket;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
+import pl.graniec.coralreef.network.chat.store.MessageLog;
+import pl.graniec.coralreef.network.chat.store.OfflineQueue;
+import pl.graniec.coralreef.network.chat.transport.NioServer;
 import pl.graniec.coralreef.network.exceptions.NetworkException;
 import pl.graniec.coralreef.network.server.ConnectionListener;
 import pl.graniec.coralreef.network.server.RemoteClient;
@@ -65,6 +88,19 @@ import pl.graniec.coralreef.network.server.Server;
  */
 public class ChatServer {
 	
+	/** Default capacity of user's outbound queue */
+	public static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+	/** Default number of received packets that wait for user's handlers */
+	public static final int DEFAULT_MAILBOX_CAPACITY = 1024;
+	/** Default time after which a quiet user is disconnected, in milliseconds */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	/** Resolution of the idle reaper in milliseconds */
+	private static final long IDLE_TICK = 1000;
+	/** Slots of the idle reaper's wheel */
+	private static final int IDLE_WHEEL_SIZE = 512;
+	/** Maximum number of offline messages sent in one packet */
+	private static final int OFFLINE_BATCH = 256;
+	
 	private Logger logger = Logger.getLogger(ChatServer.class.getName());
 	
 	/** The server implementation */
@@ -77,9 +113,42 @@ public class ChatServer {
 	private final boolean standalone;
 	
 	/** Map of connected users: RemoteClient => User */
-	protected final Map users = new HashMap();
-	/** Map of all rooms: String => Group */
-	protected final Map groups = new HashMap();
+	protected final Map users = new ConcurrentHashMap();
+	/** Names of registered users */
+	protected final NameRegistry names = new NameRegistry();
+	/** Ids of user and group names */
+	final SymbolTable symbols = new SymbolTable();
+	/** All rooms */
+	protected final GroupRegistry groups = new GroupRegistry(symbols);
+	/** Handlers of packets received from users */
+	protected final PacketHandlerRegistry handlers = new PacketHandlerRegistry();
+	
+	/** Metrics of this server */
+	private final ServerMetrics metrics = new ServerMetrics(this);
+	/** Delivers packets to users */
+	private final Broadcaster broadcaster;
+	/** Disconnects users that went quiet */
+	final IdleReaper reaper = new IdleReaper(this, DEFAULT_IDLE_TIMEOUT, IDLE_TICK, IDLE_WHEEL_SIZE);
+	/** Capacity of user's outbound queue */
+	private int outboundCapacity = DEFAULT_OUTBOUND_CAPACITY;
+	/** Capacity of user's mailbox */
+	private int mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+	/** Log of all messages, <code>null</code> if none */
+	private volatile MessageLog messageLog;
+	/** Private messages for offline users, <code>null</code> if none */
+	private volatile OfflineQueue offlineQueue;
+	/** Validator of user and group names */
+	private volatile NameValidator nameValidator = new NameValidator();
+	/** Messages per second of a new user, 0 if unlimited */
+	private volatile double userRateLimit;
+	/** Burst of messages of a new user */
+	private volatile int userRateBurst;
+	/** Limit of messages of all users, <code>null</code> if none */
+	private volatile TokenBucket globalRateLimiter;
+	/** Runs packet handlers, <code>null</code> to run them on network threads */
+	private volatile Executor packetExecutor;
+	/** Cluster of this server, <code>null</code> if it runs alone */
+	private volatile Cluster cluster;
 	
 	/** Connection listener */
 	private ConnectionListener connectionListener;
@@ -99,6 +168,9 @@ public class ChatServer {
 		this.port = -1;
 		
 		this.standalone = false;
+		this.broadcaster = new Broadcaster(Runtime.getRuntime().availableProcessors(), metrics);
+		
+		installDefaultHandlers();
 	}
 	
 	/**
@@ -115,6 +187,88 @@ public class ChatServer {
 		this.port = port;
 		
 		this.standalone = true;
+		this.broadcaster = new Broadcaster(Runtime.getRuntime().availableProcessors(), metrics);
+		
+		installDefaultHandlers();
+	}
+	
+	/**
+	 * Creates new chat server in <b>Standalone Mode</b> on the bundled
+	 * {@link NioServer}, which serves all connections with a few threads.
+	 * Clients connect with {@link pl.graniec.coralreef.network.chat.transport.SocketClient}.
+	 * <p>
+	 * Packet handlers run on {@link PacketExecutors#standard()}, so the
+	 * few network threads never wait for the disk.
+	 * 
+	 * @param port Port to run on.
+	 */
+	public ChatServer(int port) {
+		this(new NioServer(), port);
+		
+		setPacketExecutor(PacketExecutors.standard());
+	}
+	
+	private void installDefaultHandlers() {
+		
+		handlers.setHandler(PacketType.UserRegisterRequest, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleUserRegisterRequest((UserRegisterRequest) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.Message, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleMessagePacket((MessagePacket) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.CompactMessage, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleCompactMessagePacket((CompactMessagePacket) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.GroupJoinRequest, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleGroupJoinRequest((GroupJoinRequest) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.GroupLeaveRequest, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleGroupLeaveRequest((GroupLeaveRequest) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.GroupHistoryRequest, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleGroupHistoryRequest((GroupHistoryRequest) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.Ping, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handlePingPacket((PingPacket) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.TransferStart, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleTransferStart((TransferStartPacket) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.TransferChunk, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleTransferChunk((TransferChunkPacket) packet);
+			}
+		});
+		
+		handlers.setHandler(PacketType.TransferAbort, new PacketHandler() {
+			public void handlePacket(User user, ChatPacket packet) {
+				user.handleTransferAbort((TransferAbortPacket) packet);
+			}
+		});
 	}
 	
 	public void close() {
@@ -129,6 +283,10 @@ public class ChatServer {
 			server.close();
 		}
 		
+		broadcaster.stop();
+		reaper.stop();
+		metrics.stopReporters();
+		
 		open = false;
 	}
 	
@@ -144,6 +302,9 @@ public class ChatServer {
 			logger.warning("Running in shared mode but server is still offline.");
 		}
 		
+		broadcaster.start();
+		reaper.start();
+		
 		connectionListener = new ConnectionListener() {
 
 			public void clientConnected(RemoteClient client) {
@@ -161,15 +322,530 @@ public class ChatServer {
 		open = true;
 	}
 	
-	private void handleClientConnected(RemoteClient client) {
+	void handleClientConnected(RemoteClient client) {
 		final User user = new User(this, client);
 		
-		synchronized (users) {
-			users.put(client, user);
+		users.put(client, user);
+		
+		reaper.add(user);
+		metrics.userConnected();
+		
+		// tell the client which protocol we speak, this one packet
+		// is never framed so clients of any version can read it
+		broadcaster.send(user, new ProtocolPacket(Protocol.VERSION));
+	}
+	
+	void handleClientDisconnected(RemoteClient client, int reason, String reasonString) {
+		final User user = (User) users.remove(client);
+		
+		if (user != null) {
+			metrics.userDisconnected();
+			
+			// after the packets that came before
+			user.execute(new Runnable() {
+				public void run() {
+					user.handleDisconnected();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Appends the <code>message</code> encoded in <code>frame</code>
+	 * to the message log, if there is one.
+	 */
+	void logMessage(MessagePacket message, PacketFrame frame) {
+		final MessageLog log = messageLog;
+		
+		if (log == null) {
+			return;
+		}
+		
+		try {
+			log.append(System.currentTimeMillis(), message.getMessageType(), message.getReceiverName(), frame.getData());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "cannot log message", e);
+		}
+	}
+	
+	/**
+	 * Keeps the private <code>message</code> encoded in <code>frame</code>
+	 * until its receiver registers, if there is an offline queue.
+	 */
+	void storeOffline(MessagePacket message, PacketFrame frame) {
+		final OfflineQueue queue = offlineQueue;
+		
+		if (queue == null) {
+			return;
+		}
+		
+		final String receiverName = message.getReceiverName();
+		
+		if (receiverName == null || !getNameValidator().isValid(receiverName)) {
+			logger.fine("offline message for invalid name dropped");
+			return;
+		}
+		
+		try {
+			if (!queue.offer(receiverName, frame.getData())) {
+				logger.fine("offline queue full, message for " + receiverName + " dropped");
+				return;
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "cannot store offline message", e);
+			return;
+		}
+		
+		// the receiver could have registered in the meantime
+		final User receiver = getUser(receiverName);
+		
+		if (receiver != null) {
+			deliverOffline(receiver);
+		}
+	}
+	
+	/**
+	 * Sends the messages that the <code>user</code> got while offline,
+	 * in batches of {@link #OFFLINE_BATCH}. Only batches that were queued
+	 * to the user are taken from the offline queue, the rest waits for
+	 * the next registration.
+	 */
+	void deliverOffline(User user) {
+		final OfflineQueue queue = offlineQueue;
+		final String name = user.getName();
+		
+		if (queue == null || name == null) {
+			return;
+		}
+		
+		// one delivery at a time, so the same messages are not sent twice
+		synchronized (user.offlineLock) {
+			final byte[][] messages;
+			
+			try {
+				messages = queue.peek(name);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "cannot read offline messages of " + name, e);
+				return;
+			}
+			
+			int sent = 0;
+			
+			while (sent < messages.length) {
+				final PacketFrame[] frames = new PacketFrame[Math.min(OFFLINE_BATCH, messages.length - sent)];
+				
+				for (int i = 0; i < frames.length; ++i) {
+					frames[i] = PacketFrame.wrap(messages[sent + i]);
+				}
+				
+				if (!user.send(new OfflineMessagesPacket(frames))) {
+					break;
+				}
+				
+				sent += frames.length;
+			}
+			
+			try {
+				queue.delivered(name, sent);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "cannot mark offline messages of " + name + " delivered", e);
+			}
+		}
+	}
+	
+	/**
+	 * Disconnects the <code>user</code> that went idle.
+	 */
+	void disconnect(User user) {
+		metrics.userTimedOut();
+		disconnect(user, "idle timeout");
+	}
+	
+	/**
+	 * Disconnects the <code>user</code> for the given <code>reason</code>.
+	 */
+	void disconnect(User user, String reason) {
+		final RemoteClient client = user.getClient();
+		
+		if (client == null) {
+			user.handleDisconnected();
+			return;
+		}
+		
+		if (users.get(client) != user) {
+			// gone already
+			return;
+		}
+		
+		logger.fine("disconnecting " + user.getName() + ": " + reason);
+		
+		client.disconnect();
+		handleClientDisconnected(client, 0, reason);
+	}
+	
+	/**
+	 * Provides the registered user of given <code>name</code>.
+	 * 
+	 * @return User or <code>null</code> if there is no user
+	 * registered with this name.
+	 */
+	public User getUser(String name) {
+		return names.lookup(name);
+	}
+	
+	/**
+	 * @return Array of all registered users.
+	 */
+	public User[] getUsers() {
+		// sized by toArray, the map may change meanwhile
+		final User[] connected = (User[]) users.values().toArray(new User[0]);
+		
+		int registered = 0;
+		
+		for (int i = 0; i < connected.length; ++i) {
+			if (connected[i].getName() != null) {
+				connected[registered++] = connected[i];
+			}
+		}
+		
+		if (registered == connected.length) {
+			return connected;
+		}
+		
+		final User[] result = new User[registered];
+		System.arraycopy(connected, 0, result, 0, registered);
+		
+		return result;
+	}
+	
+	/**
+	 * @return Number of connected users, registered or not.
+	 */
+	public int getConnectedCount() {
+		return users.size();
+	}
+	
+	/**
+	 * @return Number of registered users.
+	 */
+	public int getRegisteredCount() {
+		return names.size();
+	}
+	
+	/**
+	 * @return Number of groups.
+	 */
+	public int getGroupCount() {
+		return groups.size();
+	}
+	
+	/**
+	 * @return Group of given <code>name</code> or <code>null</code>
+	 * if there is no such group.
+	 */
+	public Group getGroup(String name) {
+		return groups.getGroup(name);
+	}
+	
+	/**
+	 * @return Validator of user and group names.
+	 */
+	public NameValidator getNameValidator() {
+		return nameValidator;
+	}
+	
+	/**
+	 * Sets the validator of user and group names. Names that are
+	 * already in use aren't checked again.
+	 */
+	public void setNameValidator(NameValidator nameValidator) {
+		if (nameValidator == null) {
+			throw new IllegalArgumentException("nameValidator cannot be null");
+		}
+		
+		this.nameValidator = nameValidator;
+	}
+	
+	/**
+	 * Sets the <code>handler</code> of packets of given <code>packetType</code>
+	 * received from users. Handlers of the chat library packets can be
+	 * replaced too. Passing <code>null</code> makes the server ignore
+	 * packets of this type.
+	 * 
+	 * @see pl.graniec.coralreef.network.chat.packets.PacketType
+	 */
+	public void setPacketHandler(byte packetType, PacketHandler handler) {
+		handlers.setHandler(packetType, handler);
+	}
+	
+	/**
+	 * @return The broadcaster that delivers packets to users.
+	 */
+	public Broadcaster getBroadcaster() {
+		return broadcaster;
+	}
+	
+	/**
+	 * @return Metrics of this server. Reporters started on them are
+	 * stopped when the server is closed.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Turns coalescing of outbound packets on or off. Packets waiting for
+	 * the same user are sent in batches of up to <code>maxBatchSize</code>,
+	 * each packet waiting at most <code>maxLinger</code> microseconds for
+	 * its batch to fill. Only clients of this library can read batches.
+	 * 
+	 * @param maxBatchSize Maximum number of packets in a batch,
+	 * <code>1</code> turns coalescing off.
+	 * @see Broadcaster#setBatching(int, long)
+	 */
+	public void setOutboundBatching(int maxBatchSize, long maxLinger) {
+		broadcaster.setBatching(maxBatchSize, maxLinger);
+	}
+	
+	/**
+	 * @return Executor of packet handlers, <code>null</code> if they run
+	 * on the threads that receive the packets.
+	 */
+	public Executor getPacketExecutor() {
+		return packetExecutor;
+	}
+	
+	/**
+	 * Selects where packet handlers of users that will connect from now
+	 * on run. By default they run on the thread of the {@link Server}
+	 * implementation that received the packet, so a slow handler, e.g.
+	 * one writing to the message log, holds back everything else that
+	 * this thread delivers. A {@link NioServer} serves many connections
+	 * on each thread, so a chat server given one should have an executor;
+	 * {@link #ChatServer(int)} sets one up.
+	 * <p>
+	 * With an executor every user gets a mailbox and its packets are
+	 * handled one by one, in order, on the executor's threads. A slow
+	 * handler holds back only its own user. Use
+	 * {@link PacketExecutors#virtualThreads()} where available.
+	 * <p>
+	 * Groups created from now on get mailboxes on the same executor.
+	 * Messages to a group are delivered from its mailbox, one at a time,
+	 * so all members and the history see them in the same order and
+	 * each sender's messages in the order they were sent. A group
+	 * takes up to {@link #setGroupMailboxCapacity(int)} messages at a time.
+	 * The executor isn't shut down when the server is closed.
+	 * 
+	 * @param packetExecutor Executor or <code>null</code> to handle
+	 * packets on network threads.
+	 */
+	public void setPacketExecutor(Executor packetExecutor) {
+		this.packetExecutor = packetExecutor;
+		groups.setExecutor(packetExecutor);
+	}
+	
+	/**
+	 * @return Cluster that this server is a node of, <code>null</code>
+	 * if it runs alone.
+	 */
+	public Cluster getCluster() {
+		return cluster;
+	}
+	
+	void setCluster(Cluster cluster) {
+		this.cluster = cluster;
+	}
+	
+	/**
+	 * @return Capacity of user's outbound queue.
+	 */
+	public int getOutboundCapacity() {
+		return outboundCapacity;
+	}
+	
+	/**
+	 * Sets the capacity of outbound queues of users that will
+	 * connect from now on. Packets for a user whose queue is full
+	 * are dropped.
+	 */
+	public void setOutboundCapacity(int outboundCapacity) {
+		if (outboundCapacity <= 0) {
+			throw new IllegalArgumentException("outboundCapacity must be positive");
+		}
+		
+		this.outboundCapacity = outboundCapacity;
+	}
+	
+	/**
+	 * @return Number of received packets that may wait for user's handlers.
+	 */
+	public int getMailboxCapacity() {
+		return mailboxCapacity;
+	}
+	
+	/**
+	 * Sets how many received packets may wait for handlers of users that
+	 * will connect from now on, when there is a
+	 * {@link #setPacketExecutor(Executor) packet executor}. A user that
+	 * sends more than its handlers keep up with is disconnected.
+	 */
+	public void setMailboxCapacity(int mailboxCapacity) {
+		if (mailboxCapacity <= 0) {
+			throw new IllegalArgumentException("mailboxCapacity must be positive");
+		}
+		
+		this.mailboxCapacity = mailboxCapacity;
+	}
+	
+	/**
+	 * @return Number of messages that may wait in group's mailbox.
+	 */
+	public int getGroupMailboxCapacity() {
+		return groups.getMailboxCapacity();
+	}
+	
+	/**
+	 * Sets how many messages may wait for delivery to groups that will be
+	 * created from now on, when there is a
+	 * {@link #setPacketExecutor(Executor) packet executor}. Messages over it
+	 * are rejected with
+	 * {@link pl.graniec.coralreef.network.chat.packets.MessageRejectReason#GroupBusy}.
+	 */
+	public void setGroupMailboxCapacity(int mailboxCapacity) {
+		groups.setMailboxCapacity(mailboxCapacity);
+	}
+	
+	/**
+	 * @return Time after which a quiet user is disconnected,
+	 * in milliseconds.
+	 */
+	public long getIdleTimeout() {
+		return reaper.getTimeout();
+	}
+	
+	/**
+	 * Sets the time after which a quiet user is disconnected. A user
+	 * quiet for half of this time is pinged first. The timeout is checked
+	 * with a resolution of one second.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		reaper.setTimeout(idleTimeout);
+	}
+	
+	/**
+	 * @return Number of messages kept in history of a group.
+	 */
+	public int getHistoryCapacity() {
+		return groups.getHistoryCapacity();
+	}
+	
+	/**
+	 * Sets the number of messages kept in history of groups that
+	 * will be created from now on. Zero turns the history off.
+	 */
+	public void setHistoryCapacity(int historyCapacity) {
+		groups.setHistoryCapacity(historyCapacity);
+	}
+	
+	/**
+	 * @return Log of all messages or <code>null</code> if there
+	 * is none.
+	 */
+	public MessageLog getMessageLog() {
+		return messageLog;
+	}
+	
+	/**
+	 * Sets the log that all messages are appended to. History of groups
+	 * created from now on is restored from it. <code>null</code> turns
+	 * logging off. The log is not closed by the server.
+	 */
+	public void setMessageLog(MessageLog messageLog) {
+		this.messageLog = messageLog;
+		groups.setMessageLog(messageLog);
+	}
+	
+	/**
+	 * @return Queue of private messages for offline users or
+	 * <code>null</code> if there is none.
+	 */
+	public OfflineQueue getOfflineQueue() {
+		return offlineQueue;
+	}
+	
+	/**
+	 * Sets the queue that keeps private messages to users that aren't
+	 * connected. They get the messages when they register. <code>null</code>
+	 * drops such messages. The queue is not closed by the server.
+	 */
+	public void setOfflineQueue(OfflineQueue offlineQueue) {
+		this.offlineQueue = offlineQueue;
+	}
+	
+	/**
+	 * @return A new limiter of messages sent by a user or
+	 * <code>null</code> if they aren't limited.
+	 */
+	TokenBucket newUserRateLimiter() {
+		final double rate = userRateLimit;
+		return rate > 0 ? new TokenBucket(rate, userRateBurst) : null;
+	}
+	
+	/**
+	 * Limits messages sent by each user that will connect from now on.
+	 * Messages over the limit are rejected with
+	 * {@link pl.graniec.coralreef.network.chat.packets.MessageRejectReason#UserRateExceeded}.
+	 * 
+	 * @param rate Messages per second, 0 for no limit.
+	 * @param burst Messages that can be sent at once.
+	 */
+	public synchronized void setUserRateLimit(double rate, int burst) {
+		if (rate < 0 || (rate > 0 && burst <= 0)) {
+			throw new IllegalArgumentException("rate cannot be negative and burst must be positive");
 		}
+		
+		this.userRateBurst = burst;
+		this.userRateLimit = rate;
+	}
+	
+	/**
+	 * Limits messages sent to each group that will be created from now on.
+	 * Messages over the limit are rejected with
+	 * {@link pl.graniec.coralreef.network.chat.packets.MessageRejectReason#GroupRateExceeded}
+	 * and don't count for the user and server limits.
+	 * <p>
+	 * In a {@link Cluster} the limit is checked on the node of the sender,
+	 * so a group with members on <i>n</i> nodes takes up to <i>n</i> times
+	 * the rate.
+	 * 
+	 * @param rate Messages per second, 0 for no limit.
+	 * @param burst Messages that can be sent at once.
+	 */
+	public void setGroupRateLimit(double rate, int burst) {
+		groups.setRateLimit(rate, burst);
 	}
 	
-	private void handleClientDisconnected(RemoteClient client, int reason, String reasonString) {
+	/**
+	 * Limits messages sent by all users together. Messages over the limit
+	 * are rejected with
+	 * {@link pl.graniec.coralreef.network.chat.packets.MessageRejectReason#ServerRateExceeded}.
+	 * 
+	 * @param rate Messages per second, 0 for no limit.
+	 * @param burst Messages that can be sent at once.
+	 */
+	public void setGlobalRateLimit(double rate, int burst) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate cannot be negative");
+		}
 		
+		globalRateLimiter = rate > 0 ? new TokenBucket(rate, burst) : null;
+	}
+	
+	/**
+	 * @return Limiter of messages of all users or <code>null</code>
+	 * if there is no limit.
+	 */
+	public TokenBucket getGlobalRateLimiter() {
+		return globalRateLimiter;
 	}
 }
@@ -0,0 +1,878 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.chat.packets.ChatPacket;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.RelayHelloPacket;
+import pl.graniec.coralreef.network.chat.packets.RelayMessagePacket;
+import pl.graniec.coralreef.network.chat.packets.RelayPresencePacket;
+import pl.graniec.coralreef.network.chat.transport.SocketClient;
+import pl.graniec.coralreef.network.client.Client;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.server.Server;
+
+/**
+ * Joins several chat servers into one chat. Users connect to any node
+ * and talk to users of all nodes.
+ * <p>
+ * Every group is owned by one node, picked from the group name on a
+ * {@link HashRing} that all nodes share. A node forwards messages to
+ * a group it doesn't own to the owner. The owner puts them in order
+ * and relays them to every node that has members of the group,
+ * including the sender's node, so all members see the same order.
+ * Public messages go to all nodes and private messages go to the node
+ * of the receiver. Nodes tell each other which users they have and
+ * tell the owners which groups they have members of.
+ * <p>
+ * Every node accepts relay links from the others on its own
+ * {@link Server} and opens one link to each of them with
+ * {@link #addNode(String, String, int)}. All nodes should be added
+ * on every node before users connect, as groups don't move when the
+ * ring changes. Node ids must be the same everywhere.
+ * <p>
+ * Rate limits are checked on the node of the sender, so a group with
+ * members on several nodes takes the group limit from each of them.
+ * <p>
+ * A link from a node is accepted only once that node is added here, its
+ * packets wait until then. Node ids are not authenticated, so the relay
+ * port must only be reachable from a trusted network of the nodes.
+ * <p>
+ * When a link is lost, or a node is removed with {@link #removeNode(String)},
+ * the node is taken off the ring. A link that falls more than
+ * {@link #MAX_LINK_BYTES} behind is treated as lost. Either way
+ * its groups pass to the other nodes and it can be added again.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class Cluster {
+	
+	private static final Logger logger = Logger.getLogger(Cluster.class.getName());
+	
+	/** Number of locks that order group messages. Must be a power of two. */
+	private static final int SEQUENCER_STRIPES = 64;
+	/** How often an idle link checks its connection, in milliseconds */
+	private static final long LINK_CHECK_INTERVAL = 250;
+	/** Bytes of packets waiting in a link to a node over which the link is lost */
+	static final int MAX_LINK_BYTES = 16 * 1024 * 1024;
+	/** Bytes of packets kept for a link from a node that isn't added yet */
+	private static final int MAX_EARLY_BYTES = 16 * 1024 * 1024;
+	
+	/** Put in a link's queue to stop its thread */
+	private static final Object CLOSE = new Object();
+	
+	/**
+	 * Link to another node. Packets are queued and written by the
+	 * link's own thread, so a slow node doesn't hold back the thread
+	 * that relays.
+	 */
+	private class Link implements Runnable {
+		
+		final String nodeId;
+		final Client client;
+		private final LinkedBlockingQueue queue = new LinkedBlockingQueue();
+		/** Bytes of frames in the queue */
+		private final AtomicInteger queuedBytes = new AtomicInteger();
+		private final Thread thread;
+		private volatile boolean closed;
+		
+		Link(String nodeId, Client client) {
+			this.nodeId = nodeId;
+			this.client = client;
+			
+			thread = new Thread(this, "cluster-link-" + nodeId);
+			thread.setDaemon(true);
+		}
+		
+		void start() {
+			thread.start();
+		}
+		
+		/**
+		 * @return <code>false</code> if the link is lost.
+		 */
+		boolean send(PacketFrame frame) {
+			if (closed || !client.isConnected()) {
+				return false;
+			}
+			
+			if (queuedBytes.addAndGet(frame.size()) > MAX_LINK_BYTES) {
+				overflow();
+				return false;
+			}
+			
+			queue.offer(frame);
+			return true;
+		}
+		
+		/**
+		 * Gives up a link that the node doesn't keep up with.
+		 */
+		private void overflow() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				
+				closed = true;
+			}
+			
+			logger.warning("link to node " + nodeId + " is too slow, dropping it");
+			queue.clear();
+			queue.offer(CLOSE);
+			
+			// not on the sender's thread, which may hold locks of groups
+			final Thread lost = new Thread(new Runnable() {
+				public void run() {
+					linkLost(Link.this);
+				}
+			}, "cluster-link-lost-" + nodeId);
+			
+			lost.setDaemon(true);
+			lost.start();
+		}
+		
+		boolean send(ChatPacket packet) {
+			return send(PacketFrame.encode(packet));
+		}
+		
+		public void run() {
+			try {
+				while (true) {
+					final Object frame = queue.poll(LINK_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+					
+					if (frame == CLOSE) {
+						break;
+					}
+					
+					if (frame == null) {
+						if (!client.isConnected()) {
+							throw new NetworkException("connection closed");
+						}
+						
+						continue;
+					}
+					
+					try {
+						client.send(frame);
+					} catch (NotSerializableException e) {
+						logger.log(Level.SEVERE, "cannot send to node " + nodeId, e);
+					}
+					
+					queuedBytes.addAndGet(-((PacketFrame) frame).size());
+				}
+			} catch (InterruptedException e) {
+				// closing
+			} catch (NetworkException e) {
+				logger.log(Level.WARNING, "link to node " + nodeId + " is lost", e);
+				linkLost(this);
+			}
+			
+			closed = true;
+			queue.clear();
+			
+			if (client.isConnected()) {
+				client.disconnect();
+			}
+		}
+		
+		void close() {
+			closed = true;
+			queue.offer(CLOSE);
+		}
+	}
+	
+	/**
+	 * Link from another node.
+	 */
+	private static class Inbound {
+		
+		final String nodeId;
+		/** Packets received before the node was added, <code>null</code> once it is */
+		List early = new ArrayList();
+		int earlyBytes;
+		
+		Inbound(String nodeId) {
+			this.nodeId = nodeId;
+		}
+	}
+	
+	/** Id of this node */
+	private final String nodeId;
+	/** The chat server of this node */
+	private final ChatServer server;
+	/** Accepts links from other nodes */
+	private final Server relayServer;
+	/** Owners of groups */
+	private final HashRing ring = new HashRing();
+	
+	/** Links to other nodes: node id => Link */
+	private final Map links = new HashMap();
+	/** Links from other nodes: RemoteClient => Inbound, once they said hello */
+	private final Map inbound = new ConcurrentHashMap();
+	/** Users of other nodes: user name => node id */
+	private final ConcurrentHashMap userNodes = new ConcurrentHashMap();
+	/** Other nodes with members of groups owned here: group name => Set of node ids */
+	private final Map subscribers = new HashMap();
+	/** Locks that order messages to groups owned here */
+	private final Object[] sequencers = new Object[SEQUENCER_STRIPES];
+	
+	private final ConnectionListener connectionListener = new ConnectionListener() {
+		
+		public void clientConnected(final RemoteClient client) {
+			client.addPacketListener(new PacketListener() {
+				public void packetReceived(Object data) {
+					handleRelayPacket(client, data);
+				}
+			});
+		}
+		
+		public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			final Inbound link = (Inbound) inbound.remove(client);
+			
+			if (link != null) {
+				synchronized (link) {
+					if (link.early != null) {
+						// never accepted
+						return;
+					}
+				}
+				
+				handleNodeGone(link.nodeId);
+			}
+		}
+	};
+	
+	private final GroupRegistry.Listener groupListener = new GroupRegistry.Listener() {
+		
+		public void groupCreated(Group group) {
+			sendGroupPresence(group.getName(), true);
+		}
+		
+		public void groupRemoved(Group group) {
+			sendGroupPresence(group.getName(), false);
+		}
+	};
+	
+	/**
+	 * @param nodeId Id of this node, unique in the cluster.
+	 * @param server Chat server of this node.
+	 * @param relayServer Server that accepts links from other nodes,
+	 * e.g. a {@link pl.graniec.coralreef.network.chat.transport.NioServer}.
+	 */
+	public Cluster(String nodeId, ChatServer server, Server relayServer) {
+		this.nodeId = nodeId;
+		this.server = server;
+		this.relayServer = relayServer;
+		
+		for (int i = 0; i < SEQUENCER_STRIPES; ++i) {
+			sequencers[i] = new Object();
+		}
+	}
+	
+	/**
+	 * Starts accepting links from other nodes on given <code>port</code>
+	 * and makes the chat server a node of this cluster.
+	 */
+	public void open(int port) throws NetworkException {
+		relayServer.addConnectionListener(connectionListener);
+		relayServer.open(port);
+		
+		ring.addNode(nodeId);
+		server.groups.setListener(groupListener);
+		server.setCluster(this);
+	}
+	
+	/**
+	 * Leaves the cluster. The chat server goes on alone.
+	 */
+	public void close() {
+		server.setCluster(null);
+		server.groups.setListener(null);
+		
+		relayServer.removeConnectionListener(connectionListener);
+		relayServer.close();
+		
+		synchronized (links) {
+			for (Iterator i = links.values().iterator(); i.hasNext();) {
+				((Link) i.next()).close();
+			}
+			
+			links.clear();
+		}
+	}
+	
+	/**
+	 * Opens a link to the node of given id, which listens for links on
+	 * <code>host</code> and <code>port</code>, and puts it on the ring.
+	 */
+	public void addNode(String peerId, String host, int port) throws NetworkException {
+		if (peerId.equals(nodeId)) {
+			throw new IllegalArgumentException("cannot add this node");
+		}
+		
+		final Client client = createClient();
+		client.connect(host, port);
+		
+		final Link link = new Link(peerId, client);
+		
+		synchronized (links) {
+			if (links.containsKey(peerId)) {
+				client.disconnect();
+				throw new IllegalArgumentException("node " + peerId + " is already added");
+			}
+			
+			links.put(peerId, link);
+		}
+		
+		ring.addNode(peerId);
+		link.start();
+		link.send(new RelayHelloPacket(nodeId));
+		
+		// it may have linked to us before we knew it
+		acceptEarlyPackets(peerId);
+		
+		// tell what it missed
+		final User[] users = server.getUsers();
+		
+		for (int i = 0; i < users.length; ++i) {
+			final String name = users[i].getName();
+			
+			if (name != null) {
+				link.send(new RelayPresencePacket(RelayPresencePacket.UserPresence, name, true));
+			}
+		}
+		
+		final Group[] groups = server.groups.getGroups();
+		
+		for (int i = 0; i < groups.length; ++i) {
+			if (peerId.equals(ring.getNode(groups[i].getName()))) {
+				link.send(new RelayPresencePacket(RelayPresencePacket.GroupPresence, groups[i].getName(), true));
+			}
+		}
+	}
+	
+	/**
+	 * Closes the links to and from the node of given id and takes it
+	 * off the ring. Its groups pass to the other nodes.
+	 */
+	public void removeNode(String peerId) {
+		final Link link;
+		
+		synchronized (links) {
+			link = (Link) links.remove(peerId);
+		}
+		
+		if (link == null) {
+			throw new IllegalArgumentException("node " + peerId + " is not added");
+		}
+		
+		link.close();
+		
+		for (Iterator i = inbound.entrySet().iterator(); i.hasNext();) {
+			final Map.Entry entry = (Map.Entry) i.next();
+			
+			if (peerId.equals(((Inbound) entry.getValue()).nodeId)) {
+				((RemoteClient) entry.getKey()).disconnect();
+			}
+		}
+		
+		handleNodeGone(peerId);
+		leaveRing(peerId);
+	}
+	
+	/**
+	 * Called by the thread of a <code>link</code> that lost its connection.
+	 */
+	private void linkLost(Link link) {
+		synchronized (links) {
+			if (links.get(link.nodeId) != link) {
+				// removed already
+				return;
+			}
+			
+			links.remove(link.nodeId);
+		}
+		
+		leaveRing(link.nodeId);
+	}
+	
+	/**
+	 * Takes the node off the ring and tells the new owners of groups
+	 * which ones have members here.
+	 */
+	private void leaveRing(String peerId) {
+		ring.removeNode(peerId);
+		logger.info("node " + peerId + " left the ring");
+		
+		final Group[] groups = server.groups.getGroups();
+		
+		for (int i = 0; i < groups.length; ++i) {
+			sendGroupPresence(groups[i].getName(), true);
+		}
+	}
+	
+	/**
+	 * Creates the client of a link to another node.
+	 */
+	protected Client createClient() {
+		return new SocketClient();
+	}
+	
+	public String getNodeId() {
+		return nodeId;
+	}
+	
+	/**
+	 * @return Id of the node that owns the group of given name.
+	 */
+	public String getOwner(String groupName) {
+		return ring.getNode(groupName);
+	}
+	
+	/**
+	 * @return Id of the node that the user of given <code>name</code>
+	 * is registered on, or <code>null</code> if none.
+	 */
+	public String getUserNode(String name) {
+		if (server.getUser(name) != null) {
+			return nodeId;
+		}
+		
+		return (String) userNodes.get(name);
+	}
+	
+	/**
+	 * @return Ids of other nodes with members of the group of given
+	 * name, if this node owns it.
+	 */
+	String[] getSubscribers(String groupName) {
+		synchronized (subscribers) {
+			final Set nodes = (Set) subscribers.get(groupName);
+			return nodes != null ? (String[]) nodes.toArray(new String[nodes.size()]) : new String[0];
+		}
+	}
+	
+	private Link getLink(String peerId) {
+		synchronized (links) {
+			return (Link) links.get(peerId);
+		}
+	}
+	
+	private Link[] getLinks() {
+		synchronized (links) {
+			return (Link[]) links.values().toArray(new Link[links.size()]);
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if another node has a user of this name.
+	 */
+	boolean isRegisteredElsewhere(String name) {
+		return userNodes.containsKey(name);
+	}
+	
+	void userRegistered(String name) {
+		sendToAll(new RelayPresencePacket(RelayPresencePacket.UserPresence, name, true));
+	}
+	
+	void userLeft(String name) {
+		sendToAll(new RelayPresencePacket(RelayPresencePacket.UserPresence, name, false));
+	}
+	
+	private void sendToAll(ChatPacket packet) {
+		final Link[] all = getLinks();
+		
+		if (all.length == 0) {
+			return;
+		}
+		
+		final PacketFrame frame = PacketFrame.encode(packet);
+		
+		for (int i = 0; i < all.length; ++i) {
+			all[i].send(frame);
+		}
+	}
+	
+	private void sendGroupPresence(String groupName, boolean present) {
+		final String owner = ring.getNode(groupName);
+		
+		if (owner == null || owner.equals(nodeId)) {
+			return;
+		}
+		
+		final Link link = getLink(owner);
+		
+		if (link != null) {
+			link.send(new RelayPresencePacket(RelayPresencePacket.GroupPresence, groupName, present));
+		}
+	}
+	
+	/**
+	 * Sends the public <code>frame</code> to all other nodes.
+	 */
+	void relayPublic(PacketFrame frame) {
+		sendToAll(new RelayMessagePacket(false, frame));
+	}
+	
+	/**
+	 * Sends the private <code>frame</code> to the node of its receiver.
+	 * 
+	 * @return <code>false</code> if no node has the receiver.
+	 */
+	boolean relayPrivate(String receiverName, PacketFrame frame) {
+		final String peer = (String) userNodes.get(receiverName);
+		final Link link = peer != null ? getLink(peer) : null;
+		
+		return link != null && link.send(new RelayMessagePacket(false, frame));
+	}
+	
+	/**
+	 * Delivers the group message encoded in <code>frame</code> in the
+	 * order of the group's owner. If this node is the owner it runs the
+	 * <code>localDelivery</code> and relays the message to the other
+	 * nodes with members, otherwise it forwards the message to the owner
+	 * which sends it back when it's its turn.
+	 */
+	void publish(String groupName, PacketFrame frame, Runnable localDelivery) {
+		final String owner = ring.getNode(groupName);
+		
+		if (!nodeId.equals(owner)) {
+			final Link link = getLink(owner);
+			
+			if (link != null && link.send(new RelayMessagePacket(false, frame))) {
+				return;
+			}
+			
+			logger.warning("no link to node " + owner + ", delivering locally");
+		}
+		
+		synchronized (sequencerFor(groupName)) {
+			localDelivery.run();
+			
+			final String[] peers;
+			
+			synchronized (subscribers) {
+				final Set nodes = (Set) subscribers.get(groupName);
+				peers = nodes != null ? (String[]) nodes.toArray(new String[nodes.size()]) : null;
+			}
+			
+			if (peers == null) {
+				return;
+			}
+			
+			final PacketFrame relayed = PacketFrame.encode(new RelayMessagePacket(true, frame));
+			
+			for (int i = 0; i < peers.length; ++i) {
+				final Link link = getLink(peers[i]);
+				
+				if (link != null) {
+					link.send(relayed);
+				}
+			}
+		}
+	}
+	
+	private Object sequencerFor(String groupName) {
+		int h = groupName.hashCode();
+		h ^= (h >>> 16);
+		
+		return sequencers[h & (SEQUENCER_STRIPES - 1)];
+	}
+	
+	private void handleRelayPacket(RemoteClient client, Object data) {
+		final ChatPacket packet;
+		
+		try {
+			packet = data instanceof PacketFrame ? ((PacketFrame) data).getPacket() : (ChatPacket) data;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "cannot decode relay packet", e);
+			return;
+		} catch (ClassCastException e) {
+			logger.warning("unexpected relay packet: " + data);
+			return;
+		}
+		
+		Inbound link = (Inbound) inbound.get(client);
+		
+		if (packet instanceof RelayHelloPacket) {
+			if (link != null) {
+				logger.warning("second hello from node " + link.nodeId);
+				client.disconnect();
+				return;
+			}
+			
+			link = new Inbound(((RelayHelloPacket) packet).getNodeId());
+			
+			final boolean added;
+			
+			synchronized (links) {
+				// addNode() accepts early packets after adding the link
+				added = links.containsKey(link.nodeId);
+				
+				if (added) {
+					link.early = null;
+				}
+				
+				inbound.put(client, link);
+			}
+			
+			if (!added) {
+				logger.info("link from node " + link.nodeId + " waits until the node is added");
+			}
+			return;
+		}
+		
+		if (link == null) {
+			logger.warning("relay packet before hello");
+			client.disconnect();
+			return;
+		}
+		
+		synchronized (link) {
+			if (link.early == null) {
+				handlePeerPacket(link.nodeId, packet);
+				return;
+			}
+			
+			link.earlyBytes += data instanceof PacketFrame ? ((PacketFrame) data).getData().length : 1;
+			
+			if (link.earlyBytes > MAX_EARLY_BYTES) {
+				logger.warning("node " + link.nodeId + " sent too much before it was added");
+				client.disconnect();
+				return;
+			}
+			
+			link.early.add(packet);
+		}
+	}
+	
+	/**
+	 * Handles packets of links from the node of given id that came
+	 * before the node was added.
+	 */
+	private void acceptEarlyPackets(String peerId) {
+		for (Iterator i = inbound.values().iterator(); i.hasNext();) {
+			final Inbound link = (Inbound) i.next();
+			
+			if (!peerId.equals(link.nodeId)) {
+				continue;
+			}
+			
+			synchronized (link) {
+				if (link.early == null) {
+					continue;
+				}
+				
+				final List early = link.early;
+				
+				link.early = null;
+				
+				for (int j = 0; j < early.size(); ++j) {
+					handlePeerPacket(peerId, (ChatPacket) early.get(j));
+				}
+			}
+		}
+	}
+	
+	private void handlePeerPacket(String peer, ChatPacket packet) {
+		if (packet instanceof RelayPresencePacket) {
+			handlePresence(peer, (RelayPresencePacket) packet);
+		} else if (packet instanceof RelayMessagePacket) {
+			try {
+				handleMessage((RelayMessagePacket) packet);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "cannot decode relayed message", e);
+			}
+		} else {
+			logger.warning("unexpected relay packet from node " + peer + ": " + packet.getPacketType());
+		}
+	}
+	
+	private void handlePresence(String peer, RelayPresencePacket presence) {
+		final String name = presence.getName();
+		
+		switch (presence.getKind()) {
+			case RelayPresencePacket.UserPresence:
+				if (presence.isPresent()) {
+					userNodes.put(name, peer);
+				} else {
+					userNodes.remove(name, peer);
+				}
+				break;
+				
+			case RelayPresencePacket.GroupPresence:
+				synchronized (subscribers) {
+					Set nodes = (Set) subscribers.get(name);
+					
+					if (presence.isPresent()) {
+						if (nodes == null) {
+							nodes = new HashSet();
+							subscribers.put(name, nodes);
+						}
+						
+						nodes.add(peer);
+					} else if (nodes != null) {
+						nodes.remove(peer);
+						
+						if (nodes.isEmpty()) {
+							subscribers.remove(name);
+						}
+					}
+				}
+				break;
+				
+			default:
+				logger.warning("unknown presence kind: " + presence.getKind());
+		}
+	}
+	
+	private void handleMessage(RelayMessagePacket relay) throws IOException {
+		final PacketFrame frame = relay.getMessage();
+		final ChatPacket packet = frame.getPacket();
+		
+		if (!(packet instanceof MessagePacket)) {
+			logger.warning("relayed packet is not a message: " + packet.getPacketType());
+			return;
+		}
+		
+		final MessagePacket message = (MessagePacket) packet;
+		
+		switch (message.getMessageType()) {
+			case MessageType.Public:
+				final User[] users = server.getUsers();
+				
+				for (int i = 0; i < users.length; ++i) {
+					server.getBroadcaster().send(users[i], frame);
+				}
+				break;
+				
+			case MessageType.Group:
+				if (relay.isSequenced()) {
+					deliverToGroup(message, frame);
+				} else {
+					publish(message.getReceiverName(), frame, new Runnable() {
+						public void run() {
+							deliverToGroup(message, frame);
+						}
+					});
+				}
+				break;
+				
+			case MessageType.Private:
+				final User receiver = server.getUser(message.getReceiverName());
+				
+				if (receiver != null) {
+					server.getBroadcaster().send(receiver, frame);
+				} else {
+					server.storeOffline(message, frame);
+				}
+				break;
+				
+			default:
+				logger.warning("unexpected relayed message type: " + message.getMessageType());
+		}
+	}
+	
+	/**
+	 * Delivers the group message to members of this node and logs it,
+	 * in the owner's order.
+	 */
+	private void deliverToGroup(final MessagePacket message, final PacketFrame frame) {
+		final String groupName = message.getReceiverName();
+		final Group group = server.getGroup(groupName);
+		
+		if (group == null) {
+			return;
+		}
+		
+		final boolean queued = group.offer(new Runnable() {
+			public void run() {
+				final MessageHistory history = group.getHistory();
+				
+				server.logMessage(message, frame);
+				history.add(frame);
+				
+				final User[] members = group.getMembers();
+				
+				for (int i = 0; i < members.length; ++i) {
+					server.getBroadcaster().send(members[i], frame);
+				}
+			}
+		});
+		
+		if (!queued) {
+			// the sender is on another node, there's nobody to reject it to
+			server.getMetrics().packetDropped();
+			logger.fine("mailbox of group " + groupName + " is full, relayed message dropped");
+		}
+	}
+	
+	private void handleNodeGone(String peer) {
+		for (Iterator i = userNodes.values().iterator(); i.hasNext();) {
+			if (peer.equals(i.next())) {
+				i.remove();
+			}
+		}
+		
+		synchronized (subscribers) {
+			for (Iterator i = subscribers.values().iterator(); i.hasNext();) {
+				final Set nodes = (Set) i.next();
+				
+				nodes.remove(peer);
+				
+				if (nodes.isEmpty()) {
+					i.remove();
+				}
+			}
+		}
+	}
+}
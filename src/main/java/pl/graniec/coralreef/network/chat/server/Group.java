@@ -28,27 +28,99 @@
  */
 package pl.graniec.coralreef.network.chat.server;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.store.MessageLog;
+
 /**
  * Group is a group of users. It helps to send message to multiple
  * of chat users at once but not to everyone.
  * <p>
  * Every group has its name and this name is a group ID.
+ * <p>
+ * Members are kept in a set, so joining and leaving take constant time
+ * even in large groups. Readers get an immutable snapshot array that
+ * is made again on the first read after a change. Reading the members
+ * usually neither locks nor allocates, which suits the groups well as
+ * they are read on every message and changed only when somebody joins
+ * or leaves.
+ * <p>
+ * Every group also keeps a {@link MessageHistory} of its recent messages
+ * for users that join later. The history is gone with the group when
+ * its last member leaves.
+ * <p>
+ * When the server has a packet executor, messages to the group go
+ * through its mailbox. They are then delivered, rate limited and kept
+ * in history one at a time, so all members see them in the same order.
+ * A message that finds the mailbox full is refused.
  * 
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
 public class Group {
+	
+	/** Default number of messages kept in group's history */
+	public static final int DEFAULT_HISTORY_CAPACITY = 64;
+	/** Default number of messages that wait in group's mailbox */
+	public static final int DEFAULT_MAILBOX_CAPACITY = 4096;
+	
+	private static final User[] NO_MEMBERS = new User[0];
+	
 	/** The group ID */
 	private final String name;
-	/** Group members */
-	private final Set members = new HashSet();
+	/** Group members in order of joining */
+	private final Set memberSet = new LinkedHashSet();
+	/** Snapshot of members, <code>null</code> if they have changed since. Never modified. */
+	private volatile User[] members = NO_MEMBERS;
+	/** Members count */
+	private volatile int size;
+	/** Recent messages */
+	private final MessageHistory history;
+	/** Log to fill the history from on first use, <code>null</code> if none or filled. Set by the registry. */
+	volatile MessageLog historyLog;
+	/** Limit of messages to this group, <code>null</code> if none */
+	private volatile TokenBucket rateLimiter;
+	/** Symbol of the name, set by the registry */
+	Symbol symbol;
+	/** Runs deliveries of messages, <code>null</code> to run them on the sender's thread. Set by the registry. */
+	Mailbox mailbox;
 	
 	public Group(String name) {
+		this(name, DEFAULT_HISTORY_CAPACITY);
+	}
+	
+	public Group(String name, int historyCapacity) {
 		super();
 		this.name = name;
+		this.history = new MessageHistory(historyCapacity);
+	}
+	
+	/**
+	 * @return Symbol id of this group or <code>0</code> if it
+	 * doesn't have one.
+	 */
+	public int getSymbolId() {
+		final Symbol symbol = this.symbol;
+		return symbol != null ? symbol.id : 0;
+	}
+	
+	/**
+	 * Runs the <code>task</code> after the ones given before, in the
+	 * mailbox of this group if it has one.
+	 * 
+	 * @return <code>false</code> if the mailbox is full and the task
+	 * was refused.
+	 */
+	boolean offer(Runnable task) {
+		if (mailbox != null) {
+			return mailbox.offer(task);
+		}
+		
+		task.run();
+		return true;
 	}
 	
 	/**
@@ -57,10 +129,14 @@ public class Group {
 	 * @return <code>false</code> if this user is already
 	 * a member of this group. 
 	 */
-	public boolean addMember(User u) {
-		synchronized (members) {
-			return members.add(u);
+	public synchronized boolean addMember(User u) {
+		if (!memberSet.add(u)) {
+			return false;
 		}
+		
+		size = memberSet.size();
+		members = null;
+		return true;
 	}
 	
 	/**
@@ -69,26 +145,103 @@ public class Group {
 	 * @return <code>false</code> if this user isn't a member
 	 * of this group.
 	 */
-	public boolean removeMember(User u) {
-		synchronized (members) {
-			return members.remove(u);
+	public synchronized boolean removeMember(User u) {
+		if (!memberSet.remove(u)) {
+			return false;
 		}
+		
+		size = memberSet.size();
+		members = null;
+		return true;
+	}
+	
+	/**
+	 * @return <code>true</code> if the user is a member of this group.
+	 * Users of the server can tell it without locking the group with
+	 * {@link User#isMemberOf(String)}.
+	 */
+	public synchronized boolean isMember(User u) {
+		return memberSet.contains(u);
 	}
 	
 	/**
 	 * @return Members count.
 	 */
 	public int size() {
-		return members.size();
+		return size;
 	}
 	
 	/**
+	 * Provides the snapshot of group members. The returned array is
+	 * shared and <b>must not be modified</b>.
+	 * 
 	 * @return Array of all members of this group.
 	 */
 	public User[] getMembers() {
-		synchronized (members) {
-			return (User[]) members.toArray(new User[members.size()]);
+		User[] snapshot = members;
+		
+		if (snapshot == null) {
+			synchronized (this) {
+				snapshot = members;
+				
+				if (snapshot == null) {
+					snapshot = memberSet.isEmpty() ? NO_MEMBERS : (User[]) memberSet.toArray(new User[memberSet.size()]);
+					members = snapshot;
+				}
+			}
 		}
+		
+		return snapshot;
+	}
+	
+	/**
+	 * @return Recent messages of this group.
+	 */
+	public MessageHistory getHistory() {
+		if (historyLog != null) {
+			restoreHistory();
+		}
+		
+		return history;
+	}
+	
+	/**
+	 * Fills the history with recent messages from the log. Done on first
+	 * use rather than when the group is created, so reading the log
+	 * holds back only this group.
+	 */
+	private void restoreHistory() {
+		synchronized (history) {
+			final MessageLog log = historyLog;
+			
+			if (log == null) {
+				return;
+			}
+			
+			final byte[][] recent = log.readRecent(MessageType.Group, name, history.getCapacity());
+			
+			for (int i = 0; i < recent.length; ++i) {
+				history.add(PacketFrame.wrap(recent[i]));
+			}
+			
+			historyLog = null;
+		}
+	}
+	
+	/**
+	 * @return Limiter of messages to this group or <code>null</code>
+	 * if there is no limit.
+	 */
+	public TokenBucket getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	/**
+	 * Sets the limiter of messages to this group. <code>null</code>
+	 * removes the limit.
+	 */
+	public void setRateLimiter(TokenBucket rateLimiter) {
+		this.rateLimiter = rateLimiter;
 	}
 	
 	/**
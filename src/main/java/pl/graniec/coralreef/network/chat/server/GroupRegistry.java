@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import pl.graniec.coralreef.network.chat.store.MessageLog;
+
+/**
+ * Registry of all groups on the chat server.
+ * <p>
+ * A group is created when its first member joins and destroyed
+ * when its last member leaves. Groups are spread over a fixed number
+ * of stripes, each guarded by its own monitor, so joining and leaving
+ * different groups rarely contends on the same lock.
+ * <p>
+ * If there is a {@link MessageLog}, history of a new group is filled
+ * with its recent messages from the log when the history is first
+ * used, outside of the registry's locks.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class GroupRegistry {
+	
+	/**
+	 * Told when groups are created and destroyed. Called under the
+	 * registry's lock, so it must not block.
+	 */
+	interface Listener {
+		void groupCreated(Group group);
+		void groupRemoved(Group group);
+	}
+	
+	/** Number of stripes. Must be a power of two. */
+	private static final int STRIPES = 64;
+	
+	/** Stripes of name => Group maps */
+	private final Map[] stripes = new Map[STRIPES];
+	/** History capacity of new groups */
+	private volatile int historyCapacity = Group.DEFAULT_HISTORY_CAPACITY;
+	/** Messages per second to a new group, 0 if unlimited */
+	private volatile double rateLimit;
+	/** Burst of messages to a new group */
+	private volatile int rateBurst;
+	/** Log to restore history from, <code>null</code> if none */
+	private volatile MessageLog messageLog;
+	/** Symbols of group names */
+	private final SymbolTable symbols;
+	/** Executor of mailboxes of new groups, <code>null</code> if none */
+	private volatile Executor executor;
+	/** Capacity of mailboxes of new groups */
+	private volatile int mailboxCapacity = Group.DEFAULT_MAILBOX_CAPACITY;
+	/** Listener of created and destroyed groups, <code>null</code> if none */
+	private volatile Listener listener;
+	
+	public GroupRegistry() {
+		this(new SymbolTable());
+	}
+	
+	GroupRegistry(SymbolTable symbols) {
+		this.symbols = symbols;
+		
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new HashMap();
+		}
+	}
+	
+	private Map stripeFor(String name) {
+		int h = name.hashCode();
+		h ^= (h >>> 16);
+		
+		return stripes[h & (STRIPES - 1)];
+	}
+	
+	/**
+	 * @return Group of given <code>name</code> or <code>null</code>
+	 * if there is no such group.
+	 */
+	public Group getGroup(String name) {
+		final Map stripe = stripeFor(name);
+		
+		synchronized (stripe) {
+			return (Group) stripe.get(name);
+		}
+	}
+	
+	/**
+	 * Adds the <code>user</code> to the group of given <code>name</code>.
+	 * The group is created if it doesn't exist.
+	 * 
+	 * @return <code>false</code> if this user is already a member
+	 * of this group.
+	 */
+	public boolean join(String name, User user) {
+		final Map stripe = stripeFor(name);
+		
+		synchronized (stripe) {
+			Group group = (Group) stripe.get(name);
+			
+			if (group == null) {
+				group = new Group(name, historyCapacity);
+				
+				// filled on first use, not under this lock
+				if (historyCapacity > 0) {
+					group.historyLog = messageLog;
+				}
+				
+				if (rateLimit > 0) {
+					group.setRateLimiter(new TokenBucket(rateLimit, rateBurst));
+				}
+				
+				final Executor groupExecutor = executor;
+				
+				if (groupExecutor != null) {
+					group.mailbox = new Mailbox(groupExecutor, mailboxCapacity);
+				}
+				
+				group.symbol = symbols.add(name, group);
+				stripe.put(name, group);
+				
+				final Listener l = listener;
+				
+				if (l != null) {
+					l.groupCreated(group);
+				}
+			}
+			
+			return group.addMember(user);
+		}
+	}
+	
+	/**
+	 * Removes the <code>user</code> from the group of given
+	 * <code>name</code>. The group is destroyed when its last
+	 * member leaves.
+	 * 
+	 * @return <code>false</code> if this user isn't a member
+	 * of this group.
+	 */
+	public boolean leave(String name, User user) {
+		final Map stripe = stripeFor(name);
+		
+		synchronized (stripe) {
+			final Group group = (Group) stripe.get(name);
+			
+			if (group == null || !group.removeMember(user)) {
+				return false;
+			}
+			
+			if (group.size() == 0) {
+				stripe.remove(name);
+				symbols.remove(group.symbol);
+				
+				final Listener l = listener;
+				
+				if (l != null) {
+					l.groupRemoved(group);
+				}
+			}
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * @return Number of messages kept in history of new groups.
+	 */
+	public int getHistoryCapacity() {
+		return historyCapacity;
+	}
+	
+	/**
+	 * Sets the number of messages kept in history of groups that
+	 * will be created from now on.
+	 */
+	public void setHistoryCapacity(int historyCapacity) {
+		if (historyCapacity < 0) {
+			throw new IllegalArgumentException("historyCapacity cannot be negative");
+		}
+		
+		this.historyCapacity = historyCapacity;
+	}
+	
+	/**
+	 * Limits messages to groups that will be created from now on.
+	 * 
+	 * @param rate Messages per second, 0 for no limit.
+	 * @param burst Messages that can be sent at once.
+	 */
+	public synchronized void setRateLimit(double rate, int burst) {
+		if (rate < 0 || (rate > 0 && burst <= 0)) {
+			throw new IllegalArgumentException("rate cannot be negative and burst must be positive");
+		}
+		
+		this.rateBurst = burst;
+		this.rateLimit = rate;
+	}
+	
+	/**
+	 * Gives groups that will be created from now on mailboxes run by
+	 * the <code>executor</code>. <code>null</code> turns mailboxes off.
+	 */
+	void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * @return Number of messages that may wait in mailbox of a group.
+	 */
+	public int getMailboxCapacity() {
+		return mailboxCapacity;
+	}
+	
+	/**
+	 * Sets how many messages may wait in mailboxes of groups that will
+	 * be created from now on. Messages to a full mailbox are refused.
+	 */
+	public void setMailboxCapacity(int mailboxCapacity) {
+		if (mailboxCapacity <= 0) {
+			throw new IllegalArgumentException("mailboxCapacity must be positive");
+		}
+		
+		this.mailboxCapacity = mailboxCapacity;
+	}
+	
+	/**
+	 * Sets the listener of created and destroyed groups.
+	 * <code>null</code> removes it.
+	 */
+	void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Sets the log to restore history of new groups from.
+	 * <code>null</code> turns it off.
+	 */
+	public void setMessageLog(MessageLog messageLog) {
+		this.messageLog = messageLog;
+	}
+	
+	/**
+	 * @return All groups.
+	 */
+	public Group[] getGroups() {
+		final List groups = new ArrayList();
+		
+		for (int i = 0; i < STRIPES; ++i) {
+			synchronized (stripes[i]) {
+				groups.addAll(stripes[i].values());
+			}
+		}
+		
+		return (Group[]) groups.toArray(new Group[groups.size()]);
+	}
+	
+	/**
+	 * @return Number of groups.
+	 */
+	public int size() {
+		int size = 0;
+		
+		for (int i = 0; i < STRIPES; ++i) {
+			synchronized (stripes[i]) {
+				size += stripes[i].size();
+			}
+		}
+		
+		return size;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring that assigns keys to nodes.
+ * <p>
+ * Every node is put on the ring many times as virtual nodes, so the
+ * keys are spread evenly, and adding or removing a node moves only
+ * the keys of that node. Nodes that add and remove the same node ids
+ * in any order get the same ring.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class HashRing {
+	
+	/** Default number of virtual nodes per node */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+	
+	private final int virtualNodes;
+	/** Integer position => node id */
+	private final TreeMap ring = new TreeMap();
+	/** Ids of nodes on the ring */
+	private final Set nodes = new TreeSet();
+	
+	public HashRing() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+	
+	public HashRing(int virtualNodes) {
+		if (virtualNodes <= 0) {
+			throw new IllegalArgumentException("virtualNodes must be positive");
+		}
+		
+		this.virtualNodes = virtualNodes;
+	}
+	
+	/**
+	 * Puts the node on the ring.
+	 */
+	public synchronized void addNode(String nodeId) {
+		if (nodes.add(nodeId)) {
+			place(nodeId);
+		}
+	}
+	
+	private void place(String nodeId) {
+		for (int i = 0; i < virtualNodes; ++i) {
+			final Integer position = new Integer(hash(nodeId + '#' + i));
+			final String current = (String) ring.get(position);
+			
+			// the same winner of a collision whatever the order
+			if (current == null || nodeId.compareTo(current) < 0) {
+				ring.put(position, nodeId);
+			}
+		}
+	}
+	
+	/**
+	 * Takes the node off the ring.
+	 */
+	public synchronized void removeNode(String nodeId) {
+		if (!nodes.remove(nodeId)) {
+			return;
+		}
+		
+		// the node may have won positions that others collided on
+		ring.clear();
+		
+		for (Iterator i = nodes.iterator(); i.hasNext();) {
+			place((String) i.next());
+		}
+	}
+	
+	/**
+	 * @return Id of the node that owns the <code>key</code> or
+	 * <code>null</code> if the ring is empty.
+	 */
+	public synchronized String getNode(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		
+		final SortedMap tail = ring.tailMap(new Integer(hash(key)));
+		final Object position = tail.isEmpty() ? ring.firstKey() : tail.firstKey();
+		
+		return (String) ring.get(position);
+	}
+	
+	/**
+	 * FNV-1a of the characters, mixed so that similar strings end
+	 * up far apart.
+	 */
+	static int hash(String value) {
+		int h = 0x811C9DC5;
+		
+		for (int i = 0; i < value.length(); ++i) {
+			h ^= value.charAt(i);
+			h *= 0x01000193;
+		}
+		
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		
+		return h;
+	}
+}
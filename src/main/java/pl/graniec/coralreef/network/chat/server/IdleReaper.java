@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.chat.packets.PingPacket;
+
+/**
+ * Finds users that went quiet and disconnects them.
+ * <p>
+ * Users are kept on a hashed timer wheel served by a single thread, so
+ * the cost of a tick depends only on the users due in it. A user's
+ * packets only update its activity time and never touch the wheel; the
+ * user is checked when its slot comes round. A user quiet for half of the
+ * idle timeout gets a {@link PingPacket}, a user quiet for the whole
+ * timeout is disconnected.
+ * <p>
+ * Times come from {@link #now()}, not from the wall clock, so setting
+ * the system clock neither disconnects everybody nor stops the reaper.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class IdleReaper {
+	
+	/**
+	 * Place of a user on the wheel.
+	 */
+	static final class Entry {
+		
+		final User user;
+		/** Slot index, -1 when not on the wheel */
+		int slot = -1;
+		/** Full turns of the wheel to wait before expiring */
+		long rounds;
+		Entry prev;
+		Entry next;
+		
+		Entry(User user) {
+			this.user = user;
+		}
+	}
+	
+	private static final Logger logger = Logger.getLogger(IdleReaper.class.getName());
+	
+	private final ChatServer server;
+	/** Duration of one tick in milliseconds */
+	private final long tickMillis;
+	/** Slots of the wheel, each one a list of entries */
+	private final Entry[] wheel;
+	/** Slot index mask, wheel size is a power of two */
+	private final int mask;
+	/** Number of ticks done */
+	private long tick;
+	/** Time of the next tick */
+	private long nextTickTime;
+	/** Number of users on the wheel */
+	private int size;
+	/** Idle timeout in milliseconds */
+	private volatile long timeout;
+	
+	/** Reaper thread */
+	private Thread thread;
+	/** Reaper state */
+	private boolean running;
+	
+	/**
+	 * Creates a reaper of a wheel with <code>wheelSize</code> slots,
+	 * each one <code>tickMillis</code> long.
+	 */
+	IdleReaper(ChatServer server, long timeout, long tickMillis, int wheelSize) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+		}
+		
+		int slots = 1;
+		
+		while (slots < wheelSize) {
+			slots <<= 1;
+		}
+		
+		this.server = server;
+		this.tickMillis = tickMillis;
+		this.wheel = new Entry[slots];
+		this.mask = slots - 1;
+		
+		setTimeout(timeout);
+	}
+	
+	/**
+	 * @return Current time in milliseconds, counted from an arbitrary
+	 * point. Doesn't move when the system clock is set.
+	 */
+	static long now() {
+		return System.nanoTime() / 1000000;
+	}
+	
+	long getTimeout() {
+		return timeout;
+	}
+	
+	void setTimeout(long timeout) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("timeout must be positive");
+		}
+		
+		this.timeout = timeout;
+	}
+	
+	synchronized void start() {
+		if (running) {
+			throw new IllegalStateException("reaper is already running");
+		}
+		
+		running = true;
+		nextTickTime = now() + tickMillis;
+		
+		thread = new Thread("chat-idle-reaper") {
+			public void run() {
+				runReaper();
+			}
+		};
+		
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	synchronized void stop() {
+		if (!running) {
+			throw new IllegalStateException("reaper is not running");
+		}
+		
+		running = false;
+		notifyAll();
+	}
+	
+	/**
+	 * Puts the <code>user</code> on the wheel.
+	 */
+	synchronized void add(User user) {
+		if (user.idleEntry != null) {
+			return;
+		}
+		
+		final Entry entry = new Entry(user);
+		
+		user.idleEntry = entry;
+		schedule(entry, timeout / 2);
+		++size;
+	}
+	
+	/**
+	 * Takes the <code>user</code> off the wheel.
+	 */
+	synchronized void remove(User user) {
+		final Entry entry = user.idleEntry;
+		
+		if (entry == null) {
+			return;
+		}
+		
+		user.idleEntry = null;
+		
+		if (entry.slot != -1) {
+			unlink(entry);
+		}
+		
+		--size;
+	}
+	
+	/**
+	 * @return Number of users on the wheel.
+	 */
+	synchronized int size() {
+		return size;
+	}
+	
+	private void runReaper() {
+		while (true) {
+			synchronized (this) {
+				long now;
+				
+				while (running && (now = now()) < nextTickTime) {
+					try {
+						wait(nextTickTime - now);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				
+				if (!running) {
+					return;
+				}
+				
+				nextTickTime += tickMillis;
+			}
+			
+			try {
+				tick(now());
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "idle reaper tick failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Advances the wheel by one tick and checks users due in it.
+	 * 
+	 * @param now Current time in milliseconds of {@link #now()}.
+	 */
+	void tick(long now) {
+		final List idle = new ArrayList();
+		final List quiet = new ArrayList();
+		final long timeout = this.timeout;
+		
+		synchronized (this) {
+			final int slot = (int) (++tick & mask);
+			Entry entry = wheel[slot];
+			
+			wheel[slot] = null;
+			
+			while (entry != null) {
+				final Entry next = entry.next;
+				
+				entry.slot = -1;
+				entry.prev = entry.next = null;
+				
+				if (entry.rounds > 0) {
+					--entry.rounds;
+					link(entry, slot);
+				} else {
+					final long idleTime = now - entry.user.getLastActivity();
+					
+					if (idleTime >= timeout) {
+						entry.user.idleEntry = null;
+						--size;
+						idle.add(entry.user);
+					} else if (idleTime >= timeout / 2) {
+						quiet.add(entry.user);
+						schedule(entry, timeout - idleTime);
+					} else {
+						schedule(entry, timeout / 2 - idleTime);
+					}
+				}
+				
+				entry = next;
+			}
+		}
+		
+		for (int i = 0; i < quiet.size(); ++i) {
+			((User) quiet.get(i)).send(new PingPacket(now));
+		}
+		
+		for (int i = 0; i < idle.size(); ++i) {
+			final User user = (User) idle.get(i);
+			
+			logger.fine("disconnecting idle user " + user.getName());
+			server.disconnect(user);
+		}
+	}
+	
+	private void schedule(Entry entry, long delay) {
+		long ticks = (delay + tickMillis - 1) / tickMillis;
+		
+		if (ticks < 1) {
+			ticks = 1;
+		}
+		
+		entry.rounds = (ticks - 1) / wheel.length;
+		link(entry, (int) ((tick + ticks) & mask));
+	}
+	
+	private void link(Entry entry, int slot) {
+		final Entry head = wheel[slot];
+		
+		entry.slot = slot;
+		entry.next = head;
+		
+		if (head != null) {
+			head.prev = entry;
+		}
+		
+		wheel[slot] = entry;
+	}
+	
+	private void unlink(Entry entry) {
+		if (entry.prev != null) {
+			entry.prev.next = entry.next;
+		} else {
+			wheel[entry.slot] = entry.next;
+		}
+		
+		if (entry.next != null) {
+			entry.next.prev = entry.prev;
+		}
+		
+		entry.slot = -1;
+		entry.prev = entry.next = null;
+	}
+
+}
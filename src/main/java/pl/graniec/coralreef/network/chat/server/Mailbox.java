@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks posted from any thread one at a time and in the order
+ * they were posted, borrowing threads of an {@link Executor}.
+ * <p>
+ * A mailbox takes a thread only while it has tasks, and gives it
+ * back after {@link #BATCH_SIZE} of them so that a busy mailbox
+ * doesn't starve the others on a small thread pool.
+ * <p>
+ * {@link #offer(Runnable)} refuses tasks while the mailbox holds its
+ * capacity, so work coming from a client cannot pile up without end.
+ * {@link #post(Runnable)} always queues, for the few tasks that must
+ * not be lost.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class Mailbox implements Runnable {
+	
+	private static final Logger logger = Logger.getLogger(Mailbox.class.getName());
+	
+	/** Tasks run before the thread is given back */
+	static final int BATCH_SIZE = 64;
+	
+	private final Executor executor;
+	/** Tasks that {@link #offer(Runnable)} lets wait */
+	private final int capacity;
+	private final ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+	/** Number of waiting tasks */
+	private final AtomicInteger size = new AtomicInteger();
+	/** Is this mailbox waiting for or running on a thread? */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	
+	Mailbox(Executor executor) {
+		this(executor, Integer.MAX_VALUE);
+	}
+	
+	Mailbox(Executor executor, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		
+		this.executor = executor;
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Queues the <code>task</code> to run after the ones posted before.
+	 */
+	void post(Runnable task) {
+		size.incrementAndGet();
+		tasks.offer(task);
+		schedule();
+	}
+	
+	/**
+	 * Queues the <code>task</code> to run after the ones posted before,
+	 * unless the mailbox is full.
+	 * 
+	 * @return <code>false</code> if the task was refused.
+	 */
+	boolean offer(Runnable task) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+		
+		tasks.offer(task);
+		schedule();
+		return true;
+	}
+	
+	/**
+	 * @return Number of tasks waiting to run.
+	 */
+	int size() {
+		return size.get();
+	}
+	
+	private void schedule() {
+		if (!scheduled.compareAndSet(false, true)) {
+			return;
+		}
+		
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			// executor is shut down, nobody will run these
+			scheduled.set(false);
+			
+			while (tasks.poll() != null) {
+				size.decrementAndGet();
+			}
+			
+			logger.log(Level.WARNING, "mailbox task rejected", e);
+		}
+	}
+	
+	public void run() {
+		try {
+			for (int i = 0; i < BATCH_SIZE; ++i) {
+				final Runnable task = (Runnable) tasks.poll();
+				
+				if (task == null) {
+					break;
+				}
+				
+				size.decrementAndGet();
+				
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "mailbox task failed", e);
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			
+			// posted after the last poll, or left over from the batch
+			if (!tasks.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+}
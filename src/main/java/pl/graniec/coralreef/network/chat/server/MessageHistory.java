@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+
+/**
+ * Recent messages of a group.
+ * <p>
+ * Messages are kept as encoded {@link PacketFrame}s in a ring that is
+ * allocated up front. When the ring is full the oldest message is
+ * overwritten. Adding a message takes the ring's monitor, reading
+ * takes no lock at all: every slot holds an immutable entry tagged with
+ * its sequence number, so a reader racing with writers only skips the
+ * entries that were overwritten in the meantime.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class MessageHistory {
+	
+	private static final PacketFrame[] NO_FRAMES = new PacketFrame[0];
+	
+	/**
+	 * Message in the ring.
+	 */
+	private static final class Entry {
+		
+		final long sequence;
+		final PacketFrame frame;
+		
+		Entry(long sequence, PacketFrame frame) {
+			this.sequence = sequence;
+			this.frame = frame;
+		}
+	}
+	
+	/** Ring of entries */
+	private final Entry[] ring;
+	/** Sequence number of the next message */
+	private volatile long next;
+	
+	/**
+	 * Creates history of up to <code>capacity</code> messages.
+	 * Zero capacity keeps no messages at all.
+	 */
+	public MessageHistory(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity cannot be negative");
+		}
+		
+		ring = new Entry[capacity];
+	}
+	
+	/**
+	 * Adds the <code>frame</code> as the newest message, overwriting
+	 * the oldest one if the history is full.
+	 */
+	public synchronized void add(PacketFrame frame) {
+		if (ring.length == 0) {
+			return;
+		}
+		
+		final long sequence = next;
+		
+		ring[(int) (sequence % ring.length)] = new Entry(sequence, frame);
+		next = sequence + 1;
+	}
+	
+	/**
+	 * Provides up to <code>count</code> newest messages, oldest
+	 * first.
+	 */
+	public PacketFrame[] getRecent(int count) {
+		final long end = next;
+		long start = end - Math.min(count, ring.length);
+		
+		if (start < 0) {
+			start = 0;
+		}
+		
+		if (start >= end) {
+			return NO_FRAMES;
+		}
+		
+		final PacketFrame[] frames = new PacketFrame[(int) (end - start)];
+		int size = 0;
+		
+		for (long sequence = start; sequence < end; ++sequence) {
+			final Entry entry = ring[(int) (sequence % ring.length)];
+			
+			// skip the ones overwritten while reading
+			if (entry != null && entry.sequence == sequence) {
+				frames[size++] = entry.frame;
+			}
+		}
+		
+		if (size == frames.length) {
+			return frames;
+		}
+		
+		final PacketFrame[] trimmed = new PacketFrame[size];
+		System.arraycopy(frames, 0, trimmed, 0, size);
+		
+		return trimmed;
+	}
+	
+	/**
+	 * @return Number of messages kept.
+	 */
+	public int size() {
+		return (int) Math.min(next, ring.length);
+	}
+	
+	/**
+	 * @return Maximum number of messages kept.
+	 */
+	public int getCapacity() {
+		return ring.length;
+	}
+}
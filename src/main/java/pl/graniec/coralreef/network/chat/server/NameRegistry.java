@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of user names that are currently in use on the chat server.
+ * <p>
+ * Names are spread over a fixed number of stripes, each guarded by its
+ * own monitor, so claiming, releasing or looking up a name costs a single
+ * hash lookup and never blocks operations on names from other stripes.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class NameRegistry {
+	
+	/** Number of stripes. Must be a power of two. */
+	private static final int STRIPES = 64;
+	
+	/** Stripes of name => User maps */
+	private final Map[] stripes = new Map[STRIPES];
+	
+	public NameRegistry() {
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new HashMap();
+		}
+	}
+	
+	private Map stripeFor(String name) {
+		int h = name.hashCode();
+		h ^= (h >>> 16);
+		
+		return stripes[h & (STRIPES - 1)];
+	}
+	
+	/**
+	 * Atomically claims the <code>name</code> for the <code>user</code>.
+	 * 
+	 * @return <code>false</code> if this name is already claimed by
+	 * some other user.
+	 */
+	public boolean claim(String name, User user) {
+		final Map stripe = stripeFor(name);
+		
+		synchronized (stripe) {
+			final User owner = (User) stripe.get(name);
+			
+			if (owner != null) {
+				return owner == user;
+			}
+			
+			stripe.put(name, user);
+			return true;
+		}
+	}
+	
+	/**
+	 * Releases the <code>name</code> if it is claimed by the
+	 * <code>user</code>.
+	 * 
+	 * @return <code>false</code> if this name wasn't claimed by
+	 * this user.
+	 */
+	public boolean release(String name, User user) {
+		final Map stripe = stripeFor(name);
+		
+		synchronized (stripe) {
+			if (stripe.get(name) != user) {
+				return false;
+			}
+			
+			stripe.remove(name);
+			return true;
+		}
+	}
+	
+	/**
+	 * @return User that owns the <code>name</code> or <code>null</code>
+	 * if there is no such user.
+	 */
+	public User lookup(String name) {
+		final Map stripe = stripeFor(name);
+		
+		synchronized (stripe) {
+			return (User) stripe.get(name);
+		}
+	}
+	
+	/**
+	 * @return Number of claimed names.
+	 */
+	public int size() {
+		int size = 0;
+		
+		for (int i = 0; i < STRIPES; ++i) {
+			synchronized (stripes[i]) {
+				size += stripes[i].size();
+			}
+		}
+		
+		return size;
+	}
+}
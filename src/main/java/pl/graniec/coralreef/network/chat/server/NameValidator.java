@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+/**
+ * Validator of user and group names.
+ * <p>
+ * A valid name has a length between the minimum and the maximum and is
+ * built of ASCII letters, digits and the extra characters given to the
+ * constructor. Optionally non-ASCII letters and digits are accepted too.
+ * <p>
+ * The check is a single pass over the name's characters with
+ * a precomputed lookup table and allocates nothing.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class NameValidator {
+	
+	public static final int DEFAULT_MIN_LENGTH = 1;
+	public static final int DEFAULT_MAX_LENGTH = 32;
+	public static final String DEFAULT_EXTRA_CHARACTERS = "_-.";
+	
+	/** Minimum name length */
+	private final int minLength;
+	/** Maximum name length */
+	private final int maxLength;
+	/** Allowed ASCII characters */
+	private final boolean[] allowed = new boolean[128];
+	/** Are non-ASCII letters and digits allowed? */
+	private final boolean nonAsciiAllowed;
+	
+	/**
+	 * Creates validator that accepts names of 1 to 32 ASCII letters, digits,
+	 * underscores, hyphens and dots.
+	 */
+	public NameValidator() {
+		this(DEFAULT_MIN_LENGTH, DEFAULT_MAX_LENGTH, DEFAULT_EXTRA_CHARACTERS, false);
+	}
+	
+	/**
+	 * @param minLength Minimum name length.
+	 * @param maxLength Maximum name length.
+	 * @param extraCharacters ASCII characters allowed besides letters and digits.
+	 * @param nonAsciiAllowed Are non-ASCII letters and digits allowed?
+	 */
+	public NameValidator(int minLength, int maxLength, String extraCharacters, boolean nonAsciiAllowed) {
+		if (minLength < 1 || maxLength < minLength) {
+			throw new IllegalArgumentException("illegal length limits");
+		}
+		
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.nonAsciiAllowed = nonAsciiAllowed;
+		
+		for (char c = 'a'; c <= 'z'; ++c) {
+			allowed[c] = true;
+		}
+		
+		for (char c = 'A'; c <= 'Z'; ++c) {
+			allowed[c] = true;
+		}
+		
+		for (char c = '0'; c <= '9'; ++c) {
+			allowed[c] = true;
+		}
+		
+		for (int i = 0; i < extraCharacters.length(); ++i) {
+			final char c = extraCharacters.charAt(i);
+			
+			if (c >= 128) {
+				throw new IllegalArgumentException("extra characters must be ASCII");
+			}
+			
+			allowed[c] = true;
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the <code>name</code> is valid.
+	 */
+	public boolean isValid(String name) {
+		if (name == null) {
+			return false;
+		}
+		
+		final int length = name.length();
+		
+		if (length < minLength || length > maxLength) {
+			return false;
+		}
+		
+		for (int i = 0; i < length; ++i) {
+			final char c = name.charAt(i);
+			
+			if (c < 128) {
+				if (!allowed[c]) {
+					return false;
+				}
+			} else if (!nonAsciiAllowed || !Character.isLetterOrDigit(c)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return the minimum name length
+	 */
+	public int getMinLength() {
+		return minLength;
+	}
+	
+	/**
+	 * @return the maximum name length
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+}
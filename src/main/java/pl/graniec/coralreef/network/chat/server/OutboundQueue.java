@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import pl.graniec.coralreef.network.server.RemoteClient;
+
+/**
+ * Bounded queue of packets waiting to be sent to a single {@link RemoteClient}.
+ * <p>
+ * Queues are drained by the {@link Broadcaster} writers. A queue is
+ * <i>scheduled</i> when it sits in the broadcaster's run queue or is being
+ * drained at the moment, so it is never drained by two writers at once
+ * and the packet order is preserved.
+ * <p>
+ * The buffer starts small and grows up to the capacity as packets wait,
+ * so idle connections hold only a few slots each.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class OutboundQueue {
+	
+	/** Slots of a new queue */
+	static final int INITIAL_SIZE = 16;
+	
+	/** Client that packets are sent to */
+	private final RemoteClient client;
+	/** Maximum number of queued packets */
+	private final int capacity;
+	/** Ring buffer of packets, grown up to the capacity */
+	private Object[] items;
+	/** Index of the first packet */
+	private int head;
+	/** Number of queued packets */
+	private int size;
+	/** Is this queue waiting for a writer or being drained? */
+	private boolean scheduled;
+	/** Number of packets dropped because the queue was full */
+	private long dropped;
+	/** Broadcaster's entry while this queue waits for a batch to fill, guarded by the broadcaster */
+	volatile Object lingering;
+	
+	OutboundQueue(RemoteClient client, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		
+		this.client = client;
+		this.capacity = capacity;
+		this.items = new Object[Math.min(capacity, INITIAL_SIZE)];
+	}
+	
+	RemoteClient getClient() {
+		return client;
+	}
+	
+	/**
+	 * Puts the packet at the end of the queue.
+	 * 
+	 * @return <code>false</code> if the queue is full and the packet
+	 * has been dropped.
+	 */
+	synchronized boolean offer(Object packet) {
+		if (size == items.length) {
+			if (size == capacity) {
+				++dropped;
+				return false;
+			}
+			
+			grow();
+		}
+		
+		items[(head + size) % items.length] = packet;
+		++size;
+		
+		return true;
+	}
+	
+	private void grow() {
+		final Object[] grown = new Object[(int) Math.min(capacity, 2L * items.length)];
+		
+		for (int i = 0; i < size; ++i) {
+			grown[i] = items[(head + i) % items.length];
+		}
+		
+		items = grown;
+		head = 0;
+	}
+	
+	/**
+	 * @return The first packet in the queue or <code>null</code> if the
+	 * queue is empty.
+	 */
+	synchronized Object poll() {
+		if (size == 0) {
+			return null;
+		}
+		
+		final Object packet = items[head];
+		items[head] = null;
+		
+		head = (head + 1) % items.length;
+		--size;
+		
+		return packet;
+	}
+	
+	/**
+	 * Moves up to <code>max</code> first packets of the queue
+	 * to <code>packets</code>.
+	 * 
+	 * @return Number of moved packets.
+	 */
+	synchronized int poll(Object[] packets, int max) {
+		final int count = Math.min(size, max);
+		
+		for (int i = 0; i < count; ++i) {
+			packets[i] = items[head];
+			items[head] = null;
+			head = (head + 1) % items.length;
+		}
+		
+		size -= count;
+		return count;
+	}
+	
+	/**
+	 * @return The first packet in the queue, without removing it, or
+	 * <code>null</code> if the queue is empty.
+	 */
+	synchronized Object peek() {
+		return size == 0 ? null : items[head];
+	}
+	
+	/**
+	 * Drops all queued packets. {@link TrackedPacket}s are released.
+	 */
+	void clear() {
+		final Object[] dropped;
+		
+		synchronized (this) {
+			dropped = new Object[size];
+			
+			for (int i = 0; i < dropped.length; ++i) {
+				dropped[i] = items[head];
+				items[head] = null;
+				head = (head + 1) % items.length;
+			}
+			
+			size = 0;
+		}
+		
+		// released outside of the lock, it may queue packets
+		for (int i = 0; i < dropped.length; ++i) {
+			if (dropped[i] instanceof TrackedPacket) {
+				((TrackedPacket) dropped[i]).released(false);
+			}
+		}
+	}
+	
+	/**
+	 * Marks the queue as scheduled if it has something to send.
+	 * 
+	 * @return <code>true</code> if the caller should put the queue
+	 * to the run queue.
+	 */
+	synchronized boolean schedule() {
+		if (scheduled || size == 0) {
+			return false;
+		}
+		
+		scheduled = true;
+		return true;
+	}
+	
+	/**
+	 * Called by a writer after draining. Keeps the queue scheduled
+	 * if there is still something to send.
+	 * 
+	 * @return <code>true</code> if the queue should go back to the
+	 * run queue.
+	 */
+	synchronized boolean reschedule() {
+		if (size == 0) {
+			scheduled = false;
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return Number of queued packets.
+	 */
+	synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * @return Number of packets dropped so far because the queue was full.
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for {@link ChatServer#setPacketExecutor(java.util.concurrent.Executor)}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public final class PacketExecutors {
+	
+	private PacketExecutors() {
+	}
+	
+	/**
+	 * @return <code>true</code> if this JVM has virtual threads.
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return getVirtualThreadFactoryMethod() != null;
+	}
+	
+	/**
+	 * Creates an executor that starts a virtual thread for every task.
+	 * Virtual threads are cheap enough to give every busy user its own,
+	 * and a handler that blocks doesn't hold back the others. Needs
+	 * Java 21 or later at run time, the library itself doesn't.
+	 * 
+	 * @throws UnsupportedOperationException When this JVM has no
+	 * virtual threads.
+	 */
+	public static ExecutorService virtualThreads() {
+		final Method method = getVirtualThreadFactoryMethod();
+		
+		if (method == null) {
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later");
+		}
+		
+		try {
+			return (ExecutorService) method.invoke(null, new Object[0]);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("cannot create virtual thread executor: " + e);
+		}
+	}
+	
+	/**
+	 * Creates a pool of <code>threads</code> platform threads, for JVMs
+	 * without virtual threads. A handler that blocks holds one thread
+	 * of the pool.
+	 */
+	public static ExecutorService threadPool(int threads) {
+		return Executors.newFixedThreadPool(threads);
+	}
+	
+	/**
+	 * Creates the executor that {@link ChatServer#ChatServer(int)} uses:
+	 * {@link #virtualThreads()} where available, otherwise a pool of two
+	 * daemon threads per processor, so a server that is closed without
+	 * shutting it down doesn't keep the JVM running.
+	 */
+	public static ExecutorService standard() {
+		if (isVirtualThreadsSupported()) {
+			return virtualThreads();
+		}
+		
+		final AtomicInteger count = new AtomicInteger();
+		
+		return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				final Thread thread = new Thread(task, "chat-handler-" + count.getAndIncrement());
+				
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	private static Method getVirtualThreadFactoryMethod() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
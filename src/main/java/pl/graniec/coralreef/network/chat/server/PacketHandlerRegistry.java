@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+/**
+ * Packet handlers indexed by packet type ID.
+ * <p>
+ * The lookup is a single array read without locking. Registering
+ * a handler replaces the whole array, which is fine as it happens
+ * only when the server is set up.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketHandlerRegistry {
+	
+	/** Handlers indexed by packet type. Replaced on change. */
+	private volatile PacketHandler[] handlers = new PacketHandler[256];
+	
+	/**
+	 * Sets the <code>handler</code> of packets of given <code>packetType</code>.
+	 * Passing <code>null</code> removes the current handler.
+	 */
+	public synchronized void setHandler(byte packetType, PacketHandler handler) {
+		final PacketHandler[] changed = (PacketHandler[]) handlers.clone();
+		changed[packetType & 0xFF] = handler;
+		
+		handlers = changed;
+	}
+	
+	/**
+	 * @return Handler of packets of given <code>packetType</code> or
+	 * <code>null</code> if there is none.
+	 */
+	public PacketHandler getHandler(byte packetType) {
+		return handlers[packetType & 0xFF];
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+/**
+ * Maps registered user names and group names to compact integer ids.
+ * <p>
+ * A name gets its id when the user registers or the group is created.
+ * Ids are given out in turn and, once the counter wraps around, ids of
+ * removed symbols are given out again, never one that is still in use.
+ * Caches of clients are kept up to date by the users, which compare
+ * symbols rather than ids and define a reused id again. Looking up an
+ * id doesn't hash or compare any strings. Ids are kept in striped open
+ * addressing tables.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class SymbolTable {
+	
+	/** Number of stripes. Must be a power of two. */
+	private static final int STRIPES = 16;
+	
+	/**
+	 * Open addressing table of symbols.
+	 */
+	private static class Stripe {
+		Symbol[] table = new Symbol[16];
+		int size;
+	}
+	
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	/** Id of the next symbol */
+	private int nextId = 1;
+	
+	SymbolTable() {
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new Stripe();
+		}
+	}
+	
+	private static int hash(int id) {
+		return (id * 0x9E3779B9) >>> 4;
+	}
+	
+	/**
+	 * Gives the <code>name</code> of <code>target</code> a new id.
+	 */
+	Symbol add(String name, Object target) {
+		int id;
+		
+		synchronized (this) {
+			id = nextId;
+			
+			// skip the ids that are still in use after a wrap
+			do {
+				nextId = nextId == Integer.MAX_VALUE ? 1 : nextId + 1;
+			} while (lookupSymbol(nextId) != null);
+		}
+		
+		final Symbol symbol = new Symbol(id, name, target);
+		final Stripe stripe = stripes[id & (STRIPES - 1)];
+		
+		synchronized (stripe) {
+			if ((stripe.size + 1) * 2 > stripe.table.length) {
+				resize(stripe, stripe.table.length * 2);
+			}
+			
+			insert(stripe.table, symbol);
+			++stripe.size;
+		}
+		
+		return symbol;
+	}
+	
+	/**
+	 * Removes the <code>symbol</code>. Its id is given out again only
+	 * after the counter wraps around.
+	 */
+	void remove(Symbol symbol) {
+		final Stripe stripe = stripes[symbol.id & (STRIPES - 1)];
+		
+		synchronized (stripe) {
+			final Symbol[] table = stripe.table;
+			final int mask = table.length - 1;
+			int i = hash(symbol.id) & mask;
+			
+			while (table[i] != symbol) {
+				if (table[i] == null) {
+					return;
+				}
+				
+				i = (i + 1) & mask;
+			}
+			
+			table[i] = null;
+			--stripe.size;
+			
+			// put back the ones that might have been placed after it
+			for (i = (i + 1) & mask; table[i] != null; i = (i + 1) & mask) {
+				final Symbol moved = table[i];
+				
+				table[i] = null;
+				insert(table, moved);
+			}
+		}
+	}
+	
+	/**
+	 * @return User or group of given symbol <code>id</code>, or <code>null</code>
+	 * if there is no such symbol.
+	 */
+	Object lookup(int id) {
+		final Symbol symbol = lookupSymbol(id);
+		return symbol != null ? symbol.target : null;
+	}
+	
+	private Symbol lookupSymbol(int id) {
+		final Stripe stripe = stripes[id & (STRIPES - 1)];
+		
+		synchronized (stripe) {
+			final Symbol[] table = stripe.table;
+			final int mask = table.length - 1;
+			
+			for (int i = hash(id) & mask; table[i] != null; i = (i + 1) & mask) {
+				if (table[i].id == id) {
+					return table[i];
+				}
+			}
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * @return Number of symbols.
+	 */
+	int size() {
+		int size = 0;
+		
+		for (int i = 0; i < STRIPES; ++i) {
+			synchronized (stripes[i]) {
+				size += stripes[i].size;
+			}
+		}
+		
+		return size;
+	}
+	
+	private static void resize(Stripe stripe, int capacity) {
+		final Symbol[] old = stripe.table;
+		stripe.table = new Symbol[capacity];
+		
+		for (int i = 0; i < old.length; ++i) {
+			if (old[i] != null) {
+				insert(stripe.table, old[i]);
+			}
+		}
+	}
+	
+	private static void insert(Symbol[] table, Symbol symbol) {
+		final int mask = table.length - 1;
+		int i = hash(symbol.id) & mask;
+		
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		
+		table[i] = symbol;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter.
+ * <p>
+ * The bucket holds up to <code>burst</code> tokens and gets
+ * <code>rate</code> new tokens per second. Instead of counting tokens it
+ * keeps the time at which the bucket would be full again (the generic
+ * cell rate algorithm), so taking a token is a few arithmetic operations
+ * and a compare-and-set on one field, without locks, allocation nor
+ * timers.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TokenBucket {
+	
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	
+	/** Nanoseconds between tokens */
+	private final long interval;
+	/** How far ahead of now the full time may be */
+	private final long tolerance;
+	/** Time at which the bucket is full again */
+	private final AtomicLong fullTime;
+	
+	/**
+	 * Creates a full bucket.
+	 * 
+	 * @param rate Tokens per second.
+	 * @param burst Maximum number of tokens.
+	 */
+	public TokenBucket(double rate, int burst) {
+		if (rate <= 0 || burst <= 0) {
+			throw new IllegalArgumentException("rate and burst must be positive");
+		}
+		
+		this.interval = Math.max(1, (long) (NANOS_PER_SECOND / rate));
+		this.tolerance = interval * burst;
+		this.fullTime = new AtomicLong(System.nanoTime());
+	}
+	
+	/**
+	 * Takes a token if there is one.
+	 * 
+	 * @return <code>false</code> if the bucket is empty.
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(System.nanoTime());
+	}
+	
+	/**
+	 * Takes a token if there is one at time <code>now</code>, in
+	 * nanoseconds of {@link System#nanoTime()}.
+	 */
+	public boolean tryAcquire(long now) {
+		while (true) {
+			final long full = fullTime.get();
+			final long next = (full - now > 0 ? full : now) + interval;
+			
+			if (next - now > tolerance) {
+				return false;
+			}
+			
+			if (fullTime.compareAndSet(full, next)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Gives back a token taken by {@link #tryAcquire()}, when what it
+	 * was taken for did not happen.
+	 */
+	public void release() {
+		fullTime.addAndGet(-interval);
+	}
+	
+	/**
+	 * @return Tokens per second.
+	 */
+	public double getRate() {
+		return (double) NANOS_PER_SECOND / interval;
+	}
+	
+	/**
+	 * @return Maximum number of tokens.
+	 */
+	public int getBurst() {
+		return (int) (tolerance / interval);
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortReason;
+import pl.graniec.coralreef.network.chat.packets.TransferAckPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferChunkPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferStartPacket;
+
+/**
+ * Transfer of a large message from one user to its receivers.
+ * <p>
+ * The server never puts the content together. Every chunk is encoded
+ * once and passed on to the receivers' outbound queues. When the chunk
+ * has left all of these queues the sender gets a
+ * {@link TransferAckPacket} and may send another chunk. A chunk sent
+ * while {@link TransferChunkPacket#WINDOW} chunks wait for their
+ * acknowledgement breaks the protocol and ends the transfer, so a
+ * transfer keeps at most that many chunks per receiver in the server's
+ * memory. A receiver whose queue is full loses the rest of the transfer.
+ * <p>
+ * Chunks are relayed by the sender's thread, one at a time.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class Transfer {
+	
+	/** Maximum number of transfers that a user can send at once */
+	static final int MAX_PER_USER = 8;
+	
+	private final ChatServer server;
+	private final User sender;
+	private final int transferId;
+	/** Users getting the transfer, <code>null</code> entries lost it */
+	private final User[] receivers;
+	/** Number of the next expected chunk */
+	private int nextSequence;
+	/** Number of relayed chunks that weren't acknowledged yet */
+	private int unacknowledged;
+	
+	/**
+	 * Chunk sent to many receivers, acknowledged when it left
+	 * all of their queues.
+	 */
+	private class Chunk extends TrackedPacket {
+		private final int sequence;
+		/** Queues the chunk hasn't left yet, one more while it's being queued */
+		private int remaining;
+		
+		Chunk(PacketFrame frame, int sequence, int receiverCount) {
+			super(frame);
+			this.sequence = sequence;
+			this.remaining = receiverCount + 1;
+		}
+		
+		void released(boolean sent) {
+			synchronized (this) {
+				if (--remaining > 0) {
+					return;
+				}
+			}
+			
+			synchronized (Transfer.this) {
+				--unacknowledged;
+			}
+			
+			sender.send(new TransferAckPacket(transferId, sequence));
+		}
+	}
+	
+	Transfer(ChatServer server, User sender, int transferId, User[] receivers) {
+		this.server = server;
+		this.sender = sender;
+		this.transferId = transferId;
+		this.receivers = receivers;
+	}
+	
+	int getTransferId() {
+		return transferId;
+	}
+	
+	/**
+	 * Passes the <code>start</code> packet on to the receivers.
+	 */
+	void start(TransferStartPacket start) {
+		final PacketFrame frame = PacketFrame.encode(new TransferStartPacket(
+				transferId,
+				start.getMessageType(),
+				sender.getName(),
+				start.getReceiverName(),
+				start.getName(),
+				start.getLength()
+		));
+		
+		for (int i = 0; i < receivers.length; ++i) {
+			if (!server.getBroadcaster().send(receivers[i], frame)) {
+				receivers[i] = null;
+			}
+		}
+	}
+	
+	/**
+	 * Passes the <code>chunk</code> on to the receivers.
+	 * 
+	 * @return <code>false</code> if the chunk is out of order,
+	 * too large or beyond the window.
+	 */
+	boolean relay(TransferChunkPacket chunk) {
+		if (chunk.getSequence() != nextSequence || chunk.getData().length > TransferChunkPacket.MAX_SIZE) {
+			return false;
+		}
+		
+		synchronized (this) {
+			if (unacknowledged >= TransferChunkPacket.WINDOW) {
+				return false;
+			}
+			
+			++unacknowledged;
+		}
+		
+		++nextSequence;
+		
+		final PacketFrame frame = PacketFrame.encode(new TransferChunkPacket(
+				transferId,
+				sender.getName(),
+				chunk.getSequence(),
+				chunk.isLast(),
+				chunk.getData()
+		));
+		
+		final Chunk tracked = new Chunk(frame, chunk.getSequence(), receivers.length);
+		
+		for (int i = 0; i < receivers.length; ++i) {
+			if (receivers[i] == null || !server.getBroadcaster().send(receivers[i], tracked)) {
+				tracked.released(false);
+				
+				if (receivers[i] != null) {
+					// it has missed a chunk, the rest is useless
+					abort(receivers[i], TransferAbortReason.ReceiverTooSlow);
+					receivers[i] = null;
+				}
+			}
+		}
+		
+		tracked.released(false);
+		return true;
+	}
+	
+	/**
+	 * Tells the receivers that the transfer is over.
+	 */
+	void abort(byte reason) {
+		for (int i = 0; i < receivers.length; ++i) {
+			if (receivers[i] != null) {
+				abort(receivers[i], reason);
+			}
+		}
+	}
+	
+	private void abort(User receiver, byte reason) {
+		receiver.send(new TransferAbortPacket(transferId, sender.getName(), false, reason));
+	}
+}
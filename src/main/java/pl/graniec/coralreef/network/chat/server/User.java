@@ -28,15 +28,40 @@
  */
 package pl.graniec.coralreef.network.chat.server;
 
-import java.io.NotSerializableException;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import pl.graniec.coralreef.network.PacketListener;
 import pl.graniec.coralreef.network.chat.packets.ChatPacket;
+import pl.graniec.coralreef.network.chat.packets.CompactMessagePacket;
+import pl.graniec.coralreef.network.chat.packets.GroupHistoryRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupHistoryResponse;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinResponse;
+import pl.graniec.coralreef.network.chat.packets.GroupLeaveRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupLeaveResponse;
+import pl.graniec.coralreef.network.chat.packets.GroupRejectReason;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageRejectReason;
+import pl.graniec.coralreef.network.chat.packets.MessageRejectedPacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.PingPacket;
+import pl.graniec.coralreef.network.chat.packets.PongPacket;
 import pl.graniec.coralreef.network.chat.packets.RegisterRejectReason;
+import pl.graniec.coralreef.network.chat.packets.SymbolPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortReason;
+import pl.graniec.coralreef.network.chat.packets.TransferChunkPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferStartPacket;
 import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
 import pl.graniec.coralreef.network.chat.packets.UserRegisterResponse;
-import pl.graniec.coralreef.network.exceptions.NetworkException;
 import pl.graniec.coralreef.network.server.RemoteClient;
 
 /**
@@ -46,33 +71,99 @@ import pl.graniec.coralreef.network.server.RemoteClient;
  */
 public class User {
 	
-	private final static String NAME_EXPRESSION = "^[a-zA-Z0-9_-\\.]+$";
+	private static final Logger logger = Logger.getLogger(User.class.getName());
 	
 	/** Chat Server that this client is connected to */
 	private final ChatServer server;
 	/** RemoteClient of this user */
 	private final RemoteClient client;
 	/** User's name */
-	private String name;
+	private volatile String name;
+	/** Packets waiting to be sent to this user */
+	private final OutboundQueue outbound;
+	/** Names of groups that this user is member of */
+	private final Set groupNames = new HashSet();
+	/** Transfers sent by this user: transfer id => Transfer */
+	private final Map transfers = new HashMap();
+	/** Symbol of the name, <code>null</code> if not registered */
+	volatile Symbol symbol;
+	/**
+	 * Copy of the client's symbol cache, <code>null</code> if it doesn't
+	 * want compact messages. Holds symbols rather than ids, so an id given
+	 * to another name is defined again. Locked by every thread delivering
+	 * to this user, also with mailboxes: those of groups and of private
+	 * senders.
+	 */
+	private volatile Symbol[] symbolCache;
+	/** Listener of packets from the client */
+	private final PacketListener packetListener;
+	/** Runs handlers of packets, <code>null</code> to run them on the receiving thread */
+	private final Mailbox mailbox;
+	/** Has this user disconnected? */
+	private volatile boolean disconnected;
+	/** Limit of messages sent by this user, <code>null</code> if none */
+	private final TokenBucket rateLimiter;
+	/** Time of the last packet from this user, of {@link IdleReaper#now()} */
+	private volatile long lastActivity = IdleReaper.now();
+	/** Place on the idle reaper's wheel, guarded by the reaper */
+	IdleReaper.Entry idleEntry;
+	/** Held while offline messages are delivered to this user */
+	final Object offlineLock = new Object();
 
 	// for testing purposes
 	User(String name) {
 		server = null;
 		client = null;
+		outbound = new OutboundQueue(null, ChatServer.DEFAULT_OUTBOUND_CAPACITY);
+		packetListener = null;
+		mailbox = null;
+		rateLimiter = null;
+		this.name = name;
+	}
+	
+	// for testing purposes
+	User(ChatServer server, String name) {
+		this.server = server;
+		this.client = null;
+		this.outbound = new OutboundQueue(null, server.getOutboundCapacity());
+		this.packetListener = null;
+		this.mailbox = null;
+		this.rateLimiter = server.newUserRateLimiter();
 		this.name = name;
 	}
 	
 	protected User(ChatServer server, RemoteClient client) {
 		this.server = server;
 		this.client = client;
+		this.outbound = new OutboundQueue(client, server.getOutboundCapacity());
+		this.rateLimiter = server.newUserRateLimiter();
+		
+		final Executor executor = server.getPacketExecutor();
+		this.mailbox = executor != null ? new Mailbox(executor, server.getMailboxCapacity()) : null;
 		
 		// FIXME: Check if first packet is lost when I'll put a sleep here
 		
-		client.addPacketListener(new PacketListener() {
-			public void packetReceived(Object data) {
-				handlePacket(data);
+		packetListener = new PacketListener() {
+			public void packetReceived(final Object data) {
+				if (mailbox == null) {
+					handlePacket(data);
+					return;
+				}
+				
+				final boolean queued = mailbox.offer(new Runnable() {
+					public void run() {
+						handlePacket(data);
+					}
+				});
+				
+				if (!queued) {
+					// sends faster than its packets are handled
+					User.this.server.disconnect(User.this, "too many packets waiting");
+				}
 			}
-		});
+		};
+		
+		client.addPacketListener(packetListener);
 	}
 	
 	/**
@@ -82,77 +173,751 @@ public class User {
 		return name;
 	}
 	
-	private void handlePacket(Object data) {
+	/**
+	 * @return Names of groups that this user is member of.
+	 */
+	public String[] getGroupNames() {
+		synchronized (groupNames) {
+			return (String[]) groupNames.toArray(new String[groupNames.size()]);
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if this user is a member of the group
+	 * of given name. Takes constant time however large the group is.
+	 */
+	public boolean isMemberOf(String groupName) {
+		synchronized (groupNames) {
+			return groupNames.contains(groupName);
+		}
+	}
+	
+	/**
+	 * @return Time of the last packet from this user in milliseconds,
+	 * counted from an arbitrary point rather than the epoch.
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+	
+	RemoteClient getClient() {
+		return client;
+	}
+	
+	OutboundQueue getOutboundQueue() {
+		return outbound;
+	}
+	
+	/**
+	 * @return Number of packets waiting to be sent to this user.
+	 */
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+	
+	/**
+	 * Runs the <code>task</code> after handlers of the packets received
+	 * so far, on the thread that runs them.
+	 */
+	void execute(Runnable task) {
+		if (mailbox != null) {
+			mailbox.post(task);
+		} else {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Queues the <code>packet</code> to be sent to this user.
+	 * 
+	 * @return <code>false</code> if the packet was dropped because
+	 * this user's outbound queue is full.
+	 */
+	public boolean send(ChatPacket packet) {
+		return server.getBroadcaster().send(this, PacketFrame.encode(packet));
+	}
+	
+	void handlePacket(Object data) {
+		if (disconnected) {
+			return;
+		}
+		
+		lastActivity = IdleReaper.now();
+		server.getMetrics().packetReceived();
+		
+		if (data instanceof PacketFrame) {
+			try {
+				data = ((PacketFrame) data).getPacket();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "cannot decode packet frame", e);
+				return;
+			}
+		}
+		
 		if (!(data instanceof ChatPacket)) {
 			return;
 		}
 		
-		Class dataClass = data.getClass();
+		final ChatPacket packet = (ChatPacket) data;
+		final PacketHandler handler = server.handlers.getHandler(packet.getPacketType());
 		
-		if (dataClass == UserRegisterRequest.class) {
-			handleUserRegisterRequest((UserRegisterRequest) data);
-		} 
+		if (handler != null) {
+			handler.handlePacket(this, packet);
+		}
 	}
 
-	private void handleUserRegisterRequest(UserRegisterRequest data) {
+	void handleUserRegisterRequest(UserRegisterRequest data) {
 		
 		final String wantedName = data.getName();
-		boolean found = false;
-
-		try {
-			
-			// TODO: Do the version check
-			
-			// check if name is legal
-			if (!wantedName.matches(NAME_EXPRESSION)) {
-				client.send(
-						new UserRegisterResponse(
-								false,
-								RegisterRejectReason.IllegalUserName
-						)
-				);
+		
+		// TODO: Do the version check
+		
+		// check if name is legal
+		if (!server.getNameValidator().isValid(wantedName)) {
+			send(
+					new UserRegisterResponse(
+							data.getRequestId(),
+							false,
+							RegisterRejectReason.IllegalUserName
+					)
+			);
+			return;
+		}
+		
+		final Cluster cluster = server.getCluster();
+		
+		// claim the name
+		if ((cluster != null && cluster.isRegisteredElsewhere(wantedName))
+				|| !server.names.claim(wantedName, this)) {
+			// name already in use
+			send(
+					new UserRegisterResponse(
+							data.getRequestId(),
+							false,
+							RegisterRejectReason.UserNameAlreadyInUse
+					)
+			);
+			return;
+		}
+		
+		// accept
+		final String oldName = name;
+		name = wantedName;
+		
+		if (oldName != null && !oldName.equals(wantedName)) {
+			server.names.release(oldName, this);
+			
+			if (cluster != null) {
+				cluster.userLeft(oldName);
+			}
+		}
+		
+		final Symbol oldSymbol = symbol;
+		
+		if (oldSymbol == null || !oldSymbol.name.equals(wantedName)) {
+			symbol = server.symbols.add(wantedName, this);
+			
+			if (oldSymbol != null) {
+				server.symbols.remove(oldSymbol);
+			}
+		}
+		
+		if (data.isCompact() && symbolCache == null) {
+			symbolCache = new Symbol[SymbolPacket.CACHE_SIZE];
+		}
+		
+		if (disconnected) {
+			// gone in the meantime, don't hold the name
+			server.names.release(wantedName, this);
+			server.symbols.remove(symbol);
+			return;
+		}
+		
+		if (cluster != null && !wantedName.equals(oldName)) {
+			cluster.userRegistered(wantedName);
+		}
+		
+		send(
+				new UserRegisterResponse(
+						data.getRequestId(),
+						true,
+						(byte) 0
+				)
+		);
+		
+		server.deliverOffline(this);
+	}
+	
+	void handleGroupJoinRequest(GroupJoinRequest data) {
+		
+		final String groupName = data.getGroupName();
+		
+		if (name == null) {
+			send(new GroupJoinResponse(data.getRequestId(), false, GroupRejectReason.NotRegistered));
+			return;
+		}
+		
+		if (!server.getNameValidator().isValid(groupName)) {
+			send(new GroupJoinResponse(data.getRequestId(), false, GroupRejectReason.IllegalGroupName));
+			return;
+		}
+		
+		final int groupId;
+		
+		synchronized (groupNames) {
+			if (disconnected) {
+				return;
+			}
+			
+			if (!server.groups.join(groupName, this)) {
+				send(new GroupJoinResponse(data.getRequestId(), false, GroupRejectReason.AlreadyMember));
+				return;
+			}
+			
+			groupNames.add(groupName);
+			groupId = server.getGroup(groupName).getSymbolId();
+		}
+		
+		send(new GroupJoinResponse(data.getRequestId(), groupId));
+	}
+	
+	void handleGroupLeaveRequest(GroupLeaveRequest data) {
+		
+		final String groupName = data.getGroupName();
+		
+		synchronized (groupNames) {
+			if (!server.groups.leave(groupName, this)) {
+				send(new GroupLeaveResponse(data.getRequestId(), false, GroupRejectReason.NotMember));
 				return;
 			}
 			
-			// check if name is free
-			synchronized (server.users) {
-				for (Iterator itor = server.users.values().iterator(); itor.hasNext(); ) {
-					User user = (User) itor.next();
+			groupNames.remove(groupName);
+		}
+		
+		send(new GroupLeaveResponse(data.getRequestId(), true, (byte) 0));
+	}
+	
+	void handleGroupHistoryRequest(GroupHistoryRequest data) {
+		
+		final Group group = server.getGroup(data.getGroupName());
+		
+		if (group == null || !isMemberOf(group.getName())) {
+			send(new GroupHistoryResponse(data.getRequestId(), false, GroupRejectReason.NotMember));
+			return;
+		}
+		
+		send(new GroupHistoryResponse(data.getRequestId(), group.getHistory().getRecent(data.getCount())));
+	}
+	
+	void handlePingPacket(PingPacket data) {
+		send(new PongPacket(data.getTimestamp()));
+	}
+	
+	void handleMessagePacket(MessagePacket data) {
+		route(data, null);
+	}
+	
+	void handleCompactMessagePacket(CompactMessagePacket data) {
+		final Object target = server.symbols.lookup(data.getReceiverId());
+		final String receiverName;
+		
+		switch (data.getMessageType()) {
+			case MessageType.Public:
+				receiverName = "";
+				break;
+				
+			case MessageType.Group:
+				if (!(target instanceof Group)) {
+					return;
+				}
+				
+				receiverName = ((Group) target).getName();
+				break;
+				
+			case MessageType.Private:
+				if (!(target instanceof User)) {
+					return;
+				}
+				
+				receiverName = ((User) target).getName();
+				break;
+				
+			default:
+				return;
+		}
+		
+		route(new MessagePacket(data.getMessageType(), "", receiverName, data.getMessage()), target);
+	}
+	
+	/**
+	 * Delivers a message from this user.
+	 * 
+	 * @param target Receiving group or user if already known,
+	 * otherwise it's looked up by name.
+	 */
+	private void route(final MessagePacket data, Object target) {
+		
+		final String senderName = name;
+		
+		if (senderName == null) {
+			// not registered yet
+			return;
+		}
+		
+		server.getMetrics().messageReceived();
+		
+		if (!checkRate(rateLimiter, MessageRejectReason.UserRateExceeded, data)) {
+			return;
+		}
+		
+		if (!checkRate(server.getGlobalRateLimiter(), MessageRejectReason.ServerRateExceeded, data)) {
+			// the message was not sent, so it doesn't count for the user
+			if (rateLimiter != null) {
+				rateLimiter.release();
+			}
+			return;
+		}
+		
+		// the sender name always comes from the server
+		final MessagePacket message = new MessagePacket(
+				data.getMessageType(),
+				senderName,
+				data.getReceiverName(),
+				data.getMessage()
+		);
+		
+		final PacketFrame frame = PacketFrame.encode(message);
+		
+		switch (message.getMessageType()) {
+			case MessageType.Public:
+				server.logMessage(message, frame);
+				deliver(server.getUsers(), message, frame, null);
+				
+				final Cluster cluster = server.getCluster();
+				
+				if (cluster != null) {
+					cluster.relayPublic(frame);
+				}
+				break;
+				
+			case MessageType.Group:
+				final Group group = target != null ? (Group) target : server.getGroup(message.getReceiverName());
+				
+				if (group != null && isMemberOf(group.getName())) {
 					
-					if (wantedName.equals(((User)user).name)) {
-						found = true;
-						break;
-					}
+					// in the group's order, which all members see
+					final boolean queued = group.offer(new Runnable() {
+						public void run() {
+							deliverToGroup(group, data, message, frame);
+						}
+					});
 					
+					if (!queued) {
+						releaseTokens();
+						reject(MessageRejectReason.GroupBusy, data);
+					}
 				}
+				break;
 				
-				if (found) {
-					// name already in use
-					client.send(
-							new UserRegisterResponse(
-									false,
-									RegisterRejectReason.UserNameAlreadyInUse
-							)
-					);
+			case MessageType.Private:
+				final User receiver = target != null ? (User) target : server.getUser(message.getReceiverName());
+				
+				server.logMessage(message, frame);
+				
+				if (receiver != null) {
+					deliver(new User[] { receiver }, message, frame, receiver.symbol);
+				} else if (server.getCluster() == null
+						|| !server.getCluster().relayPrivate(message.getReceiverName(), frame)) {
+					server.storeOffline(message, frame);
+				}
+				break;
+				
+			default:
+				// users cannot send system messages
+		}
+	}
+	
+	private void deliverToGroup(final Group group, MessagePacket data, final MessagePacket message, final PacketFrame frame) {
+		if (!checkRate(group.getRateLimiter(), MessageRejectReason.GroupRateExceeded, data)) {
+			releaseTokens();
+			return;
+		}
+		
+		// filled from the log before this message gets there
+		final MessageHistory history = group.getHistory();
+		
+		final Cluster cluster = server.getCluster();
+		
+		if (cluster == null) {
+			server.logMessage(message, frame);
+			history.add(frame);
+			deliver(group.getMembers(), message, frame, group.symbol);
+			return;
+		}
+		
+		// in the owner's order, which members and logs on all nodes see
+		cluster.publish(group.getName(), frame, new Runnable() {
+			public void run() {
+				server.logMessage(message, frame);
+				history.add(frame);
+				deliver(group.getMembers(), message, frame, group.symbol);
+			}
+		});
+	}
+	
+	/**
+	 * Queues the <code>message</code> for the <code>recipients</code>.
+	 * Those that asked for compact messages get a {@link CompactMessagePacket},
+	 * the others get the <code>frame</code>. Both are encoded once.
+	 * 
+	 * @param receiverSymbol Symbol of the receiver, <code>null</code>
+	 * for public messages.
+	 */
+	private void deliver(User[] recipients, MessagePacket message, PacketFrame frame, Symbol receiverSymbol) {
+		final Broadcaster broadcaster = server.getBroadcaster();
+		final Symbol senderSymbol = symbol;
+		PacketFrame compact = null;
+		
+		for (int i = 0; i < recipients.length; ++i) {
+			final User recipient = recipients[i];
+			
+			if (recipient.symbolCache == null || senderSymbol == null) {
+				broadcaster.send(recipient, frame);
+				continue;
+			}
+			
+			if (compact == null) {
+				compact = PacketFrame.encode(new CompactMessagePacket(
+						message.getMessageType(),
+						senderSymbol.id,
+						receiverSymbol != null ? receiverSymbol.id : 0,
+						message.getMessage()
+				));
+			}
+			
+			recipient.sendCompact(compact, frame, senderSymbol, receiverSymbol);
+		}
+	}
+	
+	/**
+	 * Queues the <code>compact</code> message after the definitions of its
+	 * symbols that aren't in the client's cache. Queues the full
+	 * <code>frame</code> instead if both symbols need the same cache slot.
+	 * <p>
+	 * Runs on the sender's thread, not in this user's mailbox, so
+	 * messages from different groups and senders contend on the cache.
+	 * The lock is held only for two slot checks and the queueing.
+	 */
+	private void sendCompact(PacketFrame compact, PacketFrame frame, Symbol sender, Symbol receiver) {
+		final Symbol[] cache = symbolCache;
+		
+		// the cache must change in the same order as the client's
+		synchronized (cache) {
+			if (receiver != null && receiver != sender
+					&& SymbolPacket.slot(receiver.id) == SymbolPacket.slot(sender.id)) {
+				server.getBroadcaster().send(this, frame);
+				return;
+			}
+			
+			if (define(cache, sender) && (receiver == null || define(cache, receiver))) {
+				server.getBroadcaster().send(this, compact);
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure that the client's cache has the <code>symbol</code>.
+	 * 
+	 * @return <code>false</code> if the definition was dropped.
+	 */
+	private boolean define(Symbol[] cache, Symbol symbol) {
+		final int slot = SymbolPacket.slot(symbol.id);
+		
+		if (cache[slot] == symbol) {
+			return true;
+		}
+		
+		if (!server.getBroadcaster().send(this, symbol.definition)) {
+			// the client's slot holds something else
+			cache[slot] = null;
+			return false;
+		}
+		
+		cache[slot] = symbol;
+		return true;
+	}
+	
+	/**
+	 * Takes a token from the <code>limiter</code>, if there is one.
+	 * If there's no token the <code>message</code> is rejected
+	 * for the given <code>reason</code>.
+	 * 
+	 * @return <code>false</code> if rejected.
+	 */
+	private boolean checkRate(TokenBucket limiter, byte reason, MessagePacket message) {
+		if (limiter == null || limiter.tryAcquire()) {
+			return true;
+		}
+		
+		reject(reason, message);
+		return false;
+	}
+	
+	/**
+	 * Gives back the tokens that a message which wasn't sent took from
+	 * the limit of this user and the limit of the server.
+	 */
+	private void releaseTokens() {
+		final TokenBucket globalRateLimiter = server.getGlobalRateLimiter();
+		
+		if (rateLimiter != null) {
+			rateLimiter.release();
+		}
+		
+		if (globalRateLimiter != null) {
+			globalRateLimiter.release();
+		}
+	}
+	
+	private void reject(byte reason, MessagePacket message) {
+		server.getMetrics().messageRejected();
+		send(new MessageRejectedPacket(reason, message.getMessageType(), message.getReceiverName()));
+	}
+	
+	void handleTransferStart(TransferStartPacket data) {
+		
+		if (name == null) {
+			// not registered yet
+			return;
+		}
+		
+		final TokenBucket globalRateLimiter = server.getGlobalRateLimiter();
+		
+		if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+			abortTransfer(data.getTransferId(), TransferAbortReason.RateExceeded);
+			return;
+		}
+		
+		if (globalRateLimiter != null && !globalRateLimiter.tryAcquire()) {
+			if (rateLimiter != null) {
+				rateLimiter.release();
+			}
+			
+			abortTransfer(data.getTransferId(), TransferAbortReason.RateExceeded);
+			return;
+		}
+		
+		final User[] receivers;
+		
+		switch (data.getMessageType()) {
+			case MessageType.Public:
+				receivers = others(server.getUsers());
+				break;
+				
+			case MessageType.Group:
+				final Group group = server.getGroup(data.getReceiverName());
+				
+				if (group == null || !isMemberOf(group.getName())) {
+					abortTransfer(data.getTransferId(), TransferAbortReason.NoReceiver);
+					return;
+				}
+				
+				final TokenBucket groupRateLimiter = group.getRateLimiter();
+				
+				if (groupRateLimiter != null && !groupRateLimiter.tryAcquire()) {
+					abortTransfer(data.getTransferId(), TransferAbortReason.RateExceeded);
 					return;
 				}
 				
-				// accept
-				name = wantedName;
+				receivers = others(group.getMembers());
+				break;
+				
+			case MessageType.Private:
+				final User receiver = server.getUser(data.getReceiverName());
 				
-				client.send(
-						new UserRegisterResponse(
-								true,
-								(byte) 0
-						)
-				);
+				if (receiver == null) {
+					abortTransfer(data.getTransferId(), TransferAbortReason.NoReceiver);
+					return;
+				}
+				
+				receivers = new User[] { receiver };
+				break;
+				
+			default:
+				abortTransfer(data.getTransferId(), TransferAbortReason.ProtocolViolation);
+				return;
+		}
+		
+		final Transfer transfer = new Transfer(server, this, data.getTransferId(), receivers);
+		final Integer key = new Integer(data.getTransferId());
+		
+		synchronized (transfers) {
+			if (disconnected) {
+				// handleDisconnected() has aborted the others already
+				return;
+			}
+			
+			if (transfers.containsKey(key)) {
+				abortTransfer(data.getTransferId(), TransferAbortReason.ProtocolViolation);
+				return;
+			}
+			
+			if (transfers.size() >= Transfer.MAX_PER_USER) {
+				abortTransfer(data.getTransferId(), TransferAbortReason.TooManyTransfers);
+				return;
+			}
+			
+			transfers.put(key, transfer);
+		}
+		
+		transfer.start(data);
+	}
+	
+	void handleTransferChunk(TransferChunkPacket data) {
+		final Integer key = new Integer(data.getTransferId());
+		final Transfer transfer;
+		
+		synchronized (transfers) {
+			transfer = (Transfer) transfers.get(key);
+		}
+		
+		if (transfer == null) {
+			// unknown or already aborted, abort again to be sure
+			abortTransfer(data.getTransferId(), TransferAbortReason.ProtocolViolation);
+			return;
+		}
+		
+		if (!transfer.relay(data)) {
+			removeTransfer(key);
+			transfer.abort(TransferAbortReason.ProtocolViolation);
+			abortTransfer(data.getTransferId(), TransferAbortReason.ProtocolViolation);
+		} else if (data.isLast()) {
+			removeTransfer(key);
+		}
+	}
+	
+	void handleTransferAbort(TransferAbortPacket data) {
+		final Transfer transfer = removeTransfer(new Integer(data.getTransferId()));
+		
+		if (transfer != null) {
+			transfer.abort(TransferAbortReason.Cancelled);
+		}
+	}
+	
+	private Transfer removeTransfer(Integer key) {
+		synchronized (transfers) {
+			return (Transfer) transfers.remove(key);
+		}
+	}
+	
+	/**
+	 * Tells this user that its transfer cannot go on.
+	 */
+	private void abortTransfer(int transferId, byte reason) {
+		send(new TransferAbortPacket(transferId, name, true, reason));
+	}
+	
+	/**
+	 * @return The <code>users</code> without this one.
+	 */
+	private User[] others(User[] users) {
+		for (int i = 0; i < users.length; ++i) {
+			if (users[i] == this) {
+				final User[] result = new User[users.length - 1];
+				
+				System.arraycopy(users, 0, result, 0, i);
+				System.arraycopy(users, i + 1, result, i, result.length - i);
+				
+				return result;
 			}
+		}
+		
+		return users;
+	}
+	
+	/**
+	 * Releases everything this user holds on the server: the packet
+	 * listener, the name, group memberships, transfers and queued packets.
+	 * Remaining members of left groups get a system message about it.
+	 */
+	void handleDisconnected() {
+		disconnected = true;
+		
+		server.reaper.remove(this);
+		
+		if (client != null) {
+			client.removePacketListener(packetListener);
+		}
+		
+		outbound.clear();
+		
+		final Transfer[] abortedTransfers;
+		
+		synchronized (transfers) {
+			abortedTransfers = (Transfer[]) transfers.values().toArray(new Transfer[transfers.size()]);
+			transfers.clear();
+		}
+		
+		for (int i = 0; i < abortedTransfers.length; ++i) {
+			abortedTransfers[i].abort(TransferAbortReason.SenderLeft);
+		}
+		
+		final String userName = name;
+		
+		if (userName != null) {
+			server.names.release(userName, this);
 			
-		} catch (NotSerializableException e) {
-			e.printStackTrace();
-		} catch (NetworkException e) {
-			// disconnected? I cannot do anything about it
+			final Cluster cluster = server.getCluster();
+			
+			if (cluster != null) {
+				cluster.userLeft(userName);
+			}
 		}
+		
+		final Symbol userSymbol = symbol;
+		
+		if (userSymbol != null) {
+			server.symbols.remove(userSymbol);
+		}
+		
+		final String[] leftGroups;
+		
+		synchronized (groupNames) {
+			leftGroups = (String[]) groupNames.toArray(new String[groupNames.size()]);
+			groupNames.clear();
+			
+			for (int i = 0; i < leftGroups.length; ++i) {
+				server.groups.leave(leftGroups[i], this);
+			}
+		}
+		
+		for (int i = 0; i < leftGroups.length; ++i) {
+			final Group group = server.getGroup(leftGroups[i]);
+			
+			if (group != null) {
+				broadcast(group.getMembers(), new MessagePacket(
+						MessageType.System,
+						userName,
+						leftGroups[i],
+						userName + " has left"
+				));
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if this user has disconnected.
+	 */
+	public boolean isDisconnected() {
+		return disconnected;
+	}
+	
+	/**
+	 * Encodes the <code>packet</code> once and queues the encoded
+	 * frame for all <code>recipients</code>.
+	 */
+	private void broadcast(User[] recipients, ChatPacket packet) {
+		server.getBroadcaster().broadcast(recipients, PacketFrame.encode(packet));
 	}
 
 }
@@ -0,0 +1,469 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Append-only log of chat messages.
+ * <p>
+ * Every record keeps a timestamp, a tag and a key chosen by the caller
+ * (the chat server uses the message type and the receiver name) and the
+ * encoded message. Records are appended to memory-mapped segment files
+ * of fixed size in the log directory; a full segment is followed by a new
+ * one. Segments keep a sparse index of their blocks by timestamp with a
+ * Bloom filter of keys, so finding messages of one group skips the blocks
+ * that don't mention it. See {@link Segment} for the file layout.
+ * <p>
+ * Reading doesn't lock nor copy: scans hand out views of the mapped
+ * files and {@link #export(long, WritableByteChannel)} writes them
+ * straight to a channel. Appends are serialized.
+ * <p>
+ * Timestamps never go back: a record older than the last one gets the
+ * timestamp of the last one. Old segments can be removed by deleting
+ * their <code>.log</code> and <code>.idx</code> files while the log is
+ * closed.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class MessageLog {
+	
+	/** Default size of a segment file */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	/** Directory of segment files */
+	private final File directory;
+	/** Size of new segment files */
+	private final int segmentSize;
+	/** Segments, oldest first. Replaced on change. */
+	private volatile Segment[] segments;
+	/** Timestamp of the last record */
+	private long lastTimestamp;
+	/** Log state */
+	private boolean closed;
+	
+	public MessageLog(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Opens the log in <code>directory</code>, creating it if needed.
+	 * Existing segments are kept with their size.
+	 */
+	public MessageLog(File directory, int segmentSize) throws IOException {
+		if (segmentSize < Segment.BLOCK_SIZE) {
+			throw new IllegalArgumentException("segmentSize must be at least " + Segment.BLOCK_SIZE);
+		}
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create log directory " + directory);
+		}
+		
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		
+		final String[] names = directory.list();
+		final long[] numbers = new long[names.length];
+		int count = 0;
+		
+		for (int i = 0; i < names.length; ++i) {
+			if (names[i].length() == 24 && names[i].endsWith(".log")) {
+				try {
+					numbers[count] = Long.parseLong(names[i].substring(0, 20));
+					++count;
+				} catch (NumberFormatException e) {
+					// not ours
+				}
+			}
+		}
+		
+		Arrays.sort(numbers, 0, count);
+		
+		final Segment[] opened = new Segment[Math.max(count, 1)];
+		
+		for (int i = 0; i < count; ++i) {
+			opened[i] = new Segment(directory, numbers[i], segmentSize);
+			
+			if (i < count - 1) {
+				// full already, only read from now on
+				opened[i].close();
+			}
+		}
+		
+		if (count == 0) {
+			opened[0] = new Segment(directory, 0, segmentSize);
+		}
+		
+		segments = opened;
+		lastTimestamp = opened[opened.length - 1].getLastTimestamp();
+	}
+	
+	/**
+	 * Appends a record with whole <code>data</code>.
+	 * 
+	 * @see #append(long, byte, String, byte[], int, int)
+	 */
+	public void append(long timestamp, byte tag, String key, byte[] data) throws IOException {
+		append(timestamp, tag, key, data, 0, data.length);
+	}
+	
+	/**
+	 * Appends a record.
+	 * 
+	 * @param key Key of the record, up to 65535 bytes of UTF-8.
+	 * @throws IOException When the record is bigger than a segment
+	 * or the segment cannot be created.
+	 */
+	public synchronized void append(long timestamp, byte tag, String key, byte[] data, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("log is closed");
+		}
+		
+		final byte[] keyBytes = encodeKey(key);
+		
+		if (keyBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("key too long");
+		}
+		
+		if (timestamp < lastTimestamp) {
+			timestamp = lastTimestamp;
+		}
+		
+		Segment segment = segments[segments.length - 1];
+		
+		if (!segment.fits(keyBytes.length, length)) {
+			if (Segment.HEADER_SIZE + keyBytes.length + length > segmentSize) {
+				throw new IOException("record of " + length + " bytes doesn't fit in a segment");
+			}
+			
+			segment = roll(segment);
+		}
+		
+		segment.append(timestamp, tag, keyBytes, data, offset, length);
+		lastTimestamp = timestamp;
+	}
+	
+	private Segment roll(Segment full) throws IOException {
+		final Segment next = new Segment(directory, full.number + 1, segmentSize);
+		final Segment[] current = segments;
+		final Segment[] changed = new Segment[current.length + 1];
+		
+		System.arraycopy(current, 0, changed, 0, current.length);
+		changed[current.length] = next;
+		
+		// readers keep using the mapping of the full one
+		full.close();
+		segments = changed;
+		
+		return next;
+	}
+	
+	/**
+	 * Visits all records not older than <code>fromTimestamp</code>.
+	 */
+	public void scan(long fromTimestamp, RecordVisitor visitor) {
+		scan(fromTimestamp, false, (byte) 0, null, null, visitor);
+	}
+	
+	/**
+	 * Visits the records of given <code>tag</code> and <code>key</code>
+	 * that are not older than <code>fromTimestamp</code>.
+	 */
+	public void scan(long fromTimestamp, byte tag, String key, RecordVisitor visitor) {
+		scan(fromTimestamp, true, tag, key, encodeKey(key), visitor);
+	}
+	
+	private void scan(long from, boolean filtered, byte tag, String key, byte[] keyBytes, RecordVisitor visitor) {
+		final Segment[] segments = this.segments;
+		final int hash = filtered ? Segment.bloomHash(tag, keyBytes) : 0;
+		
+		for (int s = 0; s < segments.length; ++s) {
+			if (s + 1 < segments.length && firstTimestamp(segments[s + 1]) < from) {
+				// all records of this segment are older
+				continue;
+			}
+			
+			final Segment segment = segments[s];
+			final int end = segment.getEnd();
+			final int blocks = segment.getBlockCount();
+			final ByteBuffer view = segment.view();
+			
+			for (int b = findBlock(segment, blocks, from); b < blocks; ++b) {
+				final int position = segment.getBlockPosition(b);
+				
+				if (position >= end) {
+					break;
+				}
+				
+				if (filtered && !segment.mayContain(b, hash)) {
+					continue;
+				}
+				
+				final int blockEnd = b + 1 < blocks ? Math.min(segment.getBlockPosition(b + 1), end) : end;
+				
+				if (!scanBlock(view, position, blockEnd, from, filtered, tag, key, keyBytes, visitor)) {
+					return;
+				}
+			}
+		}
+	}
+	
+	private static long firstTimestamp(Segment segment) {
+		return segment.getEnd() > 0 ? segment.getBlockTimestamp(0) : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * @return Index of the first block that may hold records not older
+	 * than <code>from</code>.
+	 */
+	private static int findBlock(Segment segment, int blocks, long from) {
+		int low = 0;
+		int high = blocks - 1;
+		int found = 0;
+		
+		// last block that starts before from
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			
+			if (segment.getBlockTimestamp(middle) < from) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		
+		return found;
+	}
+	
+	private static boolean scanBlock(ByteBuffer view, int position, int end, long from,
+			boolean filtered, byte tag, String key, byte[] keyBytes, RecordVisitor visitor) {
+		
+		while (position < end) {
+			final int length = view.getInt(position);
+			final long timestamp = view.getLong(position + 4);
+			final byte recordTag = view.get(position + 12);
+			final int keyLength = view.getShort(position + 13) & 0xFFFF;
+			final int keyPosition = position + Segment.HEADER_SIZE;
+			final int next = position + 4 + length;
+			
+			if (timestamp >= from
+					&& (!filtered || (recordTag == tag && keyEquals(view, keyPosition, keyLength, keyBytes)))) {
+				
+				final String recordKey = filtered ? key : decodeKey(view, keyPosition, keyLength);
+				
+				if (!visitor.visit(timestamp, recordTag, recordKey, slice(view, keyPosition + keyLength, next))) {
+					return false;
+				}
+			}
+			
+			position = next;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Provides up to <code>count</code> newest records of given
+	 * <code>tag</code> and <code>key</code>. Blocks are searched from the
+	 * newest one, so it costs only as much as the records wanted.
+	 * 
+	 * @return Data of records, oldest first.
+	 */
+	public byte[][] readRecent(byte tag, String key, int count) {
+		final Segment[] segments = this.segments;
+		final byte[] keyBytes = encodeKey(key);
+		final int hash = Segment.bloomHash(tag, keyBytes);
+		final LinkedList found = new LinkedList();
+		
+		for (int s = segments.length - 1; s >= 0 && found.size() < count; --s) {
+			final Segment segment = segments[s];
+			final int end = segment.getEnd();
+			final int blocks = segment.getBlockCount();
+			final ByteBuffer view = segment.view();
+			
+			for (int b = blocks - 1; b >= 0 && found.size() < count; --b) {
+				final int position = segment.getBlockPosition(b);
+				
+				if (position >= end || !segment.mayContain(b, hash)) {
+					continue;
+				}
+				
+				final int blockEnd = b + 1 < blocks ? Math.min(segment.getBlockPosition(b + 1), end) : end;
+				final List block = new ArrayList();
+				
+				scanBlock(view, position, blockEnd, Long.MIN_VALUE, true, tag, key, keyBytes, new RecordVisitor() {
+					public boolean visit(long timestamp, byte recordTag, String recordKey, ByteBuffer data) {
+						final byte[] copy = new byte[data.remaining()];
+						data.get(copy);
+						block.add(copy);
+						return true;
+					}
+				});
+				
+				found.addAll(0, block);
+			}
+		}
+		
+		while (found.size() > count) {
+			found.removeFirst();
+		}
+		
+		return (byte[][]) found.toArray(new byte[found.size()][]);
+	}
+	
+	/**
+	 * Writes records not older than <code>fromTimestamp</code> to the
+	 * <code>channel</code> as they are in the segment files, straight
+	 * from the mapped memory.
+	 * 
+	 * @return Number of bytes written.
+	 */
+	public long export(long fromTimestamp, WritableByteChannel channel) throws IOException {
+		final Segment[] segments = this.segments;
+		long written = 0;
+		
+		for (int s = 0; s < segments.length; ++s) {
+			if (s + 1 < segments.length && firstTimestamp(segments[s + 1]) < fromTimestamp) {
+				continue;
+			}
+			
+			final Segment segment = segments[s];
+			final int end = segment.getEnd();
+			final int blocks = segment.getBlockCount();
+			final ByteBuffer view = segment.view();
+			
+			if (blocks == 0) {
+				continue;
+			}
+			
+			int position = segment.getBlockPosition(findBlock(segment, blocks, fromTimestamp));
+			
+			// skip older records of the first block
+			while (position < end && view.getLong(position + 4) < fromTimestamp) {
+				position += 4 + view.getInt(position);
+			}
+			
+			if (position >= end) {
+				continue;
+			}
+			
+			final ByteBuffer records = slice(view, position, end);
+			
+			while (records.hasRemaining()) {
+				written += channel.write(records);
+			}
+		}
+		
+		return written;
+	}
+	
+	private static ByteBuffer slice(ByteBuffer view, int position, int end) {
+		final ByteBuffer slice = view.duplicate();
+		
+		slice.limit(end);
+		slice.position(position);
+		
+		return slice.slice();
+	}
+	
+	private static boolean keyEquals(ByteBuffer view, int position, int length, byte[] key) {
+		if (length != key.length) {
+			return false;
+		}
+		
+		for (int i = 0; i < length; ++i) {
+			if (view.get(position + i) != key[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private static byte[] encodeKey(String key) {
+		try {
+			return key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+	
+	private static String decodeKey(ByteBuffer view, int position, int length) {
+		final byte[] key = new byte[length];
+		
+		for (int i = 0; i < length; ++i) {
+			key[i] = view.get(position + i);
+		}
+		
+		try {
+			return new String(key, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return Number of segment files.
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+	
+	/**
+	 * Writes appended records and the index to the disk.
+	 */
+	public synchronized void flush() throws IOException {
+		if (!closed) {
+			segments[segments.length - 1].force();
+		}
+	}
+	
+	/**
+	 * Flushes and closes the log. Mapped memory is released
+	 * when the log is garbage collected.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		
+		closed = true;
+		segments[segments.length - 1].close();
+	}
+}
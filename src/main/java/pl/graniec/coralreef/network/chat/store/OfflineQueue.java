@@ -0,0 +1,600 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * File-backed queue of messages for users that are offline.
+ * <p>
+ * Messages of all receivers are appended to one file. Records are
+ * <code>byte kind, short keyLength, key, int dataLength, data</code>;
+ * a message record carries the data, a delivered record carries the
+ * <code>int</code> number of the oldest messages of its key that were
+ * taken (all of them when it has no data). Positions of pending
+ * messages are kept in memory by receiver, so taking them reads only
+ * their bytes, in one read when they lie close together.
+ * <p>
+ * Messages can be taken in two steps: {@link #peek(String)} reads them
+ * and {@link #delivered(String, int)} drops them once they were sent,
+ * so a failed send leaves them queued.
+ * <p>
+ * Opening the queue replays the file. When most of the file is taken
+ * messages, the pending ones are copied to a new file that is renamed
+ * over it. Where a rename cannot replace a file the old one is deleted
+ * first; if the process dies in between, opening the queue finishes
+ * the rename.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class OfflineQueue {
+	
+	/** Default maximum of pending messages of one receiver */
+	public static final int DEFAULT_MAX_PENDING = 10000;
+	/** Default maximum of receivers with pending messages */
+	public static final int DEFAULT_MAX_RECEIVERS = 100000;
+	/** Default maximum of bytes of all pending messages */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	
+	private static final byte[][] NO_MESSAGES = new byte[0][];
+	
+	private static final byte MESSAGE = 1;
+	private static final byte DELIVERED = 2;
+	/** Size of the record header without the key */
+	private static final int HEADER_SIZE = 1 + 2 + 4;
+	/** Bytes of taken messages that make the file worth compacting */
+	private static final long COMPACT_THRESHOLD = 1024 * 1024;
+	/** Maximum size of one read of pending messages */
+	private static final int MAX_READ = 16 * 1024 * 1024;
+	
+	/**
+	 * Pending messages of one receiver.
+	 */
+	private static final class Pending {
+		
+		long[] positions = new long[4];
+		int[] lengths = new int[4];
+		int count;
+		long bytes;
+		
+		void add(long position, int length) {
+			if (count == positions.length) {
+				final long[] newPositions = new long[count * 2];
+				final int[] newLengths = new int[count * 2];
+				
+				System.arraycopy(positions, 0, newPositions, 0, count);
+				System.arraycopy(lengths, 0, newLengths, 0, count);
+				
+				positions = newPositions;
+				lengths = newLengths;
+			}
+			
+			positions[count] = position;
+			lengths[count] = length;
+			++count;
+			bytes += length;
+		}
+		
+		/**
+		 * Drops the <code>n</code> oldest messages.
+		 * 
+		 * @return Bytes of their data.
+		 */
+		long removeFirst(int n) {
+			long removed = 0;
+			
+			for (int i = 0; i < n; ++i) {
+				removed += lengths[i];
+			}
+			
+			System.arraycopy(positions, n, positions, 0, count - n);
+			System.arraycopy(lengths, n, lengths, 0, count - n);
+			count -= n;
+			bytes -= removed;
+			
+			return removed;
+		}
+	}
+	
+	/** Queue file */
+	private final File file;
+	/** Compacted file that replaces the queue file */
+	private final File compacted;
+	/** Open queue file */
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	/** End of the file */
+	private long size;
+	/** Bytes of records of pending messages */
+	private long liveBytes;
+	/** Pending messages: receiver => Pending */
+	private final Map pending = new HashMap();
+	/** Number of all pending messages */
+	private int pendingCount;
+	/** Maximum of pending messages of one receiver */
+	private int maxPending = DEFAULT_MAX_PENDING;
+	/** Maximum of receivers with pending messages */
+	private int maxReceivers = DEFAULT_MAX_RECEIVERS;
+	/** Maximum of bytes of all pending messages */
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	
+	/**
+	 * Opens the queue kept in <code>file</code>, creating it if needed.
+	 */
+	public OfflineQueue(File file) throws IOException {
+		this.file = file;
+		this.compacted = new File(file.getPath() + ".tmp");
+		
+		recover();
+		replay();
+		open();
+	}
+	
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		
+		// cut off a record torn by a crash
+		raf.setLength(size);
+	}
+	
+	/**
+	 * Finishes replacing the queue file with the compacted one, or drops
+	 * a compacted file that was not complete.
+	 */
+	private void recover() throws IOException {
+		if (!compacted.exists()) {
+			return;
+		}
+		
+		if (file.exists()) {
+			// the old file was not deleted yet, so the compaction did not finish
+			compacted.delete();
+		} else if (!compacted.renameTo(file)) {
+			throw new IOException("cannot rename " + compacted + " to " + file);
+		}
+	}
+	
+	private void replay() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		final long fileLength = file.length();
+		long position = 0;
+		
+		try {
+			while (true) {
+				final byte kind = in.readByte();
+				final byte[] key = new byte[in.readUnsignedShort()];
+				
+				in.readFully(key);
+				
+				final int length = in.readInt();
+				final long dataPosition = position + HEADER_SIZE + key.length;
+				
+				if (length < 0 || dataPosition + length > fileLength
+						|| (kind != MESSAGE && kind != DELIVERED)) {
+					break;
+				}
+				
+				final String receiver = new String(key, "UTF-8");
+				
+				if (kind == DELIVERED && length == 4) {
+					removeFirst(receiver, in.readInt());
+				} else if (in.skipBytes(length) != length) {
+					break;
+				} else if (kind == MESSAGE) {
+					pendingFor(receiver).add(dataPosition, length);
+					liveBytes += HEADER_SIZE + key.length + length;
+					++pendingCount;
+				} else {
+					remove(receiver);
+				}
+				
+				position = dataPosition + length;
+			}
+		} catch (EOFException e) {
+			// end of the file or a torn record
+		} finally {
+			in.close();
+		}
+		
+		size = position;
+	}
+	
+	private Pending pendingFor(String receiver) {
+		Pending messages = (Pending) pending.get(receiver);
+		
+		if (messages == null) {
+			messages = new Pending();
+			pending.put(receiver, messages);
+		}
+		
+		return messages;
+	}
+	
+	private Pending remove(String receiver) {
+		final Pending messages = (Pending) pending.remove(receiver);
+		
+		if (messages != null) {
+			liveBytes -= messages.count * (HEADER_SIZE + keyBytes(receiver).length) + messages.bytes;
+			pendingCount -= messages.count;
+		}
+		
+		return messages;
+	}
+	
+	private void removeFirst(String receiver, int n) {
+		final Pending messages = (Pending) pending.get(receiver);
+		
+		if (messages == null) {
+			return;
+		}
+		
+		if (n >= messages.count) {
+			remove(receiver);
+			return;
+		}
+		
+		liveBytes -= n * (HEADER_SIZE + keyBytes(receiver).length) + messages.removeFirst(n);
+		pendingCount -= n;
+	}
+	
+	private static byte[] keyBytes(String receiver) {
+		try {
+			return receiver.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Queues the message <code>data</code> for the <code>receiver</code>.
+	 * 
+	 * @return <code>false</code> if the receiver has too many
+	 * pending messages already, or the queue is full.
+	 */
+	public synchronized boolean offer(String receiver, byte[] data) throws IOException {
+		final byte[] key = keyBytes(receiver);
+		
+		if (key.length > 0xFFFF) {
+			throw new IllegalArgumentException("receiver name too long");
+		}
+		
+		Pending messages = (Pending) pending.get(receiver);
+		
+		if (messages == null ? pending.size() >= maxReceivers : messages.count >= maxPending) {
+			return false;
+		}
+		
+		if (liveBytes + HEADER_SIZE + key.length + data.length > maxBytes) {
+			return false;
+		}
+		
+		write(MESSAGE, key, data);
+		
+		if (messages == null) {
+			messages = pendingFor(receiver);
+		}
+		
+		messages.add(size - data.length, data.length);
+		liveBytes += HEADER_SIZE + key.length + data.length;
+		++pendingCount;
+		
+		return true;
+	}
+	
+	private void write(byte kind, byte[] key, byte[] data) throws IOException {
+		final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + data.length);
+		
+		record.put(kind);
+		record.putShort((short) key.length);
+		record.put(key);
+		record.putInt(data.length);
+		record.put(data);
+		record.flip();
+		
+		long position = size;
+		
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		
+		size = position;
+	}
+	
+	/**
+	 * Takes all pending messages of the <code>receiver</code>.
+	 * 
+	 * @return Data of messages, oldest first.
+	 */
+	public synchronized byte[][] take(String receiver) throws IOException {
+		final byte[][] result = peek(receiver);
+		
+		delivered(receiver, result.length);
+		
+		return result;
+	}
+	
+	/**
+	 * Reads all pending messages of the <code>receiver</code> without
+	 * taking them.
+	 * 
+	 * @return Data of messages, oldest first.
+	 */
+	public synchronized byte[][] peek(String receiver) throws IOException {
+		final Pending messages = (Pending) pending.get(receiver);
+		
+		if (messages == null) {
+			return NO_MESSAGES;
+		}
+		
+		return read(messages);
+	}
+	
+	/**
+	 * Takes the <code>count</code> oldest pending messages of the
+	 * <code>receiver</code>, after they were delivered.
+	 */
+	public synchronized void delivered(String receiver, int count) throws IOException {
+		if (count <= 0 || !pending.containsKey(receiver)) {
+			return;
+		}
+		
+		removeFirst(receiver, count);
+		write(DELIVERED, keyBytes(receiver), ByteBuffer.allocate(4).putInt(count).array());
+		
+		if (size - liveBytes > COMPACT_THRESHOLD && size - liveBytes > liveBytes) {
+			compact();
+		}
+	}
+	
+	private byte[][] read(Pending messages) throws IOException {
+		if (messages.count == 0) {
+			return NO_MESSAGES;
+		}
+		
+		final byte[][] result = new byte[messages.count][];
+		final long start = messages.positions[0];
+		final long end = messages.positions[messages.count - 1] + messages.lengths[messages.count - 1];
+		final long span = end - start;
+		
+		if (span <= MAX_READ && span <= Math.max(4 * messages.bytes, 65536)) {
+			// close together, read all at once
+			final ByteBuffer buffer = ByteBuffer.allocate((int) span);
+			readFully(buffer, start);
+			
+			for (int i = 0; i < messages.count; ++i) {
+				result[i] = new byte[messages.lengths[i]];
+				buffer.position((int) (messages.positions[i] - start));
+				buffer.get(result[i]);
+			}
+		} else {
+			for (int i = 0; i < messages.count; ++i) {
+				result[i] = new byte[messages.lengths[i]];
+				readFully(ByteBuffer.wrap(result[i]), messages.positions[i]);
+			}
+		}
+		
+		return result;
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+			
+			if (read < 0) {
+				throw new EOFException("queue file is truncated");
+			}
+			
+			position += read;
+		}
+		
+		buffer.flip();
+	}
+	
+	/**
+	 * Copies pending messages to a new file that replaces the current one.
+	 */
+	private void compact() throws IOException {
+		final RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+		final FileChannel targetChannel = target.getChannel();
+		final Map moved = new HashMap();
+		long position = 0;
+		
+		try {
+			target.setLength(0);
+			
+			for (Iterator i = pending.entrySet().iterator(); i.hasNext();) {
+				final Map.Entry entry = (Map.Entry) i.next();
+				final byte[] key = keyBytes((String) entry.getKey());
+				final Pending messages = (Pending) entry.getValue();
+				final byte[][] data = read(messages);
+				final Pending movedMessages = new Pending();
+				
+				for (int j = 0; j < data.length; ++j) {
+					final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + data[j].length);
+					
+					record.put(MESSAGE);
+					record.putShort((short) key.length);
+					record.put(key);
+					record.putInt(data[j].length);
+					record.put(data[j]);
+					record.flip();
+					
+					while (record.hasRemaining()) {
+						position += targetChannel.write(record, position);
+					}
+					
+					movedMessages.add(position - data[j].length, data[j].length);
+				}
+				
+				moved.put(entry.getKey(), movedMessages);
+			}
+			
+			targetChannel.force(false);
+		} catch (IOException e) {
+			target.close();
+			compacted.delete();
+			throw e;
+		}
+		
+		target.close();
+		raf.close();
+		
+		boolean replaced = false;
+		
+		try {
+			// replaces the old file at once where the platform allows it
+			replaced = compacted.renameTo(file);
+			
+			if (!replaced) {
+				if (!file.delete()) {
+					throw new IOException("cannot replace " + file + " with " + compacted);
+				}
+				
+				recover();
+				replaced = true;
+			}
+		} finally {
+			if (replaced) {
+				pending.clear();
+				pending.putAll(moved);
+				size = position;
+				liveBytes = position;
+			} else if (file.exists()) {
+				compacted.delete();
+			}
+			
+			// without the file the queue stays closed, opening it again recovers it
+			if (file.exists()) {
+				open();
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of pending messages of the <code>receiver</code>.
+	 */
+	public synchronized int getPendingCount(String receiver) {
+		final Pending messages = (Pending) pending.get(receiver);
+		return messages != null ? messages.count : 0;
+	}
+	
+	/**
+	 * @return Number of all pending messages.
+	 */
+	public synchronized int size() {
+		return pendingCount;
+	}
+	
+	/**
+	 * @return Maximum of pending messages of one receiver.
+	 */
+	public synchronized int getMaxPending() {
+		return maxPending;
+	}
+	
+	/**
+	 * Sets the maximum of pending messages of one receiver. Messages
+	 * over it are refused.
+	 */
+	public synchronized void setMaxPending(int maxPending) {
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("maxPending must be positive");
+		}
+		
+		this.maxPending = maxPending;
+	}
+	
+	/**
+	 * @return Maximum of receivers with pending messages.
+	 */
+	public synchronized int getMaxReceivers() {
+		return maxReceivers;
+	}
+	
+	/**
+	 * Sets the maximum of receivers with pending messages. Messages for
+	 * new receivers over it are refused.
+	 */
+	public synchronized void setMaxReceivers(int maxReceivers) {
+		if (maxReceivers <= 0) {
+			throw new IllegalArgumentException("maxReceivers must be positive");
+		}
+		
+		this.maxReceivers = maxReceivers;
+	}
+	
+	/**
+	 * @return Maximum of bytes of all pending messages.
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * Sets the maximum of bytes of all pending messages, counting their
+	 * records. Messages over it are refused.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Writes queued messages to the disk.
+	 */
+	public synchronized void flush() throws IOException {
+		channel.force(false);
+	}
+	
+	public synchronized void close() throws IOException {
+		channel.force(false);
+		raf.close();
+	}
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One memory-mapped file of the {@link MessageLog}.
+ * <p>
+ * Record layout: <code>int length, long timestamp, byte tag,
+ * short keyLength, key bytes, data bytes</code>, where the length counts
+ * everything after itself. The length is written last and a zero length
+ * marks the end of the segment, so a record torn by a crash is never
+ * read.
+ * <p>
+ * The segment is split into blocks of about {@link #BLOCK_SIZE} bytes.
+ * Every block has an index entry with the timestamp and position of its
+ * first record and a Bloom filter of the tags and keys of its records.
+ * Closed blocks are appended to an index file next to the segment so
+ * reopening the log scans only the last block.
+ * <p>
+ * Only one thread appends. Readers don't lock: everything they look at
+ * is published by the volatile {@link #end}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class Segment {
+	
+	/** Size of the record header without the key */
+	static final int HEADER_SIZE = 4 + 8 + 1 + 2;
+	/** Bytes between index entries */
+	static final int BLOCK_SIZE = 8192;
+	/** Longs of the Bloom filter of one block */
+	static final int BLOOM_LONGS = 4;
+	/** Size of an index entry in the index file */
+	private static final int INDEX_ENTRY_SIZE = 8 + 4 + BLOOM_LONGS * 8;
+	
+	/** Number of this segment, the position in the log */
+	final long number;
+	/** Log file */
+	final File file;
+	/** Index file */
+	final File indexFile;
+	/** Mapped file. Its position and limit are never changed. */
+	private final MappedByteBuffer buffer;
+	/** View of the buffer used for appending */
+	private final ByteBuffer writer;
+	/** Appended index entries */
+	private final RandomAccessFile index;
+	
+	/** Timestamps of first records of blocks */
+	private final long[] blockTimestamps;
+	/** Positions of blocks */
+	private final int[] blockPositions;
+	/** Bloom filters of blocks */
+	private final long[] blockBlooms;
+	/** Number of blocks */
+	private int blockCount;
+	/** Buffer of an index entry being saved */
+	private final byte[] indexEntry = new byte[INDEX_ENTRY_SIZE];
+	/** Number of blocks saved in the index file */
+	private int savedBlockCount;
+	/** Timestamp of the last record */
+	private long lastTimestamp = Long.MIN_VALUE;
+	
+	/** End of the last record */
+	private volatile int end;
+	
+	/**
+	 * Opens or creates the segment of given <code>number</code>
+	 * in <code>directory</code>.
+	 */
+	Segment(File directory, long number, int size) throws IOException {
+		this.number = number;
+		this.file = new File(directory, name(number) + ".log");
+		this.indexFile = new File(directory, name(number) + ".idx");
+		
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		
+		try {
+			if (raf.length() == 0) {
+				raf.setLength(size);
+			}
+			
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		
+		writer = buffer.duplicate();
+		
+		final int maxBlocks = buffer.capacity() / BLOCK_SIZE + 1;
+		
+		blockTimestamps = new long[maxBlocks];
+		blockPositions = new int[maxBlocks];
+		blockBlooms = new long[maxBlocks * BLOOM_LONGS];
+		
+		index = new RandomAccessFile(indexFile, "rw");
+		recover();
+	}
+	
+	private static String name(long number) {
+		final String digits = String.valueOf(number);
+		final StringBuffer name = new StringBuffer(20);
+		
+		for (int i = digits.length(); i < 20; ++i) {
+			name.append('0');
+		}
+		
+		return name.append(digits).toString();
+	}
+	
+	/**
+	 * Loads saved index entries and scans the records after them.
+	 */
+	private void recover() throws IOException {
+		final int saved = (int) Math.min(index.length() / INDEX_ENTRY_SIZE, blockTimestamps.length);
+		final byte[] entries = new byte[saved * INDEX_ENTRY_SIZE];
+		
+		index.seek(0);
+		index.readFully(entries);
+		
+		final ByteBuffer in = ByteBuffer.wrap(entries);
+		
+		for (int i = 0; i < saved; ++i) {
+			blockTimestamps[i] = in.getLong();
+			blockPositions[i] = in.getInt();
+			
+			for (int j = 0; j < BLOOM_LONGS; ++j) {
+				blockBlooms[i * BLOOM_LONGS + j] = in.getLong();
+			}
+		}
+		
+		// the last saved block is scanned again to find where it ends
+		int position = 0;
+		
+		if (saved > 0) {
+			blockCount = saved - 1;
+			position = blockPositions[blockCount];
+			lastTimestamp = blockTimestamps[blockCount];
+		}
+		
+		savedBlockCount = blockCount;
+		index.setLength((long) savedBlockCount * INDEX_ENTRY_SIZE);
+		
+		while (true) {
+			final int length = recordLength(position);
+			
+			if (length == -1) {
+				break;
+			}
+			
+			final long timestamp = buffer.getLong(position + 4);
+			final byte tag = buffer.get(position + 12);
+			final int keyLength = buffer.getShort(position + 13) & 0xFFFF;
+			final byte[] key = new byte[keyLength];
+			final ByteBuffer view = buffer.duplicate();
+			
+			view.position(position + HEADER_SIZE);
+			view.get(key);
+			
+			indexRecord(position, timestamp, bloomHash(tag, key));
+			position += 4 + length;
+		}
+		
+		end = position;
+		writer.position(position);
+	}
+	
+	/**
+	 * @return Length of the record at <code>position</code> or -1 if
+	 * there is no valid record.
+	 */
+	private int recordLength(int position) {
+		if (position + HEADER_SIZE > buffer.capacity()) {
+			return -1;
+		}
+		
+		final int length = buffer.getInt(position);
+		
+		if (length < HEADER_SIZE - 4 || length > buffer.capacity() - position - 4) {
+			return -1;
+		}
+		
+		final int keyLength = buffer.getShort(position + 13) & 0xFFFF;
+		
+		if (keyLength > length - (HEADER_SIZE - 4)) {
+			return -1;
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * Hash of a tag and key used by the Bloom filters.
+	 */
+	static int bloomHash(byte tag, byte[] key) {
+		int h = tag;
+		
+		for (int i = 0; i < key.length; ++i) {
+			h = 31 * h + key[i];
+		}
+		
+		h ^= (h >>> 16);
+		h *= 0x85EBCA6B;
+		h ^= (h >>> 13);
+		
+		return h;
+	}
+	
+	/**
+	 * @return <code>true</code> if the record fits in this segment.
+	 */
+	boolean fits(int keyLength, int dataLength) {
+		return (long) end + HEADER_SIZE + keyLength + dataLength <= buffer.capacity();
+	}
+	
+	/**
+	 * @return Timestamp of the last record, <code>Long.MIN_VALUE</code>
+	 * if empty.
+	 */
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+	
+	/**
+	 * Appends a record. The caller checks that it {@link #fits(int, int)}.
+	 */
+	void append(long timestamp, byte tag, byte[] key, byte[] data, int offset, int length) throws IOException {
+		final int position = end;
+		
+		writer.position(position + 4);
+		writer.putLong(timestamp);
+		writer.put(tag);
+		writer.putShort((short) key.length);
+		writer.put(key);
+		writer.put(data, offset, length);
+		
+		// the length commits the record
+		writer.putInt(position, HEADER_SIZE - 4 + key.length + length);
+		
+		indexRecord(position, timestamp, bloomHash(tag, key));
+		end = writer.position();
+	}
+	
+	private void indexRecord(int position, long timestamp, int hash) throws IOException {
+		if (blockCount == 0 || position - blockPositions[blockCount - 1] >= BLOCK_SIZE) {
+			if (blockCount > 0) {
+				saveBlock(blockCount - 1);
+			}
+			
+			blockTimestamps[blockCount] = timestamp;
+			blockPositions[blockCount] = position;
+			
+			for (int j = 0; j < BLOOM_LONGS; ++j) {
+				blockBlooms[blockCount * BLOOM_LONGS + j] = 0;
+			}
+			
+			++blockCount;
+		}
+		
+		final int bloom = (blockCount - 1) * BLOOM_LONGS;
+		final int bit1 = hash & (BLOOM_LONGS * 64 - 1);
+		final int bit2 = (hash >>> 8) & (BLOOM_LONGS * 64 - 1);
+		
+		blockBlooms[bloom + (bit1 >>> 6)] |= 1L << (bit1 & 63);
+		blockBlooms[bloom + (bit2 >>> 6)] |= 1L << (bit2 & 63);
+		
+		lastTimestamp = timestamp;
+	}
+	
+	private void saveBlock(int block) throws IOException {
+		if (block < savedBlockCount) {
+			return;
+		}
+		
+		final ByteBuffer entry = ByteBuffer.wrap(indexEntry);
+		
+		entry.putLong(blockTimestamps[block]);
+		entry.putInt(blockPositions[block]);
+		
+		for (int j = 0; j < BLOOM_LONGS; ++j) {
+			entry.putLong(blockBlooms[block * BLOOM_LONGS + j]);
+		}
+		
+		index.seek((long) block * INDEX_ENTRY_SIZE);
+		index.write(indexEntry);
+		
+		savedBlockCount = block + 1;
+	}
+	
+	/**
+	 * @return End of the last record. Reading it first makes the
+	 * records and index entries before it visible.
+	 */
+	int getEnd() {
+		return end;
+	}
+	
+	int getBlockCount() {
+		return blockCount;
+	}
+	
+	long getBlockTimestamp(int block) {
+		return blockTimestamps[block];
+	}
+	
+	int getBlockPosition(int block) {
+		return blockPositions[block];
+	}
+	
+	/**
+	 * @return <code>true</code> if the block may hold records
+	 * of given <code>hash</code>.
+	 */
+	boolean mayContain(int block, int hash) {
+		final int bloom = block * BLOOM_LONGS;
+		final int bit1 = hash & (BLOOM_LONGS * 64 - 1);
+		final int bit2 = (hash >>> 8) & (BLOOM_LONGS * 64 - 1);
+		
+		return (blockBlooms[bloom + (bit1 >>> 6)] & (1L << (bit1 & 63))) != 0
+			&& (blockBlooms[bloom + (bit2 >>> 6)] & (1L << (bit2 & 63))) != 0;
+	}
+	
+	/**
+	 * @return A new read-only view of the mapped file.
+	 */
+	ByteBuffer view() {
+		return buffer.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Writes the changes to the disk.
+	 */
+	void force() throws IOException {
+		buffer.force();
+		
+		if (blockCount > 0) {
+			saveBlock(blockCount - 1);
+			// the open block is saved again when it closes
+			--savedBlockCount;
+		}
+		
+		index.getFD().sync();
+	}
+	
+	void close() throws IOException {
+		if (blockCount > 0) {
+			saveBlock(blockCount - 1);
+		}
+		
+		buffer.force();
+		index.close();
+	}
+}
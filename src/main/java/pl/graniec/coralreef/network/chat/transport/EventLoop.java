@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread that serves many channels with one {@link Selector}.
+ * <p>
+ * Everything that touches the selector or the keys of this loop
+ * runs on its thread. Other threads hand work over with
+ * {@link #execute(Runnable)}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class EventLoop implements Runnable {
+	
+	/**
+	 * Attachment of the keys of an event loop.
+	 */
+	interface Handler {
+		
+		/**
+		 * Called when the <code>key</code> is ready.
+		 */
+		void handleReady(SelectionKey key);
+		
+		/**
+		 * Called when the loop stops with the key still registered.
+		 */
+		void handleLoopClosed();
+	}
+	
+	private static final Logger logger = Logger.getLogger(EventLoop.class.getName());
+	
+	/** Size of the read buffer shared by all channels of a loop */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private final Selector selector;
+	private final Thread thread;
+	/** Buffer for reading, used only by the loop thread */
+	final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	
+	/** Work from other threads */
+	private final LinkedList tasks = new LinkedList();
+	private volatile boolean running = true;
+	
+	EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+	}
+	
+	void start() {
+		thread.start();
+	}
+	
+	/**
+	 * Stops the loop and waits for it, unless called from the loop.
+	 */
+	void stop() {
+		running = false;
+		selector.wakeup();
+		
+		if (!inLoop()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if called from the thread of this loop.
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	Selector getSelector() {
+		return selector;
+	}
+	
+	/**
+	 * Runs the <code>task</code> on the thread of this loop. Tasks
+	 * submitted after the loop stopped are not run.
+	 */
+	void execute(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+		}
+		
+		selector.wakeup();
+	}
+	
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "select failed", e);
+				break;
+			}
+			
+			runTasks();
+			
+			final Iterator keys = selector.selectedKeys().iterator();
+			
+			while (keys.hasNext()) {
+				final SelectionKey key = (SelectionKey) keys.next();
+				keys.remove();
+				
+				if (!key.isValid()) {
+					continue;
+				}
+				
+				try {
+					((Handler) key.attachment()).handleReady(key);
+				} catch (CancelledKeyException e) {
+					// closed while handled
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "handler failed", e);
+				}
+			}
+		}
+		
+		runTasks();
+		
+		final Iterator keys = selector.keys().iterator();
+		
+		while (keys.hasNext()) {
+			final SelectionKey key = (SelectionKey) keys.next();
+			
+			if (key.isValid()) {
+				((Handler) key.attachment()).handleLoopClosed();
+			}
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "cannot close selector", e);
+		}
+	}
+	
+	private void runTasks() {
+		while (true) {
+			final Runnable task;
+			
+			synchronized (tasks) {
+				if (tasks.isEmpty()) {
+					return;
+				}
+				
+				task = (Runnable) tasks.removeFirst();
+			}
+			
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "task failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+
+/**
+ * Wire format of the bundled transport.
+ * <p>
+ * Every object travels in a frame made of a 4 byte payload length,
+ * 1 byte kind and the payload. {@link PacketFrame}s are sent as their
+ * encoded bytes, which are shared by all recipients and never copied.
+ * Anything else is sent with Java serialization, which the chat
+ * protocol only uses for the first {@link pl.graniec.coralreef.network.chat.packets.ProtocolPacket}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class FrameCodec {
+	
+	/** Size of the frame header */
+	static final int HEADER_SIZE = 5;
+	/** Largest accepted payload */
+	static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+	
+	/** Payload is an encoded packet frame */
+	static final byte KIND_FRAME  = 1;
+	/** Payload is a serialized object */
+	static final byte KIND_OBJECT = 2;
+	
+	private FrameCodec() {
+	}
+	
+	/**
+	 * Encodes <code>data</code> into the header and the payload buffer.
+	 */
+	static ByteBuffer[] encode(Object data) throws NotSerializableException {
+		final byte kind;
+		final byte[] payload;
+		
+		if (data instanceof PacketFrame) {
+			kind = KIND_FRAME;
+			payload = ((PacketFrame) data).getData();
+		} else {
+			kind = KIND_OBJECT;
+			payload = serialize(data);
+		}
+		
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		
+		header.putInt(payload.length);
+		header.put(kind);
+		header.flip();
+		
+		return new ByteBuffer[] { header, ByteBuffer.wrap(payload) };
+	}
+	
+	private static byte[] serialize(Object data) throws NotSerializableException {
+		if (!(data instanceof Serializable)) {
+			throw new NotSerializableException(data == null ? "null" : data.getClass().getName());
+		}
+		
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			
+			out.writeObject(data);
+			out.close();
+			
+			return bytes.toByteArray();
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new NotSerializableException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if <code>length</code> read from a header
+	 * is a valid payload length.
+	 */
+	static boolean isValidLength(int length) {
+		return length > 0 && length <= MAX_PAYLOAD_SIZE;
+	}
+	
+	/**
+	 * Decodes the <code>payload</code> of given <code>kind</code>.
+	 * The <code>payload</code> must not be modified afterwards.
+	 * 
+	 * @param acceptObjects Should serialized objects be accepted?
+	 * @throws IOException When the payload is not acceptable.
+	 */
+	static Object decode(byte kind, byte[] payload, boolean acceptObjects) throws IOException {
+		switch (kind) {
+			case KIND_FRAME:
+				return PacketFrame.wrap(payload);
+				
+			case KIND_OBJECT:
+				if (!acceptObjects) {
+					throw new IOException("serialized objects are not accepted");
+				}
+				
+				final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+				
+				try {
+					return in.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException("unknown class: " + e.getMessage());
+				} finally {
+					in.close();
+				}
+				
+			default:
+				throw new IOException("unknown frame kind: " + kind);
+		}
+	}
+}
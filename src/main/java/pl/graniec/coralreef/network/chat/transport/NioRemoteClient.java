@@ -0,0 +1,442 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.transport;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.RemoteClient;
+
+/**
+ * Connection accepted by the {@link NioServer}.
+ * <p>
+ * An idle connection holds no buffers: it reads into the buffer of its
+ * {@link EventLoop} and allocates only the payload of the frame being
+ * read, growing it as the bytes arrive, so announcing a large frame
+ * costs nothing until it is sent. Frames over
+ * {@link NioServer#getMaxFrameSize()} close the connection. Sending writes straight to the socket when
+ * nothing is waiting, otherwise the buffers wait in a queue that the
+ * loop flushes with gathering writes. Sending never waits: a client
+ * that lets more than {@link #MAX_PENDING_BYTES} wait is disconnected,
+ * so one that doesn't read cannot hold the sending thread. Senders that
+ * have to keep up with slow clients queue the packets themselves.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class NioRemoteClient implements RemoteClient, EventLoop.Handler {
+	
+	private static final Logger logger = Logger.getLogger(NioRemoteClient.class.getName());
+	
+	/** Bytes waiting for the client over which it is disconnected */
+	static final int MAX_PENDING_BYTES = 1024 * 1024;
+	/** Maximum number of buffers written at once */
+	private static final int MAX_GATHER = 64;
+	/** Size of the payload buffer when a frame starts */
+	private static final int INITIAL_PAYLOAD_SIZE = 8192;
+	
+	private final NioServer server;
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	/** Key of the channel, set on the loop when registered */
+	private SelectionKey key;
+	/** Was the server told about this client? Used by the loop. */
+	private boolean announced;
+	
+	/** Listeners, replaced on every change */
+	private volatile PacketListener[] listeners = new PacketListener[0];
+	
+	/** Bytes of the header read so far */
+	private final byte[] header = new byte[FrameCodec.HEADER_SIZE];
+	private int headerRead;
+	/** Payload being read, <code>null</code> between frames */
+	private byte[] payload;
+	private int payloadLength;
+	private byte payloadKind;
+	private int payloadRead;
+	
+	/** Guards the fields below */
+	private final Object writeLock = new Object();
+	/** Buffers waiting for the client, <code>null</code> if none */
+	private LinkedList pending;
+	private int pendingBytes;
+	/** Is the loop asked to flush? */
+	private boolean flushRequested;
+	private boolean closed;
+	
+	NioRemoteClient(NioServer server, SocketChannel channel, EventLoop loop) {
+		this.server = server;
+		this.channel = channel;
+		this.loop = loop;
+	}
+	
+	/**
+	 * Registers the channel with the loop and announces the client.
+	 * Runs on the loop.
+	 */
+	void register() {
+		try {
+			synchronized (writeLock) {
+				key = channel.register(loop.getSelector(), 0, this);
+			}
+		} catch (ClosedChannelException e) {
+			close(DisconnectReason.IOError, "closed before registered", false);
+			return;
+		}
+		
+		announced = true;
+		server.fireClientConnected(this);
+		
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			
+			key.interestOps(pending != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.RemoteClient#addPacketListener(pl.graniec.coralreef.network.PacketListener)
+	 */
+	public synchronized void addPacketListener(PacketListener listener) {
+		final PacketListener[] newListeners = new PacketListener[listeners.length + 1];
+		
+		System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+		newListeners[listeners.length] = listener;
+		
+		listeners = newListeners;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.RemoteClient#removePacketListener(pl.graniec.coralreef.network.PacketListener)
+	 */
+	public synchronized void removePacketListener(PacketListener listener) {
+		for (int i = 0; i < listeners.length; ++i) {
+			if (listeners[i] == listener) {
+				final PacketListener[] newListeners = new PacketListener[listeners.length - 1];
+				
+				System.arraycopy(listeners, 0, newListeners, 0, i);
+				System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+				
+				listeners = newListeners;
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.RemoteClient#send(java.lang.Object)
+	 */
+	public void send(Object data) throws NotSerializableException, NetworkException {
+		final ByteBuffer[] buffers = FrameCodec.encode(data);
+		
+		synchronized (writeLock) {
+			if (closed) {
+				throw new NetworkException("client is disconnected");
+			}
+			
+			if (pendingBytes > MAX_PENDING_BYTES) {
+				disconnectLater(DisconnectReason.TooSlow, "client doesn't read");
+				throw new NetworkException("client doesn't read");
+			}
+			
+			if (pending == null && key != null) {
+				try {
+					channel.write(buffers);
+				} catch (IOException e) {
+					disconnectLater(DisconnectReason.IOError, e.getMessage());
+					throw new NetworkException(e);
+				}
+			}
+			
+			for (int i = 0; i < buffers.length; ++i) {
+				if (buffers[i].hasRemaining()) {
+					enqueue(buffers[i]);
+				}
+			}
+		}
+	}
+	
+	private void enqueue(ByteBuffer buffer) {
+		if (pending == null) {
+			pending = new LinkedList();
+		}
+		
+		pending.add(buffer);
+		pendingBytes += buffer.remaining();
+		
+		if (!flushRequested && key != null) {
+			flushRequested = true;
+			
+			loop.execute(new Runnable() {
+				public void run() {
+					requestFlush();
+				}
+			});
+		}
+	}
+	
+	private void requestFlush() {
+		synchronized (writeLock) {
+			if (!closed && key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.RemoteClient#disconnect()
+	 */
+	public void disconnect() {
+		disconnectLater(DisconnectReason.Disconnected, "disconnected by server");
+	}
+	
+	private void disconnectLater(final int reason, final String reasonString) {
+		loop.execute(new Runnable() {
+			public void run() {
+				close(reason, reasonString, true);
+			}
+		});
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.transport.EventLoop.Handler#handleReady(java.nio.channels.SelectionKey)
+	 */
+	public void handleReady(SelectionKey key) {
+		if (key.isReadable()) {
+			read();
+		}
+		
+		if (key.isValid() && key.isWritable()) {
+			flush();
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.chat.transport.EventLoop.Handler#handleLoopClosed()
+	 */
+	public void handleLoopClosed() {
+		close(DisconnectReason.ServerClosed, "server closed", true);
+	}
+	
+	private void read() {
+		final ByteBuffer buffer = loop.readBuffer;
+		final int count;
+		
+		buffer.clear();
+		
+		try {
+			count = channel.read(buffer);
+		} catch (IOException e) {
+			close(DisconnectReason.IOError, e.getMessage(), false);
+			return;
+		}
+		
+		if (count < 0) {
+			close(DisconnectReason.ClosedByClient, "connection closed by client", false);
+			return;
+		}
+		
+		buffer.flip();
+		
+		while (buffer.hasRemaining()) {
+			
+			if (payload == null) {
+				header[headerRead++] = buffer.get();
+				
+				if (headerRead < FrameCodec.HEADER_SIZE) {
+					continue;
+				}
+				
+				final int length = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16)
+						| ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+				
+				if (!FrameCodec.isValidLength(length) || length > server.getMaxFrameSize()) {
+					close(DisconnectReason.ProtocolError, "illegal frame length " + length, false);
+					return;
+				}
+				
+				headerRead = 0;
+				payload = new byte[Math.min(length, INITIAL_PAYLOAD_SIZE)];
+				payloadLength = length;
+				payloadKind = header[4];
+				payloadRead = 0;
+				continue;
+			}
+			
+			if (payloadRead == payload.length) {
+				final byte[] grown = new byte[(int) Math.min(payloadLength, 2L * payload.length)];
+				
+				System.arraycopy(payload, 0, grown, 0, payloadRead);
+				payload = grown;
+			}
+			
+			final int chunk = Math.min(buffer.remaining(), payload.length - payloadRead);
+			
+			buffer.get(payload, payloadRead, chunk);
+			payloadRead += chunk;
+			
+			if (payloadRead == payloadLength) {
+				final byte[] complete = payload;
+				final Object data;
+				
+				payload = null;
+				
+				try {
+					data = FrameCodec.decode(payloadKind, complete, server.isAcceptObjects());
+				} catch (IOException e) {
+					close(DisconnectReason.ProtocolError, e.getMessage(), false);
+					return;
+				}
+				
+				firePacketReceived(data);
+				
+				if (!key.isValid()) {
+					// a listener has closed us
+					return;
+				}
+			}
+		}
+	}
+	
+	private void firePacketReceived(Object data) {
+		final PacketListener[] listeners = this.listeners;
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			try {
+				listeners[i].packetReceived(data);
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "packet listener failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Writes as much of the pending buffers as the socket takes.
+	 * Runs on the loop.
+	 */
+	private void flush() {
+		synchronized (writeLock) {
+			flushRequested = false;
+			
+			while (pending != null) {
+				final ByteBuffer[] buffers = new ByteBuffer[Math.min(pending.size(), MAX_GATHER)];
+				final Iterator iterator = pending.iterator();
+				final long written;
+				
+				for (int i = 0; i < buffers.length; ++i) {
+					buffers[i] = (ByteBuffer) iterator.next();
+				}
+				
+				try {
+					written = channel.write(buffers);
+				} catch (IOException e) {
+					close(DisconnectReason.IOError, e.getMessage(), false);
+					return;
+				}
+				
+				pendingBytes -= written;
+				
+				while (!pending.isEmpty() && !((ByteBuffer) pending.getFirst()).hasRemaining()) {
+					pending.removeFirst();
+				}
+				
+				if (pending.isEmpty()) {
+					pending = null;
+				}
+				
+				if (buffers[buffers.length - 1].hasRemaining()) {
+					// socket is full
+					break;
+				}
+			}
+			
+			if (key.isValid()) {
+				key.interestOps(pending != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the connection and tells the server, if it knows about
+	 * this client. Runs on the loop.
+	 * 
+	 * @param flush Should pending buffers be written first, as far
+	 * as it's possible without waiting?
+	 */
+	void close(int reason, String reasonString, boolean flush) {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			
+			if (flush && pending != null && key != null) {
+				flush();
+				
+				if (closed) {
+					// failed and closed already
+					return;
+				}
+			}
+			
+			closed = true;
+			pending = null;
+			pendingBytes = 0;
+		}
+		
+		if (key != null) {
+			key.cancel();
+		}
+		
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "cannot close channel", e);
+		}
+		
+		if (announced) {
+			server.fireClientDisconnected(this, reason, reasonString);
+		}
+	}
+	
+	public String toString() {
+		return "NioRemoteClient[" + channel.socket().getRemoteSocketAddress() + "]";
+	}
+}
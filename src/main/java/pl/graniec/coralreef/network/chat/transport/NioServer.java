@@ -0,0 +1,365 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.chat.packets.TransferChunkPacket;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.server.Server;
+
+/**
+ * {@link Server} built on <code>java.nio</code> selectors.
+ * <p>
+ * A fixed number of {@link EventLoop}s serves all connections, so an
+ * idle connection costs a selection key and a few small objects
+ * instead of a thread. The first loop also accepts new connections
+ * and hands them to the loops in turn.
+ * <p>
+ * Listeners are called on the loop threads. Packets of one client
+ * arrive in order on one thread, so listeners must not block for
+ * long, because other clients of the same loop wait meanwhile.
+ * {@link RemoteClient#send(Object)} doesn't wait for the network
+ * unless the client stops reading.
+ * <p>
+ * Clients connect with {@link SocketClient}. 
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class NioServer implements Server {
+	
+	private static final Logger logger = Logger.getLogger(NioServer.class.getName());
+	
+	/** Largest frame accepted from clients by default: a full transfer chunk and room for the rest of its packet */
+	public static final int DEFAULT_MAX_FRAME_SIZE = TransferChunkPacket.MAX_SIZE + 64 * 1024;
+	
+	/** Pending connections that the system queues for us */
+	private static final int ACCEPT_BACKLOG = 1024;
+	
+	/** Number of event loops */
+	private final int loopCount;
+	/** Connection listeners */
+	private final List connectionListeners = new ArrayList();
+	/** Number of open connections */
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	/** Should clients be allowed to send serialized objects? */
+	private volatile boolean acceptObjects;
+	/** Largest frame payload accepted from clients */
+	private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	
+	/** Running loops, <code>null</code> if closed */
+	private EventLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	/** Loop that gets the next connection */
+	private int nextLoop;
+	
+	/**
+	 * Creates a server with one event loop per processor.
+	 */
+	public NioServer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param loopCount Number of event loop threads.
+	 */
+	public NioServer(int loopCount) {
+		if (loopCount < 1) {
+			throw new IllegalArgumentException("loopCount must be positive");
+		}
+		
+		this.loopCount = loopCount;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#open(int)
+	 */
+	public synchronized void open(int port) throws NetworkException {
+		if (loops != null) {
+			throw new IllegalStateException("server is already open");
+		}
+		
+		final EventLoop[] newLoops = new EventLoop[loopCount];
+		
+		try {
+			for (int i = 0; i < loopCount; ++i) {
+				newLoops[i] = new EventLoop("nio-server-" + i);
+			}
+			
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+			serverChannel.register(newLoops[0].getSelector(), SelectionKey.OP_ACCEPT, new Acceptor());
+		} catch (IOException e) {
+			closeQuietly(newLoops);
+			throw new NetworkException("cannot open server on port " + port, e);
+		}
+		
+		loops = newLoops;
+		
+		for (int i = 0; i < loopCount; ++i) {
+			loops[i].start();
+		}
+	}
+	
+	private void closeQuietly(EventLoop[] newLoops) {
+		for (int i = 0; i < newLoops.length && newLoops[i] != null; ++i) {
+			try {
+				newLoops[i].getSelector().close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "cannot close selector", e);
+			}
+		}
+		
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "cannot close server channel", e);
+			}
+			
+			serverChannel = null;
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#close()
+	 */
+	public void close() {
+		final EventLoop[] closedLoops;
+		
+		synchronized (this) {
+			if (loops == null) {
+				throw new IllegalStateException("server is not open");
+			}
+			
+			closedLoops = loops;
+			loops = null;
+		}
+		
+		// loops disconnect their clients when they stop
+		for (int i = 0; i < closedLoops.length; ++i) {
+			closedLoops[i].stop();
+		}
+		
+		synchronized (this) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "cannot close server channel", e);
+			}
+			
+			serverChannel = null;
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#isOpen()
+	 */
+	public synchronized boolean isOpen() {
+		return loops != null;
+	}
+	
+	/**
+	 * @return Port that the server listens on, <code>-1</code> if closed.
+	 */
+	public synchronized int getLocalPort() {
+		return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+	}
+	
+	/**
+	 * @return Number of connected clients.
+	 */
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+	
+	/**
+	 * Allows clients to send any serializable objects, not only packet
+	 * frames. Off by default, because deserializing data from the
+	 * network can run code of any class on the class path. The chat
+	 * protocol doesn't need it.
+	 */
+	public void setAcceptObjects(boolean acceptObjects) {
+		this.acceptObjects = acceptObjects;
+	}
+	
+	public boolean isAcceptObjects() {
+		return acceptObjects;
+	}
+	
+	/**
+	 * Sets the size of the largest frame payload that clients may send.
+	 * A client announcing a larger one is disconnected before anything
+	 * is allocated for it.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (!FrameCodec.isValidLength(maxFrameSize)) {
+			throw new IllegalArgumentException("maxFrameSize must be between 1 and " + FrameCodec.MAX_PAYLOAD_SIZE);
+		}
+		
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#addConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
+	 */
+	public void addConnectionListener(ConnectionListener listener) {
+		synchronized (connectionListeners) {
+			connectionListeners.add(listener);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.server.Server#removeConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
+	 */
+	public void removeConnectionListener(ConnectionListener listener) {
+		synchronized (connectionListeners) {
+			connectionListeners.remove(listener);
+		}
+	}
+	
+	private ConnectionListener[] getConnectionListeners() {
+		synchronized (connectionListeners) {
+			return (ConnectionListener[]) connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+	}
+	
+	void fireClientConnected(RemoteClient client) {
+		connectionCount.incrementAndGet();
+		
+		final ConnectionListener[] listeners = getConnectionListeners();
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			try {
+				listeners[i].clientConnected(client);
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "connection listener failed", e);
+			}
+		}
+	}
+	
+	void fireClientDisconnected(RemoteClient client, int reason, String reasonString) {
+		connectionCount.decrementAndGet();
+		
+		final ConnectionListener[] listeners = getConnectionListeners();
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			try {
+				listeners[i].clientDisconnected(client, reason, reasonString);
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "connection listener failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Accepts connections on the first loop.
+	 */
+	private class Acceptor implements EventLoop.Handler {
+		
+		public void handleReady(SelectionKey key) {
+			final ServerSocketChannel channel = (ServerSocketChannel) key.channel();
+			
+			while (true) {
+				final SocketChannel accepted;
+				
+				try {
+					accepted = channel.accept();
+					
+					if (accepted == null) {
+						return;
+					}
+					
+					accepted.configureBlocking(false);
+					accepted.socket().setTcpNoDelay(true);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "cannot accept connection", e);
+					return;
+				}
+				
+				final EventLoop loop = nextLoop();
+				
+				if (loop == null) {
+					// closing
+					closeChannel(accepted);
+					return;
+				}
+				
+				final NioRemoteClient client = new NioRemoteClient(NioServer.this, accepted, loop);
+				
+				loop.execute(new Runnable() {
+					public void run() {
+						client.register();
+					}
+				});
+			}
+		}
+		
+		public void handleLoopClosed() {
+			// the server channel is closed by close()
+		}
+	}
+	
+	private synchronized EventLoop nextLoop() {
+		if (loops == null) {
+			return null;
+		}
+		
+		final EventLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		
+		return loop;
+	}
+	
+	private static void closeChannel(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "cannot close channel", e);
+		}
+	}
+}
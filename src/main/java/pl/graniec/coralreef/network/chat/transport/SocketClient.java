@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.client.Client;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+
+/**
+ * {@link Client} for the {@link NioServer}. It uses a plain socket
+ * and one thread that reads from it and calls the listeners.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SocketClient implements Client {
+	
+	private static final Logger logger = Logger.getLogger(SocketClient.class.getName());
+	
+	/** Packet listeners */
+	private final List packetListeners = new ArrayList();
+	
+	/** The connection, <code>null</code> if not connected */
+	private Socket socket;
+	private OutputStream out;
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#connect(java.lang.String, int)
+	 */
+	public synchronized void connect(String host, int port) throws NetworkException {
+		if (socket != null) {
+			throw new IllegalStateException("already connected");
+		}
+		
+		final Socket newSocket;
+		final DataInputStream in;
+		
+		try {
+			newSocket = new Socket(host, port);
+			newSocket.setTcpNoDelay(true);
+			
+			in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+			out = new BufferedOutputStream(newSocket.getOutputStream());
+		} catch (IOException e) {
+			throw new NetworkException("cannot connect to " + host + ":" + port, e);
+		}
+		
+		socket = newSocket;
+		
+		final Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read(newSocket, in);
+			}
+		}, "socket-client-reader");
+		
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	private void read(Socket readSocket, DataInputStream in) {
+		try {
+			while (true) {
+				final int length = in.readInt();
+				final byte kind = in.readByte();
+				
+				if (!FrameCodec.isValidLength(length)) {
+					throw new IOException("illegal frame length " + length);
+				}
+				
+				final byte[] payload = new byte[length];
+				in.readFully(payload);
+				
+				firePacketReceived(FrameCodec.decode(kind, payload, true));
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				if (socket == readSocket) {
+					logger.log(Level.FINE, "connection lost", e);
+					close();
+				}
+			}
+		}
+	}
+	
+	private void firePacketReceived(Object data) {
+		final PacketListener[] listeners;
+		
+		synchronized (packetListeners) {
+			listeners = (PacketListener[]) packetListeners.toArray(new PacketListener[packetListeners.size()]);
+		}
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			listeners[i].packetReceived(data);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#disconnect()
+	 */
+	public synchronized void disconnect() {
+		if (socket == null) {
+			throw new IllegalStateException("not connected");
+		}
+		
+		close();
+	}
+	
+	private void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "cannot close socket", e);
+		}
+		
+		socket = null;
+		out = null;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#isConnected()
+	 */
+	public synchronized boolean isConnected() {
+		return socket != null;
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#send(java.lang.Object)
+	 */
+	public synchronized void send(Object data) throws NotSerializableException, NetworkException {
+		if (socket == null) {
+			throw new NetworkException("not connected");
+		}
+		
+		final ByteBuffer[] buffers = FrameCodec.encode(data);
+		
+		try {
+			for (int i = 0; i < buffers.length; ++i) {
+				out.write(buffers[i].array(), buffers[i].arrayOffset() + buffers[i].position(), buffers[i].remaining());
+			}
+			
+			out.flush();
+		} catch (IOException e) {
+			close();
+			throw new NetworkException(e);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#addPacketListener(pl.graniec.coralreef.network.PacketListener)
+	 */
+	public void addPacketListener(PacketListener listener) {
+		synchronized (packetListeners) {
+			packetListeners.add(listener);
+		}
+	}
+	
+	/*
+	 * @see pl.graniec.coralreef.network.client.Client#removePacketListener(pl.graniec.coralreef.network.PacketListener)
+	 */
+	public void removePacketListener(PacketListener listener) {
+		synchronized (packetListeners) {
+			packetListeners.remove(listener);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.chat.Protocol;
+import pl.graniec.coralreef.network.chat.exceptions.ChatException;
+import pl.graniec.coralreef.network.chat.exceptions.ChatServerTimeoutException;
+import pl.graniec.coralreef.network.chat.exceptions.UserNameAlreadyInUseException;
+import pl.graniec.coralreef.network.chat.packets.AbstractRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinResponse;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.ProtocolPacket;
+import pl.graniec.coralreef.network.chat.packets.RegisterRejectReason;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterResponse;
+import pl.graniec.coralreef.network.client.Client;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ChatClientTest extends TestCase {
+	
+	private static final long TIMEOUT = 100;
+	
+	final Mockery context = new Mockery();
+	final Client client = (Client) context.mock(Client.class);
+	
+	/** Listener of the chat client */
+	PacketListener listener;
+	/** Requests sent by the chat client */
+	final List sent = new ArrayList();
+	/** Packets passed to packet listeners */
+	final List unmatched = new ArrayList();
+	
+	ChatClient chatClient;
+	
+	protected void setUp() throws Exception {
+		context.checking(new Expectations() {{
+			((Client) one(client)).addPacketListener((PacketListener) with(any(PacketListener.class)));
+			will(new CustomAction("keep listener") {
+				public Object invoke(Invocation invocation) {
+					listener = (PacketListener) invocation.getParameter(0);
+					return null;
+				}
+			});
+			
+			((Client) allowing(client)).send(with(any(Object.class)));
+			will(new CustomAction("keep request") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					sent.add(((PacketFrame) invocation.getParameter(0)).getPacket());
+					return null;
+				}
+			});
+		}});
+		
+		chatClient = new ChatClient(client, "jack");
+		chatClient.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				unmatched.add(data);
+			}
+		});
+	}
+	
+	protected void tearDown() throws Exception {
+		context.assertIsSatisfied();
+	}
+	
+	private void expectConnect(final boolean answer) throws Exception {
+		context.checking(new Expectations() {{
+			((Client) one(client)).connect("localhost", 1234);
+			
+			if (answer) {
+				will(new CustomAction("send protocol") {
+					public Object invoke(Invocation invocation) {
+						listener.packetReceived(new ProtocolPacket(Protocol.VERSION));
+						return null;
+					}
+				});
+			}
+		}});
+	}
+	
+	private int lastRequestId() {
+		return ((AbstractRequest) sent.get(sent.size() - 1)).getRequestId();
+	}
+	
+	private static ChatException failure(ChatFuture future) throws InterruptedException {
+		try {
+			future.get(1000);
+			fail("future succeeded");
+		} catch (ChatException e) {
+			return e;
+		}
+		
+		return null;
+	}
+	
+	public void testHandshake() throws Exception {
+		expectConnect(false);
+		
+		final ChatFuture future = chatClient.connectAsync("localhost", 1234, "secret");
+		
+		assertFalse(future.isDone());
+		assertEquals(0, chatClient.getPendingRequestCount());
+		
+		listener.packetReceived(new ProtocolPacket(Protocol.VERSION));
+		
+		final UserRegisterRequest request = (UserRegisterRequest) sent.get(0);
+		
+		assertEquals("jack", request.getName());
+		assertEquals(1, chatClient.getPendingRequestCount());
+		
+		listener.packetReceived(PacketFrame.encode(new UserRegisterResponse(request.getRequestId(), true, (byte) 0)));
+		
+		assertSame(chatClient, future.get(1000));
+		assertEquals(0, chatClient.getPendingRequestCount());
+		assertTrue(unmatched.isEmpty());
+	}
+	
+	public void testHandshakeRejected() throws Exception {
+		expectConnect(true);
+		
+		final ChatFuture future = chatClient.connectAsync("localhost", 1234, "");
+		
+		listener.packetReceived(PacketFrame.encode(new UserRegisterResponse(lastRequestId(), false, RegisterRejectReason.UserNameAlreadyInUse)));
+		
+		assertTrue(failure(future) instanceof UserNameAlreadyInUseException);
+		assertEquals(0, chatClient.getPendingRequestCount());
+	}
+	
+	public void testResponsesMatchRequests() throws Exception {
+		final ChatFuture room = chatClient.joinGroup("room");
+		final int roomId = lastRequestId();
+		final ChatFuture hall = chatClient.joinGroup("hall");
+		final int hallId = lastRequestId();
+		
+		assertTrue(roomId != hallId);
+		assertEquals(2, chatClient.getPendingRequestCount());
+		
+		// answered out of order
+		listener.packetReceived(PacketFrame.encode(new GroupJoinResponse(hallId, 7)));
+		
+		assertTrue(hall.isDone());
+		assertFalse(room.isDone());
+		assertEquals("hall", hall.get(1000));
+		
+		listener.packetReceived(PacketFrame.encode(new GroupJoinResponse(roomId, 8)));
+		
+		assertEquals("room", room.get(1000));
+		assertEquals(0, chatClient.getPendingRequestCount());
+		assertTrue(unmatched.isEmpty());
+	}
+	
+	public void testUnmatchedResponse() throws Exception {
+		final ChatFuture room = chatClient.joinGroup("room");
+		final GroupJoinResponse stranger = new GroupJoinResponse(lastRequestId() + 100, 7);
+		
+		listener.packetReceived(stranger);
+		
+		assertFalse(room.isDone());
+		assertEquals(1, chatClient.getPendingRequestCount());
+		assertEquals(1, unmatched.size());
+		assertSame(stranger, unmatched.get(0));
+	}
+	
+	public void testRequestTimeout() throws Exception {
+		chatClient.setRequestTimeout(TIMEOUT);
+		
+		final ChatFuture room = chatClient.joinGroup("room");
+		final int requestId = lastRequestId();
+		
+		assertTrue(failure(room) instanceof ChatServerTimeoutException);
+		assertEquals(0, chatClient.getPendingRequestCount());
+		
+		// too late
+		listener.packetReceived(PacketFrame.encode(new GroupJoinResponse(requestId, 7)));
+		
+		assertEquals(1, unmatched.size());
+	}
+	
+	public void testCancel() throws Exception {
+		final ChatFuture room = chatClient.joinGroup("room");
+		
+		assertTrue(room.cancel());
+		assertFalse(room.cancel());
+		assertNotNull(failure(room));
+		assertEquals(0, chatClient.getPendingRequestCount());
+	}
+	
+	public void testHandshakeTimeout() throws Exception {
+		chatClient.setRequestTimeout(TIMEOUT);
+		expectConnect(false);
+		
+		// the server never speaks
+		assertTrue(failure(chatClient.connectAsync("localhost", 1234, "")) instanceof ChatServerTimeoutException);
+		
+		// it's over, another one can start
+		expectConnect(true);
+		
+		final ChatFuture future = chatClient.connectAsync("localhost", 1234, "");
+		
+		assertTrue(failure(future) instanceof ChatServerTimeoutException);
+		assertEquals(0, chatClient.getPendingRequestCount());
+	}
+	
+	public void testBlockingConnectTimeout() throws Exception {
+		chatClient.setRequestTimeout(TIMEOUT);
+		expectConnect(true);
+		
+		try {
+			chatClient.connect("localhost", 1234);
+			fail("connected");
+		} catch (ChatServerTimeoutException e) {
+			// expected
+		}
+		
+		// the register request is forgotten
+		assertEquals(1, sent.size());
+		assertEquals(0, chatClient.getPendingRequestCount());
+	}
+}
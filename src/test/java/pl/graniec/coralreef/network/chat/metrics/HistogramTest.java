@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.metrics;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class HistogramTest extends TestCase {
+	
+	public void testBuckets() {
+		for (int i = 0; i < (64 - 5) * Histogram.SUB_BUCKETS; ++i) {
+			final long lowest = Histogram.lowestValue(i);
+			final long highest = Histogram.highestValue(i);
+			
+			assertEquals(i, Histogram.bucket(lowest));
+			assertEquals(i, Histogram.bucket(highest));
+			
+			if (i > 0) {
+				assertEquals(lowest - 1, Histogram.highestValue(i - 1));
+			}
+		}
+		
+		assertEquals(Long.MAX_VALUE, Histogram.highestValue(Histogram.bucket(Long.MAX_VALUE)));
+	}
+	
+	public void testPercentiles() {
+		final Histogram histogram = new Histogram();
+		
+		for (int i = 1; i <= 10000; ++i) {
+			histogram.record(i * 1000L);
+		}
+		
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000000, histogram.getMax());
+		assertEquals(5000500.0, histogram.getMean(), 0.001);
+		
+		assertPrecise(5000000, histogram.getValueAtPercentile(50));
+		assertPrecise(9900000, histogram.getValueAtPercentile(99));
+		assertPrecise(9990000, histogram.getValueAtPercentile(99.9));
+		assertEquals(10000000, histogram.getValueAtPercentile(100));
+	}
+	
+	public void testSince() {
+		final Histogram histogram = new Histogram();
+		
+		for (int i = 0; i < 100; ++i) {
+			histogram.record(1000000);
+		}
+		
+		final Histogram earlier = histogram.copy();
+		
+		for (int i = 0; i < 100; ++i) {
+			histogram.record(10);
+		}
+		
+		final Histogram interval = histogram.since(earlier);
+		
+		assertEquals(100, interval.getCount());
+		assertEquals(10, interval.getMax());
+		assertEquals(10, interval.getValueAtPercentile(99));
+		assertEquals(10.0, interval.getMean(), 0.001);
+	}
+	
+	public void testEmpty() {
+		final Histogram histogram = new Histogram();
+		
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0.0, histogram.getMean(), 0.0);
+	}
+	
+	private static void assertPrecise(long expected, long actual) {
+		assertTrue("expected " + expected + " got " + actual,
+				Math.abs(actual - expected) <= expected / Histogram.SUB_BUCKETS);
+	}
+}
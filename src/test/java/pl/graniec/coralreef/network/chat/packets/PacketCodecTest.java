@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.packets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketCodecTest extends TestCase {
+
+	private static ChatPacket roundTrip(ChatPacket packet) throws IOException {
+		final byte[] data = PacketCodec.encode(packet);
+		return PacketCodec.decode(data, 0, data.length);
+	}
+	
+	public void testMessagePacket() throws IOException {
+		final MessagePacket decoded = (MessagePacket) roundTrip(
+				new MessagePacket(MessageType.Group, "jack", "room", "hello")
+		);
+		
+		assertEquals(MessageType.Group, decoded.getMessageType());
+		assertEquals("jack", decoded.getSenderName());
+		assertEquals("room", decoded.getReceiverName());
+		assertEquals("hello", decoded.getMessage());
+	}
+	
+	public void testMessagePacketIsCompact() {
+		final byte[] data = PacketCodec.encode(new MessagePacket(MessageType.Group, "jack", "room", "hello"));
+		
+		// type, message type, three lengths and the text
+		assertEquals(1 + 1 + 3 + 4 + 4 + 5, data.length);
+	}
+	
+	public void testUnicodeAndLongStrings() throws IOException {
+		final StringBuffer text = new StringBuffer();
+		
+		while (text.length() < 100000) {
+			text.append("za\u017c\u00f3\u0142\u0107 \u20ac \ud83d\ude00 ");
+		}
+		
+		final MessagePacket decoded = (MessagePacket) roundTrip(
+				new MessagePacket(MessageType.Public, "\u0142ukasz", "", text.toString())
+		);
+		
+		assertEquals("\u0142ukasz", decoded.getSenderName());
+		assertEquals(text.toString(), decoded.getMessage());
+	}
+	
+	public void testRequestAndResponse() throws IOException {
+		final UserRegisterRequest request = new UserRegisterRequest("jack", "secret");
+		request.setRequestId(300);
+		
+		final UserRegisterRequest decodedRequest = (UserRegisterRequest) roundTrip(request);
+		assertEquals(300, decodedRequest.getRequestId());
+		assertEquals("jack", decodedRequest.getName());
+		assertEquals("secret", decodedRequest.getPassword());
+		
+		final GroupJoinResponse decodedResponse = (GroupJoinResponse) roundTrip(
+				new GroupJoinResponse(300, false, GroupRejectReason.AlreadyMember)
+		);
+		assertEquals(300, decodedResponse.getRequestId());
+		assertFalse(decodedResponse.isSucceed());
+		assertEquals(GroupRejectReason.AlreadyMember, decodedResponse.getFailReason());
+	}
+	
+	public void testHistoryResponse() throws IOException {
+		final PacketFrame[] frames = new PacketFrame[] {
+				PacketFrame.encode(new MessagePacket(MessageType.Group, "jack", "room", "first")),
+				PacketFrame.encode(new MessagePacket(MessageType.Group, "john", "room", "second"))
+		};
+		
+		final GroupHistoryResponse decoded = (GroupHistoryResponse) roundTrip(new GroupHistoryResponse(7, frames));
+		assertEquals(7, decoded.getRequestId());
+		assertTrue(decoded.isSucceed());
+		
+		final MessagePacket[] messages = decoded.getMessages();
+		assertEquals(2, messages.length);
+		assertEquals("jack", messages[0].getSenderName());
+		assertEquals("first", messages[0].getMessage());
+		assertEquals("second", messages[1].getMessage());
+	}
+	
+	public void testTransferChunk() throws IOException {
+		final byte[] data = new byte[TransferChunkPacket.MAX_SIZE];
+		data[data.length - 1] = 42;
+		
+		final TransferChunkPacket decoded = (TransferChunkPacket) roundTrip(new TransferChunkPacket(3, "jack", 5, true, data));
+		assertEquals(3, decoded.getTransferId());
+		assertEquals("jack", decoded.getSenderName());
+		assertEquals(5, decoded.getSequence());
+		assertTrue(decoded.isLast());
+		assertEquals(data.length, decoded.getData().length);
+		assertEquals(42, decoded.getData()[data.length - 1]);
+		
+		final TransferStartPacket start = (TransferStartPacket) roundTrip(new TransferStartPacket(3, MessageType.Group, "jack", "room", "", -1));
+		assertEquals(-1, start.getLength());
+		assertEquals("room", start.getReceiverName());
+	}
+	
+	public void testTruncatedPacket() {
+		final byte[] data = PacketCodec.encode(new MessagePacket(MessageType.Group, "jack", "room", "hello"));
+		
+		try {
+			PacketCodec.decode(data, 0, data.length - 1);
+			fail("truncated packet decoded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testUnknownPacketType() {
+		try {
+			PacketCodec.decode(new byte[] { (byte) 200 }, 0, 1);
+			fail("unknown packet decoded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testFrameSerialization() throws Exception {
+		final PacketFrame frame = PacketFrame.encode(new MessagePacket(MessageType.Group, "jack", "room", "hello"));
+		
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(frame);
+		out.close();
+		
+		final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		final PacketFrame decoded = (PacketFrame) in.readObject();
+		
+		assertEquals(PacketType.Message, decoded.getPacketType());
+		assertEquals("hello", ((MessagePacket) decoded.getPacket()).getMessage());
+	}
+	
+	private static ObjectInputStream objectInput(int[] ints, byte[] bytes) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(buffer);
+		
+		for (int i = 0; i < ints.length; ++i) {
+			out.writeInt(ints[i]);
+		}
+		
+		out.write(bytes);
+		out.close();
+		
+		return new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+	}
+	
+	public void testOversizedFrame() throws Exception {
+		// varint of MAX_SIZE + 1
+		final byte[] length = { (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x08 };
+		
+		try {
+			new PacketFrame().readExternal(objectInput(new int[0], length));
+			fail("oversized frame read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testBogusFrameCount() throws Exception {
+		try {
+			PacketFrame.readFrames(objectInput(new int[] { Integer.MAX_VALUE }, new byte[0]));
+			fail("bogus frame count read");
+		} catch (IOException e) {
+			// expected
+		}
+		
+		// count within limits, but no frames follow
+		try {
+			PacketFrame.readFrames(objectInput(new int[] { 1000000 }, new byte[] { 1, PacketType.Ping }));
+			fail("missing frames read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
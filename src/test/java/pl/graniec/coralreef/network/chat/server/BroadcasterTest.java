@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.BatchPacket;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.ProtocolPacket;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class BroadcasterTest extends TestCase {
+	
+	final ChatServer server = new ChatServer(null);
+	final Broadcaster broadcaster = new Broadcaster(2);
+	
+	/** Packets sent to the client */
+	final List sent = new ArrayList();
+	
+	final FakeRemoteClient client = new FakeRemoteClient() {
+		public void send(Object data) {
+			synchronized (sent) {
+				sent.add(data);
+				sent.notifyAll();
+			}
+		}
+	};
+	
+	final User user = new User(server, client);
+	
+	/*
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		broadcaster.stop();
+	}
+	
+	private static PacketFrame message(int number) {
+		return PacketFrame.encode(new MessagePacket(MessageType.Group, "jack", "room", "message " + number));
+	}
+	
+	private void waitForSent(int count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		
+		synchronized (sent) {
+			while (sent.size() < count && System.currentTimeMillis() < end) {
+				sent.wait(100);
+			}
+		}
+	}
+	
+	/**
+	 * @return Numbers of the messages that the <code>packet</code> carries.
+	 */
+	private static List numbers(Object packet) throws IOException {
+		final List numbers = new ArrayList();
+		
+		// decode from the bytes, like the client would
+		final Object decoded = PacketFrame.wrap(((PacketFrame) packet).getData()).getPacket();
+		
+		if (decoded instanceof BatchPacket) {
+			final PacketFrame[] frames = ((BatchPacket) decoded).getFrames();
+			
+			for (int i = 0; i < frames.length; ++i) {
+				numbers.add(number(frames[i].getPacket()));
+			}
+		} else {
+			numbers.add(number(decoded));
+		}
+		
+		return numbers;
+	}
+	
+	private static String number(Object message) {
+		return ((MessagePacket) message).getMessage().substring("message ".length());
+	}
+	
+	public void testWithoutBatching() throws InterruptedException {
+		for (int i = 0; i < 10; ++i) {
+			broadcaster.send(user, message(i));
+		}
+		
+		broadcaster.start();
+		waitForSent(10);
+		
+		assertEquals(10, sent.size());
+	}
+	
+	public void testBatches() throws Exception {
+		broadcaster.setBatching(8, 0);
+		
+		for (int i = 0; i < 10; ++i) {
+			broadcaster.send(user, message(i));
+		}
+		
+		broadcaster.send(user, new ProtocolPacket(3));
+		
+		for (int i = 10; i < 20; ++i) {
+			broadcaster.send(user, message(i));
+		}
+		
+		broadcaster.start();
+		waitForSent(5);
+		
+		assertEquals(5, sent.size());
+		assertEquals("[0, 1, 2, 3, 4, 5, 6, 7]", numbers(sent.get(0)).toString());
+		assertEquals("[8, 9]", numbers(sent.get(1)).toString());
+		assertTrue(sent.get(2) instanceof ProtocolPacket);
+		assertEquals("[10, 11, 12, 13, 14, 15, 16, 17]", numbers(sent.get(3)).toString());
+		assertEquals("[18, 19]", numbers(sent.get(4)).toString());
+	}
+	
+	public void testLinger() throws Exception {
+		broadcaster.setBatching(100, 200000);
+		broadcaster.start();
+		
+		final long start = System.nanoTime();
+		
+		for (int i = 0; i < 5; ++i) {
+			broadcaster.send(user, message(i));
+			Thread.sleep(10);
+		}
+		
+		waitForSent(1);
+		
+		final long waited = (System.nanoTime() - start) / 1000000;
+		
+		assertEquals(1, sent.size());
+		assertEquals("[0, 1, 2, 3, 4]", numbers(sent.get(0)).toString());
+		assertTrue("sent after " + waited + " ms", waited >= 190 && waited < 1000);
+	}
+	
+	public void testFullBatchEndsLinger() throws Exception {
+		broadcaster.setBatching(4, 5000000);
+		broadcaster.start();
+		
+		final long start = System.nanoTime();
+		
+		broadcaster.send(user, message(0));
+		
+		// let a writer leave the queue lingering
+		Thread.sleep(50);
+		
+		for (int i = 1; i < 4; ++i) {
+			broadcaster.send(user, message(i));
+		}
+		
+		waitForSent(1);
+		
+		final long waited = (System.nanoTime() - start) / 1000000;
+		
+		assertEquals(1, sent.size());
+		assertEquals("[0, 1, 2, 3]", numbers(sent.get(0)).toString());
+		assertTrue("sent after " + waited + " ms", waited < 1000);
+	}
+
+}
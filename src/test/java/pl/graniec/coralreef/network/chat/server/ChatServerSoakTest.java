@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.OfflineMessagesPacket;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.PacketType;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
+import pl.graniec.coralreef.network.chat.store.OfflineQueue;
+
+/**
+ * Connects and disconnects clients over and over to check that
+ * the server doesn't keep anything of a gone session.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ChatServerSoakTest extends TestCase {
+
+	private static final int WARMUP_CYCLES = 50000;
+	private static final int CYCLES = 1000000;
+	/** Heap growth allowed between warm-up and the end of the run */
+	private static final long MAX_HEAP_GROWTH = 16 * 1024 * 1024;
+	
+	final ChatServer server = new ChatServer(null);
+	
+	private void cycle(FakeRemoteClient client, int i) {
+		TestUsers.join(server, client, "user" + (i & 1023), "room");
+		server.handleClientDisconnected(client, 0, null);
+	}
+	
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		
+		for (int i = 0; i < 5; ++i) {
+			System.gc();
+			
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	public void testDisconnectReleasesEverything() {
+		final FakeRemoteClient client = new FakeRemoteClient();
+		final User user = TestUsers.join(server, client, "jack", "room");
+		
+		assertSame(user, server.getUser("jack"));
+		assertEquals(1, server.getGroupCount());
+		assertEquals(1, client.listeners.size());
+		
+		server.handleClientDisconnected(client, 0, null);
+		
+		assertTrue(user.isDisconnected());
+		assertNull(server.getUser("jack"));
+		assertNull(server.getGroup("room"));
+		assertEquals(0, server.getConnectedCount());
+		assertEquals(0, server.getGroupCount());
+		assertEquals(0, user.getGroupNames().length);
+		assertEquals(0, user.getOutboundQueue().size());
+		assertEquals(0, client.listeners.size());
+		
+		// late packets are ignored
+		user.handlePacket(new UserRegisterRequest("jack", ""));
+		assertNull(server.getUser("jack"));
+	}
+	
+	public void testRemainingMembersAreNotified() throws IOException {
+		final FakeRemoteClient jackClient = new FakeRemoteClient();
+		final User jack = TestUsers.join(server, jackClient, "jack", "room");
+		final User john = TestUsers.join(server, new FakeRemoteClient(), "john", "room");
+		
+		john.getOutboundQueue().clear();
+		
+		server.handleClientDisconnected(jackClient, 0, null);
+		
+		assertEquals(1, server.getGroup("room").size());
+		assertFalse(server.getGroup("room").isMember(jack));
+		
+		final PacketFrame frame = (PacketFrame) john.getOutboundQueue().poll();
+		
+		assertNotNull(frame);
+		assertEquals(PacketType.Message, frame.getPacketType());
+		
+		final MessagePacket message = (MessagePacket) frame.getPacket();
+		
+		assertEquals(MessageType.System, message.getMessageType());
+		assertEquals("jack", message.getSenderName());
+		assertEquals("room", message.getReceiverName());
+	}
+	
+	public void testGroupMessagesGoToHistory() throws IOException {
+		final User jack = TestUsers.join(server, new FakeRemoteClient(), "jack", "room");
+		
+		jack.handlePacket(new MessagePacket(MessageType.Group, "", "room", "hello"));
+		
+		final PacketFrame[] recent = server.getGroup("room").getHistory().getRecent(10);
+		
+		assertEquals(1, recent.length);
+		assertEquals("hello", ((MessagePacket) recent[0].getPacket()).getMessage());
+	}
+	
+	public void testOfflineMessagesDeliveredOnRegister() throws IOException {
+		final File file = File.createTempFile("chat-offline", ".dat");
+		file.delete();
+		
+		final OfflineQueue queue = new OfflineQueue(file);
+		
+		try {
+			server.setOfflineQueue(queue);
+			
+			final User jack = TestUsers.join(server, new FakeRemoteClient(), "jack", "room");
+			
+			for (int i = 0; i < 300; ++i) {
+				jack.handlePacket(new MessagePacket(MessageType.Private, "", "john", "message " + i));
+			}
+			
+			assertEquals(300, queue.getPendingCount("john"));
+			
+			final User john = TestUsers.join(server, new FakeRemoteClient(), "john", "room");
+			
+			assertEquals(0, queue.getPendingCount("john"));
+			
+			// registration response, two batches, join response
+			final OutboundQueue outbound = john.getOutboundQueue();
+			int received = 0;
+			Object packet;
+			
+			while ((packet = outbound.poll()) != null) {
+				if (packet instanceof PacketFrame && ((PacketFrame) packet).getPacketType() == PacketType.OfflineMessages) {
+					final MessagePacket[] messages = ((OfflineMessagesPacket) ((PacketFrame) packet).getPacket()).getMessages();
+					
+					assertEquals("message " + received, messages[0].getMessage());
+					assertEquals("jack", messages[0].getSenderName());
+					received += messages.length;
+				}
+			}
+			
+			assertEquals(300, received);
+		} finally {
+			queue.close();
+			file.delete();
+		}
+	}
+	
+	public void testHeapStaysFlat() {
+		// writers drain the resident member's queue
+		server.getBroadcaster().start();
+		
+		try {
+			runSoak();
+		} finally {
+			server.getBroadcaster().stop();
+		}
+	}
+	
+	private void runSoak() {
+		final FakeRemoteClient resident = new FakeRemoteClient();
+		TestUsers.join(server, resident, "resident", "room");
+		
+		final FakeRemoteClient[] clients = new FakeRemoteClient[1024];
+		
+		for (int i = 0; i < clients.length; ++i) {
+			clients[i] = new FakeRemoteClient();
+		}
+		
+		for (int i = 0; i < WARMUP_CYCLES; ++i) {
+			cycle(clients[i & 1023], i);
+		}
+		
+		final long before = usedHeap();
+		
+		for (int i = 0; i < CYCLES; ++i) {
+			cycle(clients[i & 1023], i);
+		}
+		
+		final long after = usedHeap();
+		
+		assertEquals(1, server.getConnectedCount());
+		assertEquals(1, server.getGroupCount());
+		assertEquals(1, server.getGroup("room").size());
+		assertEquals(1, server.reaper.size());
+		assertNull(server.getUser("user0"));
+		
+		for (int i = 0; i < clients.length; ++i) {
+			assertEquals(0, clients[i].listeners.size());
+		}
+		
+		assertTrue("heap grew by " + (after - before) + " bytes", after - before < MAX_HEAP_GROWTH);
+	}
+
+}
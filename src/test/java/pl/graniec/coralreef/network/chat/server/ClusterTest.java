@@ -0,0 +1,579 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.chat.packets.ChatPacket;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinRequest;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.RegisterRejectReason;
+import pl.graniec.coralreef.network.chat.packets.RelayHelloPacket;
+import pl.graniec.coralreef.network.chat.packets.RelayPresencePacket;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterResponse;
+import pl.graniec.coralreef.network.chat.store.MessageLog;
+import pl.graniec.coralreef.network.chat.transport.NioServer;
+import pl.graniec.coralreef.network.chat.transport.SocketClient;
+import pl.graniec.coralreef.network.client.Client;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ClusterTest extends TestCase {
+	
+	private static final String[] NODES = { "a", "b", "c" };
+	private static final int KEYS = 3000;
+	private static final int MESSAGES = 50;
+	private static final long TIMEOUT = 10000;
+	
+	private Cluster[] clusters;
+	private ChatServer[] servers;
+	/** Relay ports of the nodes */
+	private int[] ports;
+	/** Message logs of the nodes, <code>null</code> if none */
+	private MessageLog[] logs;
+	private File[] logDirectories;
+	
+	protected void tearDown() throws Exception {
+		if (clusters != null) {
+			for (int i = 0; i < clusters.length; ++i) {
+				if (clusters[i] != null) {
+					clusters[i].close();
+				}
+			}
+		}
+		
+		if (logs != null) {
+			for (int i = 0; i < logs.length; ++i) {
+				logs[i].close();
+				
+				final File[] files = logDirectories[i].listFiles();
+				
+				for (int j = 0; j < files.length; ++j) {
+					files[j].delete();
+				}
+				
+				logDirectories[i].delete();
+			}
+		}
+	}
+	
+	/**
+	 * Gives every started node a message log.
+	 */
+	private void startLogs() throws IOException {
+		logs = new MessageLog[NODES.length];
+		logDirectories = new File[NODES.length];
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			logDirectories[i] = File.createTempFile("chat-log", "");
+			logDirectories[i].delete();
+			
+			logs[i] = new MessageLog(logDirectories[i]);
+			servers[i].setMessageLog(logs[i]);
+		}
+	}
+	
+	public void testRingBalance() {
+		final HashRing ring = new HashRing();
+		final Map counts = new HashMap();
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			ring.addNode(NODES[i]);
+			counts.put(NODES[i], new int[1]);
+		}
+		
+		for (int i = 0; i < KEYS; ++i) {
+			++((int[]) counts.get(ring.getNode("group" + i)))[0];
+		}
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			final int count = ((int[]) counts.get(NODES[i]))[0];
+			
+			assertTrue(NODES[i] + " owns " + count, count > KEYS / 5 && count < KEYS * 47 / 100);
+		}
+	}
+	
+	public void testRingRemove() {
+		final HashRing ring = new HashRing();
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			ring.addNode(NODES[i]);
+		}
+		
+		final String[] owners = new String[KEYS];
+		
+		for (int i = 0; i < KEYS; ++i) {
+			owners[i] = ring.getNode("group" + i);
+		}
+		
+		ring.removeNode("c");
+		
+		// only keys of the removed node move
+		for (int i = 0; i < KEYS; ++i) {
+			final String owner = ring.getNode("group" + i);
+			
+			assertFalse("c".equals(owner));
+			
+			if (!"c".equals(owners[i])) {
+				assertEquals(owners[i], owner);
+			}
+		}
+		
+		ring.removeNode("a");
+		ring.removeNode("b");
+		
+		assertNull(ring.getNode("group"));
+	}
+	
+	/**
+	 * Starts all nodes in this JVM, linked over localhost.
+	 */
+	private void startCluster() throws Exception {
+		clusters = new Cluster[NODES.length];
+		servers = new ChatServer[NODES.length];
+		ports = new int[NODES.length];
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			final NioServer relayServer = new NioServer(1);
+			
+			servers[i] = new ChatServer(null);
+			clusters[i] = new Cluster(NODES[i], servers[i], relayServer);
+			clusters[i].open(0);
+			ports[i] = relayServer.getLocalPort();
+		}
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			for (int j = 0; j < NODES.length; ++j) {
+				if (i != j) {
+					clusters[i].addNode(NODES[j], "localhost", ports[j]);
+				}
+			}
+		}
+	}
+	
+	private static interface Condition {
+		boolean isMet();
+	}
+	
+	private static void waitFor(Condition condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		
+		while (!condition.isMet()) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the <code>cluster</code> gives any
+	 * of the test keys to the node of given id.
+	 */
+	private static boolean ownsAny(Cluster cluster, String nodeId) {
+		for (int i = 0; i < KEYS; ++i) {
+			if (nodeId.equals(cluster.getOwner("group" + i))) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private static void send(User user, ChatPacket packet) {
+		final FakeRemoteClient client = (FakeRemoteClient) user.getClient();
+		((PacketListener) client.listeners.get(0)).packetReceived(packet);
+	}
+	
+	/**
+	 * Registers a user of given <code>name</code> on every node and waits
+	 * until all nodes know where the users are.
+	 */
+	private User[] register(final String name) throws InterruptedException {
+		final User[] users = new User[NODES.length];
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			users[i] = TestUsers.connect(servers[i], new FakeRemoteClient());
+			send(users[i], new UserRegisterRequest(name + i, ""));
+		}
+		
+		waitFor(new Condition() {
+			public boolean isMet() {
+				for (int i = 0; i < NODES.length; ++i) {
+					for (int j = 0; j < NODES.length; ++j) {
+						if (!NODES[j].equals(clusters[i].getUserNode(name + j))) {
+							return false;
+						}
+					}
+				}
+				
+				return true;
+			}
+		});
+		
+		return users;
+	}
+	
+	/**
+	 * @return Messages of given type queued for the <code>user</code>.
+	 */
+	private static List received(User user, byte messageType, List messages) throws IOException {
+		Object packet;
+		
+		while ((packet = user.getOutboundQueue().poll()) != null) {
+			final ChatPacket chatPacket = ((PacketFrame) packet).getPacket();
+			
+			if (chatPacket instanceof MessagePacket && ((MessagePacket) chatPacket).getMessageType() == messageType) {
+				messages.add(chatPacket);
+			}
+		}
+		
+		return messages;
+	}
+	
+	private static List receive(final User user, final byte messageType, final int count) throws Exception {
+		final List messages = new ArrayList();
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		
+		while (received(user, messageType, messages).size() < count) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		
+		assertEquals(count, messages.size());
+		return messages;
+	}
+	
+	public void testGroupOrder() throws Exception {
+		startCluster();
+		startLogs();
+		
+		final User[] users = register("user");
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			send(users[i], new GroupJoinRequest("room"));
+		}
+		
+		// the owner knows all other nodes with members
+		final Cluster owner = clusters[Arrays.asList(NODES).indexOf(clusters[0].getOwner("room"))];
+		
+		waitFor(new Condition() {
+			public boolean isMet() {
+				return owner.getSubscribers("room").length == NODES.length - 1;
+			}
+		});
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			users[i].getOutboundQueue().clear();
+		}
+		
+		final Thread[] senders = new Thread[NODES.length];
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			final User user = users[i];
+			
+			senders[i] = new Thread() {
+				public void run() {
+					for (int sequence = 0; sequence < MESSAGES; ++sequence) {
+						send(user, new MessagePacket(MessageType.Group, "", "room", String.valueOf(sequence)));
+					}
+				}
+			};
+			
+			senders[i].start();
+		}
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			senders[i].join();
+		}
+		
+		final List expected = receive(users[0], MessageType.Group, NODES.length * MESSAGES);
+		
+		// the same order on all nodes, each sender's messages in order
+		for (int i = 1; i < NODES.length; ++i) {
+			final List messages = receive(users[i], MessageType.Group, NODES.length * MESSAGES);
+			
+			for (int j = 0; j < expected.size(); ++j) {
+				final MessagePacket expectedMessage = (MessagePacket) expected.get(j);
+				final MessagePacket message = (MessagePacket) messages.get(j);
+				
+				assertEquals(expectedMessage.getSenderName(), message.getSenderName());
+				assertEquals(expectedMessage.getMessage(), message.getMessage());
+			}
+		}
+		
+		final int[] lastSequences = new int[NODES.length];
+		
+		for (int i = 0; i < expected.size(); ++i) {
+			final MessagePacket message = (MessagePacket) expected.get(i);
+			final int sender = Integer.parseInt(message.getSenderName().substring("user".length()));
+			
+			assertEquals(lastSequences[sender], Integer.parseInt(message.getMessage()));
+			++lastSequences[sender];
+		}
+		
+		// every node logs all of them in the same order
+		final byte[][] logged = logs[0].readRecent(MessageType.Group, "room", expected.size() + 1);
+		
+		assertEquals(expected.size(), logged.length);
+		
+		for (int i = 1; i < NODES.length; ++i) {
+			final byte[][] otherLogged = logs[i].readRecent(MessageType.Group, "room", expected.size() + 1);
+			
+			assertEquals(logged.length, otherLogged.length);
+			
+			for (int j = 0; j < logged.length; ++j) {
+				assertTrue(Arrays.equals(logged[j], otherLogged[j]));
+			}
+		}
+	}
+	
+	public void testPrivateAndPublic() throws Exception {
+		startCluster();
+		
+		final User[] users = register("user");
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			users[i].getOutboundQueue().clear();
+		}
+		
+		send(users[0], new MessagePacket(MessageType.Private, "", "user2", "psst"));
+		
+		final MessagePacket whisper = (MessagePacket) receive(users[2], MessageType.Private, 1).get(0);
+		
+		assertEquals("user0", whisper.getSenderName());
+		assertEquals("psst", whisper.getMessage());
+		
+		send(users[1], new MessagePacket(MessageType.Public, "", "", "hello"));
+		
+		for (int i = 0; i < NODES.length; ++i) {
+			final MessagePacket message = (MessagePacket) receive(users[i], MessageType.Public, 1).get(0);
+			
+			assertEquals("user1", message.getSenderName());
+			assertEquals("hello", message.getMessage());
+		}
+	}
+	
+	public void testNameTakenOnOtherNode() throws Exception {
+		startCluster();
+		
+		register("user");
+		
+		final User user = TestUsers.connect(servers[1], new FakeRemoteClient());
+		user.getOutboundQueue().clear();
+		
+		send(user, new UserRegisterRequest("user0", ""));
+		
+		final UserRegisterResponse response = (UserRegisterResponse) ((PacketFrame) user.getOutboundQueue().poll()).getPacket();
+		
+		assertFalse(response.isSucceed());
+		assertEquals(RegisterRejectReason.UserNameAlreadyInUse, response.getFailReason());
+		assertNull(user.getName());
+	}
+	
+	public void testNodeLost() throws Exception {
+		startCluster();
+		
+		final User[] users = register("user");
+		
+		// a group owned by the node that will die, with members elsewhere
+		int key = 0;
+		
+		while (!"c".equals(clusters[0].getOwner("room" + key))) {
+			++key;
+		}
+		
+		final String room = "room" + key;
+		
+		send(users[0], new GroupJoinRequest(room));
+		send(users[1], new GroupJoinRequest(room));
+		
+		clusters[2].close();
+		clusters[2] = null;
+		
+		waitFor(new Condition() {
+			public boolean isMet() {
+				return !ownsAny(clusters[0], "c") && !ownsAny(clusters[1], "c")
+						&& clusters[0].getUserNode("user2") == null;
+			}
+		});
+		
+		assertFalse(clusters[0].relayPrivate("user2", PacketFrame.encode(new MessagePacket(MessageType.Private, "user0", "user2", "lost"))));
+		
+		// the new owner learns about the members on the other node
+		final String owner = clusters[0].getOwner(room);
+		final int ownerIndex = "a".equals(owner) ? 0 : 1;
+		
+		assertEquals(owner, clusters[1].getOwner(room));
+		
+		waitFor(new Condition() {
+			public boolean isMet() {
+				return Arrays.asList(clusters[ownerIndex].getSubscribers(room)).contains(NODES[1 - ownerIndex]);
+			}
+		});
+		
+		users[1].getOutboundQueue().clear();
+		send(users[0], new MessagePacket(MessageType.Group, "", room, "still here"));
+		
+		final MessagePacket message = (MessagePacket) receive(users[1], MessageType.Group, 1).get(0);
+		
+		assertEquals("user0", message.getSenderName());
+		assertEquals("still here", message.getMessage());
+	}
+	
+	public void testRemoveAndAddAgain() throws Exception {
+		startCluster();
+		
+		// all links said hello
+		register("user");
+		
+		clusters[0].removeNode("b");
+		
+		assertFalse(ownsAny(clusters[0], "b"));
+		
+		// b loses its link to a in turn
+		waitFor(new Condition() {
+			public boolean isMet() {
+				return !ownsAny(clusters[1], "a");
+			}
+		});
+		
+		clusters[0].addNode("b", "localhost", ports[1]);
+		clusters[1].addNode("a", "localhost", ports[0]);
+		
+		assertTrue(ownsAny(clusters[0], "b"));
+		assertTrue(ownsAny(clusters[1], "a"));
+		
+		// presence goes both ways again
+		register("again");
+	}
+	
+	/**
+	 * Client of a node that has stopped reading, so sending never ends.
+	 */
+	private static class StuckClient implements Client {
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		private volatile boolean connected;
+		
+		public void addPacketListener(PacketListener listener) {
+		}
+		
+		public void removePacketListener(PacketListener listener) {
+		}
+		
+		public void connect(String host, int port) {
+			connected = true;
+		}
+		
+		public void disconnect() {
+			connected = false;
+		}
+		
+		public boolean isConnected() {
+			return connected;
+		}
+		
+		public void send(Object data) throws NetworkException {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new NetworkException("interrupted");
+			}
+		}
+	}
+	
+	public void testSlowNodeDropped() throws Exception {
+		final StuckClient stuck = new StuckClient();
+		final ChatServer server = new ChatServer(null);
+		final Cluster cluster = new Cluster("a", server, new NioServer(1)) {
+			protected Client createClient() {
+				return stuck;
+			}
+		};
+		
+		clusters = new Cluster[] { cluster };
+		cluster.open(0);
+		cluster.addNode("b", "localhost", 0);
+		
+		assertTrue(ownsAny(cluster, "b"));
+		
+		final char[] filler = new char[64 * 1024];
+		
+		Arrays.fill(filler, 'x');
+		
+		final PacketFrame frame = PacketFrame.encode(new MessagePacket(MessageType.Public, "jack", "", new String(filler)));
+		
+		try {
+			for (int i = 0; i <= Cluster.MAX_LINK_BYTES / frame.size(); ++i) {
+				cluster.relayPublic(frame);
+			}
+			
+			// lost, not waiting for the node
+			waitFor(new Condition() {
+				public boolean isMet() {
+					return !ownsAny(cluster, "b");
+				}
+			});
+		} finally {
+			stuck.release.countDown();
+		}
+	}
+	
+	public void testUnknownNodeIgnored() throws Exception {
+		startCluster();
+		
+		final SocketClient stranger = new SocketClient();
+		
+		stranger.connect("localhost", ports[0]);
+		stranger.send(PacketFrame.encode(new RelayHelloPacket("mallory")));
+		stranger.send(PacketFrame.encode(new RelayPresencePacket(RelayPresencePacket.UserPresence, "evil", true)));
+		
+		// a known node's presence gets through meanwhile
+		register("user");
+		Thread.sleep(200);
+		
+		assertNull(clusters[0].getUserNode("evil"));
+		
+		stranger.disconnect();
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.CompactMessagePacket;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinResponse;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.SymbolPacket;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class CompactMessageTest extends TestCase {
+	
+	final ChatServer server = new ChatServer(null);
+	
+	private User connect(String name, boolean compact) {
+		return TestUsers.join(server, new FakeRemoteClient(), name, compact, "room");
+	}
+	
+	private static Object next(User user) throws IOException {
+		final Object packet = user.getOutboundQueue().poll();
+		return packet instanceof PacketFrame ? ((PacketFrame) packet).getPacket() : packet;
+	}
+	
+	/**
+	 * @return Symbol id of the group from the last join response
+	 * queued for the <code>user</code>.
+	 */
+	private static int joinedGroupId(User user) throws IOException {
+		int groupId = 0;
+		Object packet;
+		
+		while ((packet = next(user)) != null) {
+			if (packet instanceof GroupJoinResponse) {
+				groupId = ((GroupJoinResponse) packet).getGroupId();
+			}
+		}
+		
+		return groupId;
+	}
+	
+	public void testSymbolTable() {
+		final SymbolTable symbols = new SymbolTable();
+		final Symbol[] added = new Symbol[100];
+		
+		for (int i = 0; i < added.length; ++i) {
+			added[i] = symbols.add("name" + i, new Integer(i));
+		}
+		
+		for (int i = 0; i < added.length; i += 2) {
+			symbols.remove(added[i]);
+		}
+		
+		assertEquals(50, symbols.size());
+		
+		for (int i = 0; i < added.length; ++i) {
+			assertEquals(i % 2 == 0 ? null : new Integer(i), symbols.lookup(added[i].id));
+		}
+		
+		// ids are not given out again until the counter wraps
+		final Symbol again = symbols.add("name0", "again");
+		
+		for (int i = 0; i < added.length; ++i) {
+			assertTrue(again.id != added[i].id);
+		}
+	}
+	
+	public void testCompactReceiver() throws IOException {
+		final User jack = connect("jack", true);
+		final User john = connect("john", false);
+		final int roomId = joinedGroupId(jack);
+		
+		joinedGroupId(john);
+		
+		assertEquals(server.getGroup("room").getSymbolId(), roomId);
+		
+		john.handlePacket(new MessagePacket(MessageType.Group, "", "room", "hello"));
+		john.handlePacket(new MessagePacket(MessageType.Group, "", "room", "again"));
+		
+		// names are defined once
+		final SymbolPacket sender = (SymbolPacket) next(jack);
+		final SymbolPacket receiver = (SymbolPacket) next(jack);
+		
+		assertEquals("john", sender.getName());
+		assertEquals("room", receiver.getName());
+		assertEquals(roomId, receiver.getId());
+		
+		final CompactMessagePacket first = (CompactMessagePacket) next(jack);
+		final CompactMessagePacket second = (CompactMessagePacket) next(jack);
+		
+		assertEquals(sender.getId(), first.getSenderId());
+		assertEquals(roomId, first.getReceiverId());
+		assertEquals("hello", first.getMessage());
+		assertEquals("again", second.getMessage());
+		assertNull(next(jack));
+		
+		// the sender without compact messages gets full ones
+		final MessagePacket echo = (MessagePacket) next(john);
+		
+		assertEquals("john", echo.getSenderName());
+		assertEquals("room", echo.getReceiverName());
+	}
+	
+	public void testReusedIdDefinedAgain() throws IOException {
+		final User jack = connect("jack", true);
+		final User john = connect("john", false);
+		
+		joinedGroupId(jack);
+		joinedGroupId(john);
+		
+		john.handlePacket(new MessagePacket(MessageType.Group, "", "room", "hello"));
+		
+		assertTrue(next(jack) instanceof SymbolPacket);
+		assertTrue(next(jack) instanceof SymbolPacket);
+		assertTrue(next(jack) instanceof CompactMessagePacket);
+		
+		// as if the id were given to another name after a wrap
+		final int johnId = john.symbol.id;
+		
+		john.symbol = new Symbol(johnId, "other", john);
+		john.handlePacket(new MessagePacket(MessageType.Group, "", "room", "again"));
+		
+		final SymbolPacket sender = (SymbolPacket) next(jack);
+		
+		assertEquals(johnId, sender.getId());
+		assertEquals("other", sender.getName());
+		assertTrue(next(jack) instanceof CompactMessagePacket);
+	}
+	
+	public void testCompactSender() throws IOException {
+		final User jack = connect("jack", true);
+		final User john = connect("john", false);
+		final int roomId = joinedGroupId(jack);
+		
+		joinedGroupId(john);
+		
+		jack.handlePacket(new CompactMessagePacket(MessageType.Group, 0, roomId, "hello"));
+		
+		final MessagePacket message = (MessagePacket) next(john);
+		
+		assertEquals("jack", message.getSenderName());
+		assertEquals("room", message.getReceiverName());
+		assertEquals("hello", message.getMessage());
+		
+		// ids of other kinds are dropped
+		final int jackId = ((SymbolPacket) next(jack)).getId();
+		
+		jack.handlePacket(new CompactMessagePacket(MessageType.Group, 0, jackId, "wrong"));
+		jack.handlePacket(new CompactMessagePacket(MessageType.Private, 0, roomId, "wrong"));
+		
+		assertNull(next(john));
+	}
+	
+	public void testSymbolsReleased() throws IOException {
+		final User jack = connect("jack", true);
+		final int roomId = joinedGroupId(jack);
+		final int jackId = jack.symbol.id;
+		
+		assertSame(jack, server.symbols.lookup(jackId));
+		
+		jack.handleDisconnected();
+		
+		assertNull(server.symbols.lookup(jackId));
+		assertNull(server.symbols.lookup(roomId));
+	}
+}
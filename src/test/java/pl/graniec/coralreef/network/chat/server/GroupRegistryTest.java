@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.AbstractRequest;
+import pl.graniec.coralreef.network.chat.packets.AbstractResponse;
+import pl.graniec.coralreef.network.chat.packets.ChatPacket;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinResponse;
+import pl.graniec.coralreef.network.chat.packets.GroupLeaveRequest;
+import pl.graniec.coralreef.network.chat.packets.GroupRejectReason;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
+import pl.graniec.coralreef.network.chat.store.MessageLog;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class GroupRegistryTest extends TestCase {
+	
+	final GroupRegistry groups = new GroupRegistry();
+	final User jack = new User("jack");
+	final User john = new User("john");
+	
+	public void testCreateAndDestroy() {
+		assertNull(groups.getGroup("room"));
+		
+		assertTrue(groups.join("room", jack));
+		final Group room = groups.getGroup("room");
+		
+		assertNotNull(room);
+		assertFalse(groups.join("room", jack));
+		assertTrue(groups.join("room", john));
+		assertSame(room, groups.getGroup("room"));
+		assertEquals(2, room.size());
+		assertEquals(1, groups.size());
+		
+		assertTrue(groups.leave("room", jack));
+		assertFalse(groups.leave("room", jack));
+		assertSame(room, groups.getGroup("room"));
+		
+		// gone with the last member
+		assertTrue(groups.leave("room", john));
+		assertNull(groups.getGroup("room"));
+		assertEquals(0, groups.size());
+		assertFalse(groups.leave("room", john));
+		
+		// a new group with the same name
+		assertTrue(groups.join("room", jack));
+		assertNotSame(room, groups.getGroup("room"));
+	}
+	
+	public void testGetGroups() {
+		groups.join("room", jack);
+		groups.join("hall", jack);
+		groups.join("hall", john);
+		
+		assertEquals(2, groups.getGroups().length);
+	}
+	
+	private static AbstractResponse request(User user, AbstractRequest request, int requestId) throws IOException {
+		request.setRequestId(requestId);
+		user.getOutboundQueue().clear();
+		user.handlePacket(request);
+		
+		final ChatPacket response = ((PacketFrame) user.getOutboundQueue().poll()).getPacket();
+		
+		assertEquals(requestId, ((AbstractResponse) response).getRequestId());
+		return (AbstractResponse) response;
+	}
+	
+	public void testJoinAndLeaveResponses() throws IOException {
+		final ChatServer server = new ChatServer(null);
+		final FakeRemoteClient client = new FakeRemoteClient();
+		
+		
+		final User user = TestUsers.connect(server, client);
+		AbstractResponse response;
+		
+		response = request(user, new GroupJoinRequest("room"), 1);
+		assertFalse(response.isSucceed());
+		assertEquals(GroupRejectReason.NotRegistered, response.getFailReason());
+		
+		user.handlePacket(new UserRegisterRequest("jack", ""));
+		
+		response = request(user, new GroupJoinRequest("bad room"), 2);
+		assertFalse(response.isSucceed());
+		assertEquals(GroupRejectReason.IllegalGroupName, response.getFailReason());
+		
+		response = request(user, new GroupJoinRequest("room"), 3);
+		assertTrue(response.isSucceed());
+		assertEquals(server.getGroup("room").getSymbolId(), ((GroupJoinResponse) response).getGroupId());
+		assertTrue(user.isMemberOf("room"));
+		
+		response = request(user, new GroupJoinRequest("room"), 4);
+		assertFalse(response.isSucceed());
+		assertEquals(GroupRejectReason.AlreadyMember, response.getFailReason());
+		
+		response = request(user, new GroupLeaveRequest("room"), 5);
+		assertTrue(response.isSucceed());
+		assertFalse(user.isMemberOf("room"));
+		assertNull(server.getGroup("room"));
+		
+		response = request(user, new GroupLeaveRequest("room"), 6);
+		assertFalse(response.isSucceed());
+		assertEquals(GroupRejectReason.NotMember, response.getFailReason());
+	}
+	
+	public void testHistoryRestoredOnFirstUse() throws Exception {
+		final File directory = File.createTempFile("chat-log", "");
+		directory.delete();
+		
+		final MessageLog log = new MessageLog(directory, 16 * 1024);
+		
+		try {
+			for (int i = 0; i < 3; ++i) {
+				final MessagePacket message = new MessagePacket(MessageType.Group, "john", "room", "old " + i);
+				log.append(i, MessageType.Group, "room", PacketFrame.encode(message).getData());
+			}
+			
+			final ChatServer server = new ChatServer(null);
+			final FakeRemoteClient client = new FakeRemoteClient();
+			
+			server.setMessageLog(log);
+			
+			final User user = TestUsers.join(server, client, "jack", "room");
+			
+			// not read while joining
+			final Group room = server.getGroup("room");
+			assertNotNull(room.historyLog);
+			
+			user.handlePacket(new MessagePacket(MessageType.Group, "", "room", "new"));
+			
+			final PacketFrame[] history = room.getHistory().getRecent(10);
+			
+			assertNull(room.historyLog);
+			assertEquals(4, history.length);
+			
+			for (int i = 0; i < 3; ++i) {
+				assertEquals("old " + i, ((MessagePacket) history[i].getPacket()).getMessage());
+			}
+			
+			assertEquals("new", ((MessagePacket) history[3].getPacket()).getMessage());
+		} finally {
+			log.close();
+			
+			final File[] files = directory.listFiles();
+			
+			for (int i = 0; i < files.length; ++i) {
+				files[i].delete();
+			}
+			
+			directory.delete();
+		}
+	}
+}
@@ -28,6 +28,9 @@
  */
 package pl.graniec.coralreef.network.chat.server;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import junit.framework.TestCase;
 
 /**
@@ -35,6 +38,9 @@ import junit.framework.TestCase;
  *
  */
 public class GroupTest extends TestCase {
+	
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 2000;
 
 	final Group group = new Group("group");
 	final User user1 = new User("jack");
@@ -89,4 +95,162 @@ public class GroupTest extends TestCase {
 		assertEquals(user1, group.getMembers()[0]);
 	}
 
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.chat.server.Group#size()}.
+	 */
+	public void testSize() {
+		assertEquals(0, group.size());
+		
+		group.addMember(user1);
+		group.addMember(user2);
+		assertEquals(2, group.size());
+		
+		group.removeMember(user1);
+		assertEquals(1, group.size());
+	}
+	
+	/**
+	 * Test method for {@link pl.graniec.coralreef.network.chat.server.Group#getMembers()}.
+	 */
+	public void testGetMembersSnapshot() {
+		group.addMember(user1);
+		
+		final User[] snapshot = group.getMembers();
+		assertSame(snapshot, group.getMembers());
+		
+		group.addMember(user2);
+		assertEquals(1, snapshot.length);
+		assertEquals(2, group.getMembers().length);
+		
+		group.removeMember(user1);
+		assertEquals(user1, snapshot[0]);
+		assertEquals(user2, group.getMembers()[0]);
+	}
+	
+	public void testLargeGroup() {
+		final User[] users = new User[10000];
+		
+		for (int i = 0; i < users.length; ++i) {
+			users[i] = new User("user" + i);
+			assertTrue(group.addMember(users[i]));
+		}
+		
+		final User[] members = group.getMembers();
+		
+		assertEquals(users.length, members.length);
+		assertEquals(users[0], members[0]);
+		assertEquals(users[users.length - 1], members[users.length - 1]);
+		
+		assertTrue(group.removeMember(users[5000]));
+		assertFalse(group.isMember(users[5000]));
+		assertTrue(group.isMember(users[5001]));
+		assertEquals(users.length - 1, group.getMembers().length);
+		assertEquals(users.length, members.length);
+	}
+	
+	/**
+	 * Every thread joins and leaves with its own users.
+	 */
+	public void testConcurrentJoinLeave() throws Exception {
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] threads = new Thread[THREADS];
+		
+		for (int i = 0; i < THREADS; ++i) {
+			final User user = new User("user" + i);
+			
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int r = 0; r < ROUNDS; ++r) {
+							assertTrue(group.addMember(user));
+							assertTrue(group.isMember(user));
+							assertTrue(group.removeMember(user));
+						}
+						
+						assertTrue(group.addMember(user));
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			});
+		}
+		
+		runAll(threads);
+		
+		if (failure[0] != null) {
+			fail(failure[0].toString());
+		}
+		
+		assertEquals(THREADS, group.size());
+	}
+	
+	/**
+	 * Snapshots read while other threads join and leave have
+	 * to be consistent.
+	 */
+	public void testConcurrentIterate() throws Exception {
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] threads = new Thread[THREADS];
+		final User stayer = new User("stayer");
+		
+		group.addMember(stayer);
+		
+		for (int i = 0; i < THREADS; ++i) {
+			if (i % 2 == 0) {
+				final User user = new User("user" + i);
+				
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						for (int r = 0; r < ROUNDS; ++r) {
+							group.addMember(user);
+							group.removeMember(user);
+						}
+					}
+				});
+			} else {
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						try {
+							for (int r = 0; r < ROUNDS; ++r) {
+								final User[] members = group.getMembers();
+								final Set seen = new HashSet();
+								boolean stayerFound = false;
+								
+								for (int m = 0; m < members.length; ++m) {
+									assertNotNull(members[m]);
+									assertTrue(seen.add(members[m]));
+									
+									stayerFound |= members[m] == stayer;
+								}
+								
+								assertTrue(stayerFound);
+							}
+						} catch (Throwable e) {
+							failure[0] = e;
+						}
+					}
+				});
+			}
+		}
+		
+		runAll(threads);
+		
+		if (failure[0] != null) {
+			fail(failure[0].toString());
+		}
+		
+		assertEquals(1, group.size());
+		assertEquals(stayer, group.getMembers()[0]);
+	}
+	
+	private static void runAll(Thread[] threads) throws InterruptedException {
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i].join();
+		}
+	}
+
 }
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.PacketType;
+import pl.graniec.coralreef.network.chat.packets.PongPacket;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class IdleReaperTest extends TestCase {
+	
+	private static final long TIMEOUT = 10000;
+	private static final long TICK = 1000;
+	
+	final ChatServer server = new ChatServer(null);
+	final FakeRemoteClient client = new FakeRemoteClient();
+	
+	User user;
+	long start;
+	int ticks;
+	
+	/*
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		server.setIdleTimeout(TIMEOUT);
+		user = TestUsers.connect(server, client);
+		start = IdleReaper.now();
+		
+		// protocol packet
+		user.getOutboundQueue().clear();
+	}
+	
+	private void tick(int count) {
+		for (int i = 0; i < count; ++i) {
+			server.reaper.tick(start + ++ticks * TICK);
+		}
+	}
+	
+	public void testQuietUserIsPinged() throws IOException {
+		tick(4);
+		assertEquals(0, user.getOutboundQueue().size());
+		
+		tick(2);
+		assertEquals(1, user.getOutboundQueue().size());
+		
+		final PacketFrame frame = (PacketFrame) user.getOutboundQueue().poll();
+		assertEquals(PacketType.Ping, frame.getPacketType());
+		
+		assertFalse(user.isDisconnected());
+		assertEquals(1, server.reaper.size());
+	}
+	
+	public void testIdleUserIsDisconnected() {
+		tick(12);
+		
+		assertTrue(user.isDisconnected());
+		assertTrue(client.disconnected);
+		assertEquals(0, server.getConnectedCount());
+		assertEquals(0, server.reaper.size());
+	}
+	
+	public void testActiveUserStays() {
+		for (int i = 0; i < 5; ++i) {
+			tick(6);
+			
+			// answer the ping
+			user.handlePacket(PacketFrame.encode(new PongPacket(0)));
+			
+			// the answer came now, turn the clock back to it
+			start -= 6 * TICK;
+		}
+		
+		assertFalse(user.isDisconnected());
+		assertEquals(1, server.getConnectedCount());
+	}
+	
+	public void testDisconnectedUserLeavesWheel() {
+		server.handleClientDisconnected(client, 0, null);
+		
+		assertEquals(0, server.reaper.size());
+		
+		tick(12);
+		assertFalse(client.disconnected);
+	}
+	
+	public void testTimeoutLongerThanWheel() {
+		server.handleClientDisconnected(client, 0, null);
+		server.setIdleTimeout(2000 * TICK);
+		server.handleClientConnected(client);
+		
+		tick(999);
+		assertFalse(client.disconnected);
+		
+		tick(1002);
+		assertTrue(client.disconnected);
+	}
+
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.chat.packets.GroupJoinRequest;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageRejectReason;
+import pl.graniec.coralreef.network.chat.packets.MessageRejectedPacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class MailboxTest extends TestCase {
+	
+	private static final int PRODUCERS = 4;
+	private static final int MAILBOXES = 8;
+	private static final int TASKS = 1000;
+	
+	final ExecutorService executor = PacketExecutors.threadPool(4);
+	
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+	
+	private static void await(CountDownLatch latch) throws InterruptedException {
+		assertTrue("timed out", latch.await(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Task that checks that its mailbox runs tasks in order and one at a time.
+	 */
+	private static class CheckedTask implements Runnable {
+		
+		final AtomicBoolean running;
+		final int[] lastSequences;
+		final int producer;
+		final int sequence;
+		final AtomicInteger failures;
+		final CountDownLatch done;
+		
+		CheckedTask(AtomicBoolean running, int[] lastSequences, int producer, int sequence, AtomicInteger failures, CountDownLatch done) {
+			this.running = running;
+			this.lastSequences = lastSequences;
+			this.producer = producer;
+			this.sequence = sequence;
+			this.failures = failures;
+			this.done = done;
+		}
+		
+		public void run() {
+			if (!running.compareAndSet(false, true)) {
+				failures.incrementAndGet();
+			}
+			
+			if (lastSequences[producer] != sequence - 1) {
+				failures.incrementAndGet();
+			}
+			
+			lastSequences[producer] = sequence;
+			running.set(false);
+			done.countDown();
+		}
+	}
+	
+	public void testOrder() throws InterruptedException {
+		final Mailbox[] mailboxes = new Mailbox[MAILBOXES];
+		final AtomicBoolean[] running = new AtomicBoolean[MAILBOXES];
+		final int[][] lastSequences = new int[MAILBOXES][PRODUCERS];
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(PRODUCERS * MAILBOXES * TASKS);
+		
+		for (int i = 0; i < MAILBOXES; ++i) {
+			mailboxes[i] = new Mailbox(executor);
+			running[i] = new AtomicBoolean();
+			
+			for (int j = 0; j < PRODUCERS; ++j) {
+				lastSequences[i][j] = -1;
+			}
+		}
+		
+		final Thread[] producers = new Thread[PRODUCERS];
+		
+		for (int i = 0; i < PRODUCERS; ++i) {
+			final int producer = i;
+			
+			producers[i] = new Thread() {
+				public void run() {
+					for (int sequence = 0; sequence < TASKS; ++sequence) {
+						for (int j = 0; j < MAILBOXES; ++j) {
+							mailboxes[j].post(new CheckedTask(running[j], lastSequences[j], producer, sequence, failures, done));
+						}
+					}
+				}
+			};
+			
+			producers[i].start();
+		}
+		
+		await(done);
+		assertEquals(0, failures.get());
+	}
+	
+	public void testUserMailbox() throws InterruptedException {
+		final ChatServer server = new ChatServer(null);
+		final FakeRemoteClient client = new FakeRemoteClient();
+		final CountDownLatch handled = new CountDownLatch(1);
+		
+		server.setPacketExecutor(executor);
+		
+		final User user = TestUsers.connect(server, client);
+		
+		final PacketListener listener = (PacketListener) client.listeners.get(0);
+		
+		listener.packetReceived(new UserRegisterRequest("jack", ""));
+		listener.packetReceived(new GroupJoinRequest("room"));
+		
+		user.execute(new Runnable() {
+			public void run() {
+				handled.countDown();
+			}
+		});
+		
+		await(handled);
+		
+		assertEquals("jack", user.getName());
+		assertTrue(server.getGroup("room").isMember(user));
+		
+		// disconnection is handled after the packets before it
+		final CountDownLatch disconnected = new CountDownLatch(1);
+		
+		listener.packetReceived(new GroupJoinRequest("hall"));
+		server.handleClientDisconnected(client, 0, "test");
+		
+		user.execute(new Runnable() {
+			public void run() {
+				disconnected.countDown();
+			}
+		});
+		
+		await(disconnected);
+		
+		assertNull(server.getGroup("room"));
+		assertNull(server.getGroup("hall"));
+		assertNull(server.getUser("jack"));
+	}
+	
+	public void testCapacity() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final Mailbox mailbox = new Mailbox(executor, 2);
+		final CountDownLatch done = new CountDownLatch(3);
+		final Runnable task = new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		};
+		
+		// holds the mailbox's thread, so nothing else runs
+		mailbox.post(new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		
+		assertTrue(mailbox.offer(task));
+		assertFalse(mailbox.offer(task));
+		
+		// must not be lost
+		mailbox.post(task);
+		mailbox.post(task);
+		assertEquals(4, mailbox.size());
+		
+		release.countDown();
+		await(done);
+		
+		assertTrue(mailbox.offer(new Runnable() {
+			public void run() {
+			}
+		}));
+	}
+	
+	public void testFloodingUserDisconnected() throws InterruptedException {
+		final ChatServer server = new ChatServer(null);
+		final FakeRemoteClient client = new FakeRemoteClient();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		server.setPacketExecutor(executor);
+		server.setMailboxCapacity(4);
+		
+		final User user = TestUsers.connect(server, client);
+		
+		// a handler that takes its time
+		user.execute(new Runnable() {
+			public void run() {
+				started.countDown();
+				
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		
+		await(started);
+		
+		final PacketListener listener = (PacketListener) client.listeners.get(0);
+		
+		for (int i = 0; i < 4; ++i) {
+			listener.packetReceived(new GroupJoinRequest("room"));
+		}
+		
+		assertFalse(client.disconnected);
+		
+		listener.packetReceived(new GroupJoinRequest("room"));
+		
+		assertTrue(client.disconnected);
+		assertFalse(server.users.containsKey(client));
+		
+		release.countDown();
+	}
+	
+	private static void drain(User user) throws InterruptedException {
+		final CountDownLatch drained = new CountDownLatch(1);
+		
+		user.execute(new Runnable() {
+			public void run() {
+				drained.countDown();
+			}
+		});
+		
+		await(drained);
+	}
+	
+	public void testGroupOrder() throws Exception {
+		final ChatServer server = new ChatServer(null);
+		final User[] users = new User[PRODUCERS];
+		final PacketListener[] listeners = new PacketListener[PRODUCERS];
+		
+		server.setPacketExecutor(executor);
+		
+		for (int i = 0; i < PRODUCERS; ++i) {
+			final FakeRemoteClient client = new FakeRemoteClient();
+			
+			users[i] = TestUsers.connect(server, client);
+			listeners[i] = (PacketListener) client.listeners.get(0);
+			
+			listeners[i].packetReceived(new UserRegisterRequest("user" + i, ""));
+			listeners[i].packetReceived(new GroupJoinRequest("room"));
+			drain(users[i]);
+			users[i].getOutboundQueue().clear();
+		}
+		
+		final Thread[] producers = new Thread[PRODUCERS];
+		
+		for (int i = 0; i < PRODUCERS; ++i) {
+			final PacketListener listener = listeners[i];
+			
+			producers[i] = new Thread() {
+				public void run() {
+					for (int sequence = 0; sequence < TASKS / 10; ++sequence) {
+						listener.packetReceived(new MessagePacket(MessageType.Group, "", "room", String.valueOf(sequence)));
+					}
+				}
+			};
+			
+			producers[i].start();
+		}
+		
+		for (int i = 0; i < PRODUCERS; ++i) {
+			producers[i].join();
+			drain(users[i]);
+		}
+		
+		final Group room = server.getGroup("room");
+		final CountDownLatch delivered = new CountDownLatch(1);
+		
+		assertTrue(room.offer(new Runnable() {
+			public void run() {
+				delivered.countDown();
+			}
+		}));
+		
+		await(delivered);
+		
+		final List expected = received(users[0]);
+		
+		assertEquals(PRODUCERS * TASKS / 10, expected.size());
+		
+		// the same order for everybody, each sender's messages in order
+		for (int i = 1; i < PRODUCERS; ++i) {
+			assertEquals(expected, received(users[i]));
+		}
+		
+		final int[] lastSequences = new int[PRODUCERS];
+		
+		for (int i = 0; i < expected.size(); ++i) {
+			final MessagePacket message = (MessagePacket) expected.get(i);
+			final int sender = Integer.parseInt(message.getSenderName().substring("user".length()));
+			final int sequence = Integer.parseInt(message.getMessage());
+			
+			assertEquals(lastSequences[sender], sequence);
+			lastSequences[sender] = sequence + 1;
+		}
+	}
+	
+	public void testGroupMailboxFull() throws Exception {
+		final ChatServer server = new ChatServer(null);
+		final FakeRemoteClient client = new FakeRemoteClient();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		server.setPacketExecutor(executor);
+		server.setGroupMailboxCapacity(2);
+		
+		final User user = TestUsers.connect(server, client);
+		final PacketListener listener = (PacketListener) client.listeners.get(0);
+		
+		listener.packetReceived(new UserRegisterRequest("jack", ""));
+		listener.packetReceived(new GroupJoinRequest("room"));
+		drain(user);
+		user.getOutboundQueue().clear();
+		
+		// a delivery that takes its time
+		assertTrue(server.getGroup("room").offer(new Runnable() {
+			public void run() {
+				started.countDown();
+				
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}));
+		
+		await(started);
+		
+		for (int i = 0; i < 3; ++i) {
+			listener.packetReceived(new MessagePacket(MessageType.Group, "", "room", String.valueOf(i)));
+		}
+		
+		drain(user);
+		
+		final List received = received(user);
+		
+		assertEquals(1, received.size());
+		
+		final MessageRejectedPacket rejected = (MessageRejectedPacket) received.get(0);
+		
+		assertEquals(MessageRejectReason.GroupBusy, rejected.getReason());
+		
+		release.countDown();
+	}
+	
+	/**
+	 * @return Packets queued for the <code>user</code>.
+	 */
+	private static List received(User user) throws IOException {
+		final List messages = new ArrayList();
+		Object packet;
+		
+		while ((packet = user.getOutboundQueue().poll()) != null) {
+			messages.add(((PacketFrame) packet).getPacket());
+		}
+		
+		return messages;
+	}
+	
+	public void testVirtualThreads() throws InterruptedException {
+		if (!PacketExecutors.isVirtualThreadsSupported()) {
+			try {
+				PacketExecutors.virtualThreads();
+				fail();
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+			
+			return;
+		}
+		
+		final ExecutorService virtualThreads = PacketExecutors.virtualThreads();
+		final Mailbox mailbox = new Mailbox(virtualThreads);
+		final AtomicBoolean running = new AtomicBoolean();
+		final int[] lastSequences = new int[] { -1 };
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(TASKS);
+		
+		for (int i = 0; i < TASKS; ++i) {
+			mailbox.post(new CheckedTask(running, lastSequences, 0, i, failures, done));
+		}
+		
+		await(done);
+		assertEquals(0, failures.get());
+		
+		virtualThreads.shutdown();
+	}
+}
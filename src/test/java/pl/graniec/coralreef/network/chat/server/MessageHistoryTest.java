@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class MessageHistoryTest extends TestCase {
+	
+	private static PacketFrame frame(int i) {
+		return PacketFrame.encode(new MessagePacket(MessageType.Group, "jack", "room", String.valueOf(i)));
+	}
+	
+	private static int number(PacketFrame frame) throws IOException {
+		return Integer.parseInt(((MessagePacket) frame.getPacket()).getMessage());
+	}
+	
+	public void testRecentOldestFirst() throws IOException {
+		final MessageHistory history = new MessageHistory(4);
+		
+		assertEquals(0, history.getRecent(10).length);
+		
+		history.add(frame(1));
+		history.add(frame(2));
+		history.add(frame(3));
+		
+		final PacketFrame[] recent = history.getRecent(2);
+		assertEquals(2, recent.length);
+		assertEquals(2, number(recent[0]));
+		assertEquals(3, number(recent[1]));
+		assertEquals(3, history.size());
+	}
+	
+	public void testOverwritesOldest() throws IOException {
+		final MessageHistory history = new MessageHistory(4);
+		
+		for (int i = 1; i <= 10; ++i) {
+			history.add(frame(i));
+		}
+		
+		final PacketFrame[] recent = history.getRecent(100);
+		assertEquals(4, recent.length);
+		
+		for (int i = 0; i < 4; ++i) {
+			assertEquals(7 + i, number(recent[i]));
+		}
+		
+		assertEquals(4, history.size());
+	}
+	
+	public void testZeroCapacity() {
+		final MessageHistory history = new MessageHistory(0);
+		
+		history.add(frame(1));
+		
+		assertEquals(0, history.getRecent(10).length);
+		assertEquals(0, history.size());
+	}
+	
+	public void testReadWhileWriting() throws Exception {
+		final MessageHistory history = new MessageHistory(16);
+		final PacketFrame[] frames = new PacketFrame[10000];
+		
+		for (int i = 0; i < frames.length; ++i) {
+			frames[i] = frame(i);
+		}
+		
+		final Thread writer = new Thread() {
+			public void run() {
+				for (int i = 0; i < frames.length; ++i) {
+					history.add(frames[i]);
+				}
+			}
+		};
+		
+		writer.start();
+		
+		while (writer.isAlive()) {
+			final PacketFrame[] recent = history.getRecent(16);
+			
+			// always in order, never more than asked
+			assertTrue(recent.length <= 16);
+			
+			for (int i = 1; i < recent.length; ++i) {
+				assertTrue(number(recent[i - 1]) < number(recent[i]));
+			}
+		}
+		
+		writer.join();
+		assertEquals(frames.length - 1, number(history.getRecent(1)[0]));
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class NameRegistryTest extends TestCase {
+	
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 2000;
+	
+	final NameRegistry names = new NameRegistry();
+	final User jack = new User("jack");
+	final User john = new User("john");
+	
+	public void testClaimAndRelease() {
+		assertTrue(names.claim("jack", jack));
+		assertTrue(names.claim("jack", jack));
+		assertFalse(names.claim("jack", john));
+		assertSame(jack, names.lookup("jack"));
+		
+		assertFalse(names.release("jack", john));
+		assertSame(jack, names.lookup("jack"));
+		
+		assertTrue(names.release("jack", jack));
+		assertFalse(names.release("jack", jack));
+		assertNull(names.lookup("jack"));
+		
+		assertTrue(names.claim("jack", john));
+		assertEquals(1, names.size());
+	}
+	
+	/**
+	 * Threads fight for the same names, only one can hold a name at a time.
+	 */
+	public void testContention() throws Exception {
+		final AtomicInteger[] holders = new AtomicInteger[4];
+		final AtomicInteger failures = new AtomicInteger();
+		final Thread[] threads = new Thread[THREADS];
+		
+		for (int i = 0; i < holders.length; ++i) {
+			holders[i] = new AtomicInteger();
+		}
+		
+		for (int i = 0; i < THREADS; ++i) {
+			final User user = new User("user" + i);
+			
+			threads[i] = new Thread() {
+				public void run() {
+					for (int r = 0; r < ROUNDS; ++r) {
+						final int name = r % holders.length;
+						
+						if (!names.claim("name" + name, user)) {
+							continue;
+						}
+						
+						if (holders[name].incrementAndGet() != 1) {
+							failures.incrementAndGet();
+						}
+						
+						if (names.lookup("name" + name) != user) {
+							failures.incrementAndGet();
+						}
+						
+						holders[name].decrementAndGet();
+						
+						if (!names.release("name" + name, user)) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+		
+		for (int i = 0; i < THREADS; ++i) {
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < THREADS; ++i) {
+			threads[i].join();
+		}
+		
+		assertEquals(0, failures.get());
+		assertEquals(0, names.size());
+	}
+	
+	/**
+	 * Threads claim their own names at once, every claim has to stay.
+	 */
+	public void testConcurrentClaims() throws Exception {
+		final Thread[] threads = new Thread[THREADS];
+		final AtomicInteger failures = new AtomicInteger();
+		
+		for (int i = 0; i < THREADS; ++i) {
+			final int thread = i;
+			final User user = new User("user" + i);
+			
+			threads[i] = new Thread() {
+				public void run() {
+					for (int r = 0; r < ROUNDS; ++r) {
+						if (!names.claim("user" + thread + "-" + r, user)) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+		
+		for (int i = 0; i < THREADS; ++i) {
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < THREADS; ++i) {
+			threads[i].join();
+		}
+		
+		assertEquals(0, failures.get());
+		assertEquals(THREADS * ROUNDS, names.size());
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class NameValidatorTest extends TestCase {
+	
+	public void testDefaultPolicy() {
+		final NameValidator validator = new NameValidator();
+		
+		assertTrue(validator.isValid("jack"));
+		assertTrue(validator.isValid("Jack_the-2nd.x"));
+		assertTrue(validator.isValid("j"));
+		assertTrue(validator.isValid("abcdefghijklmnopqrstuvwxyz012345"));
+		
+		assertFalse(validator.isValid(null));
+		assertFalse(validator.isValid(""));
+		assertFalse(validator.isValid("abcdefghijklmnopqrstuvwxyz0123456"));
+		assertFalse(validator.isValid("jack sparrow"));
+		assertFalse(validator.isValid("jack!"));
+		assertFalse(validator.isValid("jack\n"));
+		assertFalse(validator.isValid("\u0000"));
+		assertFalse(validator.isValid("\u0142ukasz"));
+	}
+	
+	public void testLength() {
+		final NameValidator validator = new NameValidator(3, 5, "", false);
+		
+		assertFalse(validator.isValid("ab"));
+		assertTrue(validator.isValid("abc"));
+		assertTrue(validator.isValid("abcde"));
+		assertFalse(validator.isValid("abcdef"));
+		
+		assertEquals(3, validator.getMinLength());
+		assertEquals(5, validator.getMaxLength());
+	}
+	
+	public void testExtraCharacters() {
+		final NameValidator validator = new NameValidator(1, 32, "@+", false);
+		
+		assertTrue(validator.isValid("jack@home"));
+		assertTrue(validator.isValid("+jack"));
+		assertFalse(validator.isValid("jack_sparrow"));
+		assertFalse(validator.isValid("jack.sparrow"));
+	}
+	
+	public void testNonAscii() {
+		final NameValidator validator = new NameValidator(1, 32, "", true);
+		
+		assertTrue(validator.isValid("\u0142ukasz"));
+		assertTrue(validator.isValid("\u0417\u043e\u044f"));
+		assertTrue(validator.isValid("\u0661\u0662"));
+		assertFalse(validator.isValid("\u00a0jack"));
+		assertFalse(validator.isValid("jack\u2603"));
+	}
+	
+	public void testIllegalPolicy() {
+		try {
+			new NameValidator(0, 5, "", false);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			new NameValidator(5, 4, "", false);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			new NameValidator(1, 5, "\u0142", false);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
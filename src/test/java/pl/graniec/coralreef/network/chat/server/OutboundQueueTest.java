@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class OutboundQueueTest extends TestCase {
+	
+	public void testQueueGrows() {
+		final int capacity = OutboundQueue.INITIAL_SIZE * 3;
+		final OutboundQueue queue = new OutboundQueue(null, capacity);
+		int next = 0;
+		
+		// start in the middle of the buffer, so growing has to unwrap it
+		for (int i = 0; i < OutboundQueue.INITIAL_SIZE / 2; ++i) {
+			assertTrue(queue.offer(new Integer(i)));
+			assertEquals(new Integer(next++), queue.poll());
+		}
+		
+		for (int i = next; i < next + capacity; ++i) {
+			assertTrue(queue.offer(new Integer(i)));
+		}
+		
+		assertFalse(queue.offer("dropped"));
+		assertEquals(1, queue.getDropped());
+		
+		for (int i = 0; i < capacity; ++i) {
+			assertEquals(new Integer(next++), queue.poll());
+		}
+		
+		assertNull(queue.poll());
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.ChatPacket;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.PacketType;
+import pl.graniec.coralreef.network.chat.packets.PingPacket;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketHandlerRegistryTest extends TestCase {
+	
+	/**
+	 * Handler that remembers what it got.
+	 */
+	private static class RecordingHandler implements PacketHandler {
+		
+		final List packets = new ArrayList();
+		
+		public void handlePacket(User user, ChatPacket packet) {
+			packets.add(packet);
+		}
+	}
+	
+	public void testSetHandler() {
+		final PacketHandlerRegistry registry = new PacketHandlerRegistry();
+		final RecordingHandler handler = new RecordingHandler();
+		
+		assertNull(registry.getHandler(PacketType.Ping));
+		
+		registry.setHandler(PacketType.Ping, handler);
+		assertSame(handler, registry.getHandler(PacketType.Ping));
+		assertNull(registry.getHandler(PacketType.Pong));
+		
+		// type IDs above 127 are negative bytes
+		registry.setHandler((byte) 200, handler);
+		assertSame(handler, registry.getHandler((byte) 200));
+		
+		registry.setHandler(PacketType.Ping, null);
+		assertNull(registry.getHandler(PacketType.Ping));
+	}
+	
+	public void testOverrideDefaultHandler() {
+		final ChatServer server = new ChatServer(null);
+		final FakeRemoteClient client = new FakeRemoteClient();
+		final RecordingHandler handler = new RecordingHandler();
+		
+		
+		final User user = TestUsers.connect(server, client);
+		final PingPacket ping = new PingPacket(42);
+		
+		// the protocol packet
+		user.getOutboundQueue().clear();
+		
+		// the default handler answers
+		user.handlePacket(ping);
+		assertEquals(PacketType.Pong, ((PacketFrame) user.getOutboundQueue().poll()).getPacketType());
+		
+		server.setPacketHandler(PacketType.Ping, handler);
+		user.handlePacket(ping);
+		
+		assertEquals(1, handler.packets.size());
+		assertSame(ping, handler.packets.get(0));
+		assertNull(user.getOutboundQueue().poll());
+		
+		// no handler, ignored
+		server.setPacketHandler(PacketType.Ping, null);
+		user.handlePacket(ping);
+		
+		assertEquals(1, handler.packets.size());
+		assertNull(user.getOutboundQueue().poll());
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageRejectReason;
+import pl.graniec.coralreef.network.chat.packets.MessageRejectedPacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.PacketType;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RateLimitTest extends TestCase {
+	
+	final ChatServer server = new ChatServer(null);
+	
+	private User connect(String name) {
+		final User user = TestUsers.join(server, new FakeRemoteClient(), name, "room");
+		
+		user.getOutboundQueue().clear();
+		return user;
+	}
+	
+	private static void sendMessages(User user, int count) {
+		for (int i = 0; i < count; ++i) {
+			user.handlePacket(new MessagePacket(MessageType.Group, "", "room", "message " + i));
+		}
+	}
+	
+	/**
+	 * @return Number of rejections queued for the <code>user</code>.
+	 */
+	private static int countRejections(User user, byte reason) throws IOException {
+		int count = 0;
+		Object packet;
+		
+		while ((packet = user.getOutboundQueue().poll()) != null) {
+			final PacketFrame frame = (PacketFrame) packet;
+			
+			if (frame.getPacketType() == PacketType.MessageRejected) {
+				assertEquals(reason, ((MessageRejectedPacket) frame.getPacket()).getReason());
+				++count;
+			}
+		}
+		
+		return count;
+	}
+	
+	public void testUnlimited() throws IOException {
+		final User jack = connect("jack");
+		
+		sendMessages(jack, 1000);
+		
+		assertEquals(0, countRejections(jack, (byte) 0));
+		assertEquals(64, server.getGroup("room").getHistory().size());
+	}
+	
+	public void testUserLimit() throws IOException {
+		server.setUserRateLimit(1, 10);
+		
+		final User jack = connect("jack");
+		final User john = connect("john");
+		
+		sendMessages(jack, 15);
+		sendMessages(john, 5);
+		
+		assertEquals(5, countRejections(jack, MessageRejectReason.UserRateExceeded));
+		assertEquals(0, countRejections(john, MessageRejectReason.UserRateExceeded));
+	}
+	
+	public void testGroupLimit() throws IOException {
+		server.setGroupRateLimit(1, 10);
+		
+		final User jack = connect("jack");
+		final User john = connect("john");
+		
+		sendMessages(jack, 6);
+		sendMessages(john, 6);
+		
+		assertEquals(0, countRejections(jack, MessageRejectReason.GroupRateExceeded));
+		assertEquals(2, countRejections(john, MessageRejectReason.GroupRateExceeded));
+		assertEquals(10, server.getGroup("room").getHistory().size());
+	}
+	
+	public void testGlobalLimit() throws IOException {
+		server.setGlobalRateLimit(1, 3);
+		
+		final User jack = connect("jack");
+		
+		sendMessages(jack, 5);
+		
+		assertEquals(2, countRejections(jack, MessageRejectReason.ServerRateExceeded));
+	}
+	
+	public void testGlobalRejectionKeepsUserTokens() throws IOException {
+		server.setUserRateLimit(0.001, 3);
+		server.setGlobalRateLimit(0.001, 2);
+		
+		final User jack = connect("jack");
+		final User john = connect("john");
+		
+		sendMessages(jack, 2);
+		sendMessages(john, 2);
+		
+		assertEquals(2, countRejections(john, MessageRejectReason.ServerRateExceeded));
+		
+		// john's messages were not sent, so all his tokens are left
+		server.setGlobalRateLimit(0, 0);
+		sendMessages(john, 3);
+		
+		assertEquals(0, countRejections(john, MessageRejectReason.UserRateExceeded));
+	}
+	
+	public void testGroupRejectionKeepsTokens() throws IOException {
+		server.setUserRateLimit(0.001, 4);
+		server.setGlobalRateLimit(0.001, 4);
+		server.setGroupRateLimit(0.001, 2);
+		
+		final User jack = connect("jack");
+		
+		sendMessages(jack, 4);
+		
+		assertEquals(2, countRejections(jack, MessageRejectReason.GroupRateExceeded));
+		
+		// the rejected messages don't count for jack nor the server
+		server.getGroup("room").setRateLimiter(null);
+		sendMessages(jack, 2);
+		
+		assertEquals(0, countRejections(jack, (byte) 0));
+	}
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.metrics.ServerMetrics;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServerMetricsTest extends TestCase {
+	
+	final ChatServer server = new ChatServer(null);
+	final ServerMetrics metrics = server.getMetrics();
+	
+	private User connect(String name) {
+		return TestUsers.join(server, new FakeRemoteClient(), name, "room");
+	}
+	
+	public void testCounters() {
+		server.setUserRateLimit(1, 2);
+		
+		final User jack = connect("jack");
+		connect("john");
+		
+		for (int i = 0; i < 3; ++i) {
+			jack.handlePacket(new MessagePacket(MessageType.Group, "", "room", "message " + i));
+		}
+		
+		assertEquals(2, metrics.getConnections());
+		assertEquals(2, metrics.getConnectedUsers());
+		assertEquals(2, metrics.getRegisteredUsers());
+		assertEquals(1, metrics.getGroups());
+		assertEquals(7, metrics.getPacketsReceived());
+		assertEquals(3, metrics.getMessagesReceived());
+		assertEquals(1, metrics.getMessagesRejected());
+		
+		// protocol, registration, join, 2 messages and a rejection
+		assertEquals(6, metrics.getQueueDepth("jack"));
+		assertEquals(-1, metrics.getQueueDepth("nobody"));
+		assertEquals(6, metrics.getMaxOutboundQueueDepth());
+		
+		server.handleClientDisconnected(jack.getClient(), 0, "");
+		
+		assertEquals(1, metrics.getDisconnections());
+		assertEquals(1, metrics.getConnectedUsers());
+	}
+	
+	public void testDelivery() throws InterruptedException {
+		connect("jack");
+		connect("john");
+		
+		final long expected = server.getMetrics().getOutboundQueued();
+		
+		server.getBroadcaster().start();
+		
+		try {
+			for (int i = 0; i < 100 && metrics.getPacketsSent() < expected; ++i) {
+				Thread.sleep(10);
+			}
+		} finally {
+			server.getBroadcaster().stop();
+		}
+		
+		assertEquals(expected, metrics.getPacketsSent());
+		assertEquals(0, metrics.getOutboundQueued());
+		assertTrue(metrics.getBytesSent() > 0);
+		
+		// all but the unframed protocol packets
+		assertEquals(expected - 2, metrics.getDeliveryLatency().getCount());
+	}
+	
+	public void testJmx() throws Exception {
+		connect("jack");
+		
+		final ObjectName name = metrics.register("test");
+		final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		
+		try {
+			assertEquals(new Integer(1), mbeanServer.getAttribute(name, "RegisteredUsers"));
+			assertEquals(new Long(2), mbeanServer.getAttribute(name, "PacketsReceived"));
+		} finally {
+			metrics.unregister();
+		}
+		
+		assertFalse(mbeanServer.isRegistered(name));
+	}
+}
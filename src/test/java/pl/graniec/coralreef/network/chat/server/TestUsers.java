@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import pl.graniec.coralreef.network.chat.packets.GroupJoinRequest;
+import pl.graniec.coralreef.network.chat.packets.UserRegisterRequest;
+import pl.graniec.coralreef.network.server.RemoteClient;
+
+/**
+ * Connects users of tests to a chat server. Packets are handled on the
+ * calling thread, unless the server has a packet executor.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+final class TestUsers {
+	
+	private TestUsers() {
+	}
+	
+	/**
+	 * @return User of the <code>client</code> that has just connected
+	 * to the <code>server</code>.
+	 */
+	static User connect(ChatServer server, RemoteClient client) {
+		server.handleClientConnected(client);
+		return (User) server.users.get(client);
+	}
+	
+	/**
+	 * @return User of the <code>client</code> connected to the
+	 * <code>server</code> and registered under <code>name</code>.
+	 */
+	static User register(ChatServer server, RemoteClient client, String name) {
+		return register(server, client, name, false);
+	}
+	
+	/**
+	 * @param compact Does the user ask for compact messages?
+	 */
+	static User register(ChatServer server, RemoteClient client, String name, boolean compact) {
+		final User user = connect(server, client);
+		
+		user.handlePacket(new UserRegisterRequest(name, "", compact));
+		return user;
+	}
+	
+	/**
+	 * @return User of the <code>client</code> connected to the
+	 * <code>server</code>, registered under <code>name</code> and
+	 * joined to the group of <code>groupName</code>.
+	 */
+	static User join(ChatServer server, RemoteClient client, String name, String groupName) {
+		return join(server, client, name, false, groupName);
+	}
+	
+	static User join(ChatServer server, RemoteClient client, String name, boolean compact, String groupName) {
+		final User user = register(server, client, name, compact);
+		
+		user.handlePacket(new GroupJoinRequest(groupName));
+		return user;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TokenBucketTest extends TestCase {
+	
+	private static final long SECOND = 1000000000L;
+	
+	public void testBurst() {
+		final TokenBucket bucket = new TokenBucket(10, 5);
+		final long now = System.nanoTime();
+		
+		for (int i = 0; i < 5; ++i) {
+			assertTrue(bucket.tryAcquire(now));
+		}
+		
+		assertFalse(bucket.tryAcquire(now));
+	}
+	
+	public void testRefill() {
+		final TokenBucket bucket = new TokenBucket(10, 5);
+		final long now = System.nanoTime();
+		
+		for (int i = 0; i < 5; ++i) {
+			bucket.tryAcquire(now);
+		}
+		
+		// one token every 100 ms
+		assertFalse(bucket.tryAcquire(now + SECOND / 20));
+		assertTrue(bucket.tryAcquire(now + SECOND / 10));
+		assertFalse(bucket.tryAcquire(now + SECOND / 10));
+		
+		// never more than the burst
+		final long later = now + 60 * SECOND;
+		
+		for (int i = 0; i < 5; ++i) {
+			assertTrue(bucket.tryAcquire(later));
+		}
+		
+		assertFalse(bucket.tryAcquire(later));
+	}
+	
+	public void testSteadyRate() {
+		final TokenBucket bucket = new TokenBucket(1000, 1);
+		final long now = System.nanoTime();
+		int acquired = 0;
+		
+		// asking every 100 us for a second
+		for (long t = 0; t < SECOND; t += SECOND / 10000) {
+			if (bucket.tryAcquire(now + t)) {
+				++acquired;
+			}
+		}
+		
+		assertEquals(1000, acquired);
+	}
+	
+	public void testRelease() {
+		final TokenBucket bucket = new TokenBucket(10, 2);
+		final long now = System.nanoTime();
+		
+		assertTrue(bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+		
+		bucket.release();
+		
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+	}
+	
+	public void testConcurrentAcquire() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(0.001, 1000);
+		final int[] acquired = new int[1];
+		final Thread[] threads = new Thread[4];
+		
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread() {
+				public void run() {
+					int count = 0;
+					
+					for (int j = 0; j < 1000; ++j) {
+						if (bucket.tryAcquire()) {
+							++count;
+						}
+					}
+					
+					synchronized (acquired) {
+						acquired[0] += count;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i].join();
+		}
+		
+		// no token is taken twice
+		assertEquals(1000, acquired[0]);
+	}
+	
+	public void testRateAndBurst() {
+		final TokenBucket bucket = new TokenBucket(50, 20);
+		
+		assertEquals(50, bucket.getRate(), 0.001);
+		assertEquals(20, bucket.getBurst());
+	}
+
+}
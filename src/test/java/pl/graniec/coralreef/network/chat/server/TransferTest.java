@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferAbortReason;
+import pl.graniec.coralreef.network.chat.packets.TransferAckPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferChunkPacket;
+import pl.graniec.coralreef.network.chat.packets.TransferStartPacket;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TransferTest extends TestCase {
+	
+	final ChatServer server = new ChatServer(null);
+	
+	/**
+	 * Client that keeps decoded packets it was sent.
+	 */
+	static class RecordingClient extends FakeRemoteClient {
+		final List received = new ArrayList();
+		
+		public void send(Object data) {
+			if (data instanceof PacketFrame) {
+				try {
+					data = PacketFrame.wrap(((PacketFrame) data).getData()).getPacket();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			
+			synchronized (received) {
+				received.add(data);
+				received.notifyAll();
+			}
+		}
+		
+		/**
+		 * @return Received packets of given class.
+		 */
+		List get(Class type) {
+			final List result = new ArrayList();
+			
+			synchronized (received) {
+				for (int i = 0; i < received.size(); ++i) {
+					if (type.isInstance(received.get(i))) {
+						result.add(received.get(i));
+					}
+				}
+			}
+			
+			return result;
+		}
+		
+		void waitFor(Class type, int count) throws InterruptedException {
+			final long end = System.currentTimeMillis() + 5000;
+			
+			synchronized (received) {
+				while (get(type).size() < count && System.currentTimeMillis() < end) {
+					received.wait(100);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		try {
+			server.getBroadcaster().stop();
+		} catch (IllegalStateException e) {
+			// not started
+		}
+	}
+	
+	private static byte[] content(int length) {
+		final byte[] data = new byte[length];
+		
+		for (int i = 0; i < length; ++i) {
+			data[i] = (byte) i;
+		}
+		
+		return data;
+	}
+	
+	private static void sendChunks(User user, int transferId, int count) {
+		for (int i = 0; i < count; ++i) {
+			user.handlePacket(new TransferChunkPacket(transferId, "", i, i == count - 1, content(1000)));
+		}
+	}
+	
+	public void testPrivateTransfer() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final RecordingClient johnClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		TestUsers.register(server, johnClient, "john");
+		
+		server.getBroadcaster().start();
+		
+		jack.handlePacket(new TransferStartPacket(7, MessageType.Private, "", "john", "log.txt", 3000));
+		sendChunks(jack, 7, 3);
+		
+		johnClient.waitFor(TransferChunkPacket.class, 3);
+		jackClient.waitFor(TransferAckPacket.class, 3);
+		
+		final TransferStartPacket start = (TransferStartPacket) johnClient.get(TransferStartPacket.class).get(0);
+		assertEquals(7, start.getTransferId());
+		assertEquals("jack", start.getSenderName());
+		assertEquals("log.txt", start.getName());
+		assertEquals(3000, start.getLength());
+		
+		final List chunks = johnClient.get(TransferChunkPacket.class);
+		assertEquals(3, chunks.size());
+		
+		for (int i = 0; i < 3; ++i) {
+			final TransferChunkPacket chunk = (TransferChunkPacket) chunks.get(i);
+			
+			assertEquals(i, chunk.getSequence());
+			assertEquals("jack", chunk.getSenderName());
+			assertEquals(i == 2, chunk.isLast());
+			assertEquals(1000, chunk.getData().length);
+		}
+		
+		assertEquals(3, jackClient.get(TransferAckPacket.class).size());
+		assertEquals(0, jackClient.get(TransferAbortPacket.class).size());
+	}
+	
+	public void testAcknowledgedOnlyWhenDelivered() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		final User john = TestUsers.register(server, new RecordingClient(), "john");
+		
+		jack.handlePacket(new TransferStartPacket(1, MessageType.Private, "", "john", "", -1));
+		sendChunks(jack, 1, 2);
+		
+		// nothing was sent to john yet
+		assertEquals(0, jackClient.get(TransferAckPacket.class).size());
+		assertEquals(5, john.getQueueDepth());
+		
+		server.getBroadcaster().start();
+		jackClient.waitFor(TransferAckPacket.class, 2);
+		
+		assertEquals(2, jackClient.get(TransferAckPacket.class).size());
+	}
+	
+	public void testAcknowledgedWhenReceiverLeaves() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final RecordingClient johnClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		TestUsers.register(server, johnClient, "john");
+		
+		jack.handlePacket(new TransferStartPacket(1, MessageType.Private, "", "john", "", -1));
+		sendChunks(jack, 1, 2);
+		
+		server.handleClientDisconnected(johnClient, 0, "");
+		
+		server.getBroadcaster().start();
+		jackClient.waitFor(TransferAckPacket.class, 2);
+		
+		assertEquals(2, jackClient.get(TransferAckPacket.class).size());
+	}
+	
+	public void testNoReceiver() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		
+		server.getBroadcaster().start();
+		
+		jack.handlePacket(new TransferStartPacket(1, MessageType.Private, "", "nobody", "", -1));
+		jackClient.waitFor(TransferAbortPacket.class, 1);
+		
+		final TransferAbortPacket abort = (TransferAbortPacket) jackClient.get(TransferAbortPacket.class).get(0);
+		assertTrue(abort.isOutgoing());
+		assertEquals(TransferAbortReason.NoReceiver, abort.getReason());
+	}
+	
+	public void testChunkOutOfOrder() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final RecordingClient johnClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		TestUsers.register(server, johnClient, "john");
+		
+		server.getBroadcaster().start();
+		
+		jack.handlePacket(new TransferStartPacket(1, MessageType.Private, "", "john", "", -1));
+		jack.handlePacket(new TransferChunkPacket(1, "", 1, false, content(10)));
+		
+		jackClient.waitFor(TransferAbortPacket.class, 1);
+		johnClient.waitFor(TransferAbortPacket.class, 1);
+		
+		assertEquals(TransferAbortReason.ProtocolViolation, ((TransferAbortPacket) jackClient.get(TransferAbortPacket.class).get(0)).getReason());
+		assertEquals(TransferAbortReason.ProtocolViolation, ((TransferAbortPacket) johnClient.get(TransferAbortPacket.class).get(0)).getReason());
+		assertEquals(0, johnClient.get(TransferChunkPacket.class).size());
+	}
+	
+	public void testChunkBeyondWindow() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final RecordingClient johnClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		TestUsers.register(server, johnClient, "john");
+		
+		// nothing is sent to john, so nothing is acknowledged
+		jack.handlePacket(new TransferStartPacket(1, MessageType.Private, "", "john", "", -1));
+		sendChunks(jack, 1, TransferChunkPacket.WINDOW + 1);
+		
+		server.getBroadcaster().start();
+		jackClient.waitFor(TransferAbortPacket.class, 1);
+		johnClient.waitFor(TransferAbortPacket.class, 1);
+		
+		assertEquals(TransferAbortReason.ProtocolViolation, ((TransferAbortPacket) jackClient.get(TransferAbortPacket.class).get(0)).getReason());
+		assertEquals(TransferChunkPacket.WINDOW, johnClient.get(TransferChunkPacket.class).size());
+	}
+	
+	public void testSenderLeaves() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final RecordingClient johnClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		TestUsers.register(server, johnClient, "john");
+		
+		server.getBroadcaster().start();
+		
+		jack.handlePacket(new TransferStartPacket(1, MessageType.Private, "", "john", "", -1));
+		sendChunks(jack, 1, 2);
+		jack.handlePacket(new TransferStartPacket(2, MessageType.Private, "", "john", "", -1));
+		server.handleClientDisconnected(jackClient, 0, "");
+		
+		johnClient.waitFor(TransferAbortPacket.class, 1);
+		
+		final List aborts = johnClient.get(TransferAbortPacket.class);
+		assertEquals(1, aborts.size());
+		
+		final TransferAbortPacket abort = (TransferAbortPacket) aborts.get(0);
+		assertFalse(abort.isOutgoing());
+		assertEquals("jack", abort.getSenderName());
+		assertEquals(2, abort.getTransferId());
+		assertEquals(TransferAbortReason.SenderLeft, abort.getReason());
+	}
+	
+	public void testTooManyTransfers() throws InterruptedException {
+		final RecordingClient jackClient = new RecordingClient();
+		final User jack = TestUsers.register(server, jackClient, "jack");
+		TestUsers.register(server, new RecordingClient(), "john");
+		
+		server.getBroadcaster().start();
+		
+		for (int i = 0; i <= Transfer.MAX_PER_USER; ++i) {
+			jack.handlePacket(new TransferStartPacket(i, MessageType.Private, "", "john", "", -1));
+		}
+		
+		jackClient.waitFor(TransferAbortPacket.class, 1);
+		
+		final TransferAbortPacket abort = (TransferAbortPacket) jackClient.get(TransferAbortPacket.class).get(0);
+		assertEquals(Transfer.MAX_PER_USER, abort.getTransferId());
+		assertEquals(TransferAbortReason.TooManyTransfers, abort.getReason());
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class MessageLogTest extends TestCase {
+	
+	private static final byte GROUP = 2;
+	private static final byte PRIVATE = 3;
+	
+	File directory;
+	MessageLog log;
+	
+	/*
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		directory = File.createTempFile("chat-log", "");
+		directory.delete();
+		
+		log = new MessageLog(directory, 16 * 1024);
+	}
+
+	/*
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		log.close();
+		
+		final File[] files = directory.listFiles();
+		
+		for (int i = 0; i < files.length; ++i) {
+			files[i].delete();
+		}
+		
+		directory.delete();
+		super.tearDown();
+	}
+	
+	private static byte[] data(String text) throws IOException {
+		return text.getBytes("UTF-8");
+	}
+	
+	private static String text(ByteBuffer data) {
+		final byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		
+		return new String(bytes);
+	}
+	
+	/**
+	 * Fills the log with messages of groups "g0" to "g9" over
+	 * a few segments.
+	 */
+	private void fill(int count) throws IOException {
+		for (int i = 0; i < count; ++i) {
+			log.append(1000 + i, GROUP, "g" + (i % 10), data("message " + i));
+		}
+	}
+	
+	private List scan(long from, byte tag, String key) {
+		final List found = new ArrayList();
+		
+		log.scan(from, tag, key, new RecordVisitor() {
+			public boolean visit(long timestamp, byte recordTag, String recordKey, ByteBuffer data) {
+				found.add(text(data));
+				return true;
+			}
+		});
+		
+		return found;
+	}
+	
+	public void testScanAll() throws IOException {
+		fill(3000);
+		assertTrue(log.getSegmentCount() > 1);
+		
+		final List found = new ArrayList();
+		
+		log.scan(Long.MIN_VALUE, new RecordVisitor() {
+			public boolean visit(long timestamp, byte tag, String key, ByteBuffer data) {
+				assertEquals(1000 + found.size(), timestamp);
+				assertEquals("g" + (found.size() % 10), key);
+				found.add(text(data));
+				return true;
+			}
+		});
+		
+		assertEquals(3000, found.size());
+		assertEquals("message 2999", found.get(2999));
+	}
+	
+	public void testScanByKeyAndTimestamp() throws IOException {
+		fill(3000);
+		log.append(5000, PRIVATE, "g3", data("private"));
+		
+		final List found = scan(2000, GROUP, "g3");
+		
+		assertEquals(200, found.size());
+		assertEquals("message 1003", found.get(0));
+		assertEquals("message 2993", found.get(199));
+		
+		assertEquals(1, scan(0, PRIVATE, "g3").size());
+		assertEquals(0, scan(0, GROUP, "nobody").size());
+	}
+	
+	public void testStopScan() throws IOException {
+		fill(100);
+		
+		final int[] visited = new int[1];
+		
+		log.scan(0, new RecordVisitor() {
+			public boolean visit(long timestamp, byte tag, String key, ByteBuffer data) {
+				return ++visited[0] < 5;
+			}
+		});
+		
+		assertEquals(5, visited[0]);
+	}
+	
+	public void testReadRecent() throws IOException {
+		fill(3000);
+		
+		final byte[][] recent = log.readRecent(GROUP, "g7", 50);
+		
+		assertEquals(50, recent.length);
+		assertEquals("message 2507", new String(recent[0]));
+		assertEquals("message 2997", new String(recent[49]));
+		
+		assertEquals(300, log.readRecent(GROUP, "g7", 1000).length);
+	}
+	
+	public void testTimestampsNeverGoBack() throws IOException {
+		log.append(2000, GROUP, "g", data("first"));
+		log.append(1000, GROUP, "g", data("second"));
+		
+		assertEquals(2, scan(2000, GROUP, "g").size());
+	}
+	
+	public void testReopen() throws IOException {
+		fill(3000);
+		
+		final int segments = log.getSegmentCount();
+		
+		log.close();
+		log = new MessageLog(directory, 16 * 1024);
+		
+		assertEquals(segments, log.getSegmentCount());
+		assertEquals(300, scan(0, GROUP, "g4").size());
+		
+		// appending goes on after the last record
+		log.append(9000, GROUP, "g4", data("after reopen"));
+		
+		final List found = scan(0, GROUP, "g4");
+		assertEquals(301, found.size());
+		assertEquals("after reopen", found.get(300));
+	}
+	
+	public void testReopenWithoutClose() throws IOException {
+		fill(50);
+		
+		// as after a crash: no index of the last block
+		final MessageLog crashed = new MessageLog(directory, 16 * 1024);
+		
+		assertEquals(5, crashed.readRecent(GROUP, "g1", 100).length);
+		crashed.close();
+	}
+	
+	public void testRecordTooLarge() throws IOException {
+		try {
+			log.append(0, GROUP, "g", new byte[32 * 1024]);
+			fail("record bigger than a segment appended");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testExport() throws IOException {
+		fill(3000);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final long written = log.export(3990, Channels.newChannel(out));
+		
+		assertEquals(out.size(), written);
+		
+		// ten records of the log format
+		final ByteBuffer records = ByteBuffer.wrap(out.toByteArray());
+		int count = 0;
+		
+		while (records.hasRemaining()) {
+			final int length = records.getInt();
+			
+			assertEquals(3990 + count, records.getLong());
+			records.position(records.position() + length - 8);
+			++count;
+		}
+		
+		assertEquals(10, count);
+	}
+
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class OfflineQueueTest extends TestCase {
+	
+	File file;
+	OfflineQueue queue;
+	
+	/*
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		file = File.createTempFile("chat-offline", ".dat");
+		file.delete();
+		
+		queue = new OfflineQueue(file);
+	}
+
+	/*
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		queue.close();
+		file.delete();
+		super.tearDown();
+	}
+	
+	private static String text(byte[] data) {
+		return new String(data);
+	}
+	
+	public void testOfferAndTake() throws IOException {
+		queue.offer("jack", "one".getBytes());
+		queue.offer("john", "other".getBytes());
+		queue.offer("jack", "two".getBytes());
+		
+		assertEquals(2, queue.getPendingCount("jack"));
+		assertEquals(3, queue.size());
+		
+		final byte[][] messages = queue.take("jack");
+		
+		assertEquals(2, messages.length);
+		assertEquals("one", text(messages[0]));
+		assertEquals("two", text(messages[1]));
+		
+		assertEquals(0, queue.take("jack").length);
+		assertEquals(1, queue.size());
+	}
+	
+	public void testReopen() throws IOException {
+		queue.offer("jack", "taken".getBytes());
+		queue.take("jack");
+		queue.offer("jack", "kept".getBytes());
+		queue.offer("john", "other".getBytes());
+		queue.close();
+		
+		queue = new OfflineQueue(file);
+		
+		assertEquals(2, queue.size());
+		
+		final byte[][] messages = queue.take("jack");
+		
+		assertEquals(1, messages.length);
+		assertEquals("kept", text(messages[0]));
+	}
+	
+	public void testTornRecord() throws IOException {
+		queue.offer("jack", "whole".getBytes());
+		queue.offer("jack", "torn".getBytes());
+		queue.close();
+		
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 2);
+		raf.close();
+		
+		queue = new OfflineQueue(file);
+		assertEquals(1, queue.getPendingCount("jack"));
+		
+		// appends go after the last whole record
+		queue.offer("jack", "next".getBytes());
+		
+		final byte[][] messages = queue.take("jack");
+		assertEquals("whole", text(messages[0]));
+		assertEquals("next", text(messages[1]));
+	}
+	
+	public void testMaxPending() throws IOException {
+		queue.setMaxPending(2);
+		
+		assertTrue(queue.offer("jack", "1".getBytes()));
+		assertTrue(queue.offer("jack", "2".getBytes()));
+		assertFalse(queue.offer("jack", "3".getBytes()));
+		assertTrue(queue.offer("john", "1".getBytes()));
+	}
+	
+	public void testMaxReceivers() throws IOException {
+		queue.setMaxReceivers(2);
+		
+		assertTrue(queue.offer("jack", "1".getBytes()));
+		assertTrue(queue.offer("john", "1".getBytes()));
+		assertFalse(queue.offer("jill", "1".getBytes()));
+		assertTrue(queue.offer("jack", "2".getBytes()));
+		
+		queue.take("jack");
+		assertTrue(queue.offer("jill", "1".getBytes()));
+	}
+	
+	public void testMaxBytes() throws IOException {
+		queue.setMaxBytes(100);
+		
+		assertTrue(queue.offer("jack", new byte[50]));
+		assertFalse(queue.offer("john", new byte[50]));
+		assertTrue(queue.offer("john", new byte[10]));
+	}
+	
+	public void testLongNameLeavesNoReceiver() throws IOException {
+		queue.setMaxReceivers(1);
+		
+		try {
+			queue.offer(new String(new char[0x10000]).replace('\0', 'a'), "1".getBytes());
+			fail("name too long");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		assertTrue(queue.offer("jack", "1".getBytes()));
+	}
+	
+	public void testPeekAndDelivered() throws IOException {
+		queue.offer("jack", "one".getBytes());
+		queue.offer("jack", "two".getBytes());
+		
+		assertEquals(2, queue.peek("jack").length);
+		assertEquals(2, queue.getPendingCount("jack"));
+		
+		queue.offer("jack", "three".getBytes());
+		queue.delivered("jack", 2);
+		queue.close();
+		
+		queue = new OfflineQueue(file);
+		
+		final byte[][] messages = queue.peek("jack");
+		
+		assertEquals(1, messages.length);
+		assertEquals("three", text(messages[0]));
+	}
+	
+	public void testCrashDuringCompaction() throws IOException {
+		final File compacted = new File(file.getPath() + ".tmp");
+		
+		queue.offer("jack", "kept".getBytes());
+		queue.close();
+		
+		// died after deleting the old file, before renaming the new one
+		assertTrue(file.renameTo(compacted));
+		
+		queue = new OfflineQueue(file);
+		
+		assertFalse(compacted.exists());
+		assertEquals("kept", text(queue.take("jack")[0]));
+		queue.close();
+		
+		// died while writing the new file
+		final RandomAccessFile partial = new RandomAccessFile(compacted, "rw");
+		partial.write(1);
+		partial.close();
+		
+		queue = new OfflineQueue(file);
+		
+		assertFalse(compacted.exists());
+		assertEquals(0, queue.size());
+	}
+	
+	public void testCompaction() throws IOException {
+		final byte[] data = new byte[1000];
+		
+		queue.offer("john", "kept".getBytes());
+		
+		for (int round = 0; round < 5; ++round) {
+			for (int i = 0; i < 1000; ++i) {
+				queue.offer("jack", data);
+			}
+			
+			assertEquals(1000, queue.take("jack").length);
+		}
+		
+		// taken messages are gone from the file
+		assertTrue(file.length() < 2 * 1024 * 1024);
+		
+		queue.offer("jack", "after".getBytes());
+		queue.close();
+		queue = new OfflineQueue(file);
+		
+		assertEquals("kept", text(queue.take("john")[0]));
+		assertEquals("after", text(queue.take("jack")[0]));
+	}
+
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.chat.transport;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.chat.client.ChatClient;
+import pl.graniec.coralreef.network.chat.client.MessageListener;
+import pl.graniec.coralreef.network.chat.packets.MessagePacket;
+import pl.graniec.coralreef.network.chat.packets.MessageType;
+import pl.graniec.coralreef.network.chat.packets.PacketFrame;
+import pl.graniec.coralreef.network.chat.server.ChatServer;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class NioServerTest extends TestCase {
+	
+	private static final long TIMEOUT = 10000;
+	
+	/**
+	 * Records what happens on the server side.
+	 */
+	private static class Recorder implements ConnectionListener, PacketListener {
+		
+		final List clients = new ArrayList();
+		final List packets = new ArrayList();
+		final List disconnectReasons = new ArrayList();
+		
+		public synchronized void clientConnected(RemoteClient client) {
+			clients.add(client);
+			client.addPacketListener(this);
+			notifyAll();
+		}
+		
+		public synchronized void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			disconnectReasons.add(new Integer(reason));
+			notifyAll();
+		}
+		
+		public synchronized void packetReceived(Object data) {
+			packets.add(data);
+			notifyAll();
+		}
+		
+		synchronized void await(List list, int size) throws InterruptedException {
+			final long end = System.currentTimeMillis() + TIMEOUT;
+			
+			while (list.size() < size && System.currentTimeMillis() < end) {
+				wait(100);
+			}
+			
+			assertTrue("timed out", list.size() >= size);
+		}
+	}
+	
+	final NioServer server = new NioServer(2);
+	final Recorder recorder = new Recorder();
+	final List received = new ArrayList();
+	
+	protected void setUp() throws Exception {
+		server.addConnectionListener(recorder);
+		server.open(0);
+	}
+	
+	protected void tearDown() throws Exception {
+		if (server.isOpen()) {
+			server.close();
+		}
+	}
+	
+	private SocketClient connect() {
+		final SocketClient client = new SocketClient();
+		
+		client.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				synchronized (received) {
+					received.add(data);
+					received.notifyAll();
+				}
+			}
+		});
+		
+		return client;
+	}
+	
+	private void awaitReceived(int size) throws InterruptedException {
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		
+		synchronized (received) {
+			while (received.size() < size && System.currentTimeMillis() < end) {
+				received.wait(100);
+			}
+			
+			assertTrue("timed out", received.size() >= size);
+		}
+	}
+	
+	private static PacketFrame frame(String text) {
+		return PacketFrame.encode(new MessagePacket(MessageType.Public, "jack", "", text));
+	}
+	
+	private static String text(Object frame) throws Exception {
+		return ((MessagePacket) ((PacketFrame) frame).getPacket()).getMessage();
+	}
+	
+	public void testExchange() throws Exception {
+		final SocketClient client = connect();
+		
+		client.connect("localhost", server.getLocalPort());
+		client.send(frame("hello"));
+		
+		recorder.await(recorder.packets, 1);
+		assertEquals("hello", text(recorder.packets.get(0)));
+		
+		final RemoteClient remote = (RemoteClient) recorder.clients.get(0);
+		
+		remote.send("object");
+		remote.send(frame("frame"));
+		
+		awaitReceived(2);
+		assertEquals("object", received.get(0));
+		assertEquals("frame", text(received.get(1)));
+		
+		client.disconnect();
+		
+		recorder.await(recorder.disconnectReasons, 1);
+		assertEquals(new Integer(DisconnectReason.ClosedByClient), recorder.disconnectReasons.get(0));
+		assertEquals(0, server.getConnectionCount());
+	}
+	
+	public void testObjectsRejected() throws Exception {
+		final SocketClient client = connect();
+		
+		client.connect("localhost", server.getLocalPort());
+		client.send("object");
+		
+		recorder.await(recorder.disconnectReasons, 1);
+		assertEquals(new Integer(DisconnectReason.ProtocolError), recorder.disconnectReasons.get(0));
+		assertTrue(recorder.packets.isEmpty());
+	}
+	
+	public void testLargeFrame() throws Exception {
+		final SocketClient client = connect();
+		final char[] filler = new char[100000];
+		
+		Arrays.fill(filler, 'x');
+		
+		client.connect("localhost", server.getLocalPort());
+		client.send(frame(new String(filler)));
+		
+		// read in pieces into a growing buffer
+		recorder.await(recorder.packets, 1);
+		assertEquals(new String(filler), text(recorder.packets.get(0)));
+	}
+	
+	public void testFrameTooLarge() throws Exception {
+		final SocketClient client = connect();
+		final char[] filler = new char[2000];
+		
+		Arrays.fill(filler, 'x');
+		server.setMaxFrameSize(1000);
+		
+		client.connect("localhost", server.getLocalPort());
+		client.send(frame(new String(filler)));
+		
+		recorder.await(recorder.disconnectReasons, 1);
+		assertEquals(new Integer(DisconnectReason.ProtocolError), recorder.disconnectReasons.get(0));
+		assertTrue(recorder.packets.isEmpty());
+	}
+	
+	public void testLargeTraffic() throws Exception {
+		final SocketClient client = connect();
+		final char[] filler = new char[4096];
+		
+		Arrays.fill(filler, 'x');
+		
+		client.connect("localhost", server.getLocalPort());
+		recorder.await(recorder.clients, 1);
+		
+		final RemoteClient remote = (RemoteClient) recorder.clients.get(0);
+		final int rounds = 20;
+		final int perRound = 100;
+		final int count = rounds * perRound;
+		
+		// more than a client can have pending, but in rounds it reads
+		for (int i = 0; i < rounds; ++i) {
+			for (int j = 0; j < perRound; ++j) {
+				remote.send(frame((i * perRound + j) + new String(filler)));
+			}
+			
+			awaitReceived((i + 1) * perRound);
+		}
+		
+		for (int i = 0; i < count; ++i) {
+			assertTrue(text(received.get(i)).startsWith(i + "x"));
+		}
+	}
+	
+	public void testClientNotReading() throws Exception {
+		final SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+		final char[] filler = new char[4096];
+		
+		Arrays.fill(filler, 'x');
+		recorder.await(recorder.clients, 1);
+		
+		final RemoteClient remote = (RemoteClient) recorder.clients.get(0);
+		final PacketFrame frame = frame(new String(filler));
+		int sent = 0;
+		
+		// fails instead of waiting for the client
+		try {
+			while (true) {
+				remote.send(frame);
+				++sent;
+			}
+		} catch (NetworkException e) {
+			// expected
+		}
+		
+		assertTrue(sent > 0);
+		
+		recorder.await(recorder.disconnectReasons, 1);
+		assertEquals(new Integer(DisconnectReason.TooSlow), recorder.disconnectReasons.get(0));
+		assertEquals(0, server.getConnectionCount());
+		
+		channel.close();
+	}
+	
+	public void testClosedBeforeRegistered() throws Exception {
+		final SocketChannel channel = SocketChannel.open();
+		final EventLoop loop = new EventLoop("test-loop");
+		
+		channel.close();
+		
+		try {
+			new NioRemoteClient(server, channel, loop).register();
+		} finally {
+			loop.getSelector().close();
+		}
+		
+		// never connected, so never disconnected either
+		assertTrue(recorder.clients.isEmpty());
+		assertTrue(recorder.disconnectReasons.isEmpty());
+		assertEquals(0, server.getConnectionCount());
+	}
+	
+	public void testIdleConnections() throws Exception {
+		final SocketChannel[] channels = new SocketChannel[500];
+		
+		for (int i = 0; i < channels.length; ++i) {
+			channels[i] = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+		}
+		
+		recorder.await(recorder.clients, channels.length);
+		assertEquals(channels.length, server.getConnectionCount());
+		
+		for (int i = 0; i < channels.length; ++i) {
+			channels[i].close();
+		}
+		
+		recorder.await(recorder.disconnectReasons, channels.length);
+		assertEquals(0, server.getConnectionCount());
+	}
+	
+	public void testChatServer() throws Exception {
+		server.close();
+		
+		final NioServer chatTransport = new NioServer(2);
+		final ChatServer chatServer = new ChatServer(chatTransport, 0);
+		
+		chatServer.open();
+		
+		try {
+			final ChatClient jack = new ChatClient(new SocketClient(), "jack");
+			final ChatClient john = new ChatClient(new SocketClient(), "john");
+			
+			jack.connect("localhost", chatTransport.getLocalPort());
+			john.connect("localhost", chatTransport.getLocalPort());
+			
+			john.addMessageListener(new MessageListener() {
+				public void messageReceived(MessagePacket message) {
+					synchronized (received) {
+						received.add(message);
+						received.notifyAll();
+					}
+				}
+			});
+			
+			jack.joinGroup("room").get(TIMEOUT);
+			john.joinGroup("room").get(TIMEOUT);
+			jack.sendMessage(MessageType.Group, "room", "hello");
+			
+			awaitReceived(1);
+			
+			final MessagePacket message = (MessagePacket) received.get(0);
+			
+			assertEquals("jack", message.getSenderName());
+			assertEquals("room", message.getReceiverName());
+			assertEquals("hello", message.getMessage());
+		} finally {
+			chatServer.close();
+		}
+	}
+}